@@ -35,6 +35,7 @@ import javax.lang.model.util.SimpleTypeVisitor6;
 
 import org.slim3.datastore.Attribute;
 import org.slim3.datastore.AttributeListener;
+import org.slim3.datastore.AttributeSerializer;
 import org.slim3.datastore.Model;
 import org.slim3.datastore.json.Json;
 import org.slim3.gen.AnnotationConstants;
@@ -47,6 +48,7 @@ import org.slim3.gen.datastore.DataTypeFactory;
 import org.slim3.gen.datastore.InverseModelRefType;
 import org.slim3.gen.datastore.ModelRefType;
 import org.slim3.gen.datastore.OtherReferenceType;
+import org.slim3.gen.datastore.PrimitiveByteType;
 import org.slim3.gen.message.MessageCode;
 import org.slim3.gen.processor.UnknownDeclarationException;
 import org.slim3.gen.processor.ValidationException;
@@ -180,10 +182,18 @@ public class AttributeMetaDescFactory {
                     return false;
                 }
 
+                public boolean lazy() {
+                    return false;
+                }
+
                 public Class<?> listener() {
                     return AttributeListener.class;
                 }
 
+                public Class<?> serializer() {
+                    return AttributeSerializer.class;
+                }
+
                 public Class<? extends Annotation> annotationType() {
                     return null;
                 }
@@ -223,12 +233,20 @@ public class AttributeMetaDescFactory {
                 fieldElement,
                 attribute);
         }
+        if (attribute.lazy()) {
+            handleLazy(attributeMetaDesc, classElement, fieldElement, attribute);
+        }
         handleJson(attributeMetaDesc, classElement, fieldElement, attribute);
         handleAttributeListener(
             attributeMetaDesc,
             classElement,
             fieldElement,
             attribute);
+        handleAttributeSerializer(
+            attributeMetaDesc,
+            classElement,
+            fieldElement,
+            attribute);
         if (attributeMetaDesc.isPersistent()) {
             DataType dataType = attributeMetaDesc.getDataType();
             if (dataType instanceof InverseModelRefType) {
@@ -518,6 +536,29 @@ public class AttributeMetaDescFactory {
         attributeMetaDesc.setCipher(true);
     }
 
+    /**
+     * Handles lazy.
+     * 
+     * @param attributeMetaDesc
+     *            the attribute meta description
+     * @param classElement
+     *            the model class declaration
+     * @param fieldElement
+     *            the field declaration
+     * @param attribute
+     *            the Attribute annotation
+     */
+    protected void handleLazy(AttributeMetaDesc attributeMetaDesc,
+            TypeElement classElement, VariableElement fieldElement,
+            Attribute attribute) {
+        if (!attributeMetaDesc.isLob()) {
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1056,
+                fieldElement);
+        }
+        attributeMetaDesc.setLazy(true);
+    }
+
     /**
      * Handles the json.
      * 
@@ -689,6 +730,73 @@ public class AttributeMetaDescFactory {
                 .toString());
     }
 
+    /**
+     * Handles the attribute serializer.
+     * 
+     * @param attributeMetaDesc
+     *            the attribute meta description
+     * @param classElement
+     *            the model class declaration
+     * @param fieldElement
+     *            the field declaration
+     * @param attribute
+     *            the annotation mirror for Attribute
+     */
+    protected void handleAttributeSerializer(
+            AttributeMetaDesc attributeMetaDesc, TypeElement classElement,
+            VariableElement fieldElement, Attribute attribute) {
+        AnnotationValue serializer = null;
+        for (AnnotationMirror mirror : fieldElement.getAnnotationMirrors()) {
+            Map<? extends ExecutableElement, ? extends AnnotationValue> elementValues =
+                mirror.getElementValues();
+            for (ExecutableElement e : elementValues.keySet()) {
+                if (AnnotationConstants.serializer.equals(e
+                    .getSimpleName()
+                    .toString())) {
+                    serializer = elementValues.get(e);
+                }
+            }
+        }
+        if (serializer == null) {
+            return;
+        }
+        TypeElement serializerClassType =
+            processingEnv.getElementUtils().getTypeElement(
+                serializer.getValue().toString());
+        if (serializerClassType == null) {
+            return;
+        }
+        if (serializerClassType.getKind() == ElementKind.INTERFACE) {
+            if (ClassConstants.AttributeSerializer.equals(serializerClassType
+                .getQualifiedName()
+                .toString())) {
+                return;
+            }
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1059,
+                fieldElement);
+        }
+        DataType dataType = attributeMetaDesc.getDataType();
+        if (!attributeMetaDesc.isLob()
+            || dataType instanceof CoreReferenceType
+            || (dataType instanceof ArrayType && ArrayType.class
+                .cast(dataType)
+                .getComponentType() instanceof PrimitiveByteType)) {
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1057,
+                fieldElement);
+        }
+        if (!DeclarationUtil.hasPublicDefaultConstructor(serializerClassType)) {
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1058,
+                fieldElement,
+                serializerClassType.getQualifiedName());
+        }
+        attributeMetaDesc.setAttributeSerializerClassName(serializerClassType
+            .getQualifiedName()
+            .toString());
+    }
+
     /**
      * Handles the attribute listener generics parameter.
      * 
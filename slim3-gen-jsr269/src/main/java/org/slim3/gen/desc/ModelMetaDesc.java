@@ -86,6 +86,9 @@ public class ModelMetaDesc implements ClassDesc {
     /** the modelListenerClassName */
     protected String modelListenerClassName;
 
+    /** {@code true} if the entities are cached in memcache */
+    protected boolean cacheable;
+
     /**
      * Creates a new {@link ModelMetaDesc}.
      * 
@@ -345,6 +348,22 @@ public class ModelMetaDesc implements ClassDesc {
         this.modelListenerClassName = modelListenerClassName;
     }
 
+    /**
+     * Returns {@code true} if the entities are cached in memcache.
+     * @return {@code true} if the entities are cached in memcache
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    /**
+     * Sets the cacheable.
+     * @param cacheable the cacheable to set
+     */
+    public void setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+    }
+
     /**
      * Creates the jsonAttributeMetaDescList
      */
@@ -70,8 +70,17 @@ public final class AnnotationConstants {
     /** the name of listener element */
     public static final String listener = "listener";
 
+    /** the name of cacheable element */
+    public static final String cacheable = "cacheable";
+
     /** the name of cipher element */
     public static final String cipher = "cipher";
+
+    /** the name of lazy element */
+    public static final String lazy = "lazy";
+
+    /** the name of serializer element */
+    public static final String serializer = "serializer";
     
     /** {@code org.slim3.datastore.json.Json} */
     public static final String Json = "org.slim3.datastore.json.Json";
@@ -54,6 +54,13 @@ public final class ClassConstants {
     /** {@code org.slim3.datastore.ModelMeta} */
     public static final String ModelMeta = "org.slim3.datastore.ModelMeta";
 
+    /** {@code org.slim3.datastore.EntityProtoWriter} */
+    public static final String EntityProtoWriter =
+        "org.slim3.datastore.EntityProtoWriter";
+
+    /** {@code org.slim3.datastore.LazyModel} */
+    public static final String LazyModel = "org.slim3.datastore.LazyModel";
+
     /** {@code org.slim3.datastore.ModelRef} */
     public static final String ModelRef = "org.slim3.datastore.ModelRef";
 
@@ -134,6 +141,10 @@ public final class ClassConstants {
     public static final String Entity =
         "com.google.appengine.api.datastore.Entity";
 
+    /** {@code com.google.storage.onestore.v3.OnestoreEntity.EntityProto} */
+    public static final String EntityProto =
+        "com.google.storage.onestore.v3.OnestoreEntity.EntityProto";
+
     /** {@code com.google.appengine.api.datastore.DatastoreService} */
     public static final String DatastoreService =
         "com.google.appengine.api.datastore.DatastoreService";
@@ -268,6 +279,10 @@ public final class ClassConstants {
     public static final String AttributeListener =
         "org.slim3.datastore.AttributeListener";
     
+    /** {@code org.slim3.datastore.AttributeSerializer} */
+    public static final String AttributeSerializer =
+        "org.slim3.datastore.AttributeSerializer";
+
     /** {@code org.slim3.datastore.ModelListener} */
     public static final String ModelListener =
         "org.slim3.datastore.ModelListener";
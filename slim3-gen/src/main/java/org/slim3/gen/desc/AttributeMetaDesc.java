@@ -55,6 +55,9 @@ public class AttributeMetaDesc {
     /** the cipher */
     protected boolean cipher;
 
+    /** the lazy */
+    protected boolean lazy;
+
     /** the json */
     protected JsonAnnotation json;
 
@@ -67,6 +70,9 @@ public class AttributeMetaDesc {
     /** the attributeListenerClassName */
     protected String attributeListenerClassName;
 
+    /** the attributeSerializerClassName */
+    protected String attributeSerializerClassName;
+
     /** the map of additional data */
     protected final Map<String, Object> dataMap = new HashMap<String, Object>();
 
@@ -187,6 +193,25 @@ public class AttributeMetaDesc {
     public void setCipher(boolean cipher) {
         this.cipher = cipher;
     }
+
+    /**
+     * Determines if this attribute is decoded on first access.
+     * 
+     * @return whether this attribute is decoded on first access
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Sets whether this attribute is decoded on first access.
+     * 
+     * @param lazy
+     *            whether this attribute is decoded on first access
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
     
     /**
      * @return the json annotation
@@ -282,6 +307,26 @@ public class AttributeMetaDesc {
         this.attributeListenerClassName = attributeListenerClassName;
     }
 
+    /**
+     * Returns the attribute serializer class name
+     * 
+     * @return the attribute serializer class name
+     */
+    public String getAttributeSerializerClassName() {
+        return attributeSerializerClassName;
+    }
+
+    /**
+     * Sets the attribute serializer class name
+     * 
+     * @param attributeSerializerClassName
+     *            the attribute serializer class name
+     */
+    public void setAttributeSerializerClassName(
+            String attributeSerializerClassName) {
+        this.attributeSerializerClassName = attributeSerializerClassName;
+    }
+
     /**
      * Returns an additional data.
      * 
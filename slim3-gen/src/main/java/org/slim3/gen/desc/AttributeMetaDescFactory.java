@@ -29,6 +29,7 @@ import org.slim3.gen.datastore.DataTypeFactory;
 import org.slim3.gen.datastore.InverseModelRefType;
 import org.slim3.gen.datastore.ModelRefType;
 import org.slim3.gen.datastore.OtherReferenceType;
+import org.slim3.gen.datastore.PrimitiveByteType;
 import org.slim3.gen.message.MessageCode;
 import org.slim3.gen.processor.UnknownDeclarationException;
 import org.slim3.gen.processor.ValidationException;
@@ -202,6 +203,15 @@ public class AttributeMetaDescFactory {
                     fieldDeclaration,
                     attribute);
             }
+        if (AnnotationMirrorUtil.getElementValue(
+            attribute,
+            AnnotationConstants.lazy) == Boolean.TRUE) {
+            handleLazy(
+                attributeMetaDesc,
+                classDeclaration,
+                fieldDeclaration,
+                attribute);
+        }
         handleJson(
             attributeMetaDesc,
             classDeclaration,
@@ -212,6 +222,11 @@ public class AttributeMetaDescFactory {
             classDeclaration,
             fieldDeclaration,
             attribute);
+        handleAttributeSerializer(
+            attributeMetaDesc,
+            classDeclaration,
+            fieldDeclaration,
+            attribute);
         if (attributeMetaDesc.isPersistent()) {
             DataType dataType = attributeMetaDesc.getDataType();
             if (dataType instanceof InverseModelRefType) {
@@ -535,6 +550,30 @@ public class AttributeMetaDescFactory {
         attributeMetaDesc.setCipher(true);
     }
 
+    /**
+     * Handles lazy.
+     * 
+     * @param attributeMetaDesc
+     *            the attribute meta description
+     * @param classDeclaration
+     *            the model class declaration
+     * @param fieldDeclaration
+     *            the field declaration
+     * @param attribute
+     *            the annotation mirror for Attribute
+     */
+    protected void handleLazy(AttributeMetaDesc attributeMetaDesc,
+            ClassDeclaration classDeclaration,
+            FieldDeclaration fieldDeclaration, AnnotationMirror attribute) {
+        if (!attributeMetaDesc.isLob()) {
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1056,
+                env,
+                attribute.getPosition());
+        }
+        attributeMetaDesc.setLazy(true);
+    }
+
     /**
      * Handles the json.
      * 
@@ -706,6 +745,78 @@ public class AttributeMetaDescFactory {
                 .getQualifiedName());
     }
 
+    /**
+     * Handles the attribute serializer.
+     * 
+     * @param attributeMetaDesc
+     *            the attribute meta description
+     * @param classDeclaration
+     *            the model class declaration
+     * @param fieldDeclaration
+     *            the field declaration
+     * @param attribute
+     *            the annotation mirror for Attribute
+     */
+    protected void handleAttributeSerializer(
+            AttributeMetaDesc attributeMetaDesc,
+            ClassDeclaration classDeclaration,
+            FieldDeclaration fieldDeclaration, AnnotationMirror attribute) {
+        Object serializer =
+            AnnotationMirrorUtil.getElementValue(
+                attribute,
+                AnnotationConstants.serializer);
+        if (serializer == null) {
+            return;
+        }
+        if (serializer instanceof InterfaceType) {
+            if (ClassConstants.AttributeSerializer.equals(InterfaceType.class
+                .cast(serializer)
+                .getDeclaration()
+                .getQualifiedName())) {
+                return;
+            }
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1059,
+                env,
+                fieldDeclaration.getPosition());
+        }
+        ClassType serializerClassType =
+            TypeUtil.toClassType((TypeMirror) serializer);
+        if (serializerClassType == null) {
+            return;
+        }
+        ClassDeclaration serializerClassDeclaration =
+            serializerClassType.getDeclaration();
+        if (serializerClassDeclaration == null) {
+            throw new UnknownDeclarationException(
+                env,
+                serializerClassDeclaration,
+                serializerClassType);
+        }
+        DataType dataType = attributeMetaDesc.getDataType();
+        if (!attributeMetaDesc.isLob()
+            || dataType instanceof CoreReferenceType
+            || (dataType instanceof ArrayType && ArrayType.class
+                .cast(dataType)
+                .getComponentType() instanceof PrimitiveByteType)) {
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1057,
+                env,
+                fieldDeclaration.getPosition());
+        }
+        if (!DeclarationUtil
+            .hasPublicDefaultConstructor(serializerClassDeclaration)) {
+            throw new ValidationException(
+                MessageCode.SLIM3GEN1058,
+                env,
+                fieldDeclaration.getPosition(),
+                serializerClassDeclaration.getQualifiedName());
+        }
+        attributeMetaDesc
+            .setAttributeSerializerClassName(serializerClassDeclaration
+                .getQualifiedName());
+    }
+
     /**
      * Handles the attribute listener generics parameter.
      * 
@@ -154,6 +154,11 @@ public class ModelMetaDescFactory {
                 schemaVersion.intValue(),
                 classHierarchyListName,
                 classHierarchyList);
+        Boolean cacheable =
+            AnnotationMirrorUtil.getElementValueWithDefault(
+                model,
+                AnnotationConstants.cacheable);
+        modelMetaDesc.setCacheable(cacheable.booleanValue());
         handleModelListener(modelMetaDesc, classDeclaration, model);
         handleAttributes(classDeclaration, modelMetaDesc);
         return modelMetaDesc;
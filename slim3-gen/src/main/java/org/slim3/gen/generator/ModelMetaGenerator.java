@@ -17,11 +17,13 @@ package org.slim3.gen.generator;
 
 import static org.slim3.gen.ClassConstants.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,6 +62,7 @@ import org.slim3.gen.desc.AttributeMetaDesc;
 import org.slim3.gen.desc.JsonAnnotation;
 import org.slim3.gen.desc.ModelMetaDesc;
 import org.slim3.gen.printer.Printer;
+import org.slim3.gen.util.StringUtil;
 
 /**
  * Generates a model meta java file.
@@ -132,6 +135,7 @@ public class ModelMetaGenerator implements Generator {
         printModelListenerFields(printer);
         printAttributeMetaFields(printer);
         printAttributeListenerFields(printer);
+        printAttributeSerializerFields(printer);
         printSingletonField(printer);
         printGetMethod(printer);
         printConstructor(printer);
@@ -140,6 +144,7 @@ public class ModelMetaGenerator implements Generator {
         printer.indent();
         printEntityToModelMethod(printer);
         printModelToEntityMethod(printer);
+        printModelToProtoMethod(printer);
         printGetKeyMethod(printer);
         printSetKeyMethod(printer);
         printGetVersionMethod(printer);
@@ -149,9 +154,11 @@ public class ModelMetaGenerator implements Generator {
         printPostGetMethod(printer);
         printGetSchemaVersionName(printer);
         printGetClassHierarchyListName(printer);
+        printIsCacheable(printer);
         printIsCipherProperty(printer);
         printModelToJsonMethod(printer);
         printJsonToModelMethod(printer);
+        printLazyModelClass(printer);
         printCustomExtensionMethods(printer);
         printer.unindent();
         printer.print("}");
@@ -193,6 +200,28 @@ public class ModelMetaGenerator implements Generator {
         }
     }
     
+    /**
+     * Generates attribute serializer fields.
+     * 
+     * @param printer
+     *            the printer
+     */
+    protected void printAttributeSerializerFields(Printer printer) {
+        for (AttributeMetaDesc attr : modelMetaDesc.getAttributeMetaDescList()) {
+            if (!attr.isPersistent()) {
+                continue;
+            }
+            if (attr.getAttributeSerializerClassName() != null) {
+                printer
+                    .println(
+                        "private static final %1$s slim3_%2$sAttributeSerializer = new %1$s();",
+                        attr.getAttributeSerializerClassName(),
+                        attr.getAttributeName());
+                printer.println();
+            }
+        }
+    }
+
     /**
      * Generates model listener fields.
      * 
@@ -298,6 +327,18 @@ public class ModelMetaGenerator implements Generator {
         generator.generate();
     }
 
+    /**
+     * Generates the {@code modelToProto} method.
+     * 
+     * @param printer
+     *            the prnter
+     */
+    protected void printModelToProtoMethod(Printer printer) {
+        ModelToProtoMethodGenerator generator =
+            new ModelToProtoMethodGenerator(printer);
+        generator.generate();
+    }
+
     /**
      * Generates the {@code getVersion} method.
      * 
@@ -449,6 +490,23 @@ public class ModelMetaGenerator implements Generator {
         printer.println();
     }
 
+    /**
+     * Generates the {@code isCacheable} method.
+     * 
+     * @param printer
+     *            the printer
+     */
+    protected void printIsCacheable(final Printer printer) {
+        if (!modelMetaDesc.isCacheable()) {
+            return;
+        }
+        printer.println("@Override");
+        printer.println("public boolean isCacheable() {");
+        printer.println("    return true;");
+        printer.println("}");
+        printer.println();
+    }
+
     /**
      * Generates the {@code isCipherProperty} method.
      * 
@@ -634,6 +692,111 @@ public class ModelMetaGenerator implements Generator {
     protected void printCustomExtensionMethods(final Printer printer) {
     }
 
+    /**
+     * Returns the attribute meta descriptions which are decoded on first
+     * access.
+     * 
+     * @return the attribute meta descriptions
+     */
+    protected List<AttributeMetaDesc> getLazyAttributeMetaDescList() {
+        List<AttributeMetaDesc> list = new ArrayList<AttributeMetaDesc>();
+        if (modelMetaDesc.isAbstrct()) {
+            return list;
+        }
+        for (AttributeMetaDesc attr : modelMetaDesc.getAttributeMetaDescList()) {
+            if (attr.isPersistent() && attr.isLazy()) {
+                list.add(attr);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the simple name of the model class which decodes the lazy
+     * attributes on first access.
+     * 
+     * @return the simple name of the model class
+     */
+    protected String getLazyModelClassName() {
+        String modelClassName = modelMetaDesc.getModelClassName();
+        return "Lazy"
+            + modelClassName.substring(modelClassName.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Generates the model class which decodes the lazy attributes on first
+     * access.
+     * 
+     * @param printer
+     *            the printer
+     */
+    protected void printLazyModelClass(Printer printer) {
+        List<AttributeMetaDesc> lazyList = getLazyAttributeMetaDescList();
+        if (lazyList.isEmpty()) {
+            return;
+        }
+        EntityToModelMethodGenerator generator =
+            new EntityToModelMethodGenerator(printer);
+        for (AttributeMetaDesc attr : lazyList) {
+            printer.println(
+                "private void slim3_decode%1$s(%2$s model, %3$s entity) {",
+                StringUtil.capitalize(attr.getAttributeName()),
+                modelMetaDesc.getModelClassName(),
+                Entity);
+            printer.indent();
+            attr.getDataType().accept(generator, attr);
+            printer.unindent();
+            printer.println("}");
+            printer.println();
+        }
+        printer.println("/** */");
+        printer.println(
+            "public static class %1$s extends %2$s implements %3$s {",
+            getLazyModelClassName(),
+            modelMetaDesc.getModelClassName(),
+            LazyModel);
+        printer.println();
+        printer.indent();
+        printer.println("private static final long serialVersionUID = 1L;");
+        printer.println();
+        printer.println("private %1$s slim3_lazyEntity;", Entity);
+        for (AttributeMetaDesc attr : lazyList) {
+            String typeName = attr.getDataType().getTypeName();
+            printer.println();
+            printer.println("@Override");
+            printer.println(
+                "public %1$s %2$s() {",
+                typeName,
+                attr.getReadMethodName());
+            printer
+                .println(
+                    "    if (slim3_lazyEntity != null && slim3_lazyEntity.hasProperty(\"%1$s\")) {",
+                    attr.getName());
+            printer.println(
+                "        slim3_singleton.slim3_decode%1$s(this, slim3_lazyEntity);",
+                StringUtil.capitalize(attr.getAttributeName()));
+            printer.println("    }");
+            printer.println("    return super.%1$s();", attr.getReadMethodName());
+            printer.println("}");
+            printer.println();
+            printer.println("@Override");
+            printer.println(
+                "public void %1$s(%2$s value) {",
+                attr.getWriteMethodName(),
+                typeName);
+            printer.println("    if (slim3_lazyEntity != null) {");
+            printer.println(
+                "        slim3_lazyEntity.removeProperty(\"%1$s\");",
+                attr.getName());
+            printer.println("    }");
+            printer.println("    super.%1$s(value);", attr.getWriteMethodName());
+            printer.println("}");
+        }
+        printer.unindent();
+        printer.println("}");
+        printer.println();
+    }
+
     /**
      * Represents attribute meta fields generator.
      * 
@@ -678,13 +841,14 @@ public class ModelMetaGenerator implements Generator {
                 printer.println("/** */");
                 printer
                     .println(
-                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                         UnindexedAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         type.getTypeName(),
                         p.getAttributeName(),
                         p.getName(),
                         type.getClassName());
+                printGetValueMethod(p);
                 printer.println();
             }
             return null;
@@ -696,13 +860,14 @@ public class ModelMetaGenerator implements Generator {
             printer.println("/** */");
             printer
                 .println(
-                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                     CoreAttributeMeta,
                     modelMetaDesc.getModelClassName(),
                     type.getWrapperClassName(),
                     p.getAttributeName(),
                     p.getName(),
                     type.getClassName());
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -714,7 +879,7 @@ public class ModelMetaGenerator implements Generator {
             if (p.isLob() || p.isUnindexed()) {
                 printer
                     .println(
-                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                         CoreUnindexedAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         type.getTypeName(),
@@ -724,7 +889,7 @@ public class ModelMetaGenerator implements Generator {
             } else {
                 printer
                     .println(
-                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                         CoreAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         type.getTypeName(),
@@ -732,6 +897,7 @@ public class ModelMetaGenerator implements Generator {
                         p.getName(),
                         type.getClassName());
             }
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -742,7 +908,7 @@ public class ModelMetaGenerator implements Generator {
             printer.println("/** */");
             printer
                 .println(
-                    "public final %1$s<%2$s, %3$s, %4$s> %5$s = new %1$s<%2$s, %3$s, %4$s>(this, \"%6$s\", \"%5$s\", %7$s.class, %8$s.class);",
+                    "public final %1$s<%2$s, %3$s, %4$s> %5$s = new %1$s<%2$s, %3$s, %4$s>(this, \"%6$s\", \"%5$s\", %7$s.class, %8$s.class) {",
                     ModelRefAttributeMeta,
                     modelMetaDesc.getModelClassName(),
                     type.getTypeName(),
@@ -751,6 +917,7 @@ public class ModelMetaGenerator implements Generator {
                     p.getName(),
                     type.getClassName(),
                     type.getReferenceModelTypeName());
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -761,13 +928,14 @@ public class ModelMetaGenerator implements Generator {
             printer.println("/** */");
             printer
                 .println(
-                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                     CoreAttributeMeta,
                     modelMetaDesc.getModelClassName(),
                     type.getTypeName(),
                     p.getAttributeName(),
                     p.getName(),
                     type.getClassName());
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -779,7 +947,7 @@ public class ModelMetaGenerator implements Generator {
             if (p.isLob() || p.isUnindexed()) {
                 printer
                     .println(
-                        "public final %1$s<%2$s> %3$s = new %1$s<%2$s>(this, \"%4$s\", \"%3$s\");",
+                        "public final %1$s<%2$s> %3$s = new %1$s<%2$s>(this, \"%4$s\", \"%3$s\") {",
                         StringUnindexedAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         p.getAttributeName(),
@@ -788,12 +956,13 @@ public class ModelMetaGenerator implements Generator {
             } else {
                 printer
                     .println(
-                        "public final %1$s<%2$s> %3$s = new %1$s<%2$s>(this, \"%4$s\", \"%3$s\");",
+                        "public final %1$s<%2$s> %3$s = new %1$s<%2$s>(this, \"%4$s\", \"%3$s\") {",
                         StringAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         p.getAttributeName(),
                         p.getName());
             }
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -804,13 +973,14 @@ public class ModelMetaGenerator implements Generator {
             printer.println("/** */");
             printer
                 .println(
-                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                     UnindexedAttributeMeta,
                     modelMetaDesc.getModelClassName(),
                     type.getClassName(),
                     p.getAttributeName(),
                     p.getName(),
                     type.getClassName());
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -821,13 +991,14 @@ public class ModelMetaGenerator implements Generator {
             printer.println("/** */");
             printer
                 .println(
-                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                     UnindexedAttributeMeta,
                     modelMetaDesc.getModelClassName(),
                     type.getClassName(),
                     p.getAttributeName(),
                     p.getName(),
                     type.getClassName());
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
@@ -846,7 +1017,7 @@ public class ModelMetaGenerator implements Generator {
                         if (attr.isLob() || attr.isUnindexed()) {
                             printer
                                 .println(
-                                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                                     StringCollectionUnindexedAttributeMeta,
                                     modelMetaDesc.getModelClassName(),
                                     collectionType.getTypeName(),
@@ -856,7 +1027,7 @@ public class ModelMetaGenerator implements Generator {
                         } else {
                             printer
                                 .println(
-                                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                                    "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                                     StringCollectionAttributeMeta,
                                     modelMetaDesc.getModelClassName(),
                                     collectionType.getTypeName(),
@@ -864,6 +1035,7 @@ public class ModelMetaGenerator implements Generator {
                                     attr.getName(),
                                     collectionType.getClassName());
                         }
+                        printGetValueMethod(attr);
                         printer.println();
                         return null;
                     }
@@ -876,7 +1048,7 @@ public class ModelMetaGenerator implements Generator {
                         if (attr.isLob() || attr.isUnindexed()) {
                             printer
                                 .println(
-                                    "public final %1$s<%2$s, %3$s, %4$s> %5$s = new %1$s<%2$s, %3$s, %4$s>(this, \"%6$s\", \"%5$s\", %7$s.class);",
+                                    "public final %1$s<%2$s, %3$s, %4$s> %5$s = new %1$s<%2$s, %3$s, %4$s>(this, \"%6$s\", \"%5$s\", %7$s.class) {",
                                     CollectionUnindexedAttributeMeta,
                                     modelMetaDesc.getModelClassName(),
                                     collectionType.getTypeName(),
@@ -887,7 +1059,7 @@ public class ModelMetaGenerator implements Generator {
                         } else {
                             printer
                                 .println(
-                                    "public final %1$s<%2$s, %3$s, %4$s> %5$s = new %1$s<%2$s, %3$s, %4$s>(this, \"%6$s\", \"%5$s\", %7$s.class);",
+                                    "public final %1$s<%2$s, %3$s, %4$s> %5$s = new %1$s<%2$s, %3$s, %4$s>(this, \"%6$s\", \"%5$s\", %7$s.class) {",
                                     CollectionAttributeMeta,
                                     modelMetaDesc.getModelClassName(),
                                     collectionType.getTypeName(),
@@ -896,6 +1068,7 @@ public class ModelMetaGenerator implements Generator {
                                     attr.getName(),
                                     collectionType.getClassName());
                         }
+                        printGetValueMethod(attr);
                         printer.println();
                         return null;
                     }
@@ -912,7 +1085,7 @@ public class ModelMetaGenerator implements Generator {
             if (p.isLob() || p.isUnindexed()) {
                 printer
                     .println(
-                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                         CoreUnindexedAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         type.getTypeName(),
@@ -922,7 +1095,7 @@ public class ModelMetaGenerator implements Generator {
             } else {
                 printer
                     .println(
-                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class);",
+                        "public final %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>(this, \"%5$s\", \"%4$s\", %6$s.class) {",
                         CoreAttributeMeta,
                         modelMetaDesc.getModelClassName(),
                         type.getTypeName(),
@@ -930,9 +1103,29 @@ public class ModelMetaGenerator implements Generator {
                         p.getName(),
                         type.getClassName());
             }
+            printGetValueMethod(p);
             printer.println();
             return null;
         }
+
+        /**
+         * Prints the {@code getValue} method which calls the read method
+         * directly.
+         * 
+         * @param attr
+         *            the attribute meta description
+         */
+        protected void printGetValueMethod(AttributeMetaDesc attr) {
+            printer.println();
+            printer.println("    @Override");
+            printer.println("    protected Object getValue(Object model) {");
+            printer.println(
+                "        return ((%1$s) model).%2$s();",
+                modelMetaDesc.getModelClassName(),
+                attr.getReadMethodName());
+            printer.println("    }");
+            printer.println("};");
+        }
     }
 
     /**
@@ -974,14 +1167,30 @@ public class ModelMetaGenerator implements Generator {
                     UnsupportedOperationException.class.getName(),
                     modelMetaDesc.getModelClassName());
             } else {
-                printer.println(
-                    "%1$s model = new %1$s();",
-                    modelMetaDesc.getModelClassName());
+                if (getLazyAttributeMetaDescList().isEmpty()) {
+                    printer.println(
+                        "%1$s model = new %1$s();",
+                        modelMetaDesc.getModelClassName());
+                } else {
+                    printer.println(
+                        "%1$s model = new %1$s();",
+                        getLazyModelClassName());
+                    printer.println(
+                        "model.slim3_lazyEntity = new %1$s(entity.getKey());",
+                        Entity);
+                }
                 for (AttributeMetaDesc attr : modelMetaDesc
                     .getAttributeMetaDescList()) {
                     if (!attr.isPersistent()) {
                         continue;
                     }
+                    if (attr.isLazy()) {
+                        printer
+                            .println(
+                                "model.slim3_lazyEntity.setUnindexedProperty(\"%1$s\", entity.getProperty(\"%1$s\"));",
+                                attr.getName());
+                        continue;
+                    }
                     DataType dataType = attr.getDataType();
                     dataType.accept(this, attr);
                 }
@@ -995,13 +1204,23 @@ public class ModelMetaGenerator implements Generator {
         @Override
         protected Void defaultAction(DataType type, AttributeMetaDesc p)
                 throws RuntimeException {
-            printer
-                .println(
-                    "%1$s _%2$s = blobToSerializable((%3$s) entity.getProperty(\"%4$s\"));",
-                    type.getTypeName(),
-                    p.getAttributeName(),
-                    Blob,
-                    p.getName());
+            if (p.getAttributeSerializerClassName() != null) {
+                printer
+                    .println(
+                        "%1$s _%2$s = blobToSerializable((%3$s) entity.getProperty(\"%4$s\"), slim3_%2$sAttributeSerializer);",
+                        type.getTypeName(),
+                        p.getAttributeName(),
+                        Blob,
+                        p.getName());
+            } else {
+                printer
+                    .println(
+                        "%1$s _%2$s = blobToSerializable((%3$s) entity.getProperty(\"%4$s\"));",
+                        type.getTypeName(),
+                        p.getAttributeName(),
+                        Blob,
+                        p.getName());
+            }
             printer.println(
                 "model.%1$s(_%2$s);",
                 p.getWriteMethodName(),
@@ -1682,10 +1901,7 @@ public class ModelMetaGenerator implements Generator {
          */
         public void generate() {
             printer.println("@Override");
-            printer.println(
-                "public %1$s modelToEntity(%2$s model) {",
-                Entity,
-                Object);
+            printMethodDeclaration();
             printer.indent();
             if (modelMetaDesc.isAbstrct()) {
                 printer.println(
@@ -1696,20 +1912,30 @@ public class ModelMetaGenerator implements Generator {
                 printer.println(
                     "%1$s m = (%1$s) model;",
                     modelMetaDesc.getModelClassName());
-                printer.println("%1$s entity = null;", Entity);
+                printer.println("%1$s entity = null;", getEntityClassName());
                 printer.println("if (m.%1$s() != null) {", modelMetaDesc
                     .getKeyAttributeMetaDesc()
                     .getReadMethodName());
                 printer
                     .println(
                         "    entity = new %1$s(m.%2$s());",
-                        Entity,
+                        getEntityClassName(),
                         modelMetaDesc
                             .getKeyAttributeMetaDesc()
                             .getReadMethodName());
                 printer.println("} else {");
-                printer.println("    entity = new %1$s(kind);", Entity);
+                printer.println(
+                    "    entity = new %1$s(kind);",
+                    getEntityClassName());
                 printer.println("}");
+                boolean lazy = !getLazyAttributeMetaDescList().isEmpty();
+                if (lazy) {
+                    printer
+                        .println(
+                            "%1$s slim3_lazyEntity = m instanceof %2$s ? ((%2$s) m).slim3_lazyEntity : null;",
+                            Entity,
+                            getLazyModelClassName());
+                }
                 for (AttributeMetaDesc attr : modelMetaDesc
                     .getAttributeMetaDescList()) {
                     if (!attr.isPersistent()) {
@@ -1719,6 +1945,22 @@ public class ModelMetaGenerator implements Generator {
                         continue;
                     }
                     DataType dataType = attr.getDataType();
+                    if (lazy && attr.isLazy()) {
+                        printer
+                            .println(
+                                "if (slim3_lazyEntity != null && slim3_lazyEntity.hasProperty(\"%1$s\")) {",
+                                attr.getName());
+                        printer
+                            .println(
+                                "    entity.setUnindexedProperty(\"%1$s\", slim3_lazyEntity.getProperty(\"%1$s\"));",
+                                attr.getName());
+                        printer.println("} else {");
+                        printer.indent();
+                        dataType.accept(this, attr);
+                        printer.unindent();
+                        printer.println("}");
+                        continue;
+                    }
                     dataType.accept(this, attr);
                 }
                 int schemaVersion = modelMetaDesc.getSchemaVersion();
@@ -1733,21 +1975,57 @@ public class ModelMetaGenerator implements Generator {
                         "entity.setProperty(\"%1$s\", classHierarchyList);",
                         modelMetaDesc.getClassHierarchyListName());
                 }
-                printer.println("return entity;");
+                printReturnStatement();
             }
             printer.unindent();
             printer.println("}");
             printer.println();
         }
 
+        /**
+         * Generates the declaration of the method.
+         */
+        protected void printMethodDeclaration() {
+            printer.println(
+                "public %1$s modelToEntity(%2$s model) {",
+                Entity,
+                Object);
+        }
+
+        /**
+         * Returns the class name of the entity which the properties are
+         * written to.
+         * 
+         * @return the class name of the entity
+         */
+        protected String getEntityClassName() {
+            return Entity;
+        }
+
+        /**
+         * Generates the return statement.
+         */
+        protected void printReturnStatement() {
+            printer.println("return entity;");
+        }
+
         @Override
         protected Void defaultAction(DataType type, AttributeMetaDesc p)
                 throws RuntimeException {
-            printer
-                .println(
-                    "entity.setUnindexedProperty(\"%1$s\", serializableToBlob(m.%2$s()));",
-                    p.getName(),
-                    p.getReadMethodName());
+            if (p.getAttributeSerializerClassName() != null) {
+                printer
+                    .println(
+                        "entity.setUnindexedProperty(\"%1$s\", serializableToBlob(m.%2$s(), slim3_%3$sAttributeSerializer));",
+                        p.getName(),
+                        p.getReadMethodName(),
+                        p.getAttributeName());
+            } else {
+                printer
+                    .println(
+                        "entity.setUnindexedProperty(\"%1$s\", serializableToBlob(m.%2$s()));",
+                        p.getName(),
+                        p.getReadMethodName());
+            }
             return null;
         }
 
@@ -2021,6 +2299,46 @@ public class ModelMetaGenerator implements Generator {
         }
     }
 
+    /**
+     * Represents the {@code modelToProto} method generator. The properties are
+     * written to {@code EntityProtoWriter} without creating {@code Entity}.
+     * 
+     * @author higa
+     * @since 1.0.17
+     * 
+     */
+    protected class ModelToProtoMethodGenerator extends
+            ModelToEntityMethodGenerator {
+
+        /**
+         * Creates a new {@link ModelToProtoMethodGenerator}.
+         * 
+         * @param printer
+         *            the printer
+         */
+        public ModelToProtoMethodGenerator(Printer printer) {
+            super(printer);
+        }
+
+        @Override
+        protected void printMethodDeclaration() {
+            printer.println(
+                "public %1$s modelToProto(%2$s model) {",
+                EntityProto,
+                Object);
+        }
+
+        @Override
+        protected String getEntityClassName() {
+            return EntityProtoWriter;
+        }
+
+        @Override
+        protected void printReturnStatement() {
+            printer.println("return entity.getProto();");
+        }
+    }
+
     /**
      * Represents the {@code modelToMethod} method generator.
      * 
@@ -146,7 +146,15 @@ public enum MessageCode {
     /** */
     SLIM3GEN1054("The coder[{0}] of @Json does not have a default constructor."),
     /** */
-    SLIM3GEN1055("The coder of @Json must not be an interface.");
+    SLIM3GEN1055("The coder of @Json must not be an interface."),
+    /** */
+    SLIM3GEN1056("The property annotated with @Attribute(lazy = true) must be annotated with @Attribute(lob = true)."),
+    /** */
+    SLIM3GEN1057("The property annotated with @Attribute(serializer = ...) must be a serializable type annotated with @Attribute(lob = true)."),
+    /** */
+    SLIM3GEN1058("The serializer[{0}] does not have a default constructor."),
+    /** */
+    SLIM3GEN1059("The serializer must not be an interface.");
 
     /** the message */
     public final String message;
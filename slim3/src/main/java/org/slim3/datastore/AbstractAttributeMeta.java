@@ -151,7 +151,8 @@ public abstract class AbstractAttributeMeta<M, A> implements CharSequence {
     }
 
     /**
-     * Returns the property value.
+     * Returns the property value. The generated attribute meta overrides this
+     * method to call the read method directly instead of using reflection.
      * 
      * @param model
      *            the model
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.Date;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * An abstract class for in-memory filter criterion.
+ * 
+ * <p>
+ * The criterion can be evaluated against the properties of an entity before
+ * the entity is converted to a model, so that the rejected entities are never
+ * decoded.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public abstract class AbstractInMemoryFilterCriterion extends
+        AbstractCriterion implements InMemoryFilterCriterion {
+
+    /**
+     * The value which means the property of the entity cannot be evaluated
+     * without converting the entity to a model.
+     */
+    protected static final Object UNDECIDABLE = new Object();
+
+    /**
+     * Constructor.
+     * 
+     * @param attributeMeta
+     *            the meta data of attribute
+     * @throws NullPointerException
+     *             if the attributeMeta parameter is null
+     */
+    public AbstractInMemoryFilterCriterion(
+            AbstractAttributeMeta<?, ?> attributeMeta)
+            throws NullPointerException {
+        super(attributeMeta);
+    }
+
+    public boolean accept(Object model) {
+        return acceptValue(attributeMeta.getValue(model));
+    }
+
+    /**
+     * Determines if the entity is accepted. Returns null if the property
+     * cannot be evaluated without converting the entity to a model, for
+     * example if the property is missing, embedded, serialized or a collection
+     * of numbers.
+     * 
+     * @param entity
+     *            the entity
+     * @return whether the entity is accepted
+     * @throws NullPointerException
+     *             if the entity parameter is null
+     */
+    public Boolean acceptEntity(Entity entity) throws NullPointerException {
+        if (entity == null) {
+            throw new NullPointerException(
+                "The entity parameter must not be null.");
+        }
+        Object v = getEntityValue(entity);
+        if (v == UNDECIDABLE) {
+            return null;
+        }
+        return acceptValue(v);
+    }
+
+    /**
+     * Determines if the attribute value is accepted.
+     * 
+     * @param attributeValue
+     *            the attribute value
+     * @return whether the attribute value is accepted
+     */
+    protected abstract boolean acceptValue(Object attributeValue);
+
+    /**
+     * Returns the attribute value read from the property of the entity. The
+     * cipher property is decrypted. Returns {@link #UNDECIDABLE} if the value
+     * may differ from the value of the model.
+     * 
+     * @param entity
+     *            the entity
+     * @return the attribute value
+     */
+    protected Object getEntityValue(Entity entity) {
+        String name = attributeMeta.name;
+        if (Entity.KEY_RESERVED_PROPERTY.equals(name)) {
+            return entity.getKey();
+        }
+        if (!entity.hasProperty(name)) {
+            return UNDECIDABLE;
+        }
+        Object value = entity.getProperty(name);
+        Class<?> clazz = attributeMeta.attributeClass;
+        if (value == null) {
+            return clazz.isPrimitive() || Iterable.class.isAssignableFrom(clazz)
+                ? UNDECIDABLE
+                : null;
+        }
+        ModelMeta<?> modelMeta = attributeMeta.modelMeta;
+        if (modelMeta.isCipherProperty(name)) {
+            if (value instanceof String) {
+                value = modelMeta.decrypt((String) value);
+            } else if (value instanceof Text) {
+                value = modelMeta.decrypt((Text) value);
+            }
+        }
+        if (value instanceof Iterable<?>) {
+            for (Object o : (Iterable<?>) value) {
+                if (o != null
+                    && !(o instanceof String)
+                    && !(o instanceof Key)
+                    && !(o instanceof Date)
+                    && !(o instanceof Boolean)) {
+                    return UNDECIDABLE;
+                }
+            }
+            return value;
+        }
+        if (value instanceof Long) {
+            Long l = (Long) value;
+            if (clazz == Long.class || clazz == long.class) {
+                return l;
+            }
+            if (clazz == Integer.class || clazz == int.class) {
+                return l.intValue();
+            }
+            if (clazz == Short.class || clazz == short.class) {
+                return l.shortValue();
+            }
+            return UNDECIDABLE;
+        }
+        if (value instanceof Double) {
+            Double d = (Double) value;
+            if (clazz == Double.class || clazz == double.class) {
+                return d;
+            }
+            if (clazz == Float.class || clazz == float.class) {
+                return d.floatValue();
+            }
+            return UNDECIDABLE;
+        }
+        if (value instanceof String) {
+            return clazz == String.class || clazz.isEnum()
+                ? value
+                : UNDECIDABLE;
+        }
+        if (value instanceof Text) {
+            return clazz == String.class || clazz == Text.class
+                ? value
+                : UNDECIDABLE;
+        }
+        if (value instanceof Boolean) {
+            return clazz == Boolean.class || clazz == boolean.class
+                ? value
+                : UNDECIDABLE;
+        }
+        if (value instanceof Key) {
+            return clazz == Key.class || clazz == ModelRef.class
+                ? value
+                : UNDECIDABLE;
+        }
+        return clazz.isInstance(value) ? value : UNDECIDABLE;
+    }
+}
\ No newline at end of file
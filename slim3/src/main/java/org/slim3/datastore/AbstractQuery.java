@@ -16,13 +16,19 @@
 package org.slim3.datastore;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.slim3.repackaged.com.google.gdata.util.common.util.Base64;
 import org.slim3.repackaged.com.google.gdata.util.common.util.Base64DecoderException;
 import org.slim3.util.AppEngineUtil;
 import org.slim3.util.ByteUtil;
+import org.slim3.util.FutureUtil;
 import org.slim3.util.ThrowableUtil;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
@@ -30,7 +36,10 @@ import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.FilterOperator;
@@ -39,6 +48,7 @@ import com.google.appengine.api.datastore.Query.SortPredicate;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.RawValue;
 import com.google.appengine.api.datastore.Transaction;
 
 /**
@@ -52,6 +62,31 @@ import com.google.appengine.api.datastore.Transaction;
  */
 public abstract class AbstractQuery<SUB> {
 
+    /**
+     * The name of the property used to sample the split keys.
+     */
+    public static final String SCATTER_PROPERTY = "__scatter__";
+
+    /**
+     * The number of samples per partition used to compute the split keys.
+     */
+    protected static final int SCATTER_OVERSAMPLING = 32;
+
+    /**
+     * The default number of results taken from a partition in a turn.
+     */
+    protected static final int DEFAULT_SCAN_CHUNK_SIZE = 20;
+
+    /**
+     * The default number of results fetched in a batch for aggregation.
+     */
+    protected static final int DEFAULT_AGGREGATE_CHUNK_SIZE = 500;
+
+    /**
+     * The maximum number of sub-queries of {@link #fanOut()}.
+     */
+    public static final int MAX_SUB_QUERIES = 30;
+
     /**
      * The asynchronous datastore service.
      */
@@ -82,6 +117,42 @@ public abstract class AbstractQuery<SUB> {
      */
     protected FetchOptions fetchOptions = FetchOptions.Builder.withDefaults();
 
+    /**
+     * The retry policy.
+     */
+    protected RetryPolicy retryPolicy;
+
+    /**
+     * The number of results per page fetched ahead by the iterators.
+     */
+    protected Integer prefetchPageSize;
+
+    /**
+     * The materialized view which the query reads.
+     */
+    protected MaterializedView view;
+
+    /**
+     * The delegate which created this query.
+     */
+    protected AsyncDatastoreDelegate delegate;
+
+    /**
+     * The expiration in seconds of the cached results. Null means that the
+     * results are not cached.
+     */
+    protected Integer resultCacheExpirationSeconds;
+
+    /**
+     * Whether IN and OR filters run as concurrent sub-queries.
+     */
+    protected boolean fanOut = false;
+
+    /**
+     * The start cursors of the sub-queries.
+     */
+    protected List<Cursor> subQueryStartCursors;
+
     /**
      * Constructor.
      * 
@@ -245,6 +316,21 @@ public abstract class AbstractQuery<SUB> {
         txSet = true;
     }
 
+    /**
+     * Specifies the retry policy. The query is retried when it failed
+     * transiently unless it is executed within a transaction. The iterators
+     * are not retried.
+     * 
+     * @param policy
+     *            the retry policy
+     * @return this instance
+     */
+    @SuppressWarnings("unchecked")
+    public SUB retryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy;
+        return (SUB) this;
+    }
+
     /**
      * Specifies the offset.
      * 
@@ -297,6 +383,77 @@ public abstract class AbstractQuery<SUB> {
         return (SUB) this;
     }
 
+    /**
+     * Makes the iterators fetch the results page by page and request the next
+     * page while the current page is processed.
+     * 
+     * @param pageSize
+     *            the number of results per page
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the pageSize parameter is less than 1
+     * @see PrefetchingEntityIterator
+     */
+    @SuppressWarnings("unchecked")
+    public SUB prefetchPages(int pageSize) throws IllegalArgumentException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException(
+                "The pageSize parameter must be greater than 0.");
+        }
+        prefetchPageSize = pageSize;
+        return (SUB) this;
+    }
+
+    /**
+     * Caches the keys of the results in memcache. The cached results are
+     * invalidated when an entity of the kind is put or deleted. The results
+     * are cached only while {@link QueryCache} is enabled, because the writes
+     * invalidate the cached results only then, and are not cached within a
+     * transaction.
+     * 
+     * @param expirationSeconds
+     *            the expiration in seconds
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the expirationSeconds parameter is less than 1
+     * @see QueryCache
+     */
+    @SuppressWarnings("unchecked")
+    public SUB cacheResults(int expirationSeconds)
+            throws IllegalArgumentException {
+        if (expirationSeconds < 1) {
+            throw new IllegalArgumentException(
+                "The expirationSeconds parameter must be greater than 0.");
+        }
+        resultCacheExpirationSeconds = expirationSeconds;
+        return (SUB) this;
+    }
+
+    /**
+     * Runs the IN and OR filters as concurrent sub-queries which have only
+     * equality and AND filters, and merges the results in the sort order. An
+     * entity matched by several sub-queries is returned once. The position of
+     * the merged results is represented by the encoded cursor which can be
+     * passed to {@link #encodedStartCursor(String)}.
+     * 
+     * <p>
+     * The merged results have no single {@link Cursor}, so
+     * {@link QueryResultIterator#getCursor()} of the iterator returned by
+     * {@link #asQueryResultEntityIterator()} throws
+     * {@link UnsupportedOperationException} in this mode. Use
+     * {@link MergedEntityIterator#getEncodedCursor()} or
+     * {@link S3QueryResultIterator#getEncodedCursor()} instead.
+     * </p>
+     * 
+     * @return this instance
+     * @see MergedEntityIterator
+     */
+    @SuppressWarnings("unchecked")
+    public SUB fanOut() {
+        fanOut = true;
+        return (SUB) this;
+    }
+
     /**
      * Use {@link #startCursor(Cursor)}.
      * 
@@ -366,7 +523,8 @@ public abstract class AbstractQuery<SUB> {
     }
 
     /**
-     * Specifies the encoded start cursor.
+     * Specifies the encoded start cursor. The cursor of the merged results of
+     * {@link #fanOut()} is also accepted.
      * 
      * @param encodedCursor
      *            the encoded cursor
@@ -381,6 +539,12 @@ public abstract class AbstractQuery<SUB> {
             throw new NullPointerException(
                 "The encodedCursor parameter must not be null.");
         }
+        if (MergedEntityIterator.isEncodedCursor(encodedCursor)) {
+            subQueryStartCursors =
+                MergedEntityIterator.decodeCursor(encodedCursor);
+            fanOut = true;
+            return (SUB) this;
+        }
         fetchOptions.startCursor(Cursor.fromWebSafeString(encodedCursor));
         return (SUB) this;
     }
@@ -613,7 +777,414 @@ public abstract class AbstractQuery<SUB> {
      */
     protected PreparedQuery prepareQuery() {
         applyFilter();
-        return txSet ? ds.prepare(tx, query) : ds.prepare(query);
+        return prepare(query);
+    }
+
+    /**
+     * Prepares the query. The puts and deletes kept pending by the
+     * {@link AutoBatcher} bound to the current thread are applied first, so
+     * that the query sees them.
+     * 
+     * @param q
+     *            the query
+     * @return the prepared query
+     */
+    protected PreparedQuery prepare(Query q) {
+        AutoBatcher.flushCurrent();
+        return txSet ? ds.prepare(tx, q) : ds.prepare(q);
+    }
+
+    /**
+     * Returns a copy of the query with the filters applied.
+     * 
+     * @return a copy of the query
+     */
+    protected Query copyQuery() {
+        applyFilter();
+        Query q;
+        if (query.getKind() != null) {
+            q =
+                query.getAncestor() != null ? new Query(
+                    query.getKind(),
+                    query.getAncestor()) : new Query(query.getKind());
+        } else {
+            q =
+                query.getAncestor() != null
+                    ? new Query(query.getAncestor())
+                    : new Query();
+        }
+        if (query.getFilter() != null) {
+            q.setFilter(query.getFilter());
+        }
+        for (SortPredicate sp : query.getSortPredicates()) {
+            q.addSort(sp.getPropertyName(), sp.getDirection());
+        }
+        for (Projection p : query.getProjections()) {
+            q.addProjection(p);
+        }
+        q.setDistinct(query.getDistinct());
+        if (query.isKeysOnly()) {
+            q.setKeysOnly();
+        }
+        return q;
+    }
+
+    /**
+     * Returns the keys of the results. The query runs as keys-only on a copy
+     * of the query, so this query is not changed.
+     * 
+     * @return the keys of the results
+     */
+    protected List<Key> asKeyListOfCopy() {
+        Query original = query;
+        query = copyQuery();
+        query.setKeysOnly();
+        try {
+            List<Entity> entityList = asEntityList();
+            List<Key> keys = new ArrayList<Key>(entityList.size());
+            for (Entity e : entityList) {
+                keys.add(e.getKey());
+            }
+            return keys;
+        } finally {
+            query = original;
+        }
+    }
+
+    /**
+     * Determines if the results are cached.
+     * 
+     * @return whether the results are cached
+     */
+    protected boolean isResultCacheEnabled() {
+        return resultCacheExpirationSeconds != null
+            && query.getKind() != null
+            && (!txSet || tx == null)
+            && QueryCache.isEnabled();
+    }
+
+    /**
+     * Returns the canonical form of the query used to look up the cached
+     * results.
+     * 
+     * @return the canonical form of the query
+     */
+    protected String getResultCacheKey() {
+        applyFilter();
+        StringBuilder sb = new StringBuilder();
+        if (query.getAncestor() != null) {
+            sb.append(KeyFactory.keyToString(query.getAncestor()));
+        }
+        sb.append('|').append(getEncodedFilter());
+        sb.append('|').append(getEncodedSorts());
+        sb.append('|').append(fetchOptions.getLimit());
+        sb.append('|').append(fetchOptions.getOffset());
+        sb.append('|');
+        if (fetchOptions.getStartCursor() != null) {
+            sb.append(fetchOptions.getStartCursor().toWebSafeString());
+        }
+        sb.append('|');
+        if (fetchOptions.getEndCursor() != null) {
+            sb.append(fetchOptions.getEndCursor().toWebSafeString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the keys of the results with the cursor after them. The result
+     * cached in memcache is returned if any, otherwise a copy of the query
+     * runs as keys-only and the result is cached.
+     * 
+     * @return the result
+     * @see QueryCache
+     */
+    protected QueryCache.Result asCachedResult() {
+        AutoBatcher.flushCurrent();
+        String kind = query.getKind();
+        String queryKey = getResultCacheKey();
+        long generation = QueryCache.getGeneration(kind);
+        QueryCache.Result result = QueryCache.get(kind, generation, queryKey);
+        if (result != null) {
+            return result;
+        }
+        Query original = query;
+        query = copyQuery();
+        query.setKeysOnly();
+        try {
+            result = asKeysResult();
+        } finally {
+            query = original;
+        }
+        QueryCache.put(
+            kind,
+            generation,
+            queryKey,
+            result,
+            resultCacheExpirationSeconds);
+        return result;
+    }
+
+    /**
+     * Returns the keys of the results with the cursor after them.
+     * 
+     * @return the result
+     */
+    private QueryCache.Result asKeysResult() {
+        List<Key> keys = new ArrayList<Key>();
+        boolean hasNext = false;
+        String encodedCursor = null;
+        Integer limit = fetchOptions.getLimit();
+        if (limit == null && !isFanOut()) {
+            QueryResultList<Entity> list = asQueryResultEntityList();
+            for (Entity e : list) {
+                keys.add(e.getKey());
+            }
+            encodedCursor = encodeCursor(list.getCursor());
+        } else {
+            if (limit != null) {
+                fetchOptions.limit(limit + 1);
+            }
+            try {
+                QueryResultIterator<Entity> ite =
+                    asQueryResultEntityIterator();
+                while (true) {
+                    hasNext = ite.hasNext();
+                    if (!hasNext || (limit != null && keys.size() == limit)) {
+                        encodedCursor = getEncodedCursor(ite);
+                        break;
+                    }
+                    keys.add(ite.next().getKey());
+                }
+            } finally {
+                if (limit != null) {
+                    fetchOptions.limit(limit);
+                }
+            }
+        }
+        return new QueryCache.Result(keys, encodedCursor, hasNext);
+    }
+
+    /**
+     * Returns the entities specified by the keys in the order of the keys.
+     * The entities are got through the request cache and the model cache
+     * without transaction. The keys whose entities do not exist are skipped.
+     * 
+     * @param keys
+     *            the keys
+     * @param stats
+     *            the statistics of the caches
+     * @return the entities
+     */
+    protected List<Entity> getEntityList(List<Key> keys, CacheStats stats) {
+        AsyncDatastoreDelegate d =
+            delegate != null ? delegate : new AsyncDatastoreDelegate();
+        Map<Key, Entity> map =
+            FutureUtil.getQuietly(d.getAsMapAsync(tx, keys, stats));
+        List<Entity> ret = new ArrayList<Entity>(keys.size());
+        for (Key key : keys) {
+            Entity entity = map.get(key);
+            if (entity != null) {
+                ret.add(entity);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the encoded cursor of the iterator. The cursor of the merged
+     * results is encoded by {@link MergedEntityIterator}.
+     * 
+     * @param iterator
+     *            the iterator
+     * @return the encoded cursor
+     */
+    protected String getEncodedCursor(QueryResultIterator<Entity> iterator) {
+        if (iterator instanceof MergedEntityIterator) {
+            return ((MergedEntityIterator) iterator).getEncodedCursor();
+        }
+        return encodeCursor(iterator.getCursor());
+    }
+
+    /**
+     * Encodes the cursor.
+     * 
+     * @param cursor
+     *            the cursor
+     * @return the encoded cursor
+     */
+    protected String encodeCursor(Cursor cursor) {
+        return cursor != null ? cursor.toWebSafeString() : null;
+    }
+
+    /**
+     * Determines if the query runs as concurrent sub-queries.
+     * 
+     * @return whether the query runs as concurrent sub-queries
+     * @throws IllegalStateException
+     *             if the number of the sub-queries is greater than
+     *             {@link #MAX_SUB_QUERIES}
+     */
+    protected boolean isFanOut() throws IllegalStateException {
+        if (!fanOut) {
+            return false;
+        }
+        if (view != null) {
+            throw new IllegalStateException(
+                "In case of a materialized view, you cannot specify fanOut().");
+        }
+        applyFilter();
+        return query.getFilter() != null
+            && (subQueryStartCursors != null || toDisjunctiveFilters(
+                query.getFilter()).size() > 1);
+    }
+
+    /**
+     * Converts the filter to the disjunction of the conjunctions of the
+     * predicates. The IN predicates are converted to the equality predicates.
+     * 
+     * @param filter
+     *            the filter
+     * @return the disjunction of the conjunctions of the predicates
+     * @throws IllegalStateException
+     *             if the number of the conjunctions is greater than
+     *             {@link #MAX_SUB_QUERIES}
+     */
+    protected List<List<Query.FilterPredicate>> toDisjunctiveFilters(
+            Query.Filter filter) throws IllegalStateException {
+        List<List<Query.FilterPredicate>> ret =
+            new ArrayList<List<Query.FilterPredicate>>();
+        if (filter instanceof Query.FilterPredicate) {
+            Query.FilterPredicate fp = (Query.FilterPredicate) filter;
+            if (fp.getOperator() == FilterOperator.IN) {
+                for (Object value : (Collection<?>) fp.getValue()) {
+                    ret.add(new ArrayList<Query.FilterPredicate>(Arrays
+                        .asList(new Query.FilterPredicate(
+                            fp.getPropertyName(),
+                            FilterOperator.EQUAL,
+                            value))));
+                }
+            } else {
+                ret.add(new ArrayList<Query.FilterPredicate>(Arrays
+                    .asList(fp)));
+            }
+        } else {
+            Query.CompositeFilter cf = (Query.CompositeFilter) filter;
+            if (cf.getOperator() == CompositeFilterOperator.OR) {
+                for (Query.Filter f : cf.getSubFilters()) {
+                    ret.addAll(toDisjunctiveFilters(f));
+                }
+            } else {
+                ret.add(new ArrayList<Query.FilterPredicate>());
+                for (Query.Filter f : cf.getSubFilters()) {
+                    List<List<Query.FilterPredicate>> product =
+                        new ArrayList<List<Query.FilterPredicate>>();
+                    for (List<Query.FilterPredicate> left : ret) {
+                        for (List<Query.FilterPredicate> right : toDisjunctiveFilters(f)) {
+                            List<Query.FilterPredicate> conjunction =
+                                new ArrayList<Query.FilterPredicate>(left);
+                            conjunction.addAll(right);
+                            product.add(conjunction);
+                        }
+                    }
+                    ret = product;
+                    checkSubQueries(ret.size());
+                }
+            }
+        }
+        checkSubQueries(ret.size());
+        return ret;
+    }
+
+    private void checkSubQueries(int size) throws IllegalStateException {
+        if (size > MAX_SUB_QUERIES) {
+            throw new IllegalStateException("The number of sub-queries("
+                + size
+                + ") must not be greater than "
+                + MAX_SUB_QUERIES
+                + ".");
+        }
+    }
+
+    /**
+     * Issues the sub-queries concurrently and returns the iterator which
+     * merges the results.
+     * 
+     * @return the iterator which merges the results
+     * @throws IllegalStateException
+     *             if the start cursor or the end cursor is specified or if the
+     *             merged cursor does not match the sub-queries
+     */
+    protected MergedEntityIterator asMergedEntityIterator()
+            throws IllegalStateException {
+        if (fetchOptions.getStartCursor() != null
+            || fetchOptions.getEndCursor() != null) {
+            throw new IllegalStateException(
+                "In case of fanOut(), you cannot specify startCursor() or endCursor().");
+        }
+        applyFilter();
+        List<List<Query.FilterPredicate>> disjunction =
+            toDisjunctiveFilters(query.getFilter());
+        List<Cursor> startCursors = subQueryStartCursors;
+        if (startCursors == null) {
+            startCursors =
+                new ArrayList<Cursor>(Collections.nCopies(
+                    disjunction.size(),
+                    (Cursor) null));
+        } else if (startCursors.size() != disjunction.size()) {
+            throw new IllegalStateException(
+                "The merged cursor does not match the sub-queries.");
+        }
+        boolean keysOnly = query.isKeysOnly();
+        for (SortPredicate sp : query.getSortPredicates()) {
+            if (!Entity.KEY_RESERVED_PROPERTY.equals(sp.getPropertyName())) {
+                keysOnly = false;
+            }
+        }
+        Integer offset = fetchOptions.getOffset();
+        Integer limit = fetchOptions.getLimit();
+        List<QueryResultIterator<Entity>> iterators =
+            new ArrayList<QueryResultIterator<Entity>>(disjunction.size());
+        for (int i = 0; i < disjunction.size(); i++) {
+            Query q =
+                query.getAncestor() != null ? new Query(
+                    query.getKind(),
+                    query.getAncestor()) : new Query(query.getKind());
+            if (keysOnly) {
+                q.setKeysOnly();
+            }
+            List<Query.FilterPredicate> conjunction = disjunction.get(i);
+            if (conjunction.size() == 1) {
+                q.setFilter(conjunction.get(0));
+            } else if (conjunction.size() > 1) {
+                q.setFilter(new Query.CompositeFilter(
+                    CompositeFilterOperator.AND,
+                    new ArrayList<Query.Filter>(conjunction)));
+            }
+            for (SortPredicate sp : query.getSortPredicates()) {
+                q.addSort(sp.getPropertyName(), sp.getDirection());
+            }
+            FetchOptions options = FetchOptions.Builder.withDefaults();
+            if (limit != null) {
+                options.limit(limit + (offset != null ? offset : 0));
+            }
+            if (fetchOptions.getChunkSize() != null) {
+                options.chunkSize(fetchOptions.getChunkSize());
+            }
+            if (fetchOptions.getPrefetchSize() != null) {
+                options.prefetchSize(fetchOptions.getPrefetchSize());
+            }
+            if (startCursors.get(i) != null) {
+                options.startCursor(startCursors.get(i));
+            }
+            PreparedQuery pq = prepare(q);
+            iterators.add(pq.asQueryResultIterator(options));
+        }
+        return new MergedEntityIterator(
+            iterators,
+            startCursors,
+            new EntityComparator(query.getSortPredicates()),
+            offset,
+            limit);
     }
 
     /**
@@ -622,18 +1193,55 @@ public abstract class AbstractQuery<SUB> {
      * @return entities as list
      */
     public List<Entity> asEntityList() {
-        PreparedQuery pq = prepareQuery();
-        return pq.asList(fetchOptions);
+        if (isFanOut()) {
+            List<Entity> list = new ArrayList<Entity>();
+            for (Iterator<Entity> i = asMergedEntityIterator(); i.hasNext();) {
+                list.add(i.next());
+            }
+            return list;
+        }
+        for (int attempt = 0;; attempt++) {
+            PreparedQuery pq = prepareQuery();
+            if (!isRetryable()) {
+                return toSourceEntities(pq.asList(fetchOptions));
+            }
+            try {
+                List<Entity> list = pq.asList(fetchOptions);
+                list.size();
+                return toSourceEntities(list);
+            } catch (RuntimeException e) {
+                retryPolicy.backoff(e, true, attempt);
+            }
+        }
     }
 
     /**
      * Returns entities as query result list.
      * 
      * @return entities as query result list
+     * @throws IllegalStateException
+     *             if {@link #fanOut()} is specified
      */
-    public QueryResultList<Entity> asQueryResultEntityList() {
-        PreparedQuery pq = prepareQuery();
-        return pq.asQueryResultList(fetchOptions);
+    public QueryResultList<Entity> asQueryResultEntityList()
+            throws IllegalStateException {
+        if (isFanOut()) {
+            throw new IllegalStateException(
+                "In case of fanOut(), you cannot use a query result list.");
+        }
+        for (int attempt = 0;; attempt++) {
+            PreparedQuery pq = prepareQuery();
+            if (!isRetryable()) {
+                return toSourceEntities(pq.asQueryResultList(fetchOptions));
+            }
+            try {
+                QueryResultList<Entity> list =
+                    pq.asQueryResultList(fetchOptions);
+                list.size();
+                return toSourceEntities(list);
+            } catch (RuntimeException e) {
+                retryPolicy.backoff(e, true, attempt);
+            }
+        }
     }
 
     /**
@@ -642,8 +1250,21 @@ public abstract class AbstractQuery<SUB> {
      * @return entities as query result iterator
      */
     protected QueryResultIterator<Entity> asQueryResultEntityIterator() {
+        if (isFanOut()) {
+            return asMergedEntityIterator();
+        }
         PreparedQuery pq = prepareQuery();
-        return pq.asQueryResultIterator(fetchOptions);
+        QueryResultIterator<Entity> iterator;
+        if (prefetchPageSize != null) {
+            iterator =
+                new PrefetchingEntityIterator(
+                    pq,
+                    fetchOptions,
+                    prefetchPageSize);
+        } else {
+            iterator = pq.asQueryResultIterator(fetchOptions);
+        }
+        return view != null ? view.toSourceEntities(iterator) : iterator;
     }
 
     /**
@@ -672,8 +1293,17 @@ public abstract class AbstractQuery<SUB> {
             }
             return list.get(0);
         }
-        PreparedQuery pq = prepareQuery();
-        return pq.asSingleEntity();
+        for (int attempt = 0;; attempt++) {
+            PreparedQuery pq = prepareQuery();
+            if (!isRetryable()) {
+                return toSourceEntity(pq.asSingleEntity());
+            }
+            try {
+                return toSourceEntity(pq.asSingleEntity());
+            } catch (RuntimeException e) {
+                retryPolicy.backoff(e, true, attempt);
+            }
+        }
     }
 
     /**
@@ -723,11 +1353,20 @@ public abstract class AbstractQuery<SUB> {
      * @return the number of entities
      */
     public int count() {
-        PreparedQuery pq = prepareQuery();
         if (fetchOptions.getLimit() == null) {
             fetchOptions.limit(Integer.MAX_VALUE);
         }
-        return pq.countEntities(fetchOptions);
+        for (int attempt = 0;; attempt++) {
+            PreparedQuery pq = prepareQuery();
+            if (!isRetryable()) {
+                return pq.countEntities(fetchOptions);
+            }
+            try {
+                return pq.countEntities(fetchOptions);
+            } catch (RuntimeException e) {
+                retryPolicy.backoff(e, true, attempt);
+            }
+        }
     }
 
     /**
@@ -809,10 +1448,366 @@ public abstract class AbstractQuery<SUB> {
      * @return entities as {@link Iterator}
      */
     public Iterator<Entity> asEntityIterator() {
+        if (isFanOut()) {
+            return asMergedEntityIterator();
+        }
+        if (view != null) {
+            return asQueryResultEntityIterator();
+        }
         PreparedQuery pq = prepareQuery();
+        if (prefetchPageSize != null) {
+            return new PrefetchingEntityIterator(
+                pq,
+                fetchOptions,
+                prefetchPageSize);
+        }
         return pq.asIterator(fetchOptions);
     }
 
+    /**
+     * Reads the materialized view instead of the kind. The results are sorted
+     * by the sort values of the view after the sort orders specified before
+     * and are restored to the source entities.
+     * 
+     * @param view
+     *            the materialized view
+     * @param direction
+     *            the sort direction
+     * @throws NullPointerException
+     *             if the view parameter is null or if the direction parameter
+     *             is null
+     * @throws IllegalStateException
+     *             if the query has an ancestor
+     */
+    protected void useView(MaterializedView view, SortDirection direction)
+            throws NullPointerException, IllegalStateException {
+        if (view == null) {
+            throw new NullPointerException(
+                "The view parameter must not be null.");
+        }
+        if (direction == null) {
+            throw new NullPointerException(
+                "The direction parameter must not be null.");
+        }
+        if (query.getAncestor() != null) {
+            throw new IllegalStateException(
+                "In case of a materialized view, "
+                    + "you cannot specify an ancestor.");
+        }
+        Query q = new Query(view.getKind());
+        for (SortPredicate sp : query.getSortPredicates()) {
+            q.addSort(sp.getPropertyName(), sp.getDirection());
+        }
+        if (query.isKeysOnly()) {
+            q.setKeysOnly();
+        }
+        q.addSort(MaterializedView.SORT_VALUE_PROPERTY, direction);
+        query = q;
+        this.view = view;
+    }
+
+    /**
+     * Restores the source entities if the query reads a materialized view.
+     * 
+     * @param entities
+     *            the entities
+     * @return the source entities
+     */
+    protected List<Entity> toSourceEntities(List<Entity> entities) {
+        return view != null ? view.toSourceEntities(entities) : entities;
+    }
+
+    /**
+     * Restores the source entities if the query reads a materialized view.
+     * 
+     * @param entities
+     *            the entities
+     * @return the source entities
+     */
+    protected QueryResultList<Entity> toSourceEntities(
+            QueryResultList<Entity> entities) {
+        return view != null ? view.toSourceEntities(entities) : entities;
+    }
+
+    /**
+     * Restores the source entity if the query reads a materialized view.
+     * 
+     * @param entity
+     *            the entity
+     * @return the source entity
+     */
+    protected Entity toSourceEntity(Entity entity) {
+        return view != null && entity != null
+            ? view.toSourceEntity(entity)
+            : entity;
+    }
+
+    /**
+     * Returns the keys which split the query into the partitions of roughly
+     * equal size. The keys are sampled by the {@link #SCATTER_PROPERTY}
+     * property. Returns an empty list if the kind has no samples.
+     * 
+     * @param partitions
+     *            the number of partitions
+     * @return the split keys
+     * @throws IllegalArgumentException
+     *             if the partitions parameter is less than 1
+     */
+    public List<Key> getSplitKeys(int partitions)
+            throws IllegalArgumentException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException(
+                "The partitions parameter must be greater than 0.");
+        }
+        if (partitions == 1) {
+            return new ArrayList<Key>();
+        }
+        Query scatterQuery =
+            query.getAncestor() != null ? new Query(
+                query.getKind(),
+                query.getAncestor()) : new Query(query.getKind());
+        scatterQuery.addSort(SCATTER_PROPERTY).setKeysOnly();
+        List<Key> samples = new ArrayList<Key>();
+        for (Entity e : ds.prepare(scatterQuery).asIterable(
+            FetchOptions.Builder.withLimit((partitions - 1)
+                * SCATTER_OVERSAMPLING))) {
+            samples.add(e.getKey());
+        }
+        Collections.sort(samples);
+        List<Key> splitKeys = new ArrayList<Key>();
+        if (samples.isEmpty()) {
+            return splitKeys;
+        }
+        double step = (double) samples.size() / partitions;
+        for (int i = 1; i < partitions; i++) {
+            Key key =
+                samples.get(Math.min((int) (step * i), samples.size() - 1));
+            if (splitKeys.isEmpty()
+                || !splitKeys.get(splitKeys.size() - 1).equals(key)) {
+                splitKeys.add(key);
+            }
+        }
+        return splitKeys;
+    }
+
+    /**
+     * Returns the queries for the partitions split by the keys.
+     * 
+     * @param splitKeys
+     *            the split keys
+     * @return the queries for the partitions
+     * @throws NullPointerException
+     *             if the splitKeys parameter is null
+     * @throws IllegalStateException
+     *             if the query has sort orders, inequality filters, a limit,
+     *             an offset or cursors
+     */
+    protected List<Query> splitQuery(List<Key> splitKeys)
+            throws NullPointerException, IllegalStateException {
+        if (splitKeys == null) {
+            throw new NullPointerException(
+                "The splitKeys parameter must not be null.");
+        }
+        if (!query.getSortPredicates().isEmpty()) {
+            throw new IllegalStateException(
+                "In case of scan(), you cannot specify sort().");
+        }
+        if (fetchOptions.getLimit() != null
+            || fetchOptions.getOffset() != null
+            || fetchOptions.getStartCursor() != null
+            || fetchOptions.getEndCursor() != null) {
+            throw new IllegalStateException(
+                "In case of scan(), you cannot specify limit(), offset() or cursors.");
+        }
+        for (Query.Filter f : filters) {
+            if (!(f instanceof Query.FilterPredicate)
+                || !FilterOperator.EQUAL.equals(((Query.FilterPredicate) f)
+                    .getOperator())) {
+                throw new IllegalStateException(
+                    "In case of scan(), you can specify only equality filters.");
+            }
+        }
+        List<Key> keys = new ArrayList<Key>(splitKeys);
+        Collections.sort(keys);
+        List<Query> queries = new ArrayList<Query>(keys.size() + 1);
+        Key lowerKey = null;
+        for (int i = 0; i <= keys.size(); i++) {
+            Key upperKey = i < keys.size() ? keys.get(i) : null;
+            if (lowerKey != null && lowerKey.equals(upperKey)) {
+                continue;
+            }
+            Query q =
+                query.getAncestor() != null ? new Query(
+                    query.getKind(),
+                    query.getAncestor()) : new Query(query.getKind());
+            if (query.isKeysOnly()) {
+                q.setKeysOnly();
+            }
+            List<Query.Filter> list = new ArrayList<Query.Filter>(filters);
+            if (lowerKey != null) {
+                list.add(new Query.FilterPredicate(
+                    Entity.KEY_RESERVED_PROPERTY,
+                    FilterOperator.GREATER_THAN_OR_EQUAL,
+                    lowerKey));
+            }
+            if (upperKey != null) {
+                list.add(new Query.FilterPredicate(
+                    Entity.KEY_RESERVED_PROPERTY,
+                    FilterOperator.LESS_THAN,
+                    upperKey));
+            }
+            if (list.size() == 1) {
+                q.setFilter(list.get(0));
+            } else if (list.size() > 1) {
+                q.setFilter(new Query.CompositeFilter(
+                    CompositeFilterOperator.AND,
+                    list));
+            }
+            queries.add(q);
+            lowerKey = upperKey;
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the entity iterators for the partitions split by the keys. The
+     * queries of all the partitions are issued before this method returns.
+     * 
+     * @param splitKeys
+     *            the split keys
+     * @return the entity iterators for the partitions
+     * @throws NullPointerException
+     *             if the splitKeys parameter is null
+     * @throws IllegalStateException
+     *             if the query has sort orders, inequality filters, a limit,
+     *             an offset or cursors
+     */
+    protected List<QueryResultIterator<Entity>> asPartitionedEntityIterators(
+            List<Key> splitKeys) throws NullPointerException,
+            IllegalStateException {
+        List<Query> queries = splitQuery(splitKeys);
+        FetchOptions options = FetchOptions.Builder.withDefaults();
+        if (fetchOptions.getChunkSize() != null) {
+            options.chunkSize(fetchOptions.getChunkSize());
+        }
+        if (fetchOptions.getPrefetchSize() != null) {
+            options.prefetchSize(fetchOptions.getPrefetchSize());
+        }
+        return prepareIterators(queries, options);
+    }
+
+    /**
+     * Returns the entity iterators to aggregate the property for the
+     * partitions split by the keys. The entities have only the property if the
+     * propertyName parameter is not null, otherwise they have only the keys.
+     * The queries of all the partitions are issued before this method returns.
+     * 
+     * @param propertyName
+     *            the property name
+     * @param propertyClass
+     *            the class of the projected value. If this parameter is null,
+     *            the value is {@link RawValue}.
+     * @param splitKeys
+     *            the split keys
+     * @return the entity iterators for the partitions
+     * @throws NullPointerException
+     *             if the splitKeys parameter is null
+     * @throws IllegalStateException
+     *             if the query has sort orders, inequality filters, a limit,
+     *             an offset or cursors
+     */
+    protected List<QueryResultIterator<Entity>> asAggregateIterators(
+            String propertyName, Class<?> propertyClass, List<Key> splitKeys)
+            throws NullPointerException, IllegalStateException {
+        List<Query> queries = splitQuery(splitKeys);
+        for (Query q : queries) {
+            if (propertyName != null) {
+                q.addProjection(new PropertyProjection(
+                    propertyName,
+                    propertyClass));
+            } else {
+                q.setKeysOnly();
+            }
+        }
+        int chunkSize =
+            fetchOptions.getChunkSize() != null
+                ? fetchOptions.getChunkSize()
+                : DEFAULT_AGGREGATE_CHUNK_SIZE;
+        FetchOptions options =
+            FetchOptions.Builder.withChunkSize(chunkSize).prefetchSize(
+                fetchOptions.getPrefetchSize() != null ? fetchOptions
+                    .getPrefetchSize() : chunkSize);
+        return prepareIterators(queries, options);
+    }
+
+    /**
+     * Issues the queries.
+     * 
+     * @param queries
+     *            the queries
+     * @param options
+     *            the fetch options
+     * @return the entity iterators
+     */
+    protected List<QueryResultIterator<Entity>> prepareIterators(
+            List<Query> queries, FetchOptions options) {
+        List<QueryResultIterator<Entity>> iterators =
+            new ArrayList<QueryResultIterator<Entity>>(queries.size());
+        for (Query q : queries) {
+            PreparedQuery pq = prepare(q);
+            iterators.add(pq.asQueryResultIterator(options));
+        }
+        return iterators;
+    }
+
+    /**
+     * Drains the iterators in turn and passes the results to the handler. Each
+     * turn takes up to a chunk of results from an iterator, while the other
+     * iterators are fetching their next chunks.
+     * 
+     * @param <T>
+     *            the result type
+     * @param iterators
+     *            the iterators
+     * @param handler
+     *            the handler
+     * @throws NullPointerException
+     *             if the handler parameter is null
+     */
+    protected <T> void scanIterators(List<? extends Iterator<T>> iterators,
+            ScanHandler<? super T> handler) throws NullPointerException {
+        if (handler == null) {
+            throw new NullPointerException(
+                "The handler parameter must not be null.");
+        }
+        int chunkSize =
+            fetchOptions.getChunkSize() != null
+                ? fetchOptions.getChunkSize()
+                : DEFAULT_SCAN_CHUNK_SIZE;
+        List<Iterator<T>> active = new LinkedList<Iterator<T>>(iterators);
+        while (!active.isEmpty()) {
+            for (Iterator<Iterator<T>> i = active.iterator(); i.hasNext();) {
+                Iterator<T> ite = i.next();
+                for (int count = 0; count < chunkSize; count++) {
+                    if (!ite.hasNext()) {
+                        i.remove();
+                        break;
+                    }
+                    handler.handle(ite.next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines if the query is retried when it failed transiently.
+     * 
+     * @return whether the query is retried
+     */
+    protected boolean isRetryable() {
+        return retryPolicy != null && tx == null;
+    }
+
     /**
      * Applies the filter to query.
      * 
@@ -52,4 +52,14 @@ public abstract class AbstractUow {
      * Rolls back a transaction.
      */
     protected abstract void rollback();
+
+    /**
+     * Returns the retry policy. If this method returns null,
+     * {@link Uow#run(AbstractUow)} uses the default retries.
+     * 
+     * @return the retry policy
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return null;
+    }
 }
\ No newline at end of file
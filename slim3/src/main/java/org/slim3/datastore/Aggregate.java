@@ -0,0 +1,249 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slim3.util.ConversionUtil;
+
+/**
+ * The aggregated values of a property.
+ * 
+ * <p>
+ * The null values are not aggregated. The sum is {@link Long} if all the
+ * values are integral, otherwise it is {@link Double}. The minimum and maximum
+ * values are decided in the same way as datastore orders them.
+ * </p>
+ * 
+ * <p>
+ * The distinct values are counted only if the aggregate is created with
+ * countDistinct, because all the distinct values have to be kept in memory.
+ * </p>
+ * 
+ * @author higa
+ * @param <A>
+ *            the attribute type
+ * @since 1.0.17
+ * @see ModelQuery#aggregate(CoreAttributeMeta, int)
+ * 
+ */
+public class Aggregate<A> {
+
+    /**
+     * The attribute class.
+     */
+    protected Class<A> attributeClass;
+
+    /**
+     * The number of the values.
+     */
+    protected long count = 0;
+
+    /**
+     * The sum of the integral values.
+     */
+    protected long longSum = 0;
+
+    /**
+     * The sum of the values.
+     */
+    protected double doubleSum = 0;
+
+    /**
+     * Whether there is a numerical value.
+     */
+    protected boolean numeric = false;
+
+    /**
+     * Whether there is a non-integral value.
+     */
+    protected boolean floating = false;
+
+    /**
+     * The minimum value.
+     */
+    protected Object min;
+
+    /**
+     * The maximum value.
+     */
+    protected Object max;
+
+    /**
+     * The distinct values. This is null unless the distinct values are
+     * counted.
+     */
+    protected Set<Object> distinctValues;
+
+    /**
+     * Constructor. The distinct values are not counted.
+     * 
+     * @param attributeClass
+     *            the attribute class
+     * @throws NullPointerException
+     *             if the attributeClass parameter is null
+     */
+    public Aggregate(Class<A> attributeClass) throws NullPointerException {
+        this(attributeClass, false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param attributeClass
+     *            the attribute class
+     * @param countDistinct
+     *            whether the distinct values are counted
+     * @throws NullPointerException
+     *             if the attributeClass parameter is null
+     */
+    public Aggregate(Class<A> attributeClass, boolean countDistinct)
+            throws NullPointerException {
+        if (attributeClass == null) {
+            throw new NullPointerException(
+                "The attributeClass parameter must not be null.");
+        }
+        this.attributeClass = attributeClass;
+        if (countDistinct) {
+            distinctValues = new HashSet<Object>();
+        }
+    }
+
+    /**
+     * Adds the value.
+     * 
+     * @param value
+     *            the value
+     */
+    public void add(Object value) {
+        if (value == null) {
+            return;
+        }
+        count++;
+        if (value instanceof Number) {
+            numeric = true;
+            Number n = (Number) value;
+            if (value instanceof Double || value instanceof Float) {
+                floating = true;
+            } else {
+                longSum += n.longValue();
+            }
+            doubleSum += n.doubleValue();
+        }
+        if (min == null || EntityComparator.compareValues(value, min) < 0) {
+            min = value;
+        }
+        if (max == null || EntityComparator.compareValues(value, max) > 0) {
+            max = value;
+        }
+        if (distinctValues != null) {
+            distinctValues.add(value);
+        }
+    }
+
+    /**
+     * Returns the number of the values.
+     * 
+     * @return the number of the values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the values. Returns null if there are no numerical
+     * values.
+     * 
+     * @return the sum of the values
+     */
+    public Number getSum() {
+        if (!numeric) {
+            return null;
+        }
+        if (floating) {
+            return doubleSum;
+        }
+        return longSum;
+    }
+
+    /**
+     * Returns the average of the values. Returns null if there are no
+     * numerical values.
+     * 
+     * @return the average of the values
+     */
+    public Double getAverage() {
+        if (!numeric) {
+            return null;
+        }
+        return doubleSum / count;
+    }
+
+    /**
+     * Returns the minimum value.
+     * 
+     * @return the minimum value
+     */
+    public A getMin() {
+        return min != null ? ConversionUtil.convert(min, attributeClass) : null;
+    }
+
+    /**
+     * Returns the maximum value.
+     * 
+     * @return the maximum value
+     */
+    public A getMax() {
+        return max != null ? ConversionUtil.convert(max, attributeClass) : null;
+    }
+
+    /**
+     * Determines if the distinct values are counted.
+     * 
+     * @return whether the distinct values are counted
+     */
+    public boolean isDistinctCounted() {
+        return distinctValues != null;
+    }
+
+    /**
+     * Returns the number of the distinct values.
+     * 
+     * @return the number of the distinct values
+     * @throws IllegalStateException
+     *             if the distinct values are not counted
+     */
+    public int getDistinctCount() throws IllegalStateException {
+        if (distinctValues == null) {
+            throw new IllegalStateException(
+                "The distinct values are not counted. "
+                    + "Specify countDistinct to count them.");
+        }
+        return distinctValues.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(count).append(", sum=").append(getSum());
+        sb.append(", min=").append(min).append(", max=").append(max);
+        if (distinctValues != null) {
+            sb.append(", distinctCount=").append(distinctValues.size());
+        }
+        return sb.toString();
+    }
+}
\ No newline at end of file
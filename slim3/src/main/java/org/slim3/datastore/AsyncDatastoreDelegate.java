@@ -15,13 +15,19 @@
  */
 package org.slim3.datastore;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
 
 import org.slim3.util.DoubleUtil;
+import org.slim3.util.FakeFuture;
+import org.slim3.util.IntegerUtil;
+import org.slim3.util.IterableUtil;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
@@ -52,6 +58,17 @@ public class AsyncDatastoreDelegate {
      */
     public static final String USE_XGTX = "slim3.useXGTX";
 
+    /**
+     * The key of the maximum number of concurrent batches.
+     */
+    public static final String MAX_CONCURRENT_BATCHES =
+        "slim3.maxConcurrentBatches";
+
+    /**
+     * The default maximum number of concurrent batches.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 10;
+
     /**
      * The deadline(seconds).
      */
@@ -72,6 +89,28 @@ public class AsyncDatastoreDelegate {
      */
     protected TransactionOptions txOps;
 
+    /**
+     * The maximum number of batches in flight when a batch get is split into
+     * chunks of {@link DatastoreUtil#MAX_NUMBER_OF_ENTITIES}. The chunks of a
+     * put or a delete are all dispatched at once.
+     */
+    protected int maxConcurrentBatches;
+
+    /**
+     * Whether concurrent lookups of the same keys without transaction are
+     * coalesced into a single RPC.
+     * 
+     * @see SingleFlight
+     */
+    protected boolean singleFlight;
+
+    /**
+     * The retry policy for operations without transaction.
+     * 
+     * @see RetryPolicy
+     */
+    protected RetryPolicy retryPolicy;
+
     /**
      * Constructor.
      */
@@ -102,6 +141,35 @@ public class AsyncDatastoreDelegate {
         return deadline;
     }
 
+    /**
+     * Returns the maximum number of concurrent batches.
+     * 
+     * @return the maximum number of concurrent batches
+     */
+    protected int getMaxConcurrentBatches() {
+        return maxConcurrentBatches;
+    }
+
+    /**
+     * Returns the retry policy.
+     * 
+     * @return the retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy for operations without transaction. Null means no
+     * retry.
+     * 
+     * @param retryPolicy
+     *            the retry policy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
      * Returns the asynchronous datastore service.
      * 
@@ -126,6 +194,14 @@ public class AsyncDatastoreDelegate {
         } else {
             txOps = TransactionOptions.Builder.withDefaults();
         }
+        Integer max =
+            IntegerUtil.toInteger(System.getProperty(MAX_CONCURRENT_BATCHES));
+        if (max != null && max > 0) {
+            maxConcurrentBatches = max;
+        } else {
+            maxConcurrentBatches = DEFAULT_MAX_CONCURRENT_BATCHES;
+        }
+        singleFlight = SingleFlight.isEnabled();
     }
 
     /**
@@ -627,8 +703,9 @@ public class AsyncDatastoreDelegate {
      *             if the transaction is not null and the transaction is not
      *             active
      */
-    public <M> Future<M> getAsync(Transaction tx, final ModelMeta<M> modelMeta,
-            final Key key) throws NullPointerException, IllegalStateException {
+    public <M> Future<M> getAsync(final Transaction tx,
+            final ModelMeta<M> modelMeta, final Key key)
+            throws NullPointerException, IllegalStateException {
         return new FutureWrapper<Entity, M>(getAsync(tx, key)) {
 
             @Override
@@ -642,6 +719,7 @@ public class AsyncDatastoreDelegate {
                 mm.validateKey(key);
                 M model = mm.entityToModel(entity);
                 mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, entity, tx);
                 return model;
             }
         };
@@ -724,7 +802,7 @@ public class AsyncDatastoreDelegate {
      *             if the transaction is not null and the transaction is not
      *             active
      */
-    public <M> Future<M> getOrNullAsync(Transaction tx,
+    public <M> Future<M> getOrNullAsync(final Transaction tx,
             final ModelMeta<M> modelMeta, final Key key)
             throws NullPointerException, IllegalStateException {
         return new FutureWrapper<Map<Key, Entity>, M>(getAsMapAsync(tx, key)) {
@@ -744,6 +822,7 @@ public class AsyncDatastoreDelegate {
                 mm.validateKey(key);
                 M model = mm.entityToModel(entity);
                 mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, entity, tx);
                 return model;
             }
         };
@@ -802,9 +881,9 @@ public class AsyncDatastoreDelegate {
      *             if the transaction is not null and the transaction is not
      *             active
      */
-    public <M> Future<M> getAsync(Transaction tx, final ModelMeta<M> modelMeta,
-            final Key key, final Long version) throws NullPointerException,
-            IllegalStateException {
+    public <M> Future<M> getAsync(final Transaction tx,
+            final ModelMeta<M> modelMeta, final Key key, final Long version)
+            throws NullPointerException, IllegalStateException {
         if (version == null) {
             throw new NullPointerException(
                 "The version parameter must not be null.");
@@ -822,6 +901,17 @@ public class AsyncDatastoreDelegate {
                 mm.validateKey(key);
                 M model = mm.entityToModel(entity);
                 mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, entity, tx);
+                if (version != mm.getVersion(model)
+                    && tx == null
+                    && ModelCache.isCacheable(key)) {
+                    ModelCache.invalidate(Arrays.asList(key));
+                    entity = DatastoreUtil.get(ds, null, key);
+                    mm = DatastoreUtil.getModelMeta(modelMeta, entity);
+                    model = mm.entityToModel(entity);
+                    mm.postGet(model);
+                    DirtyTracker.snapshotCurrent(model, entity, tx);
+                }
                 if (version != mm.getVersion(model)) {
                     throw new ConcurrentModificationException(
                         "Failed optimistic lock by key("
@@ -1439,7 +1529,259 @@ public class AsyncDatastoreDelegate {
     public Future<Map<Key, Entity>> getAsMapAsync(Transaction tx,
             Iterable<Key> keys) throws NullPointerException,
             IllegalStateException {
-        return DatastoreUtil.getAsMapAsync(ds, tx, keys);
+        return getAsMapAsync(tx, keys, null);
+    }
+
+    /**
+     * Returns entities specified by the keys within the provided transaction
+     * asynchronously. The lookups served by the caches and the lookups which
+     * went to datastore are recorded to the statistics.
+     * 
+     * @param tx
+     *            the transaction
+     * @param keys
+     *            the keys
+     * @param stats
+     *            the statistics of the caches
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     * @throws IllegalStateException
+     *             if the transaction is not null and the transaction is not
+     *             active
+     */
+    public Future<Map<Key, Entity>> getAsMapAsync(Transaction tx,
+            Iterable<Key> keys, CacheStats stats) throws NullPointerException,
+            IllegalStateException {
+        AutoBatcher batcher = AutoBatcher.getCurrent();
+        if (batcher != null) {
+            batcher.flushIfPending(keys);
+        }
+        if (tx != null) {
+            if (stats != null) {
+                stats.recordMisses(IterableUtil.size(keys));
+            }
+            return DatastoreUtil.getAsMapAsync(
+                ds,
+                tx,
+                keys,
+                maxConcurrentBatches);
+        }
+        RequestCache cache = RequestCache.getCurrent();
+        if (cache == null) {
+            return getAsMapWithModelCacheAsync(keys, stats);
+        }
+        return getAsMapAsync(cache, keys, stats);
+    }
+
+    /**
+     * Returns entities specified by the keys without transaction
+     * asynchronously. The entities cached in the request cache are returned
+     * without datastore access.
+     * 
+     * @param cache
+     *            the request cache
+     * @param keys
+     *            the keys
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    protected Future<Map<Key, Entity>> getAsMapAsync(final RequestCache cache,
+            Iterable<Key> keys) throws NullPointerException {
+        return getAsMapAsync(cache, keys, null);
+    }
+
+    /**
+     * Returns entities specified by the keys without transaction
+     * asynchronously. The entities cached in the request cache are returned
+     * without datastore access.
+     * 
+     * @param cache
+     *            the request cache
+     * @param keys
+     *            the keys
+     * @param stats
+     *            the statistics of the caches
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    protected Future<Map<Key, Entity>> getAsMapAsync(final RequestCache cache,
+            Iterable<Key> keys, CacheStats stats) throws NullPointerException {
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        final Map<Key, Entity> cachedMap = new HashMap<Key, Entity>();
+        final List<Key> missingKeys = new ArrayList<Key>();
+        for (Key key : keys) {
+            if (key != null && cache.contains(key)) {
+                Entity entity = cache.get(key);
+                if (entity != null) {
+                    cachedMap.put(key, entity);
+                }
+            } else {
+                missingKeys.add(key);
+            }
+        }
+        if (missingKeys.isEmpty()) {
+            if (stats != null) {
+                stats.recordHits(IterableUtil.size(keys));
+            }
+            return new FakeFuture<Map<Key, Entity>>(cachedMap);
+        }
+        if (stats != null) {
+            stats.recordHits(IterableUtil.size(keys) - missingKeys.size());
+        }
+        final long generation = cache.getGeneration();
+        return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(
+            getAsMapWithModelCacheAsync(missingKeys, stats)) {
+
+            @Override
+            protected Throwable convertException(Throwable throwable) {
+                return throwable;
+            }
+
+            @Override
+            protected Map<Key, Entity> wrap(Map<Key, Entity> map)
+                    throws Exception {
+                cache.put(missingKeys, map, generation);
+                if (cachedMap.isEmpty()) {
+                    return map;
+                }
+                Map<Key, Entity> result = new HashMap<Key, Entity>(map);
+                result.putAll(cachedMap);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns entities specified by the keys without transaction
+     * asynchronously. The entities of cacheable models are read through the
+     * model cache stored in memcache.
+     * 
+     * @param keys
+     *            the keys
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     * @see ModelCache
+     */
+    protected Future<Map<Key, Entity>> getAsMapWithModelCacheAsync(
+            Iterable<Key> keys) throws NullPointerException {
+        return getAsMapWithModelCacheAsync(keys, null);
+    }
+
+    /**
+     * Returns entities specified by the keys without transaction
+     * asynchronously. The entities of cacheable models are read through the
+     * model cache stored in memcache.
+     * 
+     * @param keys
+     *            the keys
+     * @param stats
+     *            the statistics of the caches
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     * @see ModelCache
+     */
+    protected Future<Map<Key, Entity>> getAsMapWithModelCacheAsync(
+            Iterable<Key> keys, CacheStats stats) throws NullPointerException {
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        if (ModelCache.filter(keys).isEmpty()) {
+            if (stats != null) {
+                stats.recordMisses(IterableUtil.size(keys));
+            }
+            return getAsMapFromDatastoreAsync(keys);
+        }
+        final Map<Key, Entity> cachedMap = ModelCache.getAll(keys);
+        List<Key> missingKeys = new ArrayList<Key>();
+        for (Key key : keys) {
+            if (key == null || !cachedMap.containsKey(key)) {
+                missingKeys.add(key);
+            }
+        }
+        if (stats != null) {
+            stats.recordHits(cachedMap.size());
+            stats.recordMisses(missingKeys.size());
+        }
+        if (missingKeys.isEmpty()) {
+            return new FakeFuture<Map<Key, Entity>>(cachedMap);
+        }
+        return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(
+            getAsMapFromDatastoreAsync(missingKeys)) {
+
+            @Override
+            protected Throwable convertException(Throwable throwable) {
+                return throwable;
+            }
+
+            @Override
+            protected Map<Key, Entity> wrap(Map<Key, Entity> map)
+                    throws Exception {
+                ModelCache.putAll(map);
+                if (cachedMap.isEmpty()) {
+                    return map;
+                }
+                Map<Key, Entity> result = new HashMap<Key, Entity>(map);
+                result.putAll(cachedMap);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns entities specified by the keys from datastore without
+     * transaction asynchronously. If single-flight lookups are enabled, the
+     * keys in flight share the lookup in flight. If the retry policy is
+     * specified, the lookup is retried when it failed transiently.
+     * 
+     * @param keys
+     *            the keys
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     * @see SingleFlight
+     * @see RetryPolicy
+     */
+    protected Future<Map<Key, Entity>> getAsMapFromDatastoreAsync(
+            final Iterable<Key> keys) throws NullPointerException {
+        if (retryPolicy == null) {
+            return dispatchGetAsMapFromDatastoreAsync(keys);
+        }
+        return new RetryFuture<Map<Key, Entity>>(retryPolicy, true) {
+            @Override
+            protected Future<Map<Key, Entity>> dispatch() {
+                return dispatchGetAsMapFromDatastoreAsync(keys);
+            }
+        }.start();
+    }
+
+    /**
+     * Dispatches a lookup of the keys without transaction.
+     * 
+     * @param keys
+     *            the keys
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    protected Future<Map<Key, Entity>> dispatchGetAsMapFromDatastoreAsync(
+            Iterable<Key> keys) throws NullPointerException {
+        if (singleFlight) {
+            return SingleFlight.getAsMapAsync(ds, keys, maxConcurrentBatches);
+        }
+        return DatastoreUtil.getAsMapAsync(
+            ds,
+            null,
+            keys,
+            maxConcurrentBatches);
     }
 
     /**
@@ -1647,7 +1989,8 @@ public class AsyncDatastoreDelegate {
      *             if the entity parameter is null
      * @throws IllegalStateException
      *             if the transaction is not null and the transaction is not
-     *             active
+     *             active, or if a materialized view is registered for the
+     *             kind and the transaction is not a cross-group transaction
      */
     public Future<Key> putAsync(Transaction tx, Entity entity)
             throws NullPointerException, IllegalStateException {
@@ -1655,10 +1998,30 @@ public class AsyncDatastoreDelegate {
             throw new NullPointerException(
                 "The entity parameter must not be null.");
         }
-        return new FutureWrapper<List<Key>, Key>(DatastoreUtil.putAsync(
-            ds,
-            tx,
-            Arrays.asList(entity))) {
+        assertViewsWritable(tx, Arrays.asList(entity.getKey()));
+        List<Entity> entities = new ArrayList<Entity>();
+        entities.add(entity);
+        entities.addAll(MaterializedView.toViewEntities(ds, entities));
+        AutoBatcher batcher = tx == null ? AutoBatcher.getCurrent() : null;
+        Future<List<Key>> future;
+        if (batcher != null) {
+            future = batcher.putAsync(ds, entities);
+        } else if (tx == null && retryPolicy != null) {
+            future = putWithRetryAsync(entities);
+        } else {
+            future = DatastoreUtil.putAsync(ds, tx, entities);
+        }
+        List<Key> keys = new ArrayList<Key>(entities.size());
+        for (Entity e : entities) {
+            keys.add(e.getKey());
+        }
+        RequestCache.invalidateCurrent(keys, tx);
+        DirtyTracker.forgetCurrent(keys);
+        ModelCache.invalidate(keys, tx != null);
+        QueryCache.invalidate(keys);
+        SingleFlight.forget(keys);
+        future = invalidateOnCompletion(tx, keys, future);
+        return new FutureWrapper<List<Key>, Key>(future) {
 
             @Override
             protected Throwable convertException(Throwable throwable) {
@@ -1689,6 +2052,13 @@ public class AsyncDatastoreDelegate {
      */
     public Future<Key> putAsync(Transaction tx, Object model)
             throws NullPointerException, IllegalStateException {
+        DirtyTracker tracker = DirtyTracker.getCurrent();
+        if (tracker != null) {
+            Key key = tracker.getUnchangedKey(model, tx);
+            if (key != null) {
+                return new FakeFuture<Key>(key);
+            }
+        }
         Entity entity = DatastoreUtil.modelToEntity(ds, model);
         return putAsync(tx, entity);
     }
@@ -1764,8 +2134,114 @@ public class AsyncDatastoreDelegate {
      */
     public Future<List<Key>> putAsync(Transaction tx, Iterable<?> models)
             throws NullPointerException, IllegalStateException {
+        DirtyTracker tracker = DirtyTracker.getCurrent();
+        if (tracker == null || models == null) {
+            return putModelsAsync(tx, models);
+        }
+        final List<Key> unchangedKeys = new ArrayList<Key>();
+        List<Object> changedModels = new ArrayList<Object>();
+        for (Object model : models) {
+            Key key = tracker.getUnchangedKey(model, tx);
+            unchangedKeys.add(key);
+            if (key == null) {
+                changedModels.add(model);
+            }
+        }
+        if (changedModels.size() == unchangedKeys.size()) {
+            return putModelsAsync(tx, changedModels);
+        }
+        if (changedModels.isEmpty()) {
+            return new FakeFuture<List<Key>>(unchangedKeys);
+        }
+        return new FutureWrapper<List<Key>, List<Key>>(putModelsAsync(
+            tx,
+            changedModels)) {
+
+            @Override
+            protected Throwable convertException(Throwable throwable) {
+                return throwable;
+            }
+
+            @Override
+            protected List<Key> wrap(List<Key> list) throws Exception {
+                List<Key> keys = new ArrayList<Key>(unchangedKeys.size());
+                Iterator<Key> ite = list.iterator();
+                for (Key key : unchangedKeys) {
+                    keys.add(key != null ? key : ite.next());
+                }
+                return keys;
+            }
+        };
+    }
+
+    private Future<List<Key>> putModelsAsync(Transaction tx, Iterable<?> models)
+            throws NullPointerException, IllegalStateException {
         List<Entity> entities = DatastoreUtil.modelsToEntities(ds, models);
-        return DatastoreUtil.putAsync(ds, tx, entities);
+        final int size = entities.size();
+        List<Key> sourceKeys = new ArrayList<Key>(size);
+        for (Entity entity : entities) {
+            sourceKeys.add(entity.getKey());
+        }
+        assertViewsWritable(tx, sourceKeys);
+        List<Entity> viewEntities =
+            MaterializedView.toViewEntities(ds, entities);
+        if (!viewEntities.isEmpty()) {
+            entities = new ArrayList<Entity>(entities);
+            entities.addAll(viewEntities);
+        }
+        AutoBatcher batcher = tx == null ? AutoBatcher.getCurrent() : null;
+        Future<List<Key>> future;
+        if (batcher != null) {
+            future = batcher.putAsync(ds, entities);
+        } else if (tx == null && retryPolicy != null) {
+            future = putWithRetryAsync(entities);
+        } else {
+            future = DatastoreUtil.putAsync(ds, tx, entities);
+        }
+        List<Key> keys = new ArrayList<Key>(entities.size());
+        for (Entity entity : entities) {
+            keys.add(entity.getKey());
+        }
+        RequestCache.invalidateCurrent(keys, tx);
+        DirtyTracker.forgetCurrent(keys);
+        ModelCache.invalidate(keys, tx != null);
+        QueryCache.invalidate(keys);
+        SingleFlight.forget(keys);
+        future = invalidateOnCompletion(tx, keys, future);
+        if (viewEntities.isEmpty()) {
+            return future;
+        }
+        return new FutureWrapper<List<Key>, List<Key>>(future) {
+
+            @Override
+            protected Throwable convertException(Throwable throwable) {
+                return throwable;
+            }
+
+            @Override
+            protected List<Key> wrap(List<Key> list) throws Exception {
+                return new ArrayList<Key>(list.subList(0, size));
+            }
+        };
+    }
+
+    /**
+     * Puts the entities to datastore without transaction asynchronously
+     * according to the retry policy. The keys are assigned before the first
+     * attempt so that a retried put does not create a duplicate entity.
+     * 
+     * @param entities
+     *            the entities
+     * @return a list of keys represented as {@link Future}
+     */
+    protected Future<List<Key>> putWithRetryAsync(final List<Entity> entities) {
+        DatastoreUtil.assignKeyIfNecessary(ds, entities);
+        return new RetryFuture<List<Key>>(retryPolicy, false) {
+            @Override
+            protected Future<List<Key>> dispatch() {
+                return DatastoreUtil.putAsync(ds, null, entities);
+            }
+        }.start();
     }
 
     /**
@@ -1853,11 +2329,134 @@ public class AsyncDatastoreDelegate {
      *             if the keys parameter is null
      * @throws IllegalStateException
      *             if the transaction is not null and the transaction is not
-     *             active
+     *             active, or if a materialized view is registered for the
+     *             kind and the transaction is not a cross-group transaction
      */
     public Future<Void> deleteAsync(Transaction tx, Iterable<Key> keys)
             throws NullPointerException, IllegalStateException {
-        return DatastoreUtil.deleteAsync(ds, tx, keys);
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        assertViewsWritable(tx, keys);
+        List<Key> viewKeys = MaterializedView.toViewKeys(keys);
+        if (!viewKeys.isEmpty()) {
+            List<Key> list = new ArrayList<Key>();
+            for (Key key : keys) {
+                list.add(key);
+            }
+            list.addAll(viewKeys);
+            keys = list;
+        }
+        final Iterable<Key> allKeys = keys;
+        AutoBatcher batcher = tx == null ? AutoBatcher.getCurrent() : null;
+        Future<Void> future;
+        if (batcher != null) {
+            future = batcher.deleteAsync(ds, keys);
+        } else if (tx == null && retryPolicy != null) {
+            future = new RetryFuture<Void>(retryPolicy, true) {
+                @Override
+                protected Future<Void> dispatch() {
+                    return DatastoreUtil.deleteAsync(ds, null, allKeys);
+                }
+            }.start();
+        } else {
+            future = DatastoreUtil.deleteAsync(ds, tx, keys);
+        }
+        RequestCache.invalidateCurrent(keys, tx);
+        DirtyTracker.forgetCurrent(keys);
+        ModelCache.invalidate(keys, tx != null);
+        QueryCache.invalidate(keys);
+        SingleFlight.forget(keys);
+        return invalidateOnCompletion(tx, keys, future);
+    }
+
+    /**
+     * Asserts that the materialized views of the keys can be written within
+     * the transaction. A view entity is a root entity, so the transaction must
+     * be a cross-group transaction if a view is registered for the kind of
+     * any of the keys.
+     * 
+     * @param tx
+     *            the transaction
+     * @param keys
+     *            the keys of the source entities
+     * @throws IllegalStateException
+     *             if the transaction is not a cross-group transaction and a
+     *             view is registered for the kind of any of the keys
+     */
+    protected void assertViewsWritable(Transaction tx, Iterable<Key> keys)
+            throws IllegalStateException {
+        if (tx == null || txOps.isXG()) {
+            return;
+        }
+        for (Key key : keys) {
+            if (key == null) {
+                continue;
+            }
+            List<MaterializedView> views =
+                MaterializedView.getViews(key.getKind());
+            if (!views.isEmpty()) {
+                throw new IllegalStateException("The materialized view("
+                    + views.get(0).getKind()
+                    + ") of the kind("
+                    + key.getKind()
+                    + ") is written to another entity group, so the kind "
+                    + "can not be written within a transaction which is not "
+                    + "cross-group. Set the system property("
+                    + USE_XGTX
+                    + ") to true or write without transaction.");
+            }
+        }
+    }
+
+    /**
+     * Returns the future which invalidates the cached entities of the keys
+     * again when the write without transaction completes. A read dispatched
+     * while the write is in flight can cache the old entity after the
+     * invalidation at dispatch, for example when the write is retried, split
+     * into batches or deferred by {@link AutoBatcher}. A write within a
+     * transaction is not visible until commit, so the invalidation at
+     * dispatch denies re-adding the entities for the lifetime of the
+     * transaction instead.
+     * 
+     * @param <T>
+     *            the result type
+     * @param tx
+     *            the transaction
+     * @param keys
+     *            the keys
+     * @param future
+     *            the future of the write
+     * @return the future which invalidates the cached entities again
+     */
+    protected <T> Future<T> invalidateOnCompletion(Transaction tx,
+            final Iterable<Key> keys, Future<T> future) {
+        final RequestCache cache = RequestCache.getCurrent();
+        if (tx != null || cache == null && !ModelCache.isEnabled()) {
+            return future;
+        }
+        return new FutureWrapper<T, T>(future) {
+
+            @Override
+            protected Throwable convertException(Throwable throwable) {
+                invalidate();
+                return throwable;
+            }
+
+            @Override
+            protected T wrap(T result) throws Exception {
+                invalidate();
+                return result;
+            }
+
+            private void invalidate() {
+                if (cache != null) {
+                    cache.invalidate(keys, null);
+                }
+                ModelCache.invalidate(keys);
+            }
+        };
     }
 
     /**
@@ -1926,6 +2525,21 @@ public class AsyncDatastoreDelegate {
         return deleteWithoutTxAsync(query(ancestorKey).asKeyList());
     }
 
+    /**
+     * Sets up the query.
+     * 
+     * @param <Q>
+     *            the query type
+     * @param query
+     *            the query
+     * @return the query
+     */
+    protected <Q extends AbstractQuery<?>> Q setUpQuery(Q query) {
+        query.retryPolicy = retryPolicy;
+        query.delegate = this;
+        return query;
+    }
+
     /**
      * Returns a {@link ModelQuery}.
      * 
@@ -1939,7 +2553,8 @@ public class AsyncDatastoreDelegate {
      */
     public <M> ModelQuery<M> query(Class<M> modelClass)
             throws NullPointerException {
-        return new ModelQuery<M>(ds, DatastoreUtil.getModelMeta(modelClass));
+        return setUpQuery(new ModelQuery<M>(ds, DatastoreUtil
+            .getModelMeta(modelClass)));
     }
 
     /**
@@ -1955,7 +2570,7 @@ public class AsyncDatastoreDelegate {
      */
     public <M> ModelQuery<M> query(ModelMeta<M> modelMeta)
             throws NullPointerException {
-        return new ModelQuery<M>(ds, modelMeta);
+        return setUpQuery(new ModelQuery<M>(ds, modelMeta));
     }
 
     /**
@@ -1974,10 +2589,10 @@ public class AsyncDatastoreDelegate {
      */
     public <M> ModelQuery<M> query(Class<M> modelClass, Key ancestorKey)
             throws NullPointerException {
-        return new ModelQuery<M>(
+        return setUpQuery(new ModelQuery<M>(
             ds,
             DatastoreUtil.getModelMeta(modelClass),
-            ancestorKey);
+            ancestorKey));
     }
 
     /**
@@ -1996,7 +2611,7 @@ public class AsyncDatastoreDelegate {
      */
     public <M> ModelQuery<M> query(ModelMeta<M> modelMeta, Key ancestorKey)
             throws NullPointerException {
-        return new ModelQuery<M>(ds, modelMeta, ancestorKey);
+        return setUpQuery(new ModelQuery<M>(ds, modelMeta, ancestorKey));
     }
 
     /**
@@ -2038,7 +2653,7 @@ public class AsyncDatastoreDelegate {
      */
     public <M> ModelQuery<M> query(Transaction tx, ModelMeta<M> modelMeta,
             Key ancestorKey) throws NullPointerException {
-        return new ModelQuery<M>(ds, tx, modelMeta, ancestorKey);
+        return setUpQuery(new ModelQuery<M>(ds, tx, modelMeta, ancestorKey));
     }
 
     /**
@@ -2051,7 +2666,7 @@ public class AsyncDatastoreDelegate {
      *             if the kind parameter is null
      */
     public EntityQuery query(String kind) throws NullPointerException {
-        return new EntityQuery(ds, kind);
+        return setUpQuery(new EntityQuery(ds, kind));
     }
 
     /**
@@ -2068,7 +2683,7 @@ public class AsyncDatastoreDelegate {
      */
     public EntityQuery query(String kind, Key ancestorKey)
             throws NullPointerException {
-        return new EntityQuery(ds, kind, ancestorKey);
+        return setUpQuery(new EntityQuery(ds, kind, ancestorKey));
     }
 
     /**
@@ -2087,7 +2702,7 @@ public class AsyncDatastoreDelegate {
      */
     public EntityQuery query(Transaction tx, String kind, Key ancestorKey)
             throws NullPointerException {
-        return new EntityQuery(ds, tx, kind, ancestorKey);
+        return setUpQuery(new EntityQuery(ds, tx, kind, ancestorKey));
     }
 
     /**
@@ -2096,7 +2711,7 @@ public class AsyncDatastoreDelegate {
      * @return a {@link KindlessQuery}
      */
     public KindlessQuery query() {
-        return new KindlessQuery(ds);
+        return setUpQuery(new KindlessQuery(ds));
     }
 
     /**
@@ -2109,7 +2724,7 @@ public class AsyncDatastoreDelegate {
      *             if the ancestorKey parameter is null
      */
     public KindlessQuery query(Key ancestorKey) throws NullPointerException {
-        return new KindlessQuery(ds, ancestorKey);
+        return setUpQuery(new KindlessQuery(ds, ancestorKey));
     }
 
     /**
@@ -2125,6 +2740,6 @@ public class AsyncDatastoreDelegate {
      */
     public KindlessQuery query(Transaction tx, Key ancestorKey)
             throws NullPointerException {
-        return new KindlessQuery(ds, tx, ancestorKey);
+        return setUpQuery(new KindlessQuery(ds, tx, ancestorKey));
     }
 }
\ No newline at end of file
@@ -70,8 +70,25 @@ public @interface Attribute {
      */
     boolean cipher() default false;
 
+    /**
+     * Whether this property is decoded on first access. This is valid only
+     * for a large object. The model class and the accessors of this property
+     * must not be final.
+     * 
+     * @since 1.0.17
+     */
+    boolean lazy() default false;
+
     /**
      * The attribute listener.
      */
     Class<?> listener() default AttributeListener.class;
+
+    /**
+     * The serializer of a serializable large object. The serializer must
+     * implement {@link AttributeSerializer} and have a default constructor.
+     * 
+     * @since 1.0.17
+     */
+    Class<?> serializer() default AttributeSerializer.class;
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+/**
+ * A serializer for the attribute which is stored as a serialized large object.
+ * The serializer is specified by {@code @Attribute(serializer = ...)} and
+ * replaces Java serialization for the attribute.
+ * 
+ * <p>
+ * The values which were stored by Java serialization are still read by Java
+ * serialization, so the serializer must not return an array of bytes starting
+ * with the Java serialization stream magic(0xACED).
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public interface AttributeSerializer {
+
+    /**
+     * Serializes the value.
+     * 
+     * @param value
+     *            the value. This is never null.
+     * @return an array of bytes
+     */
+    byte[] serialize(Object value);
+
+    /**
+     * Deserializes the array of bytes.
+     * 
+     * @param bytes
+     *            an array of bytes
+     * @return the value
+     */
+    Object deserialize(byte[] bytes);
+}
\ No newline at end of file
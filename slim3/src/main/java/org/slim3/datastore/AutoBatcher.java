@@ -0,0 +1,481 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slim3.util.FutureUtil;
+import org.slim3.util.LongUtil;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * A class to gather puts and deletes without transaction into combined batch
+ * RPCs.
+ * 
+ * <p>
+ * The puts and deletes issued while a batcher is bound to the current thread
+ * are kept pending until the batcher is flushed. The batcher is flushed when
+ * the pending entities reach {@link DatastoreUtil#MAX_NUMBER_OF_ENTITIES} or
+ * {@link DatastoreUtil#MAX_ENTITY_SIZE}, when a pending key is read, when a
+ * query runs, when a returned {@link Future} is waited on, or explicitly. No
+ * timer is used, so the window is checked only when the next put or delete
+ * is issued or when {@link Future#isDone()} of a returned future is called.
+ * A pending operation is not dispatched just because the window has elapsed;
+ * it waits for one of the events above or for the end of the request. Keys
+ * are assigned when the put is issued, and a
+ * later write of the same key supersedes the pending one. The entities are
+ * copied when the put is issued, so changes made to them afterwards are not
+ * written.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class AutoBatcher {
+
+    /**
+     * The key of useAutoBatch.
+     */
+    public static final String USE_AUTO_BATCH = "slim3.useAutoBatch";
+
+    /**
+     * The key of the window(milliseconds) to gather puts and deletes. The
+     * window is checked only when the next put or delete is issued or when
+     * {@link Future#isDone()} of a pending future is called.
+     */
+    public static final String WINDOW_MILLIS = "slim3.autoBatchWindowMillis";
+
+    /**
+     * The default window(milliseconds).
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 50;
+
+    private static final ThreadLocal<AutoBatcher> currentBatcher =
+        new ThreadLocal<AutoBatcher>();
+
+    /**
+     * The pending entities.
+     */
+    private Map<Key, Entity> putMap = new LinkedHashMap<Key, Entity>();
+
+    /**
+     * The encoded sizes of the pending entities.
+     */
+    private Map<Key, Integer> sizeMap = new HashMap<Key, Integer>();
+
+    /**
+     * The pending keys to delete.
+     */
+    private Set<Key> deleteSet = new LinkedHashSet<Key>();
+
+    /**
+     * The encoded size of the pending entities.
+     */
+    private int pendingSize = 0;
+
+    /**
+     * The time when the first pending operation was issued.
+     */
+    private long startTime = 0;
+
+    /**
+     * The window(milliseconds).
+     */
+    private final long windowMillis;
+
+    /**
+     * The asynchronous datastore service used to dispatch batches.
+     */
+    private AsyncDatastoreService ds;
+
+    /**
+     * The batch which the pending operations belong to.
+     */
+    private Batch currentBatch = new Batch();
+
+    /**
+     * The dispatched batches.
+     */
+    private List<Batch> dispatchedBatches = new ArrayList<Batch>();
+
+    /**
+     * Determines if auto-batching is enabled by the system property.
+     * 
+     * @return whether auto-batching is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_AUTO_BATCH));
+    }
+
+    /**
+     * Binds a new batcher to the current thread.
+     */
+    public static void begin() {
+        currentBatcher.set(new AutoBatcher());
+    }
+
+    /**
+     * Unbinds the batcher from the current thread. The pending operations are
+     * discarded.
+     */
+    public static void end() {
+        currentBatcher.remove();
+    }
+
+    /**
+     * Returns the batcher bound to the current thread. Returns null if no
+     * batcher is bound.
+     * 
+     * @return the batcher bound to the current thread
+     */
+    public static AutoBatcher getCurrent() {
+        return currentBatcher.get();
+    }
+
+    /**
+     * Flushes the batcher bound to the current thread if any and waits for
+     * the dispatched batches.
+     * 
+     * @throws RuntimeException
+     *             if any of the dispatched batches failed
+     */
+    public static void flushCurrent() {
+        AutoBatcher batcher = getCurrent();
+        if (batcher != null) {
+            batcher.flushAndWait();
+        }
+    }
+
+    private AutoBatcher() {
+        Long millis = LongUtil.toLong(System.getProperty(WINDOW_MILLIS));
+        windowMillis = millis != null ? millis : DEFAULT_WINDOW_MILLIS;
+    }
+
+    /**
+     * Puts the entities to datastore without transaction asynchronously. The
+     * keys are assigned immediately and copies of the entities are kept
+     * pending.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param entities
+     *            the entities
+     * @return a list of keys represented as {@link Future}
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the entities parameter is
+     *             null
+     */
+    public synchronized Future<List<Key>> putAsync(AsyncDatastoreService ds,
+            Iterable<Entity> entities) throws NullPointerException {
+        if (ds == null) {
+            throw new NullPointerException("The ds parameter must not be null.");
+        }
+        if (entities == null) {
+            throw new NullPointerException(
+                "The entities parameter must not be null.");
+        }
+        DatastoreUtil.assignKeyIfNecessary(ds, entities);
+        List<Key> keys = new ArrayList<Key>();
+        for (Entity entity : entities) {
+            Key key = entity.getKey();
+            keys.add(key);
+            deleteSet.remove(key);
+            Entity copy = entity.clone();
+            putMap.put(key, copy);
+            int size =
+                EntityTranslator.convertToPb(copy).encodingSize()
+                    + DatastoreUtil.EXTRA_SIZE;
+            Integer oldSize = sizeMap.put(key, size);
+            pendingSize += oldSize != null ? size - oldSize : size;
+        }
+        PendingFuture<List<Key>> future =
+            new PendingFuture<List<Key>>(currentBatch, keys);
+        issued(ds);
+        return future;
+    }
+
+    /**
+     * Deletes entities specified by the keys without transaction
+     * asynchronously. The keys are kept pending.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param keys
+     *            the keys
+     * @return a {@link Void} represented as {@link Future}
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the keys parameter is null
+     */
+    public synchronized Future<Void> deleteAsync(AsyncDatastoreService ds,
+            Iterable<Key> keys) throws NullPointerException {
+        if (ds == null) {
+            throw new NullPointerException("The ds parameter must not be null.");
+        }
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        for (Key key : keys) {
+            if (key == null) {
+                throw new NullPointerException(
+                    "The element of the keys parameter must not be null.");
+            }
+            putMap.remove(key);
+            Integer oldSize = sizeMap.remove(key);
+            if (oldSize != null) {
+                pendingSize -= oldSize;
+            }
+            deleteSet.add(key);
+        }
+        PendingFuture<Void> future = new PendingFuture<Void>(currentBatch, null);
+        issued(ds);
+        return future;
+    }
+
+    /**
+     * Determines if there are pending operations.
+     * 
+     * @return whether there are pending operations
+     */
+    public synchronized boolean hasPending() {
+        return !putMap.isEmpty() || !deleteSet.isEmpty();
+    }
+
+    /**
+     * Flushes the pending operations if any of the keys is pending.
+     * 
+     * @param keys
+     *            the keys
+     */
+    public synchronized void flushIfPending(Iterable<Key> keys) {
+        if (!hasPending() || keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            if (putMap.containsKey(key) || deleteSet.contains(key)) {
+                flush();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dispatches the pending operations as batch RPCs.
+     */
+    public synchronized void flush() {
+        if (!hasPending()) {
+            return;
+        }
+        Batch batch = currentBatch;
+        List<Entity> chunk = new ArrayList<Entity>();
+        int chunkSize = 0;
+        for (Entity entity : putMap.values()) {
+            int size = sizeMap.get(entity.getKey());
+            if (!chunk.isEmpty()
+                && (chunk.size() >= DatastoreUtil.MAX_NUMBER_OF_ENTITIES
+                    || chunkSize + size > DatastoreUtil.MAX_ENTITY_SIZE)) {
+                batch.futures.add(ds.put(null, chunk));
+                chunk = new ArrayList<Entity>();
+                chunkSize = 0;
+            }
+            chunk.add(entity);
+            chunkSize += size;
+        }
+        if (!chunk.isEmpty()) {
+            batch.futures.add(ds.put(null, chunk));
+        }
+        for (List<Key> keys : DatastoreUtil.split(
+            deleteSet,
+            DatastoreUtil.MAX_NUMBER_OF_ENTITIES)) {
+            batch.futures.add(ds.delete(null, keys));
+        }
+        List<Key> keys = new ArrayList<Key>(putMap.keySet());
+        keys.addAll(deleteSet);
+        ModelCache.invalidate(keys);
+        QueryCache.invalidate(keys);
+        SingleFlight.forget(keys);
+        batch.dispatched = true;
+        dispatchedBatches.add(batch);
+        currentBatch = new Batch();
+        putMap = new LinkedHashMap<Key, Entity>();
+        sizeMap = new HashMap<Key, Integer>();
+        deleteSet = new LinkedHashSet<Key>();
+        pendingSize = 0;
+        startTime = 0;
+    }
+
+    /**
+     * Flushes the pending operations and waits for all the dispatched batches.
+     * If any of the batches failed, the first failure is thrown after all the
+     * batches have completed.
+     * 
+     * @throws RuntimeException
+     *             if any of the dispatched batches failed
+     */
+    public synchronized void flushAndWait() throws RuntimeException {
+        flush();
+        if (dispatchedBatches.isEmpty()) {
+            return;
+        }
+        List<Batch> batches = dispatchedBatches;
+        dispatchedBatches = new ArrayList<Batch>();
+        RuntimeException failure = null;
+        for (Batch batch : batches) {
+            for (Future<?> f : batch.futures) {
+                try {
+                    FutureUtil.getQuietly(f);
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void issued(AsyncDatastoreService ds) {
+        this.ds = ds;
+        long now = System.currentTimeMillis();
+        if (startTime == 0) {
+            startTime = now;
+        }
+        int count = putMap.size() + deleteSet.size();
+        if (count >= DatastoreUtil.MAX_NUMBER_OF_ENTITIES
+            || pendingSize >= DatastoreUtil.MAX_ENTITY_SIZE
+            || now - startTime >= windowMillis) {
+            flush();
+        }
+    }
+
+    private synchronized void flushIfElapsed(Batch batch) {
+        if (!batch.dispatched
+            && startTime != 0
+            && System.currentTimeMillis() - startTime >= windowMillis) {
+            flush();
+        }
+    }
+
+    private synchronized void flush(Batch batch) {
+        if (!batch.dispatched) {
+            flush();
+        }
+    }
+
+    /**
+     * The operations dispatched together.
+     */
+    private static class Batch {
+
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        private boolean dispatched = false;
+
+        private boolean isDone() {
+            if (!dispatched) {
+                return false;
+            }
+            for (Future<?> f : futures) {
+                if (!f.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void await(boolean timed, long deadline)
+                throws InterruptedException, ExecutionException,
+                TimeoutException {
+            for (Future<?> f : futures) {
+                if (timed) {
+                    f.get(
+                        Math.max(deadline - System.nanoTime(), 0),
+                        TimeUnit.NANOSECONDS);
+                } else {
+                    f.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * A {@link Future} of a pending operation.
+     * 
+     * @param <T>
+     *            the result type
+     */
+    private class PendingFuture<T> implements Future<T> {
+
+        private final Batch batch;
+
+        private final T value;
+
+        private PendingFuture(Batch batch, T value) {
+            this.batch = batch;
+            this.value = value;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            synchronized (AutoBatcher.this) {
+                flushIfElapsed(batch);
+                return batch.isDone();
+            }
+        }
+
+        public T get() throws InterruptedException, ExecutionException {
+            flush(batch);
+            try {
+                batch.await(false, 0);
+            } catch (TimeoutException e) {
+                throw new IllegalStateException(e);
+            }
+            return value;
+        }
+
+        public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            flush(batch);
+            batch.await(true, deadline);
+            return value;
+        }
+    }
+}
\ No newline at end of file
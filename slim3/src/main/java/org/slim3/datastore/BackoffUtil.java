@@ -0,0 +1,65 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.Random;
+
+/**
+ * A utility class for exponential backoff.
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class BackoffUtil {
+
+    /**
+     * The random number generator for jitter.
+     */
+    private static final Random random = new Random();
+
+    /**
+     * Returns the backoff(milliseconds) before the next attempt. The backoff
+     * doubles for each attempt up to the maximum backoff, and a random jitter
+     * of up to half of the backoff is subtracted. Returns 0 if the initial
+     * backoff is not positive.
+     * 
+     * @param initialBackoffMillis
+     *            the backoff(milliseconds) before the second attempt
+     * @param maxBackoffMillis
+     *            the maximum backoff(milliseconds)
+     * @param attempt
+     *            the number of failed attempts minus one
+     * @return the backoff(milliseconds)
+     */
+    public static long getBackoffMillis(long initialBackoffMillis,
+            long maxBackoffMillis, int attempt) {
+        if (initialBackoffMillis <= 0) {
+            return 0;
+        }
+        long backoff =
+            Math.min(maxBackoffMillis, initialBackoffMillis
+                << Math.min(Math.max(attempt, 0), 30));
+        if (backoff <= 0) {
+            backoff = maxBackoffMillis;
+        }
+        long half = backoff / 2;
+        return backoff - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    private BackoffUtil() {
+    }
+}
\ No newline at end of file
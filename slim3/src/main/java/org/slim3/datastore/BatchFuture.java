@@ -0,0 +1,241 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} that dispatches chunks asynchronously and merges the
+ * results of the chunks in the original order. At most maxConcurrentBatches
+ * chunks are in flight at the same time. The rest of the chunks are dispatched
+ * only while the result is waited on, so a write that must be sent even if
+ * nobody waits on it should allow as many batches as chunks.
+ * 
+ * @author higa
+ * @param <E>
+ *            the element type of chunk
+ * @param <V>
+ *            the result type of chunk
+ * @param <R>
+ *            the merged result type
+ * @since 1.0.17
+ * 
+ */
+public abstract class BatchFuture<E, V, R> implements Future<R> {
+
+    /**
+     * The chunks.
+     */
+    protected List<List<E>> chunks;
+
+    /**
+     * The maximum number of concurrent batches.
+     */
+    protected int maxConcurrentBatches;
+
+    /**
+     * The dispatched futures.
+     */
+    protected List<Future<V>> futures;
+
+    /**
+     * The results of chunks.
+     */
+    protected List<V> results;
+
+    /**
+     * The merged result.
+     */
+    protected R result;
+
+    /**
+     * Whether the results were merged.
+     */
+    protected boolean merged = false;
+
+    /**
+     * The exception.
+     */
+    protected ExecutionException exception;
+
+    /**
+     * Whether this future was cancelled.
+     */
+    protected boolean cancelled = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param chunks
+     *            the chunks
+     * @param maxConcurrentBatches
+     *            the maximum number of concurrent batches
+     * @throws NullPointerException
+     *             if the chunks parameter is null
+     * @throws IllegalArgumentException
+     *             if the maxConcurrentBatches parameter is less than 1
+     */
+    public BatchFuture(List<List<E>> chunks, int maxConcurrentBatches)
+            throws NullPointerException, IllegalArgumentException {
+        if (chunks == null) {
+            throw new NullPointerException(
+                "The chunks parameter must not be null.");
+        }
+        if (maxConcurrentBatches < 1) {
+            throw new IllegalArgumentException(
+                "The maxConcurrentBatches parameter must be greater than 0.");
+        }
+        this.chunks = chunks;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+        futures = new ArrayList<Future<V>>(chunks.size());
+        results = new ArrayList<V>(chunks.size());
+    }
+
+    /**
+     * Dispatches the first chunks.
+     * 
+     * @return this instance
+     */
+    public BatchFuture<E, V, R> start() {
+        dispatchIfNecessary();
+        return this;
+    }
+
+    /**
+     * Dispatches the chunks until the number of chunks in flight reaches the
+     * maximum number of concurrent batches.
+     */
+    protected void dispatchIfNecessary() {
+        while (futures.size() < chunks.size()
+            && futures.size() - results.size() < maxConcurrentBatches) {
+            futures.add(dispatch(chunks.get(futures.size())));
+        }
+    }
+
+    /**
+     * Dispatches the chunk asynchronously.
+     * 
+     * @param chunk
+     *            the chunk
+     * @return the result of the chunk represented as {@link Future}
+     */
+    protected abstract Future<V> dispatch(List<E> chunk);
+
+    /**
+     * Merges the results of the chunks.
+     * 
+     * @param results
+     *            the results of the chunks in the original order
+     * @return the merged result
+     */
+    protected abstract R merge(List<V> results);
+
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        for (Future<V> f : futures) {
+            f.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        if (cancelled || exception != null || results.size() == chunks.size()) {
+            return true;
+        }
+        if (futures.size() < chunks.size()) {
+            return false;
+        }
+        for (Future<V> f : futures) {
+            if (!f.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized R get() throws InterruptedException,
+            ExecutionException {
+        try {
+            return get(false, 0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized R get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return get(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Returns the merged result.
+     * 
+     * @param timed
+     *            whether the wait is timed
+     * @param deadline
+     *            the deadline in nanoseconds
+     * @return the merged result
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting
+     * @throws ExecutionException
+     *             if a chunk threw an exception
+     * @throws TimeoutException
+     *             if the wait timed out
+     */
+    protected R get(boolean timed, long deadline) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (exception != null) {
+            throw exception;
+        }
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        while (results.size() < chunks.size()) {
+            dispatchIfNecessary();
+            Future<V> f = futures.get(results.size());
+            try {
+                if (timed) {
+                    results.add(f.get(
+                        Math.max(deadline - System.nanoTime(), 0),
+                        TimeUnit.NANOSECONDS));
+                } else {
+                    results.add(f.get());
+                }
+            } catch (ExecutionException e) {
+                exception = e;
+                throw e;
+            }
+        }
+        if (!merged) {
+            result = merge(results);
+            merged = true;
+        }
+        return result;
+    }
+}
\ No newline at end of file
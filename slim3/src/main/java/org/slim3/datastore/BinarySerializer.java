@@ -0,0 +1,771 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slim3.util.BeanDesc;
+import org.slim3.util.BeanUtil;
+import org.slim3.util.ByteUtil;
+import org.slim3.util.ClassUtil;
+import org.slim3.util.Cleanable;
+import org.slim3.util.Cleaner;
+import org.slim3.util.IntegerUtil;
+import org.slim3.util.PropertyDesc;
+import org.slim3.util.WrapRuntimeException;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * A compact binary {@link AttributeSerializer}.
+ * 
+ * <p>
+ * The primitive wrappers, strings, dates, keys, enums, arrays, collections,
+ * maps and beans whose fields are all accessible through properties are
+ * written in a tagged binary format. The class names and the property names
+ * are written once per value. The other serializable values are written by
+ * Java serialization. Cyclic references are not supported, and an object
+ * referenced twice is read as two objects.
+ * </p>
+ * 
+ * <p>
+ * If the system property "slim3.serializerCompressionThreshold" is set, the
+ * output larger than the threshold(bytes) is compressed by deflate.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class BinarySerializer implements AttributeSerializer {
+
+    /**
+     * The key of the compression threshold(bytes).
+     */
+    public static final String COMPRESSION_THRESHOLD =
+        "slim3.serializerCompressionThreshold";
+
+    /**
+     * The first byte of the output.
+     */
+    protected static final byte MAGIC = 0x53;
+
+    /**
+     * The second byte of the uncompressed output.
+     */
+    protected static final byte PLAIN = 1;
+
+    /**
+     * The second byte of the compressed output.
+     */
+    protected static final byte DEFLATED = 2;
+
+    private static final int BUFFER_SIZE = 256;
+
+    private static final int NULL = 0;
+
+    private static final int TRUE = 1;
+
+    private static final int FALSE = 2;
+
+    private static final int BYTE = 3;
+
+    private static final int SHORT = 4;
+
+    private static final int INT = 5;
+
+    private static final int LONG = 6;
+
+    private static final int FLOAT = 7;
+
+    private static final int DOUBLE = 8;
+
+    private static final int CHAR = 9;
+
+    private static final int STRING = 10;
+
+    private static final int DATE = 11;
+
+    private static final int KEY = 12;
+
+    private static final int ENUM = 13;
+
+    private static final int BYTES = 14;
+
+    private static final int ARRAY = 15;
+
+    private static final int LIST = 16;
+
+    private static final int SET = 17;
+
+    private static final int MAP = 18;
+
+    private static final int COLLECTION = 19;
+
+    private static final int OTHER_MAP = 20;
+
+    private static final int BEAN = 21;
+
+    private static final int SERIALIZABLE = 22;
+
+    /**
+     * The properties of a class which is not a bean.
+     */
+    private static final PropertyDesc[] NOT_BEAN = new PropertyDesc[0];
+
+    private static final Map<String, Class<?>> primitiveClasses =
+        new HashMap<String, Class<?>>();
+
+    private static final ConcurrentHashMap<String, PropertyDesc[]> beanPropertiesCache =
+        new ConcurrentHashMap<String, PropertyDesc[]>();
+
+    private static final ConcurrentHashMap<String, Boolean> instantiableCache =
+        new ConcurrentHashMap<String, Boolean>();
+
+    private static volatile boolean initialized = false;
+
+    static {
+        Class<?>[] classes =
+            new Class<?>[] {
+                boolean.class,
+                byte.class,
+                short.class,
+                int.class,
+                long.class,
+                float.class,
+                double.class,
+                char.class };
+        for (Class<?> c : classes) {
+            primitiveClasses.put(c.getName(), c);
+        }
+        initialize();
+    }
+
+    private static void initialize() {
+        Cleaner.add(new Cleanable() {
+            public void clean() {
+                beanPropertiesCache.clear();
+                instantiableCache.clear();
+                initialized = false;
+            }
+        });
+        initialized = true;
+    }
+
+    /**
+     * Determines if the array of bytes is written by this serializer.
+     * 
+     * @param bytes
+     *            the array of bytes
+     * @return whether the array of bytes is written by this serializer
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null
+            && bytes.length >= 2
+            && bytes[0] == MAGIC
+            && (bytes[1] == PLAIN || bytes[1] == DEFLATED);
+    }
+
+    public byte[] serialize(Object value) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
+            baos.write(MAGIC);
+            baos.write(PLAIN);
+            new Encoder(new DataOutputStream(baos)).write(value);
+            byte[] bytes = baos.toByteArray();
+            int threshold = getCompressionThreshold();
+            if (threshold > 0 && bytes.length > threshold) {
+                return compress(bytes);
+            }
+            return bytes;
+        } catch (IOException e) {
+            throw new WrapRuntimeException(e);
+        }
+    }
+
+    public Object deserialize(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (!isBinary(bytes)) {
+            return ByteUtil.toObject(bytes);
+        }
+        try {
+            InputStream in =
+                new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+            if (bytes[1] == DEFLATED) {
+                in = new BufferedInputStream(new InflaterInputStream(in));
+            }
+            return new Decoder(new DataInputStream(in)).read();
+        } catch (IOException e) {
+            throw new WrapRuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the compression threshold(bytes). The output is not compressed
+     * if the threshold is not positive.
+     * 
+     * @return the compression threshold
+     */
+    protected int getCompressionThreshold() {
+        Integer threshold =
+            IntegerUtil.toInteger(System.getProperty(COMPRESSION_THRESHOLD));
+        return threshold != null ? threshold : 0;
+    }
+
+    /**
+     * Compresses the output. The original output is returned if the
+     * compressed one is not smaller.
+     * 
+     * @param bytes
+     *            the uncompressed output
+     * @return the compressed output
+     * @throws IOException
+     *             if an I/O error occurred
+     */
+    protected byte[] compress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream baos =
+            new ByteArrayOutputStream(bytes.length / 2 + 2);
+        baos.write(MAGIC);
+        baos.write(DEFLATED);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(baos, deflater);
+            out.write(bytes, 2, bytes.length - 2);
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+        return baos.size() < bytes.length ? baos.toByteArray() : bytes;
+    }
+
+    /**
+     * Returns the properties to write for the class. Returns an empty array
+     * if the class is not a bean whose fields are all accessible through
+     * properties.
+     * 
+     * @param clazz
+     *            the class
+     * @return the properties
+     */
+    protected static PropertyDesc[] getBeanProperties(Class<?> clazz) {
+        if (!initialized) {
+            initialize();
+        }
+        PropertyDesc[] pds = beanPropertiesCache.get(clazz.getName());
+        if (pds != null) {
+            return pds;
+        }
+        pds = createBeanProperties(clazz);
+        beanPropertiesCache.put(clazz.getName(), pds);
+        return pds;
+    }
+
+    private static PropertyDesc[] createBeanProperties(Class<?> clazz) {
+        if (!isInstantiable(clazz)) {
+            return NOT_BEAN;
+        }
+        BeanDesc beanDesc = BeanUtil.getBeanDesc(clazz);
+        List<PropertyDesc> list = new ArrayList<PropertyDesc>();
+        for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int modifiers = f.getModifiers();
+                if (Modifier.isStatic(modifiers)
+                    || Modifier.isTransient(modifiers)
+                    || f.isSynthetic()) {
+                    continue;
+                }
+                PropertyDesc pd = beanDesc.getPropertyDesc(f.getName());
+                if (pd == null || !pd.isReadable() || !pd.isWritable()) {
+                    return NOT_BEAN;
+                }
+                list.add(pd);
+            }
+        }
+        if (list.isEmpty()) {
+            return NOT_BEAN;
+        }
+        return list.toArray(new PropertyDesc[list.size()]);
+    }
+
+    /**
+     * Determines if the class is instantiated by the public default
+     * constructor.
+     * 
+     * @param clazz
+     *            the class
+     * @return whether the class is instantiated by the public default
+     *         constructor
+     */
+    protected static boolean isInstantiable(Class<?> clazz) {
+        if (!initialized) {
+            initialize();
+        }
+        Boolean instantiable = instantiableCache.get(clazz.getName());
+        if (instantiable != null) {
+            return instantiable;
+        }
+        int modifiers = clazz.getModifiers();
+        instantiable =
+            Modifier.isPublic(modifiers)
+                && !Modifier.isAbstract(modifiers)
+                && !clazz.isInterface()
+                && !clazz.isArray()
+                && (!clazz.isMemberClass() || Modifier.isStatic(modifiers));
+        if (instantiable) {
+            try {
+                instantiable =
+                    Modifier.isPublic(clazz.getConstructor().getModifiers());
+            } catch (NoSuchMethodException e) {
+                instantiable = false;
+            }
+        }
+        instantiableCache.put(clazz.getName(), instantiable);
+        return instantiable;
+    }
+
+    /**
+     * The encoder of a value.
+     */
+    private static class Encoder {
+
+        private final DataOutputStream out;
+
+        private final Map<String, Integer> names =
+            new HashMap<String, Integer>();
+
+        private final Map<Object, Object> path =
+            new IdentityHashMap<Object, Object>();
+
+        private Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void write(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+                return;
+            }
+            Class<?> c = value.getClass();
+            if (c == String.class) {
+                out.writeByte(STRING);
+                writeString((String) value);
+            } else if (c == Integer.class) {
+                out.writeByte(INT);
+                writeSignedVarLong((Integer) value);
+            } else if (c == Long.class) {
+                out.writeByte(LONG);
+                writeSignedVarLong((Long) value);
+            } else if (c == Boolean.class) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (c == Double.class) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (c == Float.class) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (c == Short.class) {
+                out.writeByte(SHORT);
+                writeSignedVarLong((Short) value);
+            } else if (c == Byte.class) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            } else if (c == Character.class) {
+                out.writeByte(CHAR);
+                writeVarLong((Character) value);
+            } else if (c == Date.class) {
+                out.writeByte(DATE);
+                writeSignedVarLong(((Date) value).getTime());
+            } else if (c == Key.class) {
+                out.writeByte(KEY);
+                writeString(KeyFactory.keyToString((Key) value));
+            } else if (value instanceof Enum<?>) {
+                out.writeByte(ENUM);
+                writeName(((Enum<?>) value).getDeclaringClass().getName());
+                writeString(((Enum<?>) value).name());
+            } else if (c == byte[].class) {
+                byte[] bytes = (byte[]) value;
+                out.writeByte(BYTES);
+                writeVarLong(bytes.length);
+                out.write(bytes);
+            } else if (c.isArray()) {
+                writeArray(value);
+            } else if (value instanceof Collection<?>
+                && !hasComparator(value)) {
+                writeCollection((Collection<?>) value);
+            } else if (value instanceof Map<?, ?> && !hasComparator(value)) {
+                writeMap((Map<?, ?>) value);
+            } else {
+                PropertyDesc[] pds = getBeanProperties(c);
+                if (pds != NOT_BEAN) {
+                    writeBean(value, pds);
+                } else if (value instanceof Serializable) {
+                    byte[] bytes = ByteUtil.toByteArray(value);
+                    out.writeByte(SERIALIZABLE);
+                    writeVarLong(bytes.length);
+                    out.write(bytes);
+                } else {
+                    throw new IllegalArgumentException("The class("
+                        + c.getName()
+                        + ") is not supported.");
+                }
+            }
+        }
+
+        private boolean hasComparator(Object value) {
+            if (value instanceof SortedSet<?>) {
+                return ((SortedSet<?>) value).comparator() != null;
+            }
+            if (value instanceof SortedMap<?, ?>) {
+                return ((SortedMap<?, ?>) value).comparator() != null;
+            }
+            return false;
+        }
+
+        private void writeArray(Object array) throws IOException {
+            enter(array);
+            int length = Array.getLength(array);
+            out.writeByte(ARRAY);
+            writeName(array.getClass().getComponentType().getName());
+            writeVarLong(length);
+            for (int i = 0; i < length; i++) {
+                write(Array.get(array, i));
+            }
+            leave(array);
+        }
+
+        private void writeCollection(Collection<?> collection)
+                throws IOException {
+            enter(collection);
+            Class<?> c = collection.getClass();
+            if (c == ArrayList.class) {
+                out.writeByte(LIST);
+            } else if (c == HashSet.class) {
+                out.writeByte(SET);
+            } else {
+                out.writeByte(COLLECTION);
+                if (isInstantiable(c)) {
+                    writeName(c.getName());
+                } else if (collection instanceof SortedSet<?>) {
+                    writeName(TreeSet.class.getName());
+                } else if (collection instanceof Set<?>) {
+                    writeName(LinkedHashSet.class.getName());
+                } else {
+                    writeName(ArrayList.class.getName());
+                }
+            }
+            writeVarLong(collection.size());
+            for (Object o : collection) {
+                write(o);
+            }
+            leave(collection);
+        }
+
+        private void writeMap(Map<?, ?> map) throws IOException {
+            enter(map);
+            Class<?> c = map.getClass();
+            if (c == HashMap.class) {
+                out.writeByte(MAP);
+            } else {
+                out.writeByte(OTHER_MAP);
+                if (isInstantiable(c)) {
+                    writeName(c.getName());
+                } else if (map instanceof SortedMap<?, ?>) {
+                    writeName(TreeMap.class.getName());
+                } else {
+                    writeName(LinkedHashMap.class.getName());
+                }
+            }
+            writeVarLong(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                write(e.getKey());
+                write(e.getValue());
+            }
+            leave(map);
+        }
+
+        private void writeBean(Object bean, PropertyDesc[] pds)
+                throws IOException {
+            enter(bean);
+            out.writeByte(BEAN);
+            writeName(bean.getClass().getName());
+            writeVarLong(pds.length);
+            for (PropertyDesc pd : pds) {
+                writeName(pd.getName());
+                write(pd.getValue(bean));
+            }
+            leave(bean);
+        }
+
+        private void enter(Object value) {
+            if (path.put(value, value) != null) {
+                throw new IllegalArgumentException("The cyclic reference("
+                    + value.getClass().getName()
+                    + ") is not supported.");
+            }
+        }
+
+        private void leave(Object value) {
+            path.remove(value);
+        }
+
+        private void writeName(String name) throws IOException {
+            Integer index = names.get(name);
+            if (index != null) {
+                writeVarLong(index + 1);
+                return;
+            }
+            names.put(name, names.size());
+            writeVarLong(0);
+            writeString(name);
+        }
+
+        private void writeString(String s) throws IOException {
+            int length = s.length();
+            writeVarLong(length);
+            for (int i = 0; i < length; i++) {
+                writeVarLong(s.charAt(i));
+            }
+        }
+
+        private void writeSignedVarLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+
+    /**
+     * The decoder of a value.
+     */
+    private static class Decoder {
+
+        private final DataInputStream in;
+
+        private final List<String> names = new ArrayList<String>();
+
+        private final Map<String, Class<?>> classes =
+            new HashMap<String, Class<?>>();
+
+        private Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object read() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return (short) readSignedVarLong();
+            case INT:
+                return (int) readSignedVarLong();
+            case LONG:
+                return readSignedVarLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case CHAR:
+                return (char) readVarLong();
+            case STRING:
+                return readString();
+            case DATE:
+                return new Date(readSignedVarLong());
+            case KEY:
+                return KeyFactory.stringToKey(readString());
+            case ENUM:
+                return Enum.valueOf(
+                    (Class<? extends Enum>) forName(readName()),
+                    readString());
+            case BYTES: {
+                byte[] bytes = new byte[(int) readVarLong()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case ARRAY: {
+                Class<?> componentType = forName(readName());
+                int length = (int) readVarLong();
+                Object array = Array.newInstance(componentType, length);
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, read());
+                }
+                return array;
+            }
+            case LIST: {
+                int size = (int) readVarLong();
+                return readElements(new ArrayList<Object>(size), size);
+            }
+            case SET: {
+                int size = (int) readVarLong();
+                return readElements(new HashSet<Object>(size * 4 / 3 + 1), size);
+            }
+            case COLLECTION: {
+                Collection<Object> collection =
+                    ClassUtil.newInstance(forName(readName()));
+                return readElements(collection, (int) readVarLong());
+            }
+            case MAP: {
+                int size = (int) readVarLong();
+                return readEntries(
+                    new HashMap<Object, Object>(size * 4 / 3 + 1),
+                    size);
+            }
+            case OTHER_MAP: {
+                Map<Object, Object> map =
+                    ClassUtil.newInstance(forName(readName()));
+                return readEntries(map, (int) readVarLong());
+            }
+            case BEAN:
+                return readBean();
+            case SERIALIZABLE: {
+                byte[] bytes = new byte[(int) readVarLong()];
+                in.readFully(bytes);
+                return ByteUtil.toObject(bytes);
+            }
+            default:
+                throw new IllegalArgumentException("The tag("
+                    + tag
+                    + ") is unknown.");
+            }
+        }
+
+        private Collection<Object> readElements(Collection<Object> collection,
+                int size) throws IOException {
+            for (int i = 0; i < size; i++) {
+                collection.add(read());
+            }
+            return collection;
+        }
+
+        private Map<Object, Object> readEntries(Map<Object, Object> map,
+                int size) throws IOException {
+            for (int i = 0; i < size; i++) {
+                Object key = read();
+                map.put(key, read());
+            }
+            return map;
+        }
+
+        private Object readBean() throws IOException {
+            Class<?> beanClass = forName(readName());
+            Object bean = ClassUtil.newInstance(beanClass);
+            BeanDesc beanDesc = BeanUtil.getBeanDesc(beanClass);
+            int size = (int) readVarLong();
+            for (int i = 0; i < size; i++) {
+                String name = readName();
+                Object value = read();
+                PropertyDesc pd = beanDesc.getPropertyDesc(name);
+                if (pd != null && pd.isWritable()) {
+                    pd.setValue(bean, value);
+                }
+            }
+            return bean;
+        }
+
+        private Class<?> forName(String className) {
+            Class<?> c = classes.get(className);
+            if (c == null) {
+                c = primitiveClasses.get(className);
+                if (c == null) {
+                    c = ClassUtil.forName(className);
+                }
+                classes.put(className, c);
+            }
+            return c;
+        }
+
+        private String readName() throws IOException {
+            int index = (int) readVarLong();
+            if (index > 0) {
+                return names.get(index - 1);
+            }
+            String name = readString();
+            names.add(name);
+            return name;
+        }
+
+        private String readString() throws IOException {
+            int length = (int) readVarLong();
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) readVarLong();
+            }
+            return new String(chars);
+        }
+
+        private long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("The variable length integer is malformed.");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+/**
+ * A class to count the lookups served by the caches and the lookups which
+ * went to datastore.
+ * 
+ * @author higa
+ * @since 1.0.17
+ * @see RequestCache
+ * @see ModelCache
+ * 
+ */
+public class CacheStats {
+
+    /**
+     * The number of keys served by the caches.
+     */
+    protected long hitCount = 0;
+
+    /**
+     * The number of keys looked up in datastore.
+     */
+    protected long missCount = 0;
+
+    /**
+     * Records the keys served by the caches.
+     * 
+     * @param count
+     *            the number of keys
+     */
+    public synchronized void recordHits(int count) {
+        hitCount += count;
+    }
+
+    /**
+     * Records the keys looked up in datastore.
+     * 
+     * @param count
+     *            the number of keys
+     */
+    public synchronized void recordMisses(int count) {
+        missCount += count;
+    }
+
+    /**
+     * Returns the number of keys served by the caches.
+     * 
+     * @return the number of keys served by the caches
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of keys looked up in datastore.
+     * 
+     * @return the number of keys looked up in datastore
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the ratio of the keys served by the caches. Returns 0 if no keys
+     * are recorded.
+     * 
+     * @return the hit ratio
+     */
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hit=" + hitCount + ", miss=" + missCount;
+    }
+}
\ No newline at end of file
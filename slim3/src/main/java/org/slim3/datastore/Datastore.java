@@ -122,6 +122,27 @@ public final class Datastore {
         return delegate(deadline);
     }
 
+    /**
+     * Returns a {@link DatastoreDelegate} that retries operations without
+     * transaction according to the policy.
+     * 
+     * @param policy
+     *            the retry policy
+     * @return a {@link DatastoreDelegate}
+     * @throws NullPointerException
+     *             if the policy parameter is null
+     * @throws IllegalStateException
+     *             if a {@link DatastoreDelegate} cannot be instantiated
+     */
+    public static DatastoreDelegate retry(RetryPolicy policy)
+            throws NullPointerException, IllegalStateException {
+        if (policy == null) {
+            throw new NullPointerException(
+                "The policy parameter must not be null.");
+        }
+        return delegate(null).retryPolicy(policy);
+    }
+
     /**
      * Begins a transaction. If you use HRD this method starts XG transaction
      * automatically.
@@ -182,6 +203,21 @@ public final class Datastore {
         return delegate().beginGlobalTransaction();
     }
 
+    /**
+     * Begins a global transaction with the lock contention policy.
+     * 
+     * @param contentionPolicy
+     *            the lock contention policy
+     * @return a begun global transaction
+     * @throws NullPointerException
+     *             if the contentionPolicy parameter is null
+     * @since 1.0.17
+     */
+    public static GlobalTransaction beginGlobalTransaction(
+            LockContentionPolicy contentionPolicy) throws NullPointerException {
+        return delegate().beginGlobalTransaction(contentionPolicy);
+    }
+
     /**
      * Returns the active global transactions.
      * 
@@ -4206,6 +4242,26 @@ public final class Datastore {
         return delegate().sortInMemory(list, criteria);
     }
 
+    /**
+     * Loads the references of the models in batch. The property must be
+     * {@link ModelRef} or {@link InverseModelListRef}.
+     * 
+     * @param models
+     *            the models
+     * @param propertyName
+     *            the property name or the meta data of the attribute
+     * @throws NullPointerException
+     *             if the models parameter is null or if the propertyName
+     *             parameter is null
+     * @throws IllegalArgumentException
+     *             if the property is not found or if the property is neither
+     *             {@link ModelRef} nor {@link InverseModelListRef}
+     */
+    public static void preload(Iterable<?> models, CharSequence propertyName)
+            throws NullPointerException, IllegalArgumentException {
+        delegate().preload(models, propertyName);
+    }
+
     /**
      * Sets the limited key for cipher to the current thread.
      * 
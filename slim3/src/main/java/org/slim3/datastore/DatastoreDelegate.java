@@ -15,20 +15,28 @@
  */
 package org.slim3.datastore;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.slim3.util.BeanUtil;
 import org.slim3.util.CipherFactory;
 import org.slim3.util.FutureUtil;
+import org.slim3.util.PropertyDesc;
 
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Transaction;
 
 /**
@@ -72,6 +80,19 @@ public class DatastoreDelegate {
         return async;
     }
 
+    /**
+     * Specifies the retry policy for operations without transaction.
+     * 
+     * @param policy
+     *            the retry policy
+     * @return this instance
+     * @see RetryPolicy
+     */
+    public DatastoreDelegate retryPolicy(RetryPolicy policy) {
+        async.setRetryPolicy(policy);
+        return this;
+    }
+
     /**
      * Returns the active transactions.
      * 
@@ -115,6 +136,25 @@ public class DatastoreDelegate {
         return gtx;
     }
 
+    /**
+     * Begins a global transaction with the lock contention policy.
+     * 
+     * @param contentionPolicy
+     *            the lock contention policy
+     * @return a begun global transaction
+     * @throws NullPointerException
+     *             if the contentionPolicy parameter is null
+     * @since 1.0.17
+     */
+    public GlobalTransaction beginGlobalTransaction(
+            LockContentionPolicy contentionPolicy) throws NullPointerException {
+        GlobalTransaction gtx =
+            new GlobalTransaction(async.getAsyncDatastoreService());
+        gtx.setContentionPolicy(contentionPolicy);
+        gtx.begin();
+        return gtx;
+    }
+
     /**
      * Returns the active global transactions.
      * 
@@ -2636,6 +2676,179 @@ public class DatastoreDelegate {
         return DatastoreUtil.sortInMemory(list, Arrays.asList(criteria));
     }
 
+    /**
+     * Loads the references of the models in batch. The property must be
+     * {@link ModelRef} or {@link InverseModelListRef}.
+     * 
+     * @param models
+     *            the models
+     * @param propertyName
+     *            the property name or the meta data of the attribute
+     * @throws NullPointerException
+     *             if the models parameter is null or if the propertyName
+     *             parameter is null
+     * @throws IllegalArgumentException
+     *             if the property is not found or if the property is neither
+     *             {@link ModelRef} nor {@link InverseModelListRef}
+     * @see #preloadModelRefs(Iterable)
+     * @see #preloadInverseModelListRefs(Iterable)
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void preload(Iterable<?> models, CharSequence propertyName)
+            throws NullPointerException, IllegalArgumentException {
+        if (models == null) {
+            throw new NullPointerException(
+                "The models parameter must not be null.");
+        }
+        if (propertyName == null) {
+            throw new NullPointerException(
+                "The propertyName parameter must not be null.");
+        }
+        String name =
+            propertyName instanceof AbstractAttributeMeta<?, ?>
+                ? ((AbstractAttributeMeta<?, ?>) propertyName)
+                    .getAttributeName()
+                : propertyName.toString();
+        List<ModelRef> modelRefs = new ArrayList<ModelRef>();
+        List<InverseModelListRef> listRefs =
+            new ArrayList<InverseModelListRef>();
+        for (Object model : models) {
+            if (model == null) {
+                continue;
+            }
+            PropertyDesc pd =
+                BeanUtil.getBeanDesc(model.getClass()).getPropertyDesc(name);
+            if (pd == null) {
+                throw new IllegalArgumentException("The property("
+                    + name
+                    + ") of model("
+                    + model.getClass().getName()
+                    + ") is not found.");
+            }
+            Object ref = pd.getValue(model);
+            if (ref instanceof ModelRef<?>) {
+                modelRefs.add((ModelRef) ref);
+            } else if (ref instanceof InverseModelListRef<?, ?>) {
+                listRefs.add((InverseModelListRef) ref);
+            } else if (ref != null) {
+                throw new IllegalArgumentException("The property("
+                    + name
+                    + ") of model("
+                    + model.getClass().getName()
+                    + ") is neither ModelRef nor InverseModelListRef.");
+            }
+        }
+        preloadModelRefs((List) modelRefs);
+        preloadInverseModelListRefs((List) listRefs);
+    }
+
+    /**
+     * Loads the models of the references by a batch get without transaction.
+     * The references whose models are already loaded are skipped.
+     * 
+     * @param <M>
+     *            the model type
+     * @param refs
+     *            the references
+     * @throws NullPointerException
+     *             if the refs parameter is null
+     */
+    public <M> void preloadModelRefs(Iterable<? extends ModelRef<M>> refs)
+            throws NullPointerException {
+        if (refs == null) {
+            throw new NullPointerException(
+                "The refs parameter must not be null.");
+        }
+        ModelMeta<M> modelMeta = null;
+        List<ModelRef<M>> targets = new ArrayList<ModelRef<M>>();
+        Set<Key> keys = new LinkedHashSet<Key>();
+        for (ModelRef<M> ref : refs) {
+            if (ref == null || ref.model != null || ref.key == null) {
+                continue;
+            }
+            modelMeta = ref.getModelMeta();
+            targets.add(ref);
+            keys.add(ref.key);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Key, M> map = getAsMapWithoutTx(modelMeta, keys);
+        for (ModelRef<M> ref : targets) {
+            ref.model = map.get(ref.key);
+        }
+    }
+
+    /**
+     * Loads the model lists of the references. The owner keys are split into
+     * the IN queries of up to {@link AbstractQuery#MAX_SUB_QUERIES} keys, and
+     * the sub-queries of all the IN queries are issued concurrently. The
+     * references whose model lists are already loaded are skipped.
+     * 
+     * @param <M>
+     *            the model type
+     * @param refs
+     *            the references
+     * @throws NullPointerException
+     *             if the refs parameter is null
+     */
+    public <M> void preloadInverseModelListRefs(
+            Iterable<? extends InverseModelListRef<M, ?>> refs)
+            throws NullPointerException {
+        if (refs == null) {
+            throw new NullPointerException(
+                "The refs parameter must not be null.");
+        }
+        InverseModelListRef<M, ?> first = null;
+        Map<Key, List<M>> modelListMap = new LinkedHashMap<Key, List<M>>();
+        for (InverseModelListRef<M, ?> ref : refs) {
+            if (ref == null || ref.modelList != null) {
+                continue;
+            }
+            Key ownerKey = ref.getOwnerKey();
+            if (ownerKey == null) {
+                ref.modelList = new ArrayList<M>();
+                continue;
+            }
+            first = ref;
+            modelListMap.put(ownerKey, new ArrayList<M>());
+        }
+        if (modelListMap.isEmpty()) {
+            return;
+        }
+        ModelMeta<M> modelMeta = first.getModelMeta();
+        String mappedPropertyName = first.mappedPropertyName;
+        List<Iterator<Entity>> iterators = new ArrayList<Iterator<Entity>>();
+        for (List<Key> keys : DatastoreUtil.split(
+            modelListMap.keySet(),
+            AbstractQuery.MAX_SUB_QUERIES)) {
+            ModelQuery<M> query = query(modelMeta);
+            query.filter(mappedPropertyName, FilterOperator.IN, keys);
+            if (first.defaultSorts != null) {
+                query.sort(first.defaultSorts);
+            }
+            query.fanOut();
+            query.applyPolyModelFilter();
+            iterators.add(query.asEntityIterator());
+        }
+        for (Iterator<Entity> ite : iterators) {
+            while (ite.hasNext()) {
+                Entity entity = ite.next();
+                ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, entity);
+                M model = mm.entityToModel(entity);
+                mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, entity);
+                modelListMap.get(entity.getProperty(mappedPropertyName)).add(
+                    model);
+            }
+        }
+        for (InverseModelListRef<M, ?> ref : refs) {
+            if (ref != null && ref.modelList == null) {
+                ref.modelList = modelListMap.get(ref.getOwnerKey());
+            }
+        }
+    }
+
     /**
      * Sets the limited key for cipher to the current thread.
      * 
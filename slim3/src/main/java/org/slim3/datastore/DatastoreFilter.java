@@ -50,9 +50,22 @@ public class DatastoreFilter implements Filter {
     @SuppressWarnings("deprecation")
     public void doFilter(ServletRequest request, ServletResponse response,
             FilterChain chain) throws IOException, ServletException {
+        boolean completed = false;
         try {
             GlobalTransaction.clearActiveTransactions();
+            RetryPolicy.resetRetriesInRequest();
+            if (RequestCache.isEnabled()) {
+                RequestCache.begin();
+            }
+            if (AutoBatcher.isEnabled()) {
+                AutoBatcher.begin();
+            }
+            if (DirtyTracker.isEnabled()) {
+                DirtyTracker.begin();
+            }
             chain.doFilter(request, response);
+            completed = true;
+            AutoBatcher.flushCurrent();
         } catch (DeadlineExceededException dee) {
             for (GlobalTransaction tx : Datastore.getActiveGlobalTransactions()) {
                 try {
@@ -66,6 +79,16 @@ public class DatastoreFilter implements Filter {
             }
             throw dee;
         } finally {
+            RequestCache.end();
+            if (!completed) {
+                try {
+                    AutoBatcher.flushCurrent();
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, t.getMessage(), t);
+                }
+            }
+            AutoBatcher.end();
+            DirtyTracker.end();
             for (GlobalTransaction tx : Datastore.getActiveGlobalTransactions()) {
                 try {
                     tx.rollback();
@@ -18,10 +18,12 @@ package org.slim3.datastore;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
@@ -399,6 +401,65 @@ public final class DatastoreUtil {
         return ds.get(tx, keys);
     }
 
+    /**
+     * Returns entities specified by the keys as map within the provided
+     * transaction asynchronously. If the number of the keys is greater than
+     * {@link #MAX_NUMBER_OF_ENTITIES}, the keys are split into chunks and the
+     * chunks are dispatched concurrently.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param tx
+     *            the transaction
+     * @param keys
+     *            the keys
+     * @param maxConcurrentBatches
+     *            the maximum number of concurrent batches
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the keys parameter is null
+     * @throws IllegalStateException
+     *             if the transaction is not null and the transaction is not
+     *             active
+     */
+    public static Future<Map<Key, Entity>> getAsMapAsync(
+            final AsyncDatastoreService ds, final Transaction tx,
+            Iterable<Key> keys, int maxConcurrentBatches)
+            throws NullPointerException, IllegalStateException {
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        List<List<Key>> chunks = split(keys, MAX_NUMBER_OF_ENTITIES);
+        if (chunks.size() <= 1) {
+            return getAsMapAsync(ds, tx, keys);
+        }
+        if (ds == null) {
+            throw new NullPointerException("The ds parameter must not be null.");
+        }
+        if (tx != null && !tx.isActive()) {
+            throw new IllegalStateException("The transaction must be active.");
+        }
+        return new BatchFuture<Key, Map<Key, Entity>, Map<Key, Entity>>(
+            chunks,
+            maxConcurrentBatches) {
+
+            @Override
+            protected Future<Map<Key, Entity>> dispatch(List<Key> chunk) {
+                return ds.get(tx, chunk);
+            }
+
+            @Override
+            protected Map<Key, Entity> merge(List<Map<Key, Entity>> results) {
+                Map<Key, Entity> map = new HashMap<Key, Entity>();
+                for (Map<Key, Entity> m : results) {
+                    map.putAll(m);
+                }
+                return map;
+            }
+        }.start();
+    }
+
     /**
      * Puts the entity to datastore within the provided transaction.
      * 
@@ -482,7 +543,10 @@ public final class DatastoreUtil {
 
     /**
      * Puts the entities to datastore within the provided transaction
-     * asynchronously.
+     * asynchronously. If the number of the entities is greater than
+     * {@link #MAX_NUMBER_OF_ENTITIES}, the entities are split into chunks. All
+     * the chunks are dispatched before this method returns, so the entities
+     * are written even if the returned future is never waited on.
      * 
      * @param ds
      *            the asynchronous datastore service
@@ -499,8 +563,8 @@ public final class DatastoreUtil {
      *             if the transaction is not null and the transaction is not
      *             active
      */
-    public static Future<List<Key>> putAsync(AsyncDatastoreService ds,
-            Transaction tx, Iterable<Entity> entities)
+    public static Future<List<Key>> putAsync(final AsyncDatastoreService ds,
+            final Transaction tx, Iterable<Entity> entities)
             throws NullPointerException, IllegalStateException {
         if (ds == null) {
             throw new NullPointerException("The ds parameter must not be null.");
@@ -513,7 +577,28 @@ public final class DatastoreUtil {
             throw new IllegalStateException("The transaction must be active.");
         }
         assignKeyIfNecessary(ds, entities);
-        return ds.put(tx, entities);
+        List<List<Entity>> chunks = split(entities, MAX_NUMBER_OF_ENTITIES);
+        if (chunks.size() <= 1) {
+            return ds.put(tx, entities);
+        }
+        return new BatchFuture<Entity, List<Key>, List<Key>>(
+            chunks,
+            chunks.size()) {
+
+            @Override
+            protected Future<List<Key>> dispatch(List<Entity> chunk) {
+                return ds.put(tx, chunk);
+            }
+
+            @Override
+            protected List<Key> merge(List<List<Key>> results) {
+                List<Key> list = new ArrayList<Key>();
+                for (List<Key> l : results) {
+                    list.addAll(l);
+                }
+                return list;
+            }
+        }.start();
     }
 
     /**
@@ -563,7 +648,10 @@ public final class DatastoreUtil {
 
     /**
      * Deletes entities specified by the keys within the provided transaction
-     * asynchronously.
+     * asynchronously. If the number of the keys is greater than
+     * {@link #MAX_NUMBER_OF_ENTITIES}, the keys are split into chunks. All the
+     * chunks are dispatched before this method returns, so the entities are
+     * deleted even if the returned future is never waited on.
      * 
      * @param ds
      *            the asynchronous datastore service
@@ -578,9 +666,9 @@ public final class DatastoreUtil {
      *             if the transaction is not null and the transaction is not
      *             active
      */
-    public static Future<Void> deleteAsync(AsyncDatastoreService ds,
-            Transaction tx, Iterable<Key> keys) throws NullPointerException,
-            IllegalStateException {
+    public static Future<Void> deleteAsync(final AsyncDatastoreService ds,
+            final Transaction tx, Iterable<Key> keys)
+            throws NullPointerException, IllegalStateException {
         if (ds == null) {
             throw new NullPointerException("The ds parameter must not be null.");
         }
@@ -591,7 +679,59 @@ public final class DatastoreUtil {
         if (tx != null && !tx.isActive()) {
             throw new IllegalStateException("The transaction must be active.");
         }
-        return ds.delete(tx, keys);
+        List<List<Key>> chunks = split(keys, MAX_NUMBER_OF_ENTITIES);
+        if (chunks.size() <= 1) {
+            return ds.delete(tx, keys);
+        }
+        return new BatchFuture<Key, Void, Void>(chunks, chunks.size()) {
+
+            @Override
+            protected Future<Void> dispatch(List<Key> chunk) {
+                return ds.delete(tx, chunk);
+            }
+
+            @Override
+            protected Void merge(List<Void> results) {
+                return null;
+            }
+        }.start();
+    }
+
+    /**
+     * Splits the elements into chunks.
+     * 
+     * @param <E>
+     *            the element type
+     * @param elements
+     *            the elements
+     * @param size
+     *            the maximum size of a chunk
+     * @return the chunks
+     * @throws NullPointerException
+     *             if the elements parameter is null
+     * @throws IllegalArgumentException
+     *             if the size parameter is less than 1
+     */
+    public static <E> List<List<E>> split(Iterable<E> elements, int size)
+            throws NullPointerException, IllegalArgumentException {
+        if (elements == null) {
+            throw new NullPointerException(
+                "The elements parameter must not be null.");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException(
+                "The size parameter must be greater than 0.");
+        }
+        List<List<E>> chunks = new ArrayList<List<E>>();
+        List<E> chunk = null;
+        for (E e : elements) {
+            if (chunk == null || chunk.size() >= size) {
+                chunk = new ArrayList<E>(size);
+                chunks.add(chunk);
+            }
+            chunk.add(e);
+        }
+        return chunks;
     }
 
     /**
@@ -679,6 +819,106 @@ public final class DatastoreUtil {
         return list;
     }
 
+    /**
+     * Filters and sorts the models in memory while iterating. The rejected
+     * models are not kept. If the limit is specified with the sort criteria,
+     * only the top models up to the limit are kept in a bounded heap. If the
+     * limit is specified without the sort criteria, the iteration stops when
+     * the limit is reached.
+     * 
+     * @param <M>
+     *            the model type
+     * @param models
+     *            the model iterator
+     * @param filterCriteria
+     *            the filter criteria
+     * @param sortCriteria
+     *            the sort criteria
+     * @param limit
+     *            the maximum number of the results. Null means no limit.
+     * @return the filtered and sorted list
+     * @throws NullPointerException
+     *             if the models parameter is null or if the filterCriteria
+     *             parameter is null or if the sortCriteria parameter is null
+     *             or if the model is null
+     */
+    public static <M> List<M> filterAndSortInMemory(Iterator<M> models,
+            List<? extends InMemoryFilterCriterion> filterCriteria,
+            List<InMemorySortCriterion> sortCriteria, Integer limit)
+            throws NullPointerException {
+        if (models == null) {
+            throw new NullPointerException(
+                "The models parameter must not be null.");
+        }
+        if (filterCriteria == null) {
+            throw new NullPointerException(
+                "The filterCriteria parameter must not be null.");
+        }
+        if (sortCriteria == null) {
+            throw new NullPointerException(
+                "The sortCriteria parameter must not be null.");
+        }
+        if (limit != null && limit <= 0) {
+            return new ArrayList<M>();
+        }
+        if (sortCriteria.isEmpty() || limit == null) {
+            List<M> list = new ArrayList<M>();
+            while (models.hasNext()) {
+                M model = models.next();
+                if (model == null) {
+                    throw new NullPointerException(
+                        "The model must not be null.");
+                }
+                if (accept(model, filterCriteria)) {
+                    list.add(model);
+                    if (limit != null && list.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+            return sortInMemory(list, sortCriteria);
+        }
+        final AttributeComparator comparator =
+            new AttributeComparator(sortCriteria);
+        Comparator<RankedModel<M>> ranker = new Comparator<RankedModel<M>>() {
+            public int compare(RankedModel<M> o1, RankedModel<M> o2) {
+                int compared = comparator.compare(o1.model, o2.model);
+                if (compared != 0) {
+                    return compared;
+                }
+                return o1.index < o2.index ? -1 : (o1.index > o2.index ? 1 : 0);
+            }
+        };
+        PriorityQueue<RankedModel<M>> heap =
+            new PriorityQueue<RankedModel<M>>(
+                limit + 1,
+                Collections.reverseOrder(ranker));
+        long index = 0;
+        while (models.hasNext()) {
+            M model = models.next();
+            if (model == null) {
+                throw new NullPointerException("The model must not be null.");
+            }
+            if (!accept(model, filterCriteria)) {
+                continue;
+            }
+            RankedModel<M> ranked = new RankedModel<M>(model, index++);
+            if (heap.size() < limit) {
+                heap.add(ranked);
+            } else if (ranker.compare(ranked, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(ranked);
+            }
+        }
+        List<RankedModel<M>> rankedList = new ArrayList<RankedModel<M>>(heap);
+        Collections.sort(rankedList, ranker);
+        List<M> list = new ArrayList<M>(rankedList.size());
+        for (RankedModel<M> ranked : rankedList) {
+            list.add(ranked.model);
+        }
+        return list;
+    }
+
     /**
      * Returns a meta data of the model
      * 
@@ -705,6 +945,9 @@ public final class DatastoreUtil {
         if (modelMeta != null) {
             return modelMeta;
         }
+        if (LazyModel.class.isAssignableFrom(modelClass)) {
+            return (ModelMeta<M>) getModelMeta(modelClass.getSuperclass());
+        }
         modelMeta = createModelMeta(modelClass);
         ModelMeta<?> old =
             modelMetaCache.putIfAbsent(modelClass.getName(), modelMeta);
@@ -938,6 +1181,39 @@ public final class DatastoreUtil {
         return modelMeta.modelToEntity(model);
     }
 
+    /**
+     * Converts the model to an entity encoded as a protocol buffer.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param model
+     *            the model
+     * @return an entity encoded as a protocol buffer
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the model parameter is null
+     * @since 1.0.17
+     */
+    public static EntityProto modelToProto(AsyncDatastoreService ds,
+            Object model) throws NullPointerException {
+        if (ds == null) {
+            throw new NullPointerException("The ds parameter must not be null.");
+        }
+        if (model == null) {
+            throw new NullPointerException(
+                "The model parameter must not be null.");
+        }
+        ModelMeta<?> modelMeta = getModelMeta(model.getClass());
+        Key key = modelMeta.getKey(model);
+        if (key == null) {
+            key = allocateId(ds, modelMeta.getKind());
+            modelMeta.setKey(model, key);
+        }
+        modelMeta.assignKeyToModelRefIfNecessary(ds, model);
+        modelMeta.incrementVersion(model);
+        modelMeta.prePut(model);
+        return modelMeta.modelToProto(model);
+    }
+
     /**
      * Converts the models to entities.
      * 
@@ -1060,6 +1336,7 @@ public final class DatastoreUtil {
             mm.validateKey(key);
             M model = mm.entityToModel(entity);
             mm.postGet(model);
+            DirtyTracker.snapshotCurrent(model, entity);
             list.add(model);
         }
         return list;
@@ -1096,6 +1373,7 @@ public final class DatastoreUtil {
             mm.validateKey(key);
             M model = mm.entityToModel(entity);
             mm.postGet(model);
+            DirtyTracker.snapshotCurrent(model, entity);
             modelMap.put(key, model);
         }
         return modelMap;
@@ -1165,4 +1443,22 @@ public final class DatastoreUtil {
         }
         return list;
     }
+
+    /**
+     * A model with the order in which it was encountered.
+     * 
+     * @param <M>
+     *            the model type
+     */
+    private static final class RankedModel<M> {
+
+        private final M model;
+
+        private final long index;
+
+        private RankedModel(M model, long index) {
+            this.model = model;
+            this.index = index;
+        }
+    }
 }
\ No newline at end of file
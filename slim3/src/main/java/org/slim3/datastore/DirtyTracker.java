@@ -0,0 +1,390 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * A tracker of the changes made to the models read in the current request.
+ * 
+ * <p>
+ * A copy of the entity read for a model is kept as a snapshot. The copy is
+ * decoded from the encoded entity, so the collections, dates and arrays of
+ * bytes that the model shares with the read entity are not shared with the
+ * snapshot, and the changes made to them in place are detected. Putting a
+ * model which has not been changed since it was read is skipped. A model is compared by
+ * the entity which the meta data converts it to, so the changes that the
+ * model listeners and the attribute listeners would make on put are not
+ * counted. A write of a key discards the snapshot for the key.
+ * </p>
+ * 
+ * <p>
+ * The tracker refers to a model weakly, so the snapshot is discarded when the
+ * model is no longer used. A put within a transaction is skipped only if the
+ * model was read within the same transaction.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class DirtyTracker {
+
+    /**
+     * The key of useDirtyTracking.
+     */
+    public static final String USE_DIRTY_TRACKING = "slim3.useDirtyTracking";
+
+    private static final ThreadLocal<DirtyTracker> currentTracker =
+        new ThreadLocal<DirtyTracker>();
+
+    /**
+     * The map of snapshots.
+     */
+    private final Map<Key, Snapshot> snapshotMap = new HashMap<Key, Snapshot>();
+
+    /**
+     * The queue of the snapshots whose models have been collected.
+     */
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /**
+     * Determines if dirty tracking is enabled by the system property.
+     * 
+     * @return whether dirty tracking is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_DIRTY_TRACKING));
+    }
+
+    /**
+     * Binds a new tracker to the current thread.
+     */
+    public static void begin() {
+        currentTracker.set(new DirtyTracker());
+    }
+
+    /**
+     * Unbinds the tracker from the current thread.
+     */
+    public static void end() {
+        currentTracker.remove();
+    }
+
+    /**
+     * Returns the tracker bound to the current thread. Returns null if no
+     * tracker is bound.
+     * 
+     * @return the tracker bound to the current thread
+     */
+    public static DirtyTracker getCurrent() {
+        return currentTracker.get();
+    }
+
+    /**
+     * Keeps the snapshot of the model in the tracker bound to the current
+     * thread if any.
+     * 
+     * @param model
+     *            the model
+     * @param entity
+     *            the entity which the model was read from
+     */
+    public static void snapshotCurrent(Object model, Entity entity) {
+        snapshotCurrent(model, entity, null);
+    }
+
+    /**
+     * Keeps the snapshot of the model read within the transaction in the
+     * tracker bound to the current thread if any.
+     * 
+     * @param model
+     *            the model
+     * @param entity
+     *            the entity which the model was read from
+     * @param tx
+     *            the transaction
+     */
+    public static void snapshotCurrent(Object model, Entity entity,
+            Transaction tx) {
+        DirtyTracker tracker = getCurrent();
+        if (tracker != null) {
+            tracker.snapshot(model, entity, tx);
+        }
+    }
+
+    /**
+     * Discards the snapshots for the keys in the tracker bound to the current
+     * thread if any.
+     * 
+     * @param keys
+     *            the keys
+     */
+    public static void forgetCurrent(Iterable<Key> keys) {
+        DirtyTracker tracker = getCurrent();
+        if (tracker != null) {
+            tracker.forget(keys);
+        }
+    }
+
+    private DirtyTracker() {
+    }
+
+    /**
+     * Keeps the snapshot of the model.
+     * 
+     * @param model
+     *            the model
+     * @param entity
+     *            the entity which the model was read from
+     */
+    public void snapshot(Object model, Entity entity) {
+        snapshot(model, entity, null);
+    }
+
+    /**
+     * Keeps the snapshot of the model read within the transaction.
+     * 
+     * @param model
+     *            the model
+     * @param entity
+     *            the entity which the model was read from
+     * @param tx
+     *            the transaction
+     */
+    public synchronized void snapshot(Object model, Entity entity,
+            Transaction tx) {
+        if (model == null || entity == null || !entity.getKey().isComplete()) {
+            return;
+        }
+        expungeStaleSnapshots();
+        snapshotMap.put(entity.getKey(), new Snapshot(
+            model,
+            DatastoreUtil.bytesToEntity(DatastoreUtil.entityToBytes(entity)),
+            tx != null ? tx.getId() : null,
+            queue));
+    }
+
+    /**
+     * Discards the snapshots for the keys.
+     * 
+     * @param keys
+     *            the keys
+     */
+    public synchronized void forget(Iterable<Key> keys) {
+        if (keys == null || snapshotMap.isEmpty()) {
+            return;
+        }
+        for (Key key : keys) {
+            if (key != null) {
+                snapshotMap.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of snapshots.
+     * 
+     * @return the number of snapshots
+     */
+    public synchronized int size() {
+        expungeStaleSnapshots();
+        return snapshotMap.size();
+    }
+
+    /**
+     * Returns the key of the model if the model has not been changed since it
+     * was read without a transaction. Returns null if the model has been
+     * changed, if the model is not tracked or if the model was read within a
+     * transaction.
+     * 
+     * @param model
+     *            the model
+     * @return the key of the model
+     */
+    public Key getUnchangedKey(Object model) {
+        return getUnchangedKey(model, null);
+    }
+
+    /**
+     * Returns the key of the model if the model has not been changed since it
+     * was read within the transaction. Returns null if the model has been
+     * changed, if the model is not tracked or if the model was not read within
+     * the transaction.
+     * 
+     * @param model
+     *            the model
+     * @param tx
+     *            the transaction
+     * @return the key of the model
+     */
+    public Key getUnchangedKey(Object model, Transaction tx) {
+        if (model == null || model instanceof Entity) {
+            return null;
+        }
+        ModelMeta<?> modelMeta = DatastoreUtil.getModelMeta(model.getClass());
+        Key key = modelMeta.getKey(model);
+        Snapshot snapshot = getSnapshot(key, model);
+        if (snapshot == null
+            || !equals(snapshot.txId, tx != null ? tx.getId() : null)) {
+            return null;
+        }
+        Set<String> names =
+            getChangedPropertyNames(snapshot.entity, modelMeta
+                .modelToEntity(model));
+        return names.isEmpty() ? key : null;
+    }
+
+    /**
+     * Returns the names of the properties changed since the model was read.
+     * Returns null if the model is not tracked.
+     * 
+     * @param model
+     *            the model
+     * @return the names of the changed properties
+     */
+    public Set<String> getChangedPropertyNames(Object model) {
+        if (model == null || model instanceof Entity) {
+            return null;
+        }
+        ModelMeta<?> modelMeta = DatastoreUtil.getModelMeta(model.getClass());
+        Snapshot snapshot = getSnapshot(modelMeta.getKey(model), model);
+        if (snapshot == null) {
+            return null;
+        }
+        return getChangedPropertyNames(snapshot.entity, modelMeta
+            .modelToEntity(model));
+    }
+
+    private synchronized Snapshot getSnapshot(Key key, Object model) {
+        if (key == null) {
+            return null;
+        }
+        expungeStaleSnapshots();
+        Snapshot snapshot = snapshotMap.get(key);
+        if (snapshot == null || snapshot.get() != model) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    private void expungeStaleSnapshots() {
+        for (Reference<?> ref = queue.poll(); ref != null; ref = queue.poll()) {
+            Snapshot snapshot = (Snapshot) ref;
+            if (snapshotMap.get(snapshot.key) == snapshot) {
+                snapshotMap.remove(snapshot.key);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the properties which differ between the entities.
+     * 
+     * @param snapshot
+     *            the entity which the model was read from
+     * @param entity
+     *            the entity which the model is converted to
+     * @return the names of the properties which differ
+     */
+    protected static Set<String> getChangedPropertyNames(Entity snapshot,
+            Entity entity) {
+        Set<String> names = new HashSet<String>();
+        Map<String, Object> properties = entity.getProperties();
+        for (String name : properties.keySet()) {
+            if (!snapshot.hasProperty(name)
+                || snapshot.isUnindexedProperty(name) != entity
+                    .isUnindexedProperty(name)
+                || !equals(snapshot.getProperty(name), properties.get(name))) {
+                names.add(name);
+            }
+        }
+        for (String name : snapshot.getProperties().keySet()) {
+            if (!entity.hasProperty(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static boolean equals(Object value, Object value2) {
+        value = normalize(value);
+        value2 = normalize(value2);
+        return value == null ? value2 == null : value.equals(value2);
+    }
+
+    /**
+     * Converts the value to the type which datastore returns.
+     * 
+     * @param value
+     *            the value
+     * @return the converted value
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Integer
+            || value instanceof Short
+            || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        if (value instanceof Collection<?>) {
+            Collection<?> collection = (Collection<?>) value;
+            if (collection.isEmpty()) {
+                return null;
+            }
+            List<Object> list = new ArrayList<Object>(collection.size());
+            for (Object o : collection) {
+                list.add(normalize(o));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    /**
+     * The snapshot of a model. The model is referred weakly.
+     */
+    private static class Snapshot extends WeakReference<Object> {
+
+        private final Key key;
+
+        private final Entity entity;
+
+        private final String txId;
+
+        private Snapshot(Object model, Entity entity, String txId,
+                ReferenceQueue<Object> queue) {
+            super(model, queue);
+            this.key = entity.getKey();
+            this.entity = entity;
+            this.txId = txId;
+        }
+    }
+}
\ No newline at end of file
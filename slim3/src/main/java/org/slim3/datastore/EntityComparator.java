@@ -0,0 +1,309 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.IMHandle;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.users.User;
+
+/**
+ * A {@link Comparator} which orders entities in the same way as datastore
+ * orders the results of a query with the sort orders.
+ * 
+ * <p>
+ * The entities are compared by the sorted properties and then by the keys.
+ * A multi-valued property is compared by the smallest value in ascending
+ * order and by the largest value in descending order.
+ * </p>
+ * 
+ * <p>
+ * Values of different types are ordered by the type as datastore orders them:
+ * null, integers and dates, booleans, short blobs, strings, floating-point
+ * numbers, geographical points, users and keys. Integers and dates are
+ * compared by the stored value, in which a date is the number of
+ * microseconds.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class EntityComparator implements Comparator<Entity> {
+
+    private static final int NULL_RANK = 0;
+
+    private static final int INTEGER_RANK = 1;
+
+    private static final int BOOLEAN_RANK = 2;
+
+    private static final int SHORT_BLOB_RANK = 3;
+
+    private static final int STRING_RANK = 4;
+
+    private static final int DOUBLE_RANK = 5;
+
+    private static final int GEO_PT_RANK = 6;
+
+    private static final int USER_RANK = 7;
+
+    private static final int KEY_RANK = 8;
+
+    private static final int OTHER_RANK = 9;
+
+    /**
+     * The sort orders.
+     */
+    protected List<SortPredicate> sortPredicates;
+
+    /**
+     * Constructor.
+     * 
+     * @param sortPredicates
+     *            the sort orders
+     * @throws NullPointerException
+     *             if the sortPredicates parameter is null
+     */
+    public EntityComparator(List<SortPredicate> sortPredicates)
+            throws NullPointerException {
+        if (sortPredicates == null) {
+            throw new NullPointerException(
+                "The sortPredicates parameter must not be null.");
+        }
+        this.sortPredicates = new ArrayList<SortPredicate>(sortPredicates);
+    }
+
+    public int compare(Entity e1, Entity e2) {
+        for (SortPredicate sp : sortPredicates) {
+            boolean desc = sp.getDirection() == SortDirection.DESCENDING;
+            int compared =
+                compareValue(
+                    getValue(e1, sp.getPropertyName(), desc),
+                    getValue(e2, sp.getPropertyName(), desc));
+            if (compared != 0) {
+                return desc ? -compared : compared;
+            }
+        }
+        return e1.getKey().compareTo(e2.getKey());
+    }
+
+    /**
+     * Returns the value of the property used for ordering.
+     * 
+     * @param entity
+     *            the entity
+     * @param propertyName
+     *            the property name
+     * @param desc
+     *            whether the order is descending
+     * @return the value of the property
+     */
+    protected Object getValue(Entity entity, String propertyName, boolean desc) {
+        if (Entity.KEY_RESERVED_PROPERTY.equals(propertyName)) {
+            return entity.getKey();
+        }
+        Object value = entity.getProperty(propertyName);
+        if (!(value instanceof Collection<?>)) {
+            return value;
+        }
+        Object ret = null;
+        for (Object o : (Collection<?>) value) {
+            if (ret == null) {
+                ret = o;
+                continue;
+            }
+            int compared = compareValue(o, ret);
+            if (desc ? compared > 0 : compared < 0) {
+                ret = o;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Compares the values in the same way as datastore orders them. The
+     * values of different types are ordered by the type.
+     * 
+     * @param v1
+     *            the value
+     * @param v2
+     *            the compared value
+     * @return the compared result
+     */
+    protected int compareValue(Object v1, Object v2) {
+        return compareValues(v1, v2);
+    }
+
+    /**
+     * Compares the values in the same way as datastore orders them.
+     * 
+     * @param v1
+     *            the value
+     * @param v2
+     *            the compared value
+     * @return the compared result
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static int compareValues(Object v1, Object v2) {
+        int rank1 = getTypeRank(v1);
+        int rank2 = getTypeRank(v2);
+        if (rank1 != rank2) {
+            return rank1 < rank2 ? -1 : 1;
+        }
+        switch (rank1) {
+        case NULL_RANK:
+            return 0;
+        case INTEGER_RANK:
+            long l1 = toLong(v1);
+            long l2 = toLong(v2);
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        case SHORT_BLOB_RANK:
+            return compareBytes(
+                ((ShortBlob) v1).getBytes(),
+                ((ShortBlob) v2).getBytes());
+        case STRING_RANK:
+            return toString(v1).compareTo(toString(v2));
+        case DOUBLE_RANK:
+            return Double.compare(
+                ((Number) v1).doubleValue(),
+                ((Number) v2).doubleValue());
+        case OTHER_RANK:
+            if (v1.getClass() != v2.getClass()
+                || !(v1 instanceof Comparable)) {
+                return v1.getClass().getName().compareTo(
+                    v2.getClass().getName());
+            }
+            return ((Comparable) v1).compareTo(v2);
+        default:
+            return ((Comparable) v1).compareTo(v2);
+        }
+    }
+
+    /**
+     * Returns the rank of the type of the value in the order of datastore.
+     * 
+     * @param value
+     *            the value
+     * @return the rank of the type
+     */
+    static int getTypeRank(Object value) {
+        if (value == null) {
+            return NULL_RANK;
+        }
+        if (value instanceof Long
+            || value instanceof Integer
+            || value instanceof Short
+            || value instanceof Byte
+            || value instanceof Date
+            || value instanceof Rating) {
+            return INTEGER_RANK;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN_RANK;
+        }
+        if (value instanceof ShortBlob) {
+            return SHORT_BLOB_RANK;
+        }
+        if (value instanceof String
+            || value instanceof Category
+            || value instanceof Email
+            || value instanceof IMHandle
+            || value instanceof Link
+            || value instanceof PhoneNumber
+            || value instanceof PostalAddress
+            || value instanceof BlobKey) {
+            return STRING_RANK;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return DOUBLE_RANK;
+        }
+        if (value instanceof GeoPt) {
+            return GEO_PT_RANK;
+        }
+        if (value instanceof User) {
+            return USER_RANK;
+        }
+        if (value instanceof Key) {
+            return KEY_RANK;
+        }
+        return OTHER_RANK;
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).getTime() * 1000L;
+        }
+        if (value instanceof Rating) {
+            return ((Rating) value).getRating();
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static String toString(Object value) {
+        if (value instanceof Category) {
+            return ((Category) value).getCategory();
+        }
+        if (value instanceof Email) {
+            return ((Email) value).getEmail();
+        }
+        if (value instanceof IMHandle) {
+            IMHandle handle = (IMHandle) value;
+            return handle.getProtocol() + " " + handle.getAddress();
+        }
+        if (value instanceof Link) {
+            return ((Link) value).getValue();
+        }
+        if (value instanceof PhoneNumber) {
+            return ((PhoneNumber) value).getNumber();
+        }
+        if (value instanceof PostalAddress) {
+            return ((PostalAddress) value).getAddress();
+        }
+        if (value instanceof BlobKey) {
+            return ((BlobKey) value).getKeyString();
+        }
+        return (String) value;
+    }
+
+    private static int compareBytes(byte[] b1, byte[] b2) {
+        int length = Math.min(b1.length, b2.length);
+        for (int i = 0; i < length; i++) {
+            int c1 = b1[i] & 0xff;
+            int c2 = b2[i] & 0xff;
+            if (c1 != c2) {
+                return c1 < c2 ? -1 : 1;
+            }
+        }
+        return b1.length - b2.length;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.Collections;
+
+import com.google.appengine.api.datastore.DataTypeTranslator;
+import com.google.appengine.api.datastore.DataTypeUtils;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Property;
+
+/**
+ * A writer which encodes the properties directly to {@link EntityProto}
+ * without creating {@link Entity}. The generated meta data uses this class to
+ * convert a model to a protocol buffer.
+ * 
+ * <p>
+ * The values are encoded in the same way as {@link Entity} is encoded. Each
+ * property must be set only once.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * @see ModelMeta#modelToProto(Object)
+ * 
+ */
+public class EntityProtoWriter {
+
+    /**
+     * The entity encoded as a protocol buffer.
+     */
+    protected EntityProto proto;
+
+    /**
+     * Constructor.
+     * 
+     * @param key
+     *            the key
+     * @throws NullPointerException
+     *             if the key parameter is null
+     */
+    public EntityProtoWriter(Key key) throws NullPointerException {
+        if (key == null) {
+            throw new NullPointerException(
+                "The key parameter must not be null.");
+        }
+        proto = EntityTranslator.convertToPb(new Entity(key));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param kind
+     *            the kind
+     * @throws NullPointerException
+     *             if the kind parameter is null
+     */
+    public EntityProtoWriter(String kind) throws NullPointerException {
+        if (kind == null) {
+            throw new NullPointerException(
+                "The kind parameter must not be null.");
+        }
+        proto = EntityTranslator.convertToPb(new Entity(kind));
+    }
+
+    /**
+     * Sets the indexed property.
+     * 
+     * @param name
+     *            the property name
+     * @param value
+     *            the value
+     * @see Entity#setProperty(String, Object)
+     */
+    public void setProperty(String name, Object value) {
+        DataTypeUtils.checkSupportedValue(name, value);
+        DataTypeTranslator.addPropertiesToPb(
+            Collections.singletonMap(name, value),
+            proto);
+    }
+
+    /**
+     * Sets the unindexed property.
+     * 
+     * @param name
+     *            the property name
+     * @param value
+     *            the value
+     * @see Entity#setUnindexedProperty(String, Object)
+     */
+    public void setUnindexedProperty(String name, Object value) {
+        DataTypeUtils.checkSupportedValue(name, value);
+        EntityProto pb = new EntityProto();
+        DataTypeTranslator.addPropertiesToPb(
+            Collections.singletonMap(name, value),
+            pb);
+        for (Property p : pb.propertys()) {
+            proto.addRawProperty(p);
+        }
+        for (Property p : pb.rawPropertys()) {
+            proto.addRawProperty(p);
+        }
+    }
+
+    /**
+     * Returns the entity encoded as a protocol buffer.
+     * 
+     * @return the entity encoded as a protocol buffer
+     */
+    public EntityProto getProto() {
+        return proto;
+    }
+}
\ No newline at end of file
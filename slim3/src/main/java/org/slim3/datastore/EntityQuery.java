@@ -92,11 +92,16 @@ public class EntityQuery extends AbstractQuery<EntityQuery> {
     }
 
     /**
-     * Returns entities as a list.
+     * Returns entities as a list. If the results are cached, the entities are
+     * got by the cached keys.
      * 
      * @return entities as a list
+     * @see #cacheResults(int)
      */
     public List<Entity> asList() {
+        if (isResultCacheEnabled()) {
+            return getEntityList(asCachedResult().getKeys(), null);
+        }
         return super.asEntityList();
     }
 
@@ -141,6 +146,54 @@ public class EntityQuery extends AbstractQuery<EntityQuery> {
         return asEntityIterator();
     }
 
+    /**
+     * Scans the entities in parallel. The query is split into the partitions
+     * by the keys sampled from the kind, and the queries of all the partitions
+     * run concurrently.
+     * 
+     * @param partitions
+     *            the number of partitions
+     * @param handler
+     *            the handler
+     * @throws NullPointerException
+     *             if the handler parameter is null
+     * @throws IllegalArgumentException
+     *             if the partitions parameter is less than 1
+     * @throws IllegalStateException
+     *             if the query has sort orders, inequality filters, a limit,
+     *             an offset or cursors
+     * @see #getSplitKeys(int)
+     */
+    public void scan(int partitions, ScanHandler<? super Entity> handler)
+            throws NullPointerException, IllegalArgumentException,
+            IllegalStateException {
+        scan(getSplitKeys(partitions), handler);
+    }
+
+    /**
+     * Scans the entities in parallel. The query is split into the partitions
+     * by the keys, and the queries of all the partitions run concurrently.
+     * 
+     * @param splitKeys
+     *            the split keys
+     * @param handler
+     *            the handler
+     * @throws NullPointerException
+     *             if the splitKeys parameter is null or if the handler
+     *             parameter is null
+     * @throws IllegalStateException
+     *             if the query has sort orders, inequality filters, a limit,
+     *             an offset or cursors
+     */
+    public void scan(List<Key> splitKeys, ScanHandler<? super Entity> handler)
+            throws NullPointerException, IllegalStateException {
+        if (handler == null) {
+            throw new NullPointerException(
+                "The handler parameter must not be null.");
+        }
+        scanIterators(asPartitionedEntityIterators(splitKeys), handler);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public <T> T min(String propertyName) throws NullPointerException {
@@ -18,9 +18,12 @@ package org.slim3.datastore;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,6 +44,7 @@ import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.apphosting.api.DeadlineExceededException;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 
 /**
  * The global transaction coordinator. If an error occurs during transaction,
@@ -73,6 +77,26 @@ public class GlobalTransaction {
      */
     protected static final long ROLL_FORWARD_DELAY = 60000;
 
+    /**
+     * The phase to put the journals.
+     */
+    public static final String PUT_JOURNALS_PHASE = "putJournals";
+
+    /**
+     * The phase to commit the global transaction entity.
+     */
+    public static final String COMMIT_PHASE = "commit";
+
+    /**
+     * The phase to apply the journals.
+     */
+    public static final String APPLY_PHASE = "apply";
+
+    /**
+     * The phase to delete the locks and the global transaction entity.
+     */
+    public static final String UNLOCK_PHASE = "unlock";
+
     /**
      * The active global transactions.
      */
@@ -112,6 +136,11 @@ public class GlobalTransaction {
      */
     protected Map<Key, Entity> globalJournalMap;
 
+    /**
+     * The map of journals encoded as protocol buffers for global transaction.
+     */
+    protected Map<Key, EntityProto> globalProtoMap;
+
     /**
      * The map of journals for local transaction.
      */
@@ -127,6 +156,18 @@ public class GlobalTransaction {
      */
     protected AsyncDatastoreService ds;
 
+    /**
+     * The elapsed milliseconds of the commit phases.
+     */
+    protected Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+
+    /**
+     * The policy to wait for an entity group locked by another global
+     * transaction.
+     */
+    protected LockContentionPolicy contentionPolicy =
+        new LockContentionPolicy();
+
     /**
      * Returns the current transaction stack.
      * 
@@ -280,9 +321,24 @@ public class GlobalTransaction {
         if (DatastoreUtil.getOrNull(ds, null, globalTransactionKey) == null) {
             return;
         }
+        long start = System.currentTimeMillis();
         Journal.apply(ds, globalTransactionKey);
+        long applied = System.currentTimeMillis();
         Lock.deleteWithoutTx(ds, globalTransactionKey);
         DatastoreUtil.delete(ds, null, globalTransactionKey);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("The global transaction("
+                + globalTransactionKey
+                + ") was rolled forward: "
+                + APPLY_PHASE
+                + "="
+                + (applied - start)
+                + "ms, "
+                + UNLOCK_PHASE
+                + "="
+                + (System.currentTimeMillis() - applied)
+                + "ms");
+        }
     }
 
     /**
@@ -459,6 +515,49 @@ public class GlobalTransaction {
         throw new IllegalStateException("This transaction must begin.");
     }
 
+    /**
+     * Returns the policy to wait for an entity group locked by another global
+     * transaction.
+     * 
+     * @return the lock contention policy
+     * @since 1.0.17
+     */
+    public LockContentionPolicy getContentionPolicy() {
+        return contentionPolicy;
+    }
+
+    /**
+     * Specifies the policy to wait for an entity group locked by another
+     * global transaction.
+     * 
+     * @param contentionPolicy
+     *            the lock contention policy
+     * @throws NullPointerException
+     *             if the contentionPolicy parameter is null
+     * @since 1.0.17
+     */
+    public void setContentionPolicy(LockContentionPolicy contentionPolicy)
+            throws NullPointerException {
+        if (contentionPolicy == null) {
+            throw new NullPointerException(
+                "The contentionPolicy parameter must not be null.");
+        }
+        this.contentionPolicy = contentionPolicy;
+    }
+
+    /**
+     * Returns the elapsed milliseconds of the commit phases. The keys are
+     * {@link #PUT_JOURNALS_PHASE}, {@link #COMMIT_PHASE},
+     * {@link #APPLY_PHASE} and {@link #UNLOCK_PHASE}. The map is empty unless
+     * this transaction was committed as global transaction.
+     * 
+     * @return the elapsed milliseconds of the commit phases
+     * @since 1.0.17
+     */
+    public Map<String, Long> getPhaseMillis() {
+        return Collections.unmodifiableMap(phaseMillis);
+    }
+
     /**
      * Begins this global transaction.
      */
@@ -468,6 +567,7 @@ public class GlobalTransaction {
         timestamp = System.currentTimeMillis();
         lockMap = new HashMap<Key, Lock>();
         globalJournalMap = new HashMap<Key, Entity>();
+        globalProtoMap = new HashMap<Key, EntityProto>();
         localJournalMap = new HashMap<Key, Entity>();
     }
 
@@ -901,9 +1001,7 @@ public class GlobalTransaction {
             }
         }
         if (gtxKeys.size() > 0) {
-            for (Key key : gtxRootKeys) {
-                lock(key);
-            }
+            lock(gtxRootKeys);
             map.putAll(DatastoreUtil.getAsMap(ds, null, gtxKeys));
         }
         return map;
@@ -1180,21 +1278,26 @@ public class GlobalTransaction {
         DatastoreUtil.assignKeyIfNecessary(ds, entity);
         Key key = entity.getKey();
         Key rootKey = DatastoreUtil.getRoot(key);
-        if (localTransactionRootKey == null) {
-            setLocalTransactionRootKey(rootKey);
-            localJournalMap.put(key, entity);
-        } else if (rootKey.equals(localTransactionRootKey)) {
-            localJournalMap.put(key, entity);
-        } else {
-            lock(rootKey);
-            globalJournalMap.put(key, entity);
+        RequestCache.invalidateCurrent(
+            Arrays.asList(key),
+            localTransaction);
+        DirtyTracker.forgetCurrent(Arrays.asList(key));
+        getJournalMap(rootKey).put(key, entity);
+        globalProtoMap.remove(key);
+        for (Entity view : MaterializedView.toViewEntities(
+            ds,
+            Arrays.asList(entity))) {
+            getJournalMap(view.getKey()).put(view.getKey(), view);
         }
         return key;
     }
 
     /**
      * Puts the model. If locking the entity failed, the other locks that this
-     * transaction has are released automatically.
+     * transaction has are released automatically. The model which belongs to
+     * an entity group other than the one of the local transaction is encoded
+     * directly as a protocol buffer for the journal, unless materialized views
+     * are registered for the kind.
      * 
      * @param model
      *            the model
@@ -1208,8 +1311,30 @@ public class GlobalTransaction {
      */
     public Key put(Object model) throws NullPointerException,
             IllegalArgumentException, ConcurrentModificationException {
-        Entity entity = DatastoreUtil.modelToEntity(ds, model);
-        return put(entity);
+        if (model == null) {
+            throw new NullPointerException(
+                "The model parameter must not be null.");
+        }
+        ModelMeta<?> modelMeta = DatastoreUtil.getModelMeta(model.getClass());
+        Key key = modelMeta.getKey(model);
+        if (key == null) {
+            key = DatastoreUtil.allocateId(ds, modelMeta.getKind());
+            modelMeta.setKey(model, key);
+        }
+        Key rootKey = DatastoreUtil.getRoot(key);
+        if (localTransactionRootKey == null
+            || rootKey.equals(localTransactionRootKey)
+            || !MaterializedView.getViews(key.getKind()).isEmpty()) {
+            return put(DatastoreUtil.modelToEntity(ds, model));
+        }
+        RequestCache.invalidateCurrent(
+            Arrays.asList(key),
+            localTransaction);
+        DirtyTracker.forgetCurrent(Arrays.asList(key));
+        lock(rootKey);
+        globalJournalMap.remove(key);
+        globalProtoMap.put(key, DatastoreUtil.modelToProto(ds, model));
+        return key;
     }
 
     /**
@@ -1232,13 +1357,14 @@ public class GlobalTransaction {
             throw new NullPointerException(
                 "The models parameter must not be null.");
         }
-        List<Key> keys = new ArrayList<Key>();
-        for (Object model : models) {
-            if (model instanceof Entity) {
-                keys.add(put((Entity) model));
-            } else {
-                keys.add(put(model));
-            }
+        List<Entity> entities = DatastoreUtil.modelsToEntities(ds, models);
+        List<Key> keys = new ArrayList<Key>(entities.size());
+        for (Entity entity : entities) {
+            keys.add(entity.getKey());
+        }
+        lockIfNecessary(keys);
+        for (Entity entity : entities) {
+            put(entity);
         }
         return keys;
     }
@@ -1274,15 +1400,38 @@ public class GlobalTransaction {
     public void delete(Key key) throws NullPointerException,
             ConcurrentModificationException {
         Key rootKey = DatastoreUtil.getRoot(key);
+        RequestCache.invalidateCurrent(
+            Arrays.asList(key),
+            localTransaction);
+        DirtyTracker.forgetCurrent(Arrays.asList(key));
+        getJournalMap(rootKey).put(key, null);
+        globalProtoMap.remove(key);
+        for (Key viewKey : MaterializedView.toViewKeys(Arrays.asList(key))) {
+            getJournalMap(viewKey).put(viewKey, null);
+        }
+    }
+
+    /**
+     * Returns the journal map for the entity group. The entity group is locked
+     * unless it belongs to the local transaction.
+     * 
+     * @param rootKey
+     *            the root key of the entity group
+     * @return the journal map
+     * @throws ConcurrentModificationException
+     *             if locking the entity group failed
+     */
+    protected Map<Key, Entity> getJournalMap(Key rootKey)
+            throws ConcurrentModificationException {
         if (localTransactionRootKey == null) {
             setLocalTransactionRootKey(rootKey);
-            localJournalMap.put(key, null);
-        } else if (rootKey.equals(localTransactionRootKey)) {
-            localJournalMap.put(key, null);
-        } else {
-            lock(rootKey);
-            globalJournalMap.put(key, null);
+            return localJournalMap;
+        }
+        if (rootKey.equals(localTransactionRootKey)) {
+            return localJournalMap;
         }
+        lock(rootKey);
+        return globalJournalMap;
     }
 
     /**
@@ -1302,6 +1451,7 @@ public class GlobalTransaction {
             throw new NullPointerException(
                 "The keys parameter must not be null.");
         }
+        lockIfNecessary(keys);
         for (Key key : keys) {
             delete(key);
         }
@@ -1340,11 +1490,17 @@ public class GlobalTransaction {
                 .asKeyList()) {
                 localJournalMap.put(key, null);
             }
+            RequestCache.invalidateCurrent(
+                localJournalMap.keySet(),
+                localTransaction);
         } else if (rootKey.equals(localTransactionRootKey)) {
             for (Key key : new KindlessQuery(ds, localTransaction, ancestorKey)
                 .asKeyList()) {
                 localJournalMap.put(key, null);
             }
+            RequestCache.invalidateCurrent(
+                localJournalMap.keySet(),
+                localTransaction);
         } else {
             lock(rootKey);
             for (Key key : new KindlessQuery(ds, ancestorKey).asKeyList()) {
@@ -1352,7 +1508,11 @@ public class GlobalTransaction {
                     continue;
                 }
                 globalJournalMap.put(key, null);
+                globalProtoMap.remove(key);
             }
+            RequestCache.invalidateCurrent(
+                globalJournalMap.keySet(),
+                localTransaction);
         }
     }
 
@@ -1484,14 +1644,18 @@ public class GlobalTransaction {
         }
         assertActive();
         if (!lockMap.containsKey(rootKey)) {
-            Lock lock = new Lock(ds, globalTransactionKey, rootKey, timestamp);
-            try {
-                Map<Key, Entity> map = lock.lockAndGetAsMap(keys);
-                lockMap.put(rootKey, lock);
-                return map;
-            } catch (ConcurrentModificationException e) {
-                unlock();
-                throw e;
+            Lock lock = createLock(rootKey);
+            long startTime = System.currentTimeMillis();
+            for (int attempt = 0;; attempt++) {
+                try {
+                    Map<Key, Entity> map = lock.lockAndGetAsMap(keys);
+                    lockMap.put(rootKey, lock);
+                    return map;
+                } catch (ConcurrentModificationException e) {
+                    if (!waitForLock(attempt, startTime)) {
+                        throw abortLocking(e);
+                    }
+                }
             }
         }
         return DatastoreUtil.getAsMap(ds, null, keys);
@@ -1516,14 +1680,150 @@ public class GlobalTransaction {
         }
         assertActive();
         if (!lockMap.containsKey(rootKey)) {
-            Lock lock = new Lock(ds, globalTransactionKey, rootKey, timestamp);
+            Lock lock = createLock(rootKey);
+            long startTime = System.currentTimeMillis();
+            for (int attempt = 0;; attempt++) {
+                try {
+                    lock.lock();
+                    break;
+                } catch (ConcurrentModificationException e) {
+                    if (!waitForLock(attempt, startTime)) {
+                        throw abortLocking(e);
+                    }
+                }
+            }
+            lockMap.put(rootKey, lock);
+        }
+    }
+
+    /**
+     * Locks the entity groups concurrently. If locking the entity groups
+     * failed, the other locks that this transaction has are released
+     * automatically.
+     * 
+     * @param rootKeys
+     *            the root keys
+     * @throws NullPointerException
+     *             if the rootKeys parameter is null
+     * @throws ConcurrentModificationException
+     *             if locking an entity group failed
+     */
+    protected void lock(Collection<Key> rootKeys) throws NullPointerException,
+            ConcurrentModificationException {
+        if (rootKeys == null) {
+            throw new NullPointerException(
+                "The rootKeys parameter must not be null.");
+        }
+        assertActive();
+        List<Lock> locks = new ArrayList<Lock>(rootKeys.size());
+        for (Key rootKey : new LinkedHashSet<Key>(rootKeys)) {
+            if (!lockMap.containsKey(rootKey)) {
+                locks.add(createLock(rootKey));
+            }
+        }
+        if (locks.size() == 1) {
+            lock(locks.get(0).getRootKey());
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        for (int attempt = 0;; attempt++) {
             try {
-                lock.lock();
+                Lock.lockAll(ds, locks);
+                break;
             } catch (ConcurrentModificationException e) {
-                unlock();
-                throw e;
+                if (!waitForLock(attempt, startTime)) {
+                    throw abortLocking(e);
+                }
             }
-            lockMap.put(rootKey, lock);
+        }
+        for (Lock lock : locks) {
+            lockMap.put(lock.getRootKey(), lock);
+        }
+    }
+
+    /**
+     * Creates a {@link Lock} for the entity group.
+     * 
+     * @param rootKey
+     *            the root key
+     * @return a {@link Lock}
+     */
+    protected Lock createLock(Key rootKey) {
+        Lock lock = new Lock(ds, globalTransactionKey, rootKey, timestamp);
+        lock.setStealAfterTimeout(contentionPolicy.isStealAfterTimeout());
+        return lock;
+    }
+
+    /**
+     * Waits before the next attempt to lock an entity group according to the
+     * lock contention policy. Returns false if the next attempt is not
+     * allowed.
+     * 
+     * @param attempt
+     *            the number of failed attempts minus one
+     * @param startTime
+     *            the time when the first attempt started
+     * @return whether the next attempt is allowed
+     */
+    protected boolean waitForLock(int attempt, long startTime) {
+        long backoff = contentionPolicy.getBackoffMillis(attempt);
+        long remaining =
+            contentionPolicy.getMaxWaitMillis()
+                - (System.currentTimeMillis() - startTime);
+        if (backoff <= 0 || remaining <= 0) {
+            return false;
+        }
+        Lock.waitCount.incrementAndGet();
+        try {
+            Thread.sleep(Math.min(backoff, remaining));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives up locking an entity group and releases the locks that this
+     * transaction has.
+     * 
+     * @param cause
+     *            the cause
+     * @return the cause
+     */
+    protected ConcurrentModificationException abortLocking(
+            ConcurrentModificationException cause) {
+        Lock.abortCount.incrementAndGet();
+        unlock();
+        return cause;
+    }
+
+    /**
+     * Locks the entity groups of the keys except the entity group of the local
+     * transaction concurrently.
+     * 
+     * @param keys
+     *            the keys
+     * @throws ConcurrentModificationException
+     *             if locking an entity group failed
+     */
+    protected void lockIfNecessary(Iterable<Key> keys)
+            throws ConcurrentModificationException {
+        Key ltxRootKey = localTransactionRootKey;
+        List<Key> rootKeys = new ArrayList<Key>();
+        for (Key key : keys) {
+            Key rootKey = DatastoreUtil.getRoot(key);
+            if (ltxRootKey == null) {
+                ltxRootKey = rootKey;
+            } else if (!rootKey.equals(ltxRootKey)) {
+                rootKeys.add(rootKey);
+            }
+        }
+        if (rootKeys.size() > 1) {
+            if (localTransactionRootKey == null) {
+                setLocalTransactionRootKey(ltxRootKey);
+            }
+            lock(rootKeys);
         }
     }
 
@@ -1557,6 +1857,9 @@ public class GlobalTransaction {
         getCurrentTransactionStack().remove(this);
         try {
             localTransaction.commit();
+            ModelCache.invalidate(localJournalMap.keySet());
+            QueryCache.invalidate(localJournalMap.keySet());
+            SingleFlight.forget(localJournalMap.keySet());
         } finally {
             if (localTransaction.isActive()) {
                 localTransaction.rollback();
@@ -1568,11 +1871,37 @@ public class GlobalTransaction {
      * Commits this transaction as global transaction.
      */
     protected void commitGlobalTransaction() {
+        long start = System.currentTimeMillis();
         List<Entity> journals = putJournals();
+        start = recordPhase(PUT_JOURNALS_PHASE, start);
         commitGlobalTransactionInternally();
+        start = recordPhase(COMMIT_PHASE, start);
         Journal.apply(ds, journals);
+        start = recordPhase(APPLY_PHASE, start);
         Lock.deleteWithoutTx(ds, lockMap.values());
         DatastoreUtil.delete(ds, null, Arrays.asList(globalTransactionKey));
+        recordPhase(UNLOCK_PHASE, start);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("The global transaction("
+                + globalTransactionKey
+                + ") was committed: "
+                + phaseMillis);
+        }
+    }
+
+    /**
+     * Records the elapsed milliseconds of the phase.
+     * 
+     * @param phase
+     *            the phase
+     * @param start
+     *            the time when the phase started
+     * @return the time when the phase ended
+     */
+    protected long recordPhase(String phase, long start) {
+        long end = System.currentTimeMillis();
+        phaseMillis.put(phase, end - start);
+        return end;
     }
 
     /**
@@ -1582,7 +1911,11 @@ public class GlobalTransaction {
      */
     protected List<Entity> putJournals() {
         try {
-            return Journal.put(ds, globalTransactionKey, globalJournalMap);
+            return Journal.put(
+                ds,
+                globalTransactionKey,
+                globalJournalMap,
+                globalProtoMap);
         } catch (Throwable cause) {
             try {
                 Journal.deleteInTx(ds, globalTransactionKey);
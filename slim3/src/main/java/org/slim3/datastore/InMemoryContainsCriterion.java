@@ -24,8 +24,8 @@ import com.google.appengine.api.datastore.Text;
  * @since 1.0.0
  * 
  */
-public class InMemoryContainsCriterion extends AbstractCriterion implements
-        InMemoryFilterCriterion {
+public class InMemoryContainsCriterion extends
+        AbstractInMemoryFilterCriterion {
 
     /**
      * The value;
@@ -53,8 +53,9 @@ public class InMemoryContainsCriterion extends AbstractCriterion implements
         }
     }
 
-    public boolean accept(Object model) {
-        Object v = attributeMeta.getValue(model);
+    @Override
+    protected boolean acceptValue(Object attributeValue) {
+        Object v = attributeValue;
         if (v instanceof Iterable<?>) {
             for (Object o : (Iterable<?>) v) {
                 if (acceptInternal(o)) {
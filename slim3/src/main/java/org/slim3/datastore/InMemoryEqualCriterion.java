@@ -24,8 +24,8 @@ import com.google.appengine.api.datastore.Text;
  * @since 1.0.1
  * 
  */
-public class InMemoryEqualCriterion extends AbstractCriterion implements
-        InMemoryFilterCriterion {
+public class InMemoryEqualCriterion extends
+        AbstractInMemoryFilterCriterion {
 
     /**
      * The value;
@@ -48,8 +48,9 @@ public class InMemoryEqualCriterion extends AbstractCriterion implements
         this.value = convertValueForDatastore(value);
     }
 
-    public boolean accept(Object model) {
-        Object v = convertValueForDatastore(attributeMeta.getValue(model));
+    @Override
+    protected boolean acceptValue(Object attributeValue) {
+        Object v = convertValueForDatastore(attributeValue);
         if (v instanceof Iterable<?>) {
             for (Object o : (Iterable<?>) v) {
                 if (compareValue(o, value) == 0) {
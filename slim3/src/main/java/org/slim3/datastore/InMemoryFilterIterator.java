@@ -0,0 +1,166 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * An {@link Iterator} for the models accepted by the in-memory filter
+ * criteria. The criteria are evaluated against the properties of each entity
+ * first, and only the entities that pass are converted to models.
+ * 
+ * @author higa
+ * @param <M>
+ *            the model type
+ * @since 1.0.17
+ * 
+ */
+public class InMemoryFilterIterator<M> implements Iterator<M> {
+
+    /**
+     * The {@link Iterator} for the entity.
+     */
+    protected Iterator<Entity> entityIterator;
+
+    /**
+     * The meta data of the model.
+     */
+    protected ModelMeta<M> modelMeta;
+
+    /**
+     * The in-memory filter criteria.
+     */
+    protected List<? extends InMemoryFilterCriterion> criteria;
+
+    /**
+     * Whether each criterion was decided by the entity.
+     */
+    protected boolean[] decided;
+
+    /**
+     * The next model.
+     */
+    protected M nextModel;
+
+    /**
+     * The number of entities converted to models.
+     */
+    protected int decodedCount = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param entityIterator
+     *            the {@link Iterator} for the entity
+     * @param modelMeta
+     *            the meta data of the model
+     * @param criteria
+     *            the in-memory filter criteria
+     * @throws NullPointerException
+     *             if the entityIterator parameter is null or if the modelMeta
+     *             parameter is null or if the criteria parameter is null
+     */
+    public InMemoryFilterIterator(Iterator<Entity> entityIterator,
+            ModelMeta<M> modelMeta,
+            List<? extends InMemoryFilterCriterion> criteria)
+            throws NullPointerException {
+        if (entityIterator == null) {
+            throw new NullPointerException(
+                "The entityIterator parameter must not be null.");
+        }
+        if (modelMeta == null) {
+            throw new NullPointerException(
+                "The modelMeta parameter must not be null.");
+        }
+        if (criteria == null) {
+            throw new NullPointerException(
+                "The criteria parameter must not be null.");
+        }
+        this.entityIterator = entityIterator;
+        this.modelMeta = modelMeta;
+        this.criteria = criteria;
+        decided = new boolean[criteria.size()];
+    }
+
+    /**
+     * Returns the number of entities converted to models.
+     * 
+     * @return the number of entities converted to models
+     */
+    public int getDecodedCount() {
+        return decodedCount;
+    }
+
+    public boolean hasNext() {
+        while (nextModel == null && entityIterator.hasNext()) {
+            nextModel = acceptOrNull(entityIterator.next());
+        }
+        return nextModel != null;
+    }
+
+    public M next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        M model = nextModel;
+        nextModel = null;
+        return model;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Converts the entity to a model if the entity is accepted.
+     * 
+     * @param entity
+     *            the entity
+     * @return the model or null if the entity is rejected
+     */
+    protected M acceptOrNull(Entity entity) {
+        for (int i = 0; i < decided.length; i++) {
+            InMemoryFilterCriterion c = criteria.get(i);
+            decided[i] = false;
+            if (c instanceof AbstractInMemoryFilterCriterion) {
+                Boolean accepted =
+                    ((AbstractInMemoryFilterCriterion) c).acceptEntity(entity);
+                if (accepted != null) {
+                    if (!accepted) {
+                        return null;
+                    }
+                    decided[i] = true;
+                }
+            }
+        }
+        ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, entity);
+        M model = mm.entityToModel(entity);
+        mm.postGet(model);
+        DirtyTracker.snapshotCurrent(model, entity);
+        decodedCount++;
+        for (int i = 0; i < decided.length; i++) {
+            InMemoryFilterCriterion c = criteria.get(i);
+            if (!decided[i] && c != null && !c.accept(model)) {
+                return null;
+            }
+        }
+        return model;
+    }
+}
\ No newline at end of file
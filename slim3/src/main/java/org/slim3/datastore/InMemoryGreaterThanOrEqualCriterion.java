@@ -22,8 +22,8 @@ package org.slim3.datastore;
  * @since 1.0.1
  * 
  */
-public class InMemoryGreaterThanOrEqualCriterion extends AbstractCriterion
-        implements InMemoryFilterCriterion {
+public class InMemoryGreaterThanOrEqualCriterion extends
+        AbstractInMemoryFilterCriterion {
 
     /**
      * The value;
@@ -47,8 +47,9 @@ public class InMemoryGreaterThanOrEqualCriterion extends AbstractCriterion
         this.value = convertValueForDatastore(value);
     }
 
-    public boolean accept(Object model) {
-        Object v = convertValueForDatastore(attributeMeta.getValue(model));
+    @Override
+    protected boolean acceptValue(Object attributeValue) {
+        Object v = convertValueForDatastore(attributeValue);
         if (v instanceof Iterable<?>) {
             for (Object o : (Iterable<?>) v) {
                 if (compareValue(o, value) >= 0) {
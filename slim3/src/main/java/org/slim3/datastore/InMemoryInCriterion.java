@@ -24,8 +24,8 @@ import java.util.List;
  * @since 1.0.1
  * 
  */
-public class InMemoryInCriterion extends AbstractCriterion implements
-        InMemoryFilterCriterion {
+public class InMemoryInCriterion extends
+        AbstractInMemoryFilterCriterion {
 
     /**
      * The value;
@@ -58,8 +58,9 @@ public class InMemoryInCriterion extends AbstractCriterion implements
         }
     }
 
-    public boolean accept(Object model) {
-        Object v = convertValueForDatastore(attributeMeta.getValue(model));
+    @Override
+    protected boolean acceptValue(Object attributeValue) {
+        Object v = convertValueForDatastore(attributeValue);
         for (Object o : value) {
             if (compareValue(v, o) == 0) {
                 return true;
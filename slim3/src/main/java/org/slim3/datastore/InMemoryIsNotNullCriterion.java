@@ -22,8 +22,8 @@ package org.slim3.datastore;
  * @since 1.0.1
  * 
  */
-public class InMemoryIsNotNullCriterion extends AbstractCriterion implements
-        InMemoryFilterCriterion {
+public class InMemoryIsNotNullCriterion extends
+        AbstractInMemoryFilterCriterion {
 
     /**
      * Constructor.
@@ -38,8 +38,9 @@ public class InMemoryIsNotNullCriterion extends AbstractCriterion implements
         super(attributeMeta);
     }
 
-    public boolean accept(Object model) {
-        Object v = convertValueForDatastore(attributeMeta.getValue(model));
+    @Override
+    protected boolean acceptValue(Object attributeValue) {
+        Object v = convertValueForDatastore(attributeValue);
         if (v instanceof Iterable<?>) {
             for (Object o : (Iterable<?>) v) {
                 if (o != null) {
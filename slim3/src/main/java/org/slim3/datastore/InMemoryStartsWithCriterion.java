@@ -24,8 +24,8 @@ import com.google.appengine.api.datastore.Text;
  * @since 1.0.1
  * 
  */
-public class InMemoryStartsWithCriterion extends AbstractCriterion implements
-        InMemoryFilterCriterion {
+public class InMemoryStartsWithCriterion extends
+        AbstractInMemoryFilterCriterion {
 
     /**
      * The value;
@@ -62,8 +62,9 @@ public class InMemoryStartsWithCriterion extends AbstractCriterion implements
         }
     }
 
-    public boolean accept(Object model) {
-        Object v = attributeMeta.getValue(model);
+    @Override
+    protected boolean acceptValue(Object attributeValue) {
+        Object v = attributeValue;
         if (v instanceof Iterable<?>) {
             for (Object o : (Iterable<?>) v) {
                 if (compareValue(o, value) >= 0
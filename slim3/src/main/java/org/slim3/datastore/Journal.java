@@ -15,9 +15,24 @@
  */
 package org.slim3.datastore;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slim3.util.FutureUtil;
+import org.slim3.util.IntegerUtil;
+import org.slim3.util.WrapRuntimeException;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Blob;
@@ -27,7 +42,6 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Transaction;
-import com.google.apphosting.api.DatastorePb.PutRequest;
 import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 
 /**
@@ -65,6 +79,52 @@ public class Journal {
      */
     public static final String DELETE_LIST_PROPERTY = "deleteList";
 
+    /**
+     * The compressedPutList property name. Versions of slim3 before 1.0.17 do
+     * not read this property.
+     * 
+     * @since 1.0.17
+     * @see #USE_COMPRESSED_JOURNAL
+     */
+    public static final String COMPRESSED_PUT_LIST_PROPERTY =
+        "compressedPutList";
+
+    /**
+     * The key of useCompressedJournal.
+     * 
+     * <p>
+     * Warning: versions of slim3 before 1.0.17 ignore
+     * {@link #COMPRESSED_PUT_LIST_PROPERTY}. If such a version rolls a global
+     * transaction forward, it applies none of the compressed puts and then
+     * deletes the journal, so committed writes are lost silently. Enable
+     * this property only after every version of the application that may
+     * serve requests or run the slim3-gtx-queue tasks uses slim3 1.0.17 or
+     * later, and never during a rolling deploy from an older version.
+     * </p>
+     * 
+     * @since 1.0.17
+     */
+    public static final String USE_COMPRESSED_JOURNAL =
+        "slim3.useCompressedJournal";
+
+    /**
+     * The maximum ratio of the uncompressed size to
+     * {@link DatastoreUtil#MAX_ENTITY_SIZE} that is compressed into a journal
+     * entity.
+     */
+    protected static final int MAX_COMPRESSION_RATIO = 4;
+
+    /**
+     * Determines if the compressed journal format is enabled by the system
+     * property. See {@link #USE_COMPRESSED_JOURNAL} before enabling it.
+     * 
+     * @return whether the compressed journal format is enabled
+     * @since 1.0.17
+     */
+    public static boolean isCompressionEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_COMPRESSED_JOURNAL));
+    }
+
     /**
      * Applies the journals.
      * 
@@ -92,7 +152,10 @@ public class Journal {
     }
 
     /**
-     * Applies the journals.
+     * Applies the journals. The writes in the journals are packed into batches
+     * regardless of their entity groups and the batches are applied
+     * concurrently. The journals are deleted after all the batches have been
+     * applied, so the journals can be applied again if applying them failed.
      * 
      * @param ds
      *            the asynchronous datastore service
@@ -103,9 +166,39 @@ public class Journal {
      *             null
      * 
      */
-    @SuppressWarnings("unchecked")
     public static void apply(AsyncDatastoreService ds, List<Entity> entities)
             throws NullPointerException {
+        apply(ds, entities, getMaxConcurrentBatches());
+    }
+
+    /**
+     * Applies the journals. The writes in the journals are packed into batches
+     * of at most {@link DatastoreUtil#MAX_NUMBER_OF_ENTITIES} entities and
+     * {@link DatastoreUtil#MAX_ENTITY_SIZE} bytes regardless of their entity
+     * groups, because the writes are not transactional and the entity groups
+     * are protected by the locks of the global transaction. At most
+     * maxConcurrentBatches batches are applied concurrently. The journals are
+     * deleted after all the batches have been applied, so the journals can be
+     * applied again if applying them failed.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param entities
+     *            the entities
+     * @param maxConcurrentBatches
+     *            the maximum number of concurrent batches
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the entities parameter is
+     *             null
+     * @throws IllegalArgumentException
+     *             if the maxConcurrentBatches parameter is less than 1
+     * @since 1.0.17
+     * 
+     */
+    @SuppressWarnings("unchecked")
+    public static void apply(final AsyncDatastoreService ds,
+            List<Entity> entities, int maxConcurrentBatches)
+            throws NullPointerException, IllegalArgumentException {
         if (ds == null) {
             throw new NullPointerException("The ds parameter must not be null.");
         }
@@ -113,28 +206,98 @@ public class Journal {
             throw new NullPointerException(
                 "The entities parameter must not be null.");
         }
+        if (entities.isEmpty()) {
+            return;
+        }
+        List<List<Entity>> putChunks = new ArrayList<List<Entity>>();
+        List<Entity> putChunk = new ArrayList<Entity>();
+        int putChunkSize = 0;
+        List<Key> putKeys = new ArrayList<Key>();
+        List<Key> deleteKeys = new ArrayList<Key>();
+        List<Key> journalKeys = new ArrayList<Key>(entities.size());
         for (Entity entity : entities) {
-            PutRequest putReq = new PutRequest();
             List<Blob> putList =
                 (List<Blob>) entity.getProperty(PUT_LIST_PROPERTY);
+            Blob compressedPutList =
+                (Blob) entity.getProperty(COMPRESSED_PUT_LIST_PROPERTY);
             List<Key> deleteList =
                 (List<Key>) entity.getProperty(DELETE_LIST_PROPERTY);
-            List<Entity> putEntities = new ArrayList<Entity>();
+            List<byte[]> contents = new ArrayList<byte[]>();
             if (putList != null) {
                 for (Blob blob : putList) {
-                    EntityProto proto = putReq.addEntity();
-                    proto.mergeFrom(blob.getBytes());
-                    putEntities.add(EntityTranslator.createFromPb(proto));
+                    contents.add(blob.getBytes());
                 }
             }
-            if (putEntities.size() > 0) {
-                DatastoreUtil.put(ds, null, putEntities);
+            if (compressedPutList != null) {
+                contents.addAll(decompress(compressedPutList.getBytes()));
+            }
+            for (byte[] content : contents) {
+                Entity target = DatastoreUtil.bytesToEntity(content);
+                int size = content.length + DatastoreUtil.EXTRA_SIZE;
+                boolean full =
+                    putChunk.size() >= DatastoreUtil.MAX_NUMBER_OF_ENTITIES
+                        || putChunkSize + size > DatastoreUtil.MAX_ENTITY_SIZE;
+                if (!putChunk.isEmpty() && full) {
+                    putChunks.add(putChunk);
+                    putChunk = new ArrayList<Entity>();
+                    putChunkSize = 0;
+                }
+                putChunk.add(target);
+                putChunkSize += size;
+                putKeys.add(target.getKey());
             }
             if (deleteList != null) {
-                DatastoreUtil.delete(ds, null, deleteList);
+                deleteKeys.addAll(deleteList);
             }
-            DatastoreUtil.delete(ds, null, entity.getKey());
+            journalKeys.add(entity.getKey());
+        }
+        if (!putChunk.isEmpty()) {
+            putChunks.add(putChunk);
         }
+        Future<Void> putFuture =
+            new BatchFuture<Entity, List<Key>, Void>(
+                putChunks,
+                maxConcurrentBatches) {
+
+                @Override
+                protected Future<List<Key>> dispatch(List<Entity> chunk) {
+                    return ds.put(null, chunk);
+                }
+
+                @Override
+                protected Void merge(List<List<Key>> results) {
+                    return null;
+                }
+            }.start();
+        Future<Void> deleteFuture =
+            new BatchFuture<Key, Void, Void>(DatastoreUtil.split(
+                deleteKeys,
+                DatastoreUtil.MAX_NUMBER_OF_ENTITIES), maxConcurrentBatches) {
+
+                @Override
+                protected Future<Void> dispatch(List<Key> chunk) {
+                    return ds.delete(null, chunk);
+                }
+
+                @Override
+                protected Void merge(List<Void> results) {
+                    return null;
+                }
+            }.start();
+        try {
+            FutureUtil.getQuietly(putFuture);
+            FutureUtil.getQuietly(deleteFuture);
+        } finally {
+            RequestCache.invalidateCurrent(putKeys, null);
+            RequestCache.invalidateCurrent(deleteKeys, null);
+            ModelCache.invalidate(putKeys);
+            ModelCache.invalidate(deleteKeys);
+            QueryCache.invalidate(putKeys);
+            QueryCache.invalidate(deleteKeys);
+            SingleFlight.forget(putKeys);
+            SingleFlight.forget(deleteKeys);
+        }
+        FutureUtil.getQuietly(DatastoreUtil.deleteAsync(ds, null, journalKeys));
     }
 
     /**
@@ -178,7 +341,8 @@ public class Journal {
     }
 
     /**
-     * Puts the journals to the datastore.
+     * Puts the journals to the datastore. If the compressed journal format is
+     * enabled, the entities to put are stored as a compressed container.
      * 
      * @param ds
      *            the asynchronous datastore service
@@ -195,6 +359,37 @@ public class Journal {
     public static List<Entity> put(AsyncDatastoreService ds,
             Key globalTransactionKey, Map<Key, Entity> journalMap)
             throws NullPointerException {
+        return put(
+            ds,
+            globalTransactionKey,
+            journalMap,
+            Collections.<Key, EntityProto> emptyMap());
+    }
+
+    /**
+     * Puts the journals to the datastore. The entities which are already
+     * encoded as protocol buffers are stored as they are. If the compressed
+     * journal format is enabled, the entities to put are stored as a
+     * compressed container.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param globalTransactionKey
+     *            the global transaction key
+     * @param journalMap
+     *            the map of journals
+     * @param protoMap
+     *            the map of the entities encoded as protocol buffers
+     * @return journal entities
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the globalTransactionKey
+     *             parameter is null or if the journalMap parameter is null or
+     *             if the protoMap parameter is null
+     * @since 1.0.17
+     */
+    public static List<Entity> put(AsyncDatastoreService ds,
+            Key globalTransactionKey, Map<Key, Entity> journalMap,
+            Map<Key, EntityProto> protoMap) throws NullPointerException {
         if (ds == null) {
             throw new NullPointerException("The ds parameter must not be null.");
         }
@@ -202,19 +397,31 @@ public class Journal {
             throw new NullPointerException(
                 "The journalMap parameter must not be null.");
         }
+        if (protoMap == null) {
+            throw new NullPointerException(
+                "The protoMap parameter must not be null.");
+        }
         List<Entity> entities = new ArrayList<Entity>();
-        if (journalMap.size() == 0) {
+        if (journalMap.size() == 0 && protoMap.size() == 0) {
             return entities;
         }
+        Map<Key, EntityProto> encodedMap =
+            new LinkedHashMap<Key, EntityProto>(protoMap);
+        for (Key key : journalMap.keySet()) {
+            Entity targetEntity = journalMap.get(key);
+            encodedMap.put(key, targetEntity != null ? EntityTranslator
+                .convertToPb(targetEntity) : null);
+        }
+        if (isCompressionEnabled()) {
+            return putCompressed(ds, globalTransactionKey, encodedMap);
+        }
         int totalSize = 0;
         Entity entity = createEntity(ds, globalTransactionKey);
         List<Blob> putList = new ArrayList<Blob>();
         List<Key> deleteList = new ArrayList<Key>();
-        for (Key key : journalMap.keySet()) {
-            Entity targetEntity = journalMap.get(key);
-            boolean put = targetEntity != null;
-            EntityProto targetProto =
-                put ? EntityTranslator.convertToPb(targetEntity) : null;
+        for (Key key : encodedMap.keySet()) {
+            EntityProto targetProto = encodedMap.get(key);
+            boolean put = targetProto != null;
             int size = put ? targetProto.encodingSize() : 0;
             if (totalSize != 0
                 && totalSize + size + DatastoreUtil.EXTRA_SIZE > DatastoreUtil.MAX_ENTITY_SIZE) {
@@ -228,7 +435,7 @@ public class Journal {
                 totalSize = 0;
             }
             if (put) {
-                byte[] content = new byte[targetProto.encodingSize()];
+                byte[] content = new byte[size];
                 targetProto.outputTo(content, 0);
                 putList.add(new Blob(content));
             } else {
@@ -243,6 +450,186 @@ public class Journal {
         return entities;
     }
 
+    /**
+     * Puts the journals to the datastore in the compressed journal format.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param globalTransactionKey
+     *            the global transaction key
+     * @param encodedMap
+     *            the map of the entities encoded as protocol buffers
+     * @return journal entities
+     * @since 1.0.17
+     */
+    protected static List<Entity> putCompressed(AsyncDatastoreService ds,
+            Key globalTransactionKey, Map<Key, EntityProto> encodedMap) {
+        List<Entity> entities = new ArrayList<Entity>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        List<Key> deleteList = new ArrayList<Key>();
+        int totalSize = 0;
+        for (Key key : encodedMap.keySet()) {
+            EntityProto targetProto = encodedMap.get(key);
+            if (targetProto == null) {
+                deleteList.add(key);
+                continue;
+            }
+            byte[] content = new byte[targetProto.encodingSize()];
+            targetProto.outputTo(content, 0);
+            if (totalSize != 0
+                && totalSize + content.length > DatastoreUtil.MAX_ENTITY_SIZE
+                    * MAX_COMPRESSION_RATIO) {
+                createCompressedEntities(
+                    ds,
+                    globalTransactionKey,
+                    contents,
+                    entities,
+                    sizes);
+                contents = new ArrayList<byte[]>();
+                totalSize = 0;
+            }
+            contents.add(content);
+            totalSize += content.length;
+        }
+        if (contents.size() > 0) {
+            createCompressedEntities(
+                ds,
+                globalTransactionKey,
+                contents,
+                entities,
+                sizes);
+        }
+        int maxKeys = DatastoreUtil.MAX_ENTITY_SIZE / DatastoreUtil.EXTRA_SIZE;
+        int index = 0;
+        for (int i = 0; i < entities.size() && index < deleteList.size(); i++) {
+            int end =
+                Math.min(deleteList.size(), index
+                    + (DatastoreUtil.MAX_ENTITY_SIZE - sizes.get(i))
+                    / DatastoreUtil.EXTRA_SIZE);
+            entities.get(i).setUnindexedProperty(
+                DELETE_LIST_PROPERTY,
+                new ArrayList<Key>(deleteList.subList(index, end)));
+            index = end;
+        }
+        while (index < deleteList.size()) {
+            int end = Math.min(deleteList.size(), index + maxKeys);
+            Entity entity = createEntity(ds, globalTransactionKey);
+            entity.setUnindexedProperty(
+                DELETE_LIST_PROPERTY,
+                new ArrayList<Key>(deleteList.subList(index, end)));
+            entities.add(entity);
+            index = end;
+        }
+        for (Entity entity : entities) {
+            DatastoreUtil.put(ds, null, entity);
+        }
+        return entities;
+    }
+
+    /**
+     * Creates journal entities that contain the compressed contents. If the
+     * compressed contents exceed {@link DatastoreUtil#MAX_ENTITY_SIZE}, the
+     * contents are split in half. A content that cannot be compressed enough
+     * is stored uncompressed.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param globalTransactionKey
+     *            the global transaction key
+     * @param contents
+     *            the encoded entities
+     * @param entities
+     *            the journal entities
+     * @param sizes
+     *            the sizes of the journal entities
+     */
+    protected static void createCompressedEntities(AsyncDatastoreService ds,
+            Key globalTransactionKey, List<byte[]> contents,
+            List<Entity> entities, List<Integer> sizes) {
+        byte[] compressed = compress(contents);
+        int size = compressed.length + DatastoreUtil.EXTRA_SIZE;
+        if (size <= DatastoreUtil.MAX_ENTITY_SIZE) {
+            Entity entity = createEntity(ds, globalTransactionKey);
+            entity.setUnindexedProperty(
+                COMPRESSED_PUT_LIST_PROPERTY,
+                new Blob(compressed));
+            entities.add(entity);
+            sizes.add(size);
+        } else if (contents.size() > 1) {
+            int half = contents.size() / 2;
+            createCompressedEntities(ds, globalTransactionKey, contents
+                .subList(0, half), entities, sizes);
+            createCompressedEntities(ds, globalTransactionKey, contents
+                .subList(half, contents.size()), entities, sizes);
+        } else {
+            byte[] content = contents.get(0);
+            Entity entity = createEntity(ds, globalTransactionKey);
+            entity.setUnindexedProperty(PUT_LIST_PROPERTY, Arrays
+                .asList(new Blob(content)));
+            entities.add(entity);
+            sizes.add(content.length + DatastoreUtil.EXTRA_SIZE);
+        }
+    }
+
+    /**
+     * Compresses the encoded entities into a container.
+     * 
+     * @param contents
+     *            the encoded entities
+     * @return the compressed container
+     * @since 1.0.17
+     */
+    protected static byte[] compress(List<byte[]> contents) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out =
+                new DataOutputStream(new DeflaterOutputStream(baos));
+            try {
+                out.writeInt(contents.size());
+                for (byte[] content : contents) {
+                    out.writeInt(content.length);
+                    out.write(content);
+                }
+            } finally {
+                out.close();
+            }
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new WrapRuntimeException(e);
+        }
+    }
+
+    /**
+     * Decompresses the container into the encoded entities.
+     * 
+     * @param bytes
+     *            the compressed container
+     * @return the encoded entities
+     * @since 1.0.17
+     */
+    protected static List<byte[]> decompress(byte[] bytes) {
+        try {
+            DataInputStream in =
+                new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(bytes)));
+            try {
+                int size = in.readInt();
+                List<byte[]> contents = new ArrayList<byte[]>(size);
+                for (int i = 0; i < size; i++) {
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    contents.add(content);
+                }
+                return contents;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new WrapRuntimeException(e);
+        }
+    }
+
     /**
      * Deletes entities specified by the global transaction key in transaction.
      * 
@@ -369,6 +756,22 @@ public class Journal {
         }
     }
 
+    /**
+     * Returns the maximum number of concurrent batches specified by the
+     * system property.
+     * 
+     * @return the maximum number of concurrent batches
+     */
+    protected static int getMaxConcurrentBatches() {
+        Integer max =
+            IntegerUtil.toInteger(System
+                .getProperty(AsyncDatastoreDelegate.MAX_CONCURRENT_BATCHES));
+        if (max != null && max > 0) {
+            return max;
+        }
+        return AsyncDatastoreDelegate.DEFAULT_MAX_CONCURRENT_BATCHES;
+    }
+
     /**
      * Constructor.
      * 
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+/**
+ * A marker interface for the model whose attributes annotated with
+ * {@code @Attribute(lazy = true)} are decoded on first access. The generated
+ * meta data of the model returns an instance of a subclass of the model that
+ * implements this interface.
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public interface LazyModel {
+}
\ No newline at end of file
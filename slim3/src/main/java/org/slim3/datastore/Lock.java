@@ -16,10 +16,15 @@
 package org.slim3.datastore;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slim3.util.FutureUtil;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Entity;
@@ -59,6 +64,22 @@ public class Lock {
      */
     protected static final long TIMEOUT = 30 * 1000;
 
+    /**
+     * The number of waits for an entity group locked by another global
+     * transaction.
+     */
+    protected static final AtomicLong waitCount = new AtomicLong();
+
+    /**
+     * The number of locks stolen from timed out global transactions.
+     */
+    protected static final AtomicLong stealCount = new AtomicLong();
+
+    /**
+     * The number of lock acquisitions that were given up.
+     */
+    protected static final AtomicLong abortCount = new AtomicLong();
+
     /**
      * The asynchronous datastore service.
      */
@@ -84,6 +105,53 @@ public class Lock {
      */
     protected Key globalTransactionKey;
 
+    /**
+     * Whether a lock older than {@link #TIMEOUT} can be stolen.
+     */
+    protected boolean stealAfterTimeout = true;
+
+    /**
+     * Returns the number of waits for an entity group locked by another global
+     * transaction.
+     * 
+     * @return the number of waits
+     * @since 1.0.17
+     */
+    public static long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Returns the number of locks stolen from timed out global transactions.
+     * 
+     * @return the number of steals
+     * @since 1.0.17
+     */
+    public static long getStealCount() {
+        return stealCount.get();
+    }
+
+    /**
+     * Returns the number of lock acquisitions that were given up.
+     * 
+     * @return the number of aborts
+     * @since 1.0.17
+     */
+    public static long getAbortCount() {
+        return abortCount.get();
+    }
+
+    /**
+     * Resets the counters.
+     * 
+     * @since 1.0.17
+     */
+    public static void resetCounts() {
+        waitCount.set(0);
+        stealCount.set(0);
+        abortCount.set(0);
+    }
+
     /**
      * Creates a key for lock.
      * 
@@ -444,6 +512,125 @@ public class Lock {
         return cme;
     }
 
+    /**
+     * Locks the entity groups concurrently. Each lock is acquired within its
+     * own local transaction, and the transactions are pipelined so that the
+     * latency scales with the slowest entity group instead of the sum of all
+     * entity groups. If locking an entity group failed, the locks acquired by
+     * this call are released.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param locks
+     *            the locks
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the locks parameter is
+     *             null
+     * @throws ConcurrentModificationException
+     *             if locking an entity group failed
+     * @since 1.0.17
+     */
+    public static void lockAll(AsyncDatastoreService ds, List<Lock> locks)
+            throws NullPointerException, ConcurrentModificationException {
+        if (ds == null) {
+            throw new NullPointerException("The ds parameter must not be null.");
+        }
+        if (locks == null) {
+            throw new NullPointerException(
+                "The locks parameter must not be null.");
+        }
+        int size = locks.size();
+        List<Future<Transaction>> txFutures =
+            new ArrayList<Future<Transaction>>(size);
+        for (int i = 0; i < size; i++) {
+            txFutures.add(ds.beginTransaction());
+        }
+        List<Transaction> txs = new ArrayList<Transaction>(size);
+        for (Future<Transaction> f : txFutures) {
+            txs.add(FutureUtil.getQuietly(f));
+        }
+        RuntimeException failure = null;
+        try {
+            List<Future<Map<Key, Entity>>> getFutures =
+                new ArrayList<Future<Map<Key, Entity>>>(size);
+            for (int i = 0; i < size; i++) {
+                getFutures.add(ds.get(txs.get(i), Arrays.asList(locks
+                    .get(i)
+                    .getKey())));
+            }
+            List<Future<Key>> putFutures = new ArrayList<Future<Key>>(size);
+            for (int i = 0; i < size; i++) {
+                Future<Key> putFuture = null;
+                try {
+                    Lock lock = locks.get(i);
+                    Entity otherEntity =
+                        FutureUtil.getQuietly(getFutures.get(i)).get(lock.key);
+                    if (otherEntity != null) {
+                        lock.verify(toLock(ds, otherEntity));
+                    }
+                    putFuture = ds.put(txs.get(i), lock.toEntity());
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                putFutures.add(putFuture);
+            }
+            List<Future<Void>> commitFutures =
+                new ArrayList<Future<Void>>(size);
+            for (int i = 0; i < size; i++) {
+                Future<Void> commitFuture = null;
+                if (putFutures.get(i) != null) {
+                    try {
+                        FutureUtil.getQuietly(putFutures.get(i));
+                        commitFuture = txs.get(i).commitAsync();
+                    } catch (RuntimeException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                commitFutures.add(commitFuture);
+            }
+            List<Lock> acquired = new ArrayList<Lock>(size);
+            for (int i = 0; i < size; i++) {
+                if (commitFutures.get(i) == null) {
+                    continue;
+                }
+                try {
+                    FutureUtil.getQuietly(commitFutures.get(i));
+                    acquired.add(locks.get(i));
+                } catch (ConcurrentModificationException e) {
+                    if (failure == null) {
+                        failure =
+                            createConcurrentModificationException(
+                                locks.get(i).rootKey,
+                                e);
+                    }
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null && !acquired.isEmpty()) {
+                deleteInTx(
+                    ds,
+                    acquired.get(0).globalTransactionKey,
+                    acquired);
+            }
+        } finally {
+            for (Transaction tx : txs) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     /**
      * Constructor.
      * 
@@ -576,7 +763,8 @@ public class Lock {
         if (globalTransactionKey.equals(other.globalTransactionKey)) {
             return;
         }
-        if (timestamp <= other.getTimestamp() + TIMEOUT) {
+        if (!stealAfterTimeout
+            || timestamp <= other.getTimestamp() + TIMEOUT) {
             throw createConcurrentModificationException(rootKey);
         }
         Transaction tx = DatastoreUtil.beginTransaction(ds);
@@ -587,11 +775,13 @@ public class Lock {
                 if (gtx.valid) {
                     throw createConcurrentModificationException(rootKey);
                 }
+                stealCount.incrementAndGet();
                 return;
             }
             gtx = new GlobalTransaction(ds, other.globalTransactionKey, false);
             GlobalTransaction.put(ds, tx, gtx);
             tx.commit();
+            stealCount.incrementAndGet();
         } catch (ConcurrentModificationException e) {
             throw createConcurrentModificationException(rootKey, e);
         } finally {
@@ -628,6 +818,27 @@ public class Lock {
         return rootKey;
     }
 
+    /**
+     * Determines if a lock older than {@link #TIMEOUT} can be stolen.
+     * 
+     * @return whether a lock older than the timeout can be stolen
+     * @since 1.0.17
+     */
+    public boolean isStealAfterTimeout() {
+        return stealAfterTimeout;
+    }
+
+    /**
+     * Specifies whether a lock older than {@link #TIMEOUT} can be stolen.
+     * 
+     * @param stealAfterTimeout
+     *            whether a lock older than the timeout can be stolen
+     * @since 1.0.17
+     */
+    public void setStealAfterTimeout(boolean stealAfterTimeout) {
+        this.stealAfterTimeout = stealAfterTimeout;
+    }
+
     /**
      * Returns the time-stamp.
      * 
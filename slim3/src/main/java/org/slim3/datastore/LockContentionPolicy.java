@@ -0,0 +1,191 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+/**
+ * A policy that determines how a {@link GlobalTransaction} waits for an entity
+ * group locked by another global transaction.
+ * 
+ * <p>
+ * By default, locking an entity group locked by another global transaction
+ * fails immediately. If the initial backoff and the maximum wait are
+ * specified, locking is retried with exponential backoff and jitter until the
+ * maximum wait has elapsed.
+ * </p>
+ * 
+ * <pre>
+ * GlobalTransaction gtx =
+ *     Datastore.beginGlobalTransaction(new LockContentionPolicy()
+ *         .initialBackoffMillis(20)
+ *         .maxBackoffMillis(500)
+ *         .maxWaitMillis(3000));
+ * </pre>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class LockContentionPolicy {
+
+    /**
+     * The default maximum backoff(milliseconds).
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+
+    /**
+     * The initial backoff(milliseconds).
+     */
+    protected long initialBackoffMillis = 0;
+
+    /**
+     * The maximum backoff(milliseconds).
+     */
+    protected long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    /**
+     * The maximum wait(milliseconds).
+     */
+    protected long maxWaitMillis = 0;
+
+    /**
+     * Whether a lock older than {@link Lock#TIMEOUT} can be stolen.
+     */
+    protected boolean stealAfterTimeout = true;
+
+    /**
+     * Specifies the initial backoff(milliseconds).
+     * 
+     * @param initialBackoffMillis
+     *            the initial backoff(milliseconds)
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the initialBackoffMillis parameter is negative
+     */
+    public LockContentionPolicy initialBackoffMillis(long initialBackoffMillis)
+            throws IllegalArgumentException {
+        if (initialBackoffMillis < 0) {
+            throw new IllegalArgumentException(
+                "The initialBackoffMillis parameter must not be negative.");
+        }
+        this.initialBackoffMillis = initialBackoffMillis;
+        return this;
+    }
+
+    /**
+     * Specifies the maximum backoff(milliseconds).
+     * 
+     * @param maxBackoffMillis
+     *            the maximum backoff(milliseconds)
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the maxBackoffMillis parameter is negative
+     */
+    public LockContentionPolicy maxBackoffMillis(long maxBackoffMillis)
+            throws IllegalArgumentException {
+        if (maxBackoffMillis < 0) {
+            throw new IllegalArgumentException(
+                "The maxBackoffMillis parameter must not be negative.");
+        }
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * Specifies the maximum wait(milliseconds).
+     * 
+     * @param maxWaitMillis
+     *            the maximum wait(milliseconds)
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the maxWaitMillis parameter is negative
+     */
+    public LockContentionPolicy maxWaitMillis(long maxWaitMillis)
+            throws IllegalArgumentException {
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException(
+                "The maxWaitMillis parameter must not be negative.");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * Specifies whether a lock older than {@link Lock#TIMEOUT} can be stolen.
+     * 
+     * @param stealAfterTimeout
+     *            whether a lock older than the timeout can be stolen
+     * @return this instance
+     */
+    public LockContentionPolicy stealAfterTimeout(boolean stealAfterTimeout) {
+        this.stealAfterTimeout = stealAfterTimeout;
+        return this;
+    }
+
+    /**
+     * Returns the initial backoff(milliseconds).
+     * 
+     * @return the initial backoff(milliseconds)
+     */
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    /**
+     * Returns the maximum backoff(milliseconds).
+     * 
+     * @return the maximum backoff(milliseconds)
+     */
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Returns the maximum wait(milliseconds).
+     * 
+     * @return the maximum wait(milliseconds)
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Determines if a lock older than {@link Lock#TIMEOUT} can be stolen.
+     * 
+     * @return whether a lock older than the timeout can be stolen
+     */
+    public boolean isStealAfterTimeout() {
+        return stealAfterTimeout;
+    }
+
+    /**
+     * Returns the backoff(milliseconds) before the next attempt. Returns 0 if
+     * waiting for the lock is disabled.
+     * 
+     * @param attempt
+     *            the number of failed attempts minus one
+     * @return the backoff(milliseconds)
+     * @see BackoffUtil#getBackoffMillis(long, long, int)
+     */
+    public long getBackoffMillis(int attempt) {
+        if (maxWaitMillis <= 0) {
+            return 0;
+        }
+        return BackoffUtil.getBackoffMillis(
+            initialBackoffMillis,
+            maxBackoffMillis,
+            attempt);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+
+/**
+ * A derived kind which keeps the properties of a model with a precomputed
+ * sort value.
+ * 
+ * <p>
+ * A view entity is a root entity whose key name is the encoded key of the
+ * source entity, so it is not returned by the ancestor queries of the source
+ * entity. While a view is registered, every put and delete of the source kind
+ * through {@link Datastore} or {@link GlobalTransaction} writes or deletes the
+ * view entity in the same batch or transaction. The view entity belongs to
+ * another entity group, so a transaction of {@link Datastore} which writes the
+ * source kind must be a cross-group transaction, enabled by
+ * {@link AsyncDatastoreDelegate#USE_XGTX}, and each source written in it uses
+ * two of the entity groups allowed in a cross-group transaction. Writing the
+ * source kind within a transaction which is not cross-group throws
+ * {@link IllegalStateException}. Without transaction, the source and the view
+ * entities are written in one batch which is not atomic, so the view entities
+ * of a failed batch must be repaired by {@link #rebuild(AsyncDatastoreService)}.
+ * Use
+ * {@link ModelQuery#sortByView(MaterializedView)} to read the models in the
+ * order of the sort values.
+ * </p>
+ * 
+ * <p>
+ * The views are registered per process. The writes on an instance which has
+ * not registered the view do not update the view entities, so register the
+ * views when the application starts and call
+ * {@link #rebuild(AsyncDatastoreService)} to repair the view after a missed
+ * write.
+ * </p>
+ * 
+ * <pre>
+ * public class HogeByScoreView extends MaterializedView {
+ * 
+ *     public HogeByScoreView() {
+ *         super(HogeMeta.get(), &quot;HogeByScore&quot;);
+ *     }
+ * 
+ *     protected Object getSortValue(Entity source) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public abstract class MaterializedView {
+
+    /**
+     * The name of the property which has the sort value.
+     */
+    public static final String SORT_VALUE_PROPERTY = "slim3.sortValue";
+
+    private static final Map<String, List<MaterializedView>> viewsMap =
+        new ConcurrentHashMap<String, List<MaterializedView>>();
+
+    /**
+     * The meta data of the source model.
+     */
+    protected ModelMeta<?> sourceMeta;
+
+    /**
+     * The kind of the view.
+     */
+    protected String kind;
+
+    /**
+     * The names of the projected properties. If this list is empty, all the
+     * properties are projected.
+     */
+    protected List<String> propertyNames;
+
+    /**
+     * Registers the view.
+     * 
+     * @param view
+     *            the view
+     * @throws NullPointerException
+     *             if the view parameter is null
+     */
+    public static void register(MaterializedView view)
+            throws NullPointerException {
+        if (view == null) {
+            throw new NullPointerException(
+                "The view parameter must not be null.");
+        }
+        String sourceKind = view.getSourceMeta().getKind();
+        synchronized (viewsMap) {
+            List<MaterializedView> views = viewsMap.get(sourceKind);
+            if (views == null) {
+                views = new CopyOnWriteArrayList<MaterializedView>();
+                viewsMap.put(sourceKind, views);
+            }
+            views.add(view);
+        }
+    }
+
+    /**
+     * Unregisters the view.
+     * 
+     * @param view
+     *            the view
+     */
+    public static void unregister(MaterializedView view) {
+        if (view == null) {
+            return;
+        }
+        String sourceKind = view.getSourceMeta().getKind();
+        synchronized (viewsMap) {
+            List<MaterializedView> views = viewsMap.get(sourceKind);
+            if (views != null) {
+                views.remove(view);
+                if (views.isEmpty()) {
+                    viewsMap.remove(sourceKind);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the views registered for the source kind.
+     * 
+     * @param sourceKind
+     *            the source kind
+     * @return the views
+     */
+    public static List<MaterializedView> getViews(String sourceKind) {
+        List<MaterializedView> views =
+            sourceKind != null ? viewsMap.get(sourceKind) : null;
+        if (views == null) {
+            return Collections.emptyList();
+        }
+        return views;
+    }
+
+    /**
+     * Returns the view entities for the source entities of the registered
+     * views. The keys are assigned to the source entities if necessary.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param entities
+     *            the source entities
+     * @return the view entities
+     */
+    public static List<Entity> toViewEntities(AsyncDatastoreService ds,
+            Iterable<Entity> entities) {
+        if (viewsMap.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Entity> ret = new ArrayList<Entity>();
+        for (Entity entity : entities) {
+            List<MaterializedView> views = getViews(entity.getKind());
+            if (views.isEmpty()) {
+                continue;
+            }
+            DatastoreUtil.assignKeyIfNecessary(ds, entity);
+            for (MaterializedView view : views) {
+                ret.add(view.toViewEntity(entity));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the keys of the view entities for the source keys of the
+     * registered views.
+     * 
+     * @param keys
+     *            the source keys
+     * @return the keys of the view entities
+     */
+    public static List<Key> toViewKeys(Iterable<Key> keys) {
+        if (viewsMap.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Key> ret = new ArrayList<Key>();
+        for (Key key : keys) {
+            if (key == null) {
+                continue;
+            }
+            for (MaterializedView view : getViews(key.getKind())) {
+                ret.add(view.toViewKey(key));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param sourceMeta
+     *            the meta data of the source model
+     * @param kind
+     *            the kind of the view
+     * @param propertyNames
+     *            the names of the projected properties. If no names are
+     *            specified, all the properties are projected.
+     * @throws NullPointerException
+     *             if the sourceMeta parameter is null or if the kind parameter
+     *             is null
+     */
+    protected MaterializedView(ModelMeta<?> sourceMeta, String kind,
+            String... propertyNames) throws NullPointerException {
+        if (sourceMeta == null) {
+            throw new NullPointerException(
+                "The sourceMeta parameter must not be null.");
+        }
+        if (kind == null) {
+            throw new NullPointerException(
+                "The kind parameter must not be null.");
+        }
+        this.sourceMeta = sourceMeta;
+        this.kind = kind;
+        this.propertyNames = Arrays.asList(propertyNames);
+    }
+
+    /**
+     * Returns the meta data of the source model.
+     * 
+     * @return the meta data of the source model
+     */
+    public ModelMeta<?> getSourceMeta() {
+        return sourceMeta;
+    }
+
+    /**
+     * Returns the kind of the view.
+     * 
+     * @return the kind of the view
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * Determines if only some properties are projected to the view.
+     * 
+     * @return whether only some properties are projected to the view
+     */
+    public boolean isProjected() {
+        return !propertyNames.isEmpty();
+    }
+
+    /**
+     * Returns the sort value of the source entity. The value must be a type
+     * which datastore can index.
+     * 
+     * @param source
+     *            the source entity
+     * @return the sort value
+     */
+    protected abstract Object getSortValue(Entity source);
+
+    /**
+     * Returns the key of the view entity for the source key.
+     * 
+     * @param sourceKey
+     *            the source key
+     * @return the key of the view entity
+     */
+    public Key toViewKey(Key sourceKey) {
+        return KeyFactory.createKey(kind, KeyFactory.keyToString(sourceKey));
+    }
+
+    /**
+     * Returns the source key for the key of the view entity.
+     * 
+     * @param viewKey
+     *            the key of the view entity
+     * @return the source key
+     */
+    public Key toSourceKey(Key viewKey) {
+        return KeyFactory.stringToKey(viewKey.getName());
+    }
+
+    /**
+     * Returns the view entity for the source entity.
+     * 
+     * @param source
+     *            the source entity
+     * @return the view entity
+     */
+    public Entity toViewEntity(Entity source) {
+        Entity view = new Entity(toViewKey(source.getKey()));
+        if (propertyNames.isEmpty()) {
+            view.setPropertiesFrom(source);
+        } else {
+            copyProperty(source, view, sourceMeta.getClassHierarchyListName());
+            for (String name : propertyNames) {
+                copyProperty(source, view, name);
+            }
+        }
+        view.setProperty(SORT_VALUE_PROPERTY, getSortValue(source));
+        return view;
+    }
+
+    /**
+     * Returns the source entity restored from the view entity. The view must
+     * project all the properties, because a source entity which lacks some
+     * properties would lose them when it is put.
+     * 
+     * @param view
+     *            the view entity
+     * @return the source entity
+     * @throws IllegalStateException
+     *             if the view projects only some properties
+     */
+    public Entity toSourceEntity(Entity view) throws IllegalStateException {
+        if (isProjected()) {
+            throw new IllegalStateException("The view("
+                + kind
+                + ") projects only some properties, "
+                + "so the source entity cannot be restored.");
+        }
+        Entity source = new Entity(toSourceKey(view.getKey()));
+        source.setPropertiesFrom(view);
+        source.removeProperty(SORT_VALUE_PROPERTY);
+        return source;
+    }
+
+    /**
+     * Returns the source entities restored from the view entities.
+     * 
+     * @param views
+     *            the view entities
+     * @return the source entities
+     */
+    public List<Entity> toSourceEntities(List<Entity> views) {
+        List<Entity> ret = new ArrayList<Entity>(views.size());
+        for (Entity e : views) {
+            ret.add(toSourceEntity(e));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the source entities restored from the view entities.
+     * 
+     * @param views
+     *            the view entities
+     * @return the source entities
+     */
+    public QueryResultList<Entity> toSourceEntities(
+            QueryResultList<Entity> views) {
+        return new SourceEntityList(toSourceEntities((List<Entity>) views), views);
+    }
+
+    /**
+     * Returns the iterator of the source entities restored from the view
+     * entities.
+     * 
+     * @param views
+     *            the iterator of the view entities
+     * @return the iterator of the source entities
+     */
+    public QueryResultIterator<Entity> toSourceEntities(
+            QueryResultIterator<Entity> views) {
+        return new SourceEntityIterator(views);
+    }
+
+    /**
+     * Rebuilds the view entities from the source entities. The view entities
+     * of all the source entities are put and the view entities whose source
+     * entities do not exist are deleted.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @throws NullPointerException
+     *             if the ds parameter is null
+     */
+    public void rebuild(AsyncDatastoreService ds) throws NullPointerException {
+        if (ds == null) {
+            throw new NullPointerException(
+                "The ds parameter must not be null.");
+        }
+        List<Entity> views = new ArrayList<Entity>();
+        for (Entity source : new EntityQuery(ds, sourceMeta.getKind())
+            .asIterableEntities()) {
+            views.add(toViewEntity(source));
+            if (views.size() >= DatastoreUtil.MAX_NUMBER_OF_ENTITIES) {
+                DatastoreUtil.put(ds, null, views);
+                views.clear();
+            }
+        }
+        if (!views.isEmpty()) {
+            DatastoreUtil.put(ds, null, views);
+        }
+        List<Key> sourceKeys = new ArrayList<Key>();
+        for (Iterator<Key> i = new EntityQuery(ds, kind).asKeyIterator(); i
+            .hasNext();) {
+            sourceKeys.add(toSourceKey(i.next()));
+            if (sourceKeys.size() >= DatastoreUtil.MAX_NUMBER_OF_ENTITIES) {
+                deleteOrphans(ds, sourceKeys);
+                sourceKeys.clear();
+            }
+        }
+        if (!sourceKeys.isEmpty()) {
+            deleteOrphans(ds, sourceKeys);
+        }
+    }
+
+    private void deleteOrphans(AsyncDatastoreService ds, List<Key> sourceKeys) {
+        Map<Key, Entity> sources = DatastoreUtil.getAsMap(ds, null, sourceKeys);
+        List<Key> orphans = new ArrayList<Key>();
+        for (Key sourceKey : sourceKeys) {
+            if (!sources.containsKey(sourceKey)) {
+                orphans.add(toViewKey(sourceKey));
+            }
+        }
+        if (!orphans.isEmpty()) {
+            DatastoreUtil.delete(ds, null, orphans);
+        }
+    }
+
+    private static void copyProperty(Entity from, Entity to, String name) {
+        if (!from.hasProperty(name)) {
+            return;
+        }
+        if (from.isUnindexedProperty(name)) {
+            to.setUnindexedProperty(name, from.getProperty(name));
+        } else {
+            to.setProperty(name, from.getProperty(name));
+        }
+    }
+
+    /**
+     * A query result list of the source entities.
+     */
+    private static class SourceEntityList extends ArrayList<Entity> implements
+            QueryResultList<Entity> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final QueryResultList<Entity> views;
+
+        private SourceEntityList(List<Entity> sources,
+                QueryResultList<Entity> views) {
+            super(sources);
+            this.views = views;
+        }
+
+        public List<Index> getIndexList() {
+            return views.getIndexList();
+        }
+
+        public Cursor getCursor() {
+            return views.getCursor();
+        }
+    }
+
+    /**
+     * A query result iterator of the source entities.
+     */
+    private class SourceEntityIterator implements QueryResultIterator<Entity> {
+
+        private final QueryResultIterator<Entity> views;
+
+        private SourceEntityIterator(QueryResultIterator<Entity> views) {
+            this.views = views;
+        }
+
+        public boolean hasNext() {
+            return views.hasNext();
+        }
+
+        public Entity next() {
+            return toSourceEntity(views.next());
+        }
+
+        public void remove() {
+            views.remove();
+        }
+
+        public List<Index> getIndexList() {
+            return views.getIndexList();
+        }
+
+        public Cursor getCursor() {
+            return views.getCursor();
+        }
+    }
+}
\ No newline at end of file
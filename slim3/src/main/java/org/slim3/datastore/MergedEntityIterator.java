@@ -0,0 +1,350 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+/**
+ * A {@link QueryResultIterator} which merges the results of sub-queries
+ * sorted in the same order.
+ * 
+ * <p>
+ * The sub-queries are expected to be issued before this iterator is created,
+ * so that they run concurrently. The results are merged by
+ * {@link EntityComparator} and an entity returned by several sub-queries is
+ * returned once. The position of the merged results is represented by the
+ * encoded cursor which combines the cursors of the sub-queries, because it
+ * can not be represented by a single {@link Cursor}.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class MergedEntityIterator implements QueryResultIterator<Entity> {
+
+    /**
+     * The prefix of the encoded cursor.
+     */
+    public static final String CURSOR_PREFIX = "~";
+
+    /**
+     * The separator of the cursors of the sub-queries.
+     */
+    protected static final String CURSOR_SEPARATOR = ".";
+
+    /**
+     * The sources of the sub-queries.
+     */
+    protected List<Source> sources;
+
+    /**
+     * The sources which have the next result.
+     */
+    protected PriorityQueue<Source> queue;
+
+    /**
+     * The number of results to skip.
+     */
+    protected int offset;
+
+    /**
+     * The maximum number of results. Null means no limit.
+     */
+    protected Integer limit;
+
+    /**
+     * The number of returned results.
+     */
+    protected int count = 0;
+
+    /**
+     * Whether the sources are started.
+     */
+    protected boolean started = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param iterators
+     *            the iterators of the sub-queries
+     * @param startCursors
+     *            the start cursors of the sub-queries
+     * @param comparator
+     *            the comparator of the results
+     * @param offset
+     *            the number of results to skip
+     * @param limit
+     *            the maximum number of results
+     * @throws NullPointerException
+     *             if the iterators parameter is null or if the startCursors
+     *             parameter is null or if the comparator parameter is null
+     * @throws IllegalArgumentException
+     *             if the size of the startCursors parameter is different from
+     *             the size of the iterators parameter
+     */
+    public MergedEntityIterator(List<QueryResultIterator<Entity>> iterators,
+            List<Cursor> startCursors, final Comparator<Entity> comparator,
+            Integer offset, Integer limit) throws NullPointerException,
+            IllegalArgumentException {
+        if (iterators == null) {
+            throw new NullPointerException(
+                "The iterators parameter must not be null.");
+        }
+        if (startCursors == null) {
+            throw new NullPointerException(
+                "The startCursors parameter must not be null.");
+        }
+        if (comparator == null) {
+            throw new NullPointerException(
+                "The comparator parameter must not be null.");
+        }
+        if (iterators.size() != startCursors.size()) {
+            throw new IllegalArgumentException(
+                "The size of the startCursors parameter must be "
+                    + iterators.size()
+                    + ".");
+        }
+        sources = new ArrayList<Source>(iterators.size());
+        for (int i = 0; i < iterators.size(); i++) {
+            sources.add(new Source(iterators.get(i), startCursors.get(i)));
+        }
+        queue =
+            new PriorityQueue<Source>(
+                Math.max(iterators.size(), 1),
+                new Comparator<Source>() {
+                    public int compare(Source s1, Source s2) {
+                        return comparator.compare(s1.head, s2.head);
+                    }
+                });
+        this.offset = offset != null ? offset : 0;
+        this.limit = limit;
+    }
+
+    /**
+     * Encodes the cursors of the sub-queries.
+     * 
+     * @param cursors
+     *            the cursors of the sub-queries
+     * @return the encoded cursor
+     */
+    public static String encodeCursor(List<Cursor> cursors) {
+        StringBuilder sb = new StringBuilder(CURSOR_PREFIX);
+        for (int i = 0; i < cursors.size(); i++) {
+            if (i > 0) {
+                sb.append(CURSOR_SEPARATOR);
+            }
+            Cursor c = cursors.get(i);
+            if (c != null) {
+                sb.append(c.toWebSafeString());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes the cursors of the sub-queries.
+     * 
+     * @param encodedCursor
+     *            the encoded cursor
+     * @return the cursors of the sub-queries
+     * @throws IllegalArgumentException
+     *             if the encoded cursor is not made by
+     *             {@link #encodeCursor(List)}
+     */
+    public static List<Cursor> decodeCursor(String encodedCursor)
+            throws IllegalArgumentException {
+        if (!isEncodedCursor(encodedCursor)) {
+            throw new IllegalArgumentException("The encoded cursor("
+                + encodedCursor
+                + ") is not a merged cursor.");
+        }
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (String s : encodedCursor.substring(CURSOR_PREFIX.length()).split(
+            "\\" + CURSOR_SEPARATOR,
+            -1)) {
+            cursors.add(s.length() > 0 ? Cursor.fromWebSafeString(s) : null);
+        }
+        return cursors;
+    }
+
+    /**
+     * Determines if the encoded cursor is made by {@link #encodeCursor(List)}.
+     * 
+     * @param encodedCursor
+     *            the encoded cursor
+     * @return whether the encoded cursor is a merged cursor
+     */
+    public static boolean isEncodedCursor(String encodedCursor) {
+        return encodedCursor != null
+            && encodedCursor.startsWith(CURSOR_PREFIX);
+    }
+
+    public boolean hasNext() {
+        start();
+        return !queue.isEmpty() && (limit == null || count < limit);
+    }
+
+    public Entity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        return poll();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * This operation is not supported. Use {@link #getEncodedCursor()}.
+     * 
+     * @throws UnsupportedOperationException
+     *             always
+     */
+    public Cursor getCursor() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(
+            "The merged results have no single cursor. Use getEncodedCursor().");
+    }
+
+    /**
+     * Returns the encoded cursor which points to the position after the
+     * returned results.
+     * 
+     * @return the encoded cursor
+     */
+    public String getEncodedCursor() {
+        start();
+        List<Cursor> cursors = new ArrayList<Cursor>(sources.size());
+        for (Source s : sources) {
+            cursors.add(s.cursor);
+        }
+        return encodeCursor(cursors);
+    }
+
+    public List<Index> getIndexList() {
+        List<Index> list = new ArrayList<Index>();
+        for (Source s : sources) {
+            List<Index> indexes = s.iterator.getIndexList();
+            if (indexes != null) {
+                list.addAll(indexes);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Takes the first results of the sources and skips the offset.
+     */
+    protected void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        for (Source s : sources) {
+            if (s.advance()) {
+                queue.add(s);
+            }
+        }
+        for (int i = 0; i < offset && !queue.isEmpty(); i++) {
+            poll();
+        }
+    }
+
+    /**
+     * Removes the smallest result and the same entity from the other sources.
+     * 
+     * @return the smallest result
+     */
+    protected Entity poll() {
+        Source source = queue.poll();
+        Entity entity = source.head;
+        Key key = entity.getKey();
+        if (source.advance()) {
+            queue.add(source);
+        }
+        while (!queue.isEmpty() && key.equals(queue.peek().head.getKey())) {
+            Source s = queue.poll();
+            if (s.advance()) {
+                queue.add(s);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * The results of a sub-query.
+     */
+    protected static class Source {
+
+        /**
+         * The iterator of the sub-query.
+         */
+        protected QueryResultIterator<Entity> iterator;
+
+        /**
+         * The cursor which points to the position before the head.
+         */
+        protected Cursor cursor;
+
+        /**
+         * The next result.
+         */
+        protected Entity head;
+
+        /**
+         * Constructor.
+         * 
+         * @param iterator
+         *            the iterator of the sub-query
+         * @param startCursor
+         *            the start cursor of the sub-query
+         */
+        protected Source(QueryResultIterator<Entity> iterator,
+                Cursor startCursor) {
+            this.iterator = iterator;
+            this.cursor = startCursor;
+        }
+
+        /**
+         * Moves to the next result.
+         * 
+         * @return whether the next result exists
+         */
+        protected boolean advance() {
+            if (head != null) {
+                cursor = iterator.getCursor();
+            }
+            if (iterator.hasNext()) {
+                head = iterator.next();
+                return true;
+            }
+            head = null;
+            return false;
+        }
+    }
+}
\ No newline at end of file
@@ -58,4 +58,12 @@ public @interface Model {
      * The model listener.
      */
     Class<?> listener() default ModelListener.class;
+
+    /**
+     * Whether the entities are cached in memcache. If the value is true and
+     * the model cache is enabled by the system property "slim3.useModelCache",
+     * the entities read without transaction are cached as the second-level
+     * cache.
+     */
+    boolean cacheable() default false;
 }
\ No newline at end of file
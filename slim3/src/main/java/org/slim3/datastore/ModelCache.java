@@ -0,0 +1,363 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.slim3.memcache.Memcache;
+import org.slim3.util.IntegerUtil;
+import org.slim3.util.LongUtil;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * A second-level cache of entities stored in memcache.
+ * 
+ * <p>
+ * This cache is used only if it is enabled by the system property
+ * {@link #USE_MODEL_CACHE}. Otherwise nothing is cached and no write pays for
+ * an invalidation in memcache. The property must be set consistently in all
+ * the processes of the application, because an entity cached by one process
+ * is invalidated by the writes of the others.
+ * </p>
+ * 
+ * <p>
+ * Only the entities of the kinds whose model is annotated with
+ * {@code @Model(cacheable = true)} are cached. Entities are read through the
+ * cache without transaction and are stored as the bytes converted by
+ * {@link DatastoreUtil#entityToBytes(Entity)}. The cached entries expire after
+ * {@link #getExpirationSeconds()}, so an invalidation that was missed, for
+ * example by a writer that does not use slim3, is not permanent.
+ * </p>
+ * 
+ * <p>
+ * Every write and delete removes the cached entries of its keys, whether or
+ * not the kind is registered in this process, and denies re-adding them for a
+ * while, so that a read started before the write can not store stale data.
+ * A write within a transaction denies re-adding them for
+ * {@link #TRANSACTION_INVALIDATION_MILLIS}, the maximum lifetime of a
+ * transaction, because a read without transaction sees the old entity until
+ * the transaction commits.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class ModelCache {
+
+    /**
+     * The key of useModelCache.
+     */
+    public static final String USE_MODEL_CACHE = "slim3.useModelCache";
+
+    /**
+     * The key of the time during which re-adding invalidated entries is
+     * denied.
+     */
+    public static final String INVALIDATION_MILLIS =
+        "slim3.modelCacheInvalidationMillis";
+
+    /**
+     * The default time during which re-adding invalidated entries is denied.
+     */
+    public static final long DEFAULT_INVALIDATION_MILLIS = 1000;
+
+    /**
+     * The time during which re-adding entries invalidated within a
+     * transaction is denied.
+     */
+    public static final long TRANSACTION_INVALIDATION_MILLIS = 60000;
+
+    /**
+     * The key of the expiration time of cached entries in seconds.
+     */
+    public static final String EXPIRATION_SECONDS =
+        "slim3.modelCacheExpirationSeconds";
+
+    /**
+     * The default expiration time of cached entries in seconds.
+     */
+    public static final int DEFAULT_EXPIRATION_SECONDS = 600;
+
+    /**
+     * The prefix of memcache keys.
+     */
+    public static final String KEY_PREFIX = "slim3.ModelCache:";
+
+    private static final Logger logger =
+        Logger.getLogger(ModelCache.class.getName());
+
+    private static final Set<String> cacheableKinds =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Determines if the model cache is enabled by the system property.
+     * 
+     * @return whether the model cache is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_MODEL_CACHE));
+    }
+
+    /**
+     * Registers the kind as cacheable.
+     * 
+     * @param kind
+     *            the kind
+     * @throws NullPointerException
+     *             if the kind parameter is null
+     */
+    public static void register(String kind) throws NullPointerException {
+        if (kind == null) {
+            throw new NullPointerException(
+                "The kind parameter must not be null.");
+        }
+        cacheableKinds.add(kind);
+    }
+
+    /**
+     * Unregisters the kind.
+     * 
+     * @param kind
+     *            the kind
+     */
+    public static void unregister(String kind) {
+        if (kind != null) {
+            cacheableKinds.remove(kind);
+        }
+    }
+
+    /**
+     * Determines if the entity specified by the key is cacheable. Nothing is
+     * cacheable if the model cache is not enabled.
+     * 
+     * @param key
+     *            the key
+     * @return whether the entity specified by the key is cacheable
+     */
+    public static boolean isCacheable(Key key) {
+        return key != null
+            && !cacheableKinds.isEmpty()
+            && cacheableKinds.contains(key.getKind())
+            && isEnabled();
+    }
+
+    /**
+     * Returns the cacheable keys.
+     * 
+     * @param keys
+     *            the keys
+     * @return the cacheable keys
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    public static List<Key> filter(Iterable<Key> keys)
+            throws NullPointerException {
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        List<Key> list = new ArrayList<Key>();
+        if (cacheableKinds.isEmpty() || !isEnabled()) {
+            return list;
+        }
+        for (Key key : keys) {
+            if (isCacheable(key)) {
+                list.add(key);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the cached entities. The keys that are not cacheable are
+     * ignored.
+     * 
+     * @param keys
+     *            the keys
+     * @return the cached entities
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    public static Map<Key, Entity> getAll(Iterable<Key> keys)
+            throws NullPointerException {
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        List<Key> cacheableKeys = filter(keys);
+        if (cacheableKeys.isEmpty()) {
+            return map;
+        }
+        Map<Object, Key> keyMap = new HashMap<Object, Key>();
+        for (Key key : cacheableKeys) {
+            keyMap.put(toMemcacheKey(key), key);
+        }
+        Map<Object, Object> values;
+        try {
+            values = Memcache.getAll(keyMap.keySet());
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+            return map;
+        }
+        for (Map.Entry<Object, Object> e : values.entrySet()) {
+            if (e.getValue() instanceof byte[]) {
+                map.put(keyMap.get(e.getKey()), DatastoreUtil
+                    .bytesToEntity((byte[]) e.getValue()));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Caches the entities read from datastore. The entities that are not
+     * cacheable are ignored. The entries that were invalidated recently are
+     * not cached.
+     * 
+     * @param map
+     *            the map of entities
+     * @throws NullPointerException
+     *             if the map parameter is null
+     */
+    public static void putAll(Map<Key, Entity> map) throws NullPointerException {
+        if (map == null) {
+            throw new NullPointerException(
+                "The map parameter must not be null.");
+        }
+        Map<Object, Object> values = new HashMap<Object, Object>();
+        for (Entity entity : map.values()) {
+            if (entity != null && isCacheable(entity.getKey())) {
+                values.put(
+                    toMemcacheKey(entity.getKey()),
+                    DatastoreUtil.entityToBytes(entity));
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        try {
+            Memcache.putAll(
+                values,
+                Expiration.byDeltaSeconds(getExpirationSeconds()),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the cached entities. The kinds of the keys need not be
+     * registered in this process, because the entities may have been cached
+     * by another process.
+     * 
+     * @param keys
+     *            the keys
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    public static void invalidate(Iterable<Key> keys)
+            throws NullPointerException {
+        invalidate(keys, false);
+    }
+
+    /**
+     * Removes the cached entities. The kinds of the keys need not be
+     * registered in this process, because the entities may have been cached
+     * by another process. Nothing is done if the model cache is not enabled.
+     * 
+     * @param keys
+     *            the keys
+     * @param inTransaction
+     *            whether the entities are written within a transaction
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    public static void invalidate(Iterable<Key> keys, boolean inTransaction)
+            throws NullPointerException {
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        List<Object> memcacheKeys = new ArrayList<Object>();
+        for (Key key : keys) {
+            if (key != null && key.isComplete()) {
+                memcacheKeys.add(toMemcacheKey(key));
+            }
+        }
+        if (memcacheKeys.isEmpty()) {
+            return;
+        }
+        long millis = getInvalidationMillis();
+        if (inTransaction && millis < TRANSACTION_INVALIDATION_MILLIS) {
+            millis = TRANSACTION_INVALIDATION_MILLIS;
+        }
+        try {
+            Memcache.deleteAll(memcacheKeys, millis);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the time during which re-adding invalidated entries is denied.
+     * 
+     * @return the time during which re-adding invalidated entries is denied
+     */
+    public static long getInvalidationMillis() {
+        Long millis = LongUtil.toLong(System.getProperty(INVALIDATION_MILLIS));
+        return millis != null ? millis : DEFAULT_INVALIDATION_MILLIS;
+    }
+
+    /**
+     * Returns the expiration time of cached entries in seconds.
+     * 
+     * @return the expiration time of cached entries in seconds
+     */
+    public static int getExpirationSeconds() {
+        Integer seconds =
+            IntegerUtil.toInteger(System.getProperty(EXPIRATION_SECONDS));
+        return seconds != null && seconds > 0
+            ? seconds
+            : DEFAULT_EXPIRATION_SECONDS;
+    }
+
+    /**
+     * Converts the key to the memcache key.
+     * 
+     * @param key
+     *            the key
+     * @return the memcache key
+     */
+    public static String toMemcacheKey(Key key) {
+        return KEY_PREFIX + KeyFactory.keyToString(key);
+    }
+
+    private ModelCache() {
+    }
+}
\ No newline at end of file
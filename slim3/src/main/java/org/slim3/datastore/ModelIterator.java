@@ -74,6 +74,7 @@ public class ModelIterator<M> implements Iterator<M> {
         ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, entity);
         M model = mm.entityToModel(entity);
         mm.postGet(model);
+        DirtyTracker.snapshotCurrent(model, entity);
         return model;
     }
 
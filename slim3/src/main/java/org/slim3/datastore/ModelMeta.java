@@ -35,10 +35,12 @@ import org.slim3.util.CipherFactory;
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.ShortBlob;
 import com.google.appengine.api.datastore.Text;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 
 /**
  * A meta data of model.
@@ -51,6 +53,12 @@ import com.google.appengine.api.datastore.Text;
  */
 public abstract class ModelMeta<M> {
 
+    /**
+     * The serializer to read the values written by {@link BinarySerializer}.
+     */
+    private static final BinarySerializer binarySerializer =
+        new BinarySerializer();
+
     /**
      * The kind of entity.
      */
@@ -117,6 +125,9 @@ public abstract class ModelMeta<M> {
             this.classHierarchyList =
                 Collections.unmodifiableList(classHierarchyList);
         }
+        if (isCacheable()) {
+            ModelCache.register(kind);
+        }
     }
 
     /**
@@ -194,6 +205,16 @@ public abstract class ModelMeta<M> {
      */
     public abstract String getClassHierarchyListName();
 
+    /**
+     * Determines if the entities of this model are cached in memcache.
+     * 
+     * @return whether the entities of this model are cached in memcache
+     * @since 1.0.17
+     */
+    public boolean isCacheable() {
+        return false;
+    }
+
     /**
      * Converts the entity to a model.
      * 
@@ -212,6 +233,20 @@ public abstract class ModelMeta<M> {
      */
     public abstract Entity modelToEntity(Object model);
 
+    /**
+     * Converts the model to an entity encoded as a protocol buffer. The
+     * generated meta data encodes the properties directly by
+     * {@link EntityProtoWriter} without creating {@link Entity}.
+     * 
+     * @param model
+     *            the model
+     * @return an entity encoded as a protocol buffer
+     * @since 1.0.17
+     */
+    public EntityProto modelToProto(Object model) {
+        return EntityTranslator.convertToPb(modelToEntity(model));
+    }
+
     /**
      * Converts the model to JSON string assuming maxDepth is 0.
      * 
@@ -824,9 +859,26 @@ public abstract class ModelMeta<M> {
      *            the short blob
      * @return a serializable object
      */
-    @SuppressWarnings("unchecked")
     protected <T> T shortBlobToSerializable(ShortBlob value) {
-        return value != null ? (T) ByteUtil.toObject(value.getBytes()) : null;
+        return shortBlobToSerializable(value, null);
+    }
+
+    /**
+     * Converts the short blob to a serializable object by the serializer.
+     * 
+     * @param <T>
+     *            the type
+     * @param value
+     *            the short blob
+     * @param serializer
+     *            the serializer
+     * @return a serializable object
+     */
+    protected <T> T shortBlobToSerializable(ShortBlob value,
+            AttributeSerializer serializer) {
+        return value != null ? this.<T> deserialize(
+            value.getBytes(),
+            serializer) : null;
     }
 
     /**
@@ -842,6 +894,22 @@ public abstract class ModelMeta<M> {
             : null;
     }
 
+    /**
+     * Converts the serializable object to a short blob by the serializer.
+     * 
+     * @param value
+     *            the serializable object
+     * @param serializer
+     *            the serializer
+     * @return a short blob
+     */
+    protected ShortBlob serializableToShortBlob(Object value,
+            AttributeSerializer serializer) {
+        return value != null
+            ? new ShortBlob(serializer.serialize(value))
+            : null;
+    }
+
     /**
      * Converts the blob to a serializable object.
      * 
@@ -851,9 +919,26 @@ public abstract class ModelMeta<M> {
      *            the blob
      * @return a serializable object
      */
-    @SuppressWarnings("unchecked")
     protected <T> T blobToSerializable(Blob value) {
-        return value != null ? (T) ByteUtil.toObject(value.getBytes()) : null;
+        return blobToSerializable(value, null);
+    }
+
+    /**
+     * Converts the blob to a serializable object by the serializer.
+     * 
+     * @param <T>
+     *            the type
+     * @param value
+     *            the blob
+     * @param serializer
+     *            the serializer
+     * @return a serializable object
+     */
+    protected <T> T blobToSerializable(Blob value,
+            AttributeSerializer serializer) {
+        return value != null ? this.<T> deserialize(
+            value.getBytes(),
+            serializer) : null;
     }
 
     /**
@@ -867,6 +952,49 @@ public abstract class ModelMeta<M> {
         return value != null ? new Blob(ByteUtil.toByteArray(value)) : null;
     }
 
+    /**
+     * Converts the serializable object to a blob by the serializer.
+     * 
+     * @param value
+     *            the serializable object
+     * @param serializer
+     *            the serializer
+     * @return a blob
+     */
+    protected Blob serializableToBlob(Object value,
+            AttributeSerializer serializer) {
+        return value != null ? new Blob(serializer.serialize(value)) : null;
+    }
+
+    /**
+     * Converts the array of bytes to a serializable object. The bytes written
+     * by Java serialization are always read by Java serialization so that the
+     * values written before the serializer is specified can be read.
+     * 
+     * @param <T>
+     *            the type
+     * @param bytes
+     *            the array of bytes
+     * @param serializer
+     *            the serializer
+     * @return a serializable object
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T deserialize(byte[] bytes, AttributeSerializer serializer) {
+        if (bytes.length >= 2
+            && bytes[0] == (byte) 0xAC
+            && bytes[1] == (byte) 0xED) {
+            return (T) ByteUtil.toObject(bytes);
+        }
+        if (serializer != null) {
+            return (T) serializer.deserialize(bytes);
+        }
+        if (BinarySerializer.isBinary(bytes)) {
+            return (T) binarySerializer.deserialize(bytes);
+        }
+        return (T) ByteUtil.toObject(bytes);
+    }
+
     /**
      * Converts the list to an array list.
      * 
@@ -17,20 +17,22 @@ package org.slim3.datastore;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
 import org.slim3.util.ConversionUtil;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
-import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.RawValue;
 import com.google.appengine.api.datastore.Transaction;
 
 /**
@@ -61,6 +63,17 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
     protected List<InMemorySortCriterion> inMemorySortCriteria =
         new ArrayList<InMemorySortCriterion>();
 
+    /**
+     * The maximum number of the results after the in-memory filters and
+     * sorts.
+     */
+    protected Integer inMemoryLimit;
+
+    /**
+     * The statistics of the caches used when the models are got by the keys.
+     */
+    protected CacheStats cacheStats;
+
     /**
      * Constructor.
      * 
@@ -219,24 +232,171 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
     }
 
     /**
-     * Returns the result as a list.
+     * Specifies the maximum number of the results after the in-memory filters
+     * and sorts. The results are filtered while iterating. If the in-memory
+     * sorts are specified, only the top results up to the limit are kept,
+     * otherwise the iteration stops when the limit is reached.
+     * 
+     * @param limit
+     *            the maximum number of the results
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the limit parameter is negative
+     */
+    public ModelQuery<M> limitInMemory(int limit)
+            throws IllegalArgumentException {
+        if (limit < 0) {
+            throw new IllegalArgumentException(
+                "The limit parameter must not be negative.");
+        }
+        inMemoryLimit = limit;
+        return this;
+    }
+
+    /**
+     * Makes {@link #asList()} run the query as keys-only and get the models by
+     * the keys through the request cache and the model cache. The models are
+     * returned in the query order. The models which are deleted after the
+     * query are skipped. The other methods returning models can not be used
+     * with this option.
+     * 
+     * @return this instance
+     * @see RequestCache
+     * @see ModelCache
+     */
+    public ModelQuery<M> fetchByKeys() {
+        cacheStats = new CacheStats();
+        return this;
+    }
+
+    /**
+     * Returns the statistics of the caches recorded by {@link #asList()} when
+     * {@link #fetchByKeys()} is specified. Returns null otherwise.
+     * 
+     * @return the statistics of the caches
+     */
+    public CacheStats getCacheStats() {
+        return cacheStats;
+    }
+
+    /**
+     * Reads the materialized view and sorts the results by the sort values of
+     * the view in ascending order.
+     * 
+     * @param view
+     *            the materialized view
+     * @return this instance
+     * @throws NullPointerException
+     *             if the view parameter is null
+     * @throws IllegalArgumentException
+     *             if the source kind of the view is different from the kind of
+     *             this query or if the view projects only some properties
+     * @throws IllegalStateException
+     *             if the query has an ancestor
+     */
+    public ModelQuery<M> sortByView(MaterializedView view)
+            throws NullPointerException, IllegalArgumentException,
+            IllegalStateException {
+        return sortByView(view, SortDirection.ASCENDING);
+    }
+
+    /**
+     * Reads the materialized view and sorts the results by the sort values of
+     * the view.
+     * 
+     * @param view
+     *            the materialized view
+     * @param direction
+     *            the sort direction
+     * @return this instance
+     * @throws NullPointerException
+     *             if the view parameter is null or if the direction parameter
+     *             is null
+     * @throws IllegalArgumentException
+     *             if the source kind of the view is different from the kind of
+     *             this query or if the view projects only some properties
+     * @throws IllegalStateException
+     *             if the query has an ancestor
+     */
+    public ModelQuery<M> sortByView(MaterializedView view,
+            SortDirection direction) throws NullPointerException,
+            IllegalArgumentException, IllegalStateException {
+        if (view == null) {
+            throw new NullPointerException(
+                "The view parameter must not be null.");
+        }
+        if (!modelMeta.getKind().equals(view.getSourceMeta().getKind())) {
+            throw new IllegalArgumentException("The source kind("
+                + view.getSourceMeta().getKind()
+                + ") of the view is different from the kind("
+                + modelMeta.getKind()
+                + ") of this query.");
+        }
+        if (view.isProjected()) {
+            throw new IllegalArgumentException("The view("
+                + view.getKind()
+                + ") projects only some properties, "
+                + "so the models cannot be restored from it.");
+        }
+        useView(view, direction);
+        return this;
+    }
+
+    /**
+     * Returns the result as a list. If the in-memory filters or the in-memory
+     * limit are specified, the in-memory filters are evaluated against each
+     * entity while iterating, and only the accepted entities are converted to
+     * models.
      * 
      * @return the result as a list
      */
     public List<M> asList() {
         applyPolyModelFilter();
+        if (cacheStats != null || isResultCacheEnabled()) {
+            return DatastoreUtil.filterAndSortInMemory(
+                new InMemoryFilterIterator<M>(
+                    asEntityListByKeys().iterator(),
+                    modelMeta,
+                    inMemoryFilterCriteria),
+                Collections.<InMemoryFilterCriterion> emptyList(),
+                inMemorySortCriteria,
+                inMemoryLimit);
+        }
+        if (inMemoryFilterCriteria.size() > 0 || inMemoryLimit != null) {
+            return DatastoreUtil.filterAndSortInMemory(
+                new InMemoryFilterIterator<M>(
+                    asEntityIterator(),
+                    modelMeta,
+                    inMemoryFilterCriteria),
+                Collections.<InMemoryFilterCriterion> emptyList(),
+                inMemorySortCriteria,
+                inMemoryLimit);
+        }
         List<Entity> entityList = asEntityList();
         List<M> ret = new ArrayList<M>(entityList.size());
         for (Entity e : entityList) {
             ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, e);
             M model = mm.entityToModel(e);
             mm.postGet(model);
+            DirtyTracker.snapshotCurrent(model, e, tx);
             ret.add(model);
         }
-        ret = DatastoreUtil.filterInMemory(ret, inMemoryFilterCriteria);
         return DatastoreUtil.sortInMemory(ret, inMemorySortCriteria);
     }
 
+    /**
+     * Runs the query as keys-only and returns the entities got by the keys in
+     * the query order. If the results are cached, the cached keys are used.
+     * 
+     * @return the entities
+     */
+    protected List<Entity> asEntityListByKeys() {
+        if (isResultCacheEnabled()) {
+            return getEntityList(asCachedResult().getKeys(), cacheStats);
+        }
+        return getEntityList(asKeyListOfCopy(), cacheStats);
+    }
+
     /**
      * Returns a query result list.
      * 
@@ -251,43 +411,70 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
             throw new IllegalStateException(
                 "In case of asQueryResultList(), you cannot specify sortInMemory().");
         }
+        if (inMemoryLimit != null) {
+            throw new IllegalStateException(
+                "In case of asQueryResultList(), you cannot specify limitInMemory().");
+        }
+        if (cacheStats != null) {
+            throw new IllegalStateException(
+                "In case of asQueryResultList(), you cannot specify fetchByKeys().");
+        }
         applyPolyModelFilter();
+        if (isResultCacheEnabled()) {
+            QueryCache.Result result = asCachedResult();
+            List<M> modelList = new ArrayList<M>(result.getKeys().size());
+            for (Entity e : getEntityList(result.getKeys(), cacheStats)) {
+                ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, e);
+                M model = mm.entityToModel(e);
+                mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, e, tx);
+                modelList.add(model);
+            }
+            return new S3QueryResultList<M>(
+                modelList,
+                result.getEncodedCursor(),
+                getEncodedFilter(),
+                getEncodedSorts(),
+                result.hasNext());
+        }
         List<M> modelList = null;
         boolean hasNext = false;
-        Cursor cursor = null;
-        if (fetchOptions.getLimit() == null) {
+        String encodedCursor = null;
+        if (fetchOptions.getLimit() == null && !isFanOut()) {
             QueryResultList<Entity> entityList = asQueryResultEntityList();
             modelList = new ArrayList<M>(entityList.size());
             for (Entity e : entityList) {
                 ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, e);
                 M model = mm.entityToModel(e);
                 mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, e, tx);
                 modelList.add(model);
             }
-            cursor = entityList.getCursor();
+            encodedCursor = encodeCursor(entityList.getCursor());
         } else {
-            int limit = fetchOptions.getLimit();
-            fetchOptions.limit(limit + 1);
+            Integer limit = fetchOptions.getLimit();
+            if (limit != null) {
+                fetchOptions.limit(limit + 1);
+            }
             modelList = new ArrayList<M>();
             QueryResultIterator<Entity> ite = asQueryResultEntityIterator();
             while (true) {
                 hasNext = ite.hasNext();
-                if (!hasNext || modelList.size() == limit) {
-                    cursor = ite.getCursor();
+                if (!hasNext || (limit != null && modelList.size() == limit)) {
+                    encodedCursor = getEncodedCursor(ite);
                     break;
                 }
                 Entity e = ite.next();
                 ModelMeta<M> mm = DatastoreUtil.getModelMeta(modelMeta, e);
                 M model = mm.entityToModel(e);
                 mm.postGet(model);
+                DirtyTracker.snapshotCurrent(model, e, tx);
                 modelList.add(model);
             }
         }
-        String cursorWebSafeString =
-            cursor == null ? null : cursor.toWebSafeString();
         return new S3QueryResultList<M>(
             modelList,
-            cursorWebSafeString,
+            encodedCursor,
             getEncodedFilter(),
             getEncodedSorts(),
             hasNext);
@@ -297,8 +484,15 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
      * Returns a query result iterator.
      * 
      * @return a query result iterator
+     * @throws IllegalStateException
+     *             if {@link #fetchByKeys()} is specified
      */
-    public S3QueryResultIterator<M> asQueryResultIterator() {
+    public S3QueryResultIterator<M> asQueryResultIterator()
+            throws IllegalStateException {
+        if (cacheStats != null) {
+            throw new IllegalStateException(
+                "In case of asQueryResultIterator(), you cannot specify fetchByKeys().");
+        }
         QueryResultIterator<Entity> iterator = asQueryResultEntityIterator();
         return new S3QueryResultIterator<M>(
             iterator,
@@ -349,6 +543,10 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
             throw new IllegalStateException(
                 "In the case of asKeyList(), you cannot specify filterInMemory().");
         }
+        if (inMemoryLimit != null) {
+            throw new IllegalStateException(
+                "In the case of asKeyList(), you cannot specify limitInMemory().");
+        }
         applyPolyModelFilter();
         List<Key> keys = super.asKeyList();
         if (inMemorySortCriteria.size() > 0 && inMemorySortCriteria.size() == 1) {
@@ -375,8 +573,8 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
      * 
      * @return the result as an {@link Iterator}
      * @throws IllegalStateException
-     *             if in-memory filers are specified or if in-memory sorts are
-     *             specified
+     *             if in-memory filers are specified, if in-memory sorts are
+     *             specified or if {@link #fetchByKeys()} is specified
      */
     public Iterator<M> asIterator() throws IllegalStateException {
         if (inMemoryFilterCriteria.size() > 0) {
@@ -387,6 +585,14 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
             throw new IllegalStateException(
                 "In case of asIterator(), you cannot specify sortInMemory().");
         }
+        if (inMemoryLimit != null) {
+            throw new IllegalStateException(
+                "In case of asIterator(), you cannot specify limitInMemory().");
+        }
+        if (cacheStats != null) {
+            throw new IllegalStateException(
+                "In case of asIterator(), you cannot specify fetchByKeys().");
+        }
         applyPolyModelFilter();
         Iterator<Entity> entityIterator = asEntityIterator();
         return new ModelIterator<M>(entityIterator, modelMeta);
@@ -409,9 +615,79 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
             throw new IllegalStateException(
                 "In case of asIterable(), you cannot specify sortInMemory().");
         }
+        if (inMemoryLimit != null) {
+            throw new IllegalStateException(
+                "In case of asIterable(), you cannot specify limitInMemory().");
+        }
         return new ModelIterable<M>(asIterator());
     }
 
+    /**
+     * Scans the models in parallel. The query is split into the partitions by
+     * the keys sampled from the kind, and the queries of all the partitions
+     * run concurrently. The in-memory filters are applied to each partition.
+     * 
+     * @param partitions
+     *            the number of partitions
+     * @param handler
+     *            the handler
+     * @throws NullPointerException
+     *             if the handler parameter is null
+     * @throws IllegalArgumentException
+     *             if the partitions parameter is less than 1
+     * @throws IllegalStateException
+     *             if in-memory sorts are specified or if the query has sort
+     *             orders, inequality filters, a limit, an offset or cursors
+     * @see #getSplitKeys(int)
+     */
+    public void scan(int partitions, ScanHandler<? super M> handler)
+            throws NullPointerException, IllegalArgumentException,
+            IllegalStateException {
+        scan(getSplitKeys(partitions), handler);
+    }
+
+    /**
+     * Scans the models in parallel. The query is split into the partitions by
+     * the keys, and the queries of all the partitions run concurrently. The
+     * in-memory filters are applied to each partition.
+     * 
+     * @param splitKeys
+     *            the split keys
+     * @param handler
+     *            the handler
+     * @throws NullPointerException
+     *             if the splitKeys parameter is null or if the handler
+     *             parameter is null
+     * @throws IllegalStateException
+     *             if in-memory sorts are specified or if the query has sort
+     *             orders, inequality filters, a limit, an offset or cursors
+     */
+    public void scan(List<Key> splitKeys, ScanHandler<? super M> handler)
+            throws NullPointerException, IllegalStateException {
+        if (handler == null) {
+            throw new NullPointerException(
+                "The handler parameter must not be null.");
+        }
+        if (inMemorySortCriteria.size() > 0) {
+            throw new IllegalStateException(
+                "In case of scan(), you cannot specify sortInMemory().");
+        }
+        if (inMemoryLimit != null) {
+            throw new IllegalStateException(
+                "In case of scan(), you cannot specify limitInMemory().");
+        }
+        applyPolyModelFilter();
+        List<InMemoryFilterIterator<M>> iterators =
+            new ArrayList<InMemoryFilterIterator<M>>();
+        for (Iterator<Entity> ite : asPartitionedEntityIterators(splitKeys)) {
+            iterators.add(new InMemoryFilterIterator<M>(
+                ite,
+                modelMeta,
+                inMemoryFilterCriteria));
+        }
+        scanIterators(iterators, handler);
+    }
+
     /**
      * Return a minimum value of the property. The value does not include null.
      * 
@@ -499,6 +775,191 @@ public class ModelQuery<M> extends AbstractQuery<ModelQuery<M>> {
         return super.count();
     }
 
+    /**
+     * Returns a number of entities. The keys of the entities are counted in
+     * parallel without decoding models. The query is split into the partitions
+     * by the keys sampled from the kind.
+     * 
+     * @param partitions
+     *            the number of partitions
+     * @return a number of entities
+     * @throws IllegalArgumentException
+     *             if the partitions parameter is less than 1
+     * @throws IllegalStateException
+     *             if in-memory filters are specified or if the query has sort
+     *             orders, inequality filters, a limit, an offset or cursors
+     * @see #getSplitKeys(int)
+     */
+    public int count(int partitions) throws IllegalArgumentException,
+            IllegalStateException {
+        if (inMemoryFilterCriteria.size() > 0) {
+            throw new IllegalStateException(
+                "In case of count(int), you cannot specify filterInMemory().");
+        }
+        inMemorySortCriteria.clear();
+        applyPolyModelFilter();
+        final int[] count = new int[1];
+        scanIterators(
+            asAggregateIterators(null, null, getSplitKeys(partitions)),
+            new ScanHandler<Entity>() {
+                public void handle(Entity value) {
+                    count[0]++;
+                }
+            });
+        return count[0];
+    }
+
+    /**
+     * Aggregates the values of the property. The values are projected from
+     * the index without decoding models. The property must be indexed.
+     * 
+     * @param <A>
+     *            the attribute type
+     * @param attributeMeta
+     *            the meta data of attribute
+     * @return the aggregated values
+     * @throws NullPointerException
+     *             if the attributeMeta parameter is null
+     * @throws IllegalStateException
+     *             if in-memory filters are specified or if the query has sort
+     *             orders, inequality filters, a limit, an offset or cursors
+     */
+    public <A> Aggregate<A> aggregate(CoreAttributeMeta<M, A> attributeMeta)
+            throws NullPointerException, IllegalStateException {
+        return aggregate(attributeMeta, 1);
+    }
+
+    /**
+     * Aggregates the values of the property in parallel. The values are
+     * projected from the index without decoding models. The property must be
+     * indexed. The query is split into the partitions by the keys sampled from
+     * the kind.
+     * 
+     * @param <A>
+     *            the attribute type
+     * @param attributeMeta
+     *            the meta data of attribute
+     * @param partitions
+     *            the number of partitions
+     * @return the aggregated values
+     * @throws NullPointerException
+     *             if the attributeMeta parameter is null
+     * @throws IllegalArgumentException
+     *             if the partitions parameter is less than 1
+     * @throws IllegalStateException
+     *             if in-memory filters are specified or if the query has sort
+     *             orders, inequality filters, a limit, an offset or cursors
+     * @see #getSplitKeys(int)
+     */
+    public <A> Aggregate<A> aggregate(CoreAttributeMeta<M, A> attributeMeta,
+            int partitions) throws NullPointerException,
+            IllegalArgumentException, IllegalStateException {
+        return aggregate(attributeMeta, partitions, false);
+    }
+
+    /**
+     * Aggregates the values of the property in parallel. The values are
+     * projected from the index without decoding models. The property must be
+     * indexed. The query is split into the partitions by the keys sampled from
+     * the kind. If countDistinct is true, all the distinct values are kept in
+     * memory to count them.
+     * 
+     * @param <A>
+     *            the attribute type
+     * @param attributeMeta
+     *            the meta data of attribute
+     * @param partitions
+     *            the number of partitions
+     * @param countDistinct
+     *            whether the distinct values are counted
+     * @return the aggregated values
+     * @throws NullPointerException
+     *             if the attributeMeta parameter is null
+     * @throws IllegalArgumentException
+     *             if the partitions parameter is less than 1
+     * @throws IllegalStateException
+     *             if in-memory filters are specified or if the query has sort
+     *             orders, inequality filters, a limit, an offset or cursors
+     * @see #getSplitKeys(int)
+     */
+    @SuppressWarnings("unchecked")
+    public <A> Aggregate<A> aggregate(CoreAttributeMeta<M, A> attributeMeta,
+            int partitions, boolean countDistinct)
+            throws NullPointerException, IllegalArgumentException,
+            IllegalStateException {
+        if (attributeMeta == null) {
+            throw new NullPointerException(
+                "The attributeMeta parameter must not be null.");
+        }
+        if (inMemoryFilterCriteria.size() > 0) {
+            throw new IllegalStateException(
+                "In case of aggregate(), you cannot specify filterInMemory().");
+        }
+        inMemorySortCriteria.clear();
+        applyPolyModelFilter();
+        final String name = attributeMeta.getName();
+        final Aggregate<A> aggregate =
+            new Aggregate<A>(
+                (Class<A>) attributeMeta.getAttributeClass(),
+                countDistinct);
+        final boolean cipher = modelMeta.isCipherProperty(name);
+        scanIterators(asAggregateIterators(
+            name,
+            getProjectionClass(attributeMeta.getAttributeClass()),
+            getSplitKeys(partitions)), new ScanHandler<Entity>() {
+            public void handle(Entity value) {
+                Object v = value.getProperty(name);
+                if (v instanceof RawValue) {
+                    v = ((RawValue) v).getValue();
+                } else if (cipher && v instanceof String) {
+                    v = modelMeta.decrypt((String) v);
+                }
+                aggregate.add(v);
+            }
+        });
+        return aggregate;
+    }
+
+    /**
+     * Returns the class of the value projected for the attribute class.
+     * Returns null if the value is projected as {@link RawValue}.
+     * 
+     * @param attributeClass
+     *            the attribute class
+     * @return the class of the projected value
+     */
+    protected Class<?> getProjectionClass(Class<?> attributeClass) {
+        if (attributeClass == Integer.class
+            || attributeClass == int.class
+            || attributeClass == Long.class
+            || attributeClass == long.class
+            || attributeClass == Short.class
+            || attributeClass == short.class
+            || attributeClass == Byte.class
+            || attributeClass == byte.class) {
+            return Long.class;
+        }
+        if (attributeClass == Double.class
+            || attributeClass == double.class
+            || attributeClass == Float.class
+            || attributeClass == float.class) {
+            return Double.class;
+        }
+        if (attributeClass == Boolean.class || attributeClass == boolean.class) {
+            return Boolean.class;
+        }
+        if (attributeClass == String.class || attributeClass.isEnum()) {
+            return String.class;
+        }
+        if (Date.class.isAssignableFrom(attributeClass)) {
+            return Date.class;
+        }
+        if (attributeClass == Key.class) {
+            return Key.class;
+        }
+        return null;
+    }
+
     /**
      * Applies the criteria.
      * 
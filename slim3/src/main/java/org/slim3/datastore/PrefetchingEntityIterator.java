@@ -0,0 +1,266 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+
+/**
+ * A {@link QueryResultIterator} which fetches the results page by page and
+ * requests the next page while the current page is consumed.
+ * 
+ * <p>
+ * When a page arrives, the query for the next page is issued asynchronously
+ * from the cursor at the end of the page, so the datastore fetches the next
+ * page while the caller decodes and processes the current one. At most one
+ * page is requested ahead.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class PrefetchingEntityIterator implements QueryResultIterator<Entity> {
+
+    /**
+     * The prepared query.
+     */
+    protected PreparedQuery preparedQuery;
+
+    /**
+     * The fetch options of the whole query.
+     */
+    protected FetchOptions fetchOptions;
+
+    /**
+     * The number of results per page.
+     */
+    protected int pageSize;
+
+    /**
+     * The number of results which are not requested yet.
+     */
+    protected Integer remaining;
+
+    /**
+     * The current page.
+     */
+    protected Page currentPage;
+
+    /**
+     * The page requested ahead.
+     */
+    protected Page nextPage;
+
+    /**
+     * The index of the next result in the current page.
+     */
+    protected int index = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param preparedQuery
+     *            the prepared query
+     * @param fetchOptions
+     *            the fetch options of the whole query
+     * @param pageSize
+     *            the number of results per page
+     * @throws NullPointerException
+     *             if the preparedQuery parameter is null or if the
+     *             fetchOptions parameter is null
+     * @throws IllegalArgumentException
+     *             if the pageSize parameter is less than 1
+     */
+    public PrefetchingEntityIterator(PreparedQuery preparedQuery,
+            FetchOptions fetchOptions, int pageSize)
+            throws NullPointerException, IllegalArgumentException {
+        if (preparedQuery == null) {
+            throw new NullPointerException(
+                "The preparedQuery parameter must not be null.");
+        }
+        if (fetchOptions == null) {
+            throw new NullPointerException(
+                "The fetchOptions parameter must not be null.");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException(
+                "The pageSize parameter must be greater than 0.");
+        }
+        this.preparedQuery = preparedQuery;
+        this.fetchOptions = fetchOptions;
+        this.pageSize = pageSize;
+        remaining = fetchOptions.getLimit();
+        nextPage =
+            requestPage(fetchOptions.getStartCursor(), fetchOptions
+                .getOffset());
+    }
+
+    public boolean hasNext() {
+        while (currentPage == null || index >= currentPage.results.size()) {
+            if (!moveToNextPage()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Entity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.results.get(index++);
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Cursor getCursor() {
+        if (currentPage == null && !moveToNextPage()) {
+            return fetchOptions.getStartCursor();
+        }
+        if (index >= currentPage.results.size()) {
+            return currentPage.results.getCursor();
+        }
+        int offset =
+            (currentPage.offset != null ? currentPage.offset : 0) + index;
+        if (offset == 0 && currentPage.startCursor != null) {
+            return currentPage.startCursor;
+        }
+        FetchOptions options = FetchOptions.Builder.withLimit(0).offset(offset);
+        if (currentPage.startCursor != null) {
+            options.startCursor(currentPage.startCursor);
+        }
+        return preparedQuery.asQueryResultList(options).getCursor();
+    }
+
+    public List<Index> getIndexList() {
+        if (currentPage == null && !moveToNextPage()) {
+            return null;
+        }
+        return currentPage.results.getIndexList();
+    }
+
+    /**
+     * Makes the page requested ahead current and requests the following page
+     * if the current page is full.
+     * 
+     * @return whether there was the page requested ahead
+     */
+    protected boolean moveToNextPage() {
+        if (nextPage == null) {
+            return false;
+        }
+        currentPage = nextPage;
+        nextPage = null;
+        index = 0;
+        if (currentPage.results.size() >= currentPage.size) {
+            nextPage = requestPage(currentPage.results.getCursor(), null);
+        }
+        return true;
+    }
+
+    /**
+     * Requests a page asynchronously.
+     * 
+     * @param startCursor
+     *            the cursor where the page starts
+     * @param offset
+     *            the number of results skipped at the start cursor
+     * @return the requested page or null if no more results are required
+     */
+    protected Page requestPage(Cursor startCursor, Integer offset) {
+        int size = remaining != null ? Math.min(pageSize, remaining) : pageSize;
+        if (size < 1) {
+            return null;
+        }
+        if (remaining != null) {
+            remaining -= size;
+        }
+        FetchOptions options =
+            FetchOptions.Builder.withLimit(size).chunkSize(size).prefetchSize(
+                size);
+        if (startCursor != null) {
+            options.startCursor(startCursor);
+        }
+        if (offset != null) {
+            options.offset(offset);
+        }
+        if (fetchOptions.getEndCursor() != null) {
+            options.endCursor(fetchOptions.getEndCursor());
+        }
+        return new Page(
+            preparedQuery.asQueryResultList(options),
+            size,
+            startCursor,
+            offset);
+    }
+
+    /**
+     * A page of the results.
+     */
+    protected static class Page {
+
+        /**
+         * The results which are fetched lazily.
+         */
+        protected final QueryResultList<Entity> results;
+
+        /**
+         * The number of requested results.
+         */
+        protected final int size;
+
+        /**
+         * The cursor where the page starts.
+         */
+        protected final Cursor startCursor;
+
+        /**
+         * The number of results skipped at the start cursor.
+         */
+        protected final Integer offset;
+
+        /**
+         * Constructor.
+         * 
+         * @param results
+         *            the results
+         * @param size
+         *            the number of requested results
+         * @param startCursor
+         *            the cursor where the page starts
+         * @param offset
+         *            the number of results skipped at the start cursor
+         */
+        protected Page(QueryResultList<Entity> results, int size,
+                Cursor startCursor, Integer offset) {
+            this.results = results;
+            this.size = size;
+            this.startCursor = startCursor;
+            this.offset = offset;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.slim3.memcache.Memcache;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * A cache of query results stored in memcache.
+ * 
+ * <p>
+ * The keys of the results are cached for the queries which specify
+ * {@link AbstractQuery#cacheResults(int)}. The cached results are looked up
+ * by the kind, the generation of the kind and the canonical form of the
+ * query. When this cache is enabled by the system property, every put and
+ * delete increments the generation of the written kinds, so that the results
+ * cached for the previous generation are not used any more. The results may
+ * be stale within the expiration when a query races with a write or when the
+ * query is eventually consistent.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class QueryCache {
+
+    /**
+     * The key of useQueryCache.
+     */
+    public static final String USE_QUERY_CACHE = "slim3.useQueryCache";
+
+    /**
+     * The prefix of memcache keys of the results.
+     */
+    public static final String KEY_PREFIX = "slim3.QueryCache:";
+
+    /**
+     * The prefix of memcache keys of the generations.
+     */
+    public static final String GENERATION_KEY_PREFIX =
+        "slim3.QueryCache.generation:";
+
+    private static final Logger logger =
+        Logger.getLogger(QueryCache.class.getName());
+
+    /**
+     * Determines if the query cache is enabled by the system property.
+     * 
+     * @return whether the query cache is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_QUERY_CACHE));
+    }
+
+    /**
+     * Returns the generation of the kind. The generation is initialized by the
+     * current time if it does not exist, so that a generation evicted from
+     * memcache is not reused.
+     * 
+     * @param kind
+     *            the kind
+     * @return the generation of the kind
+     * @throws NullPointerException
+     *             if the kind parameter is null
+     */
+    public static long getGeneration(String kind) throws NullPointerException {
+        if (kind == null) {
+            throw new NullPointerException(
+                "The kind parameter must not be null.");
+        }
+        try {
+            Long generation =
+                Memcache.increment(
+                    toGenerationKey(kind),
+                    0,
+                    System.currentTimeMillis());
+            return generation != null ? generation : 0;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the cached result. Returns null if the result is not cached.
+     * 
+     * @param kind
+     *            the kind
+     * @param generation
+     *            the generation of the kind
+     * @param queryKey
+     *            the canonical form of the query
+     * @return the cached result
+     * @throws NullPointerException
+     *             if the kind parameter is null or if the queryKey parameter
+     *             is null
+     */
+    public static Result get(String kind, long generation, String queryKey)
+            throws NullPointerException {
+        try {
+            Object value =
+                Memcache.get(toMemcacheKey(kind, generation, queryKey));
+            return value instanceof Result ? (Result) value : null;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the result.
+     * 
+     * @param kind
+     *            the kind
+     * @param generation
+     *            the generation of the kind read before the query ran
+     * @param queryKey
+     *            the canonical form of the query
+     * @param result
+     *            the result
+     * @param expirationSeconds
+     *            the expiration in seconds
+     * @throws NullPointerException
+     *             if the kind parameter is null or if the queryKey parameter
+     *             is null or if the result parameter is null
+     */
+    public static void put(String kind, long generation, String queryKey,
+            Result result, int expirationSeconds) throws NullPointerException {
+        if (result == null) {
+            throw new NullPointerException(
+                "The result parameter must not be null.");
+        }
+        try {
+            Memcache.put(
+                toMemcacheKey(kind, generation, queryKey),
+                result,
+                Expiration.byDeltaSeconds(expirationSeconds));
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Increments the generations of the kinds of the keys if this cache is
+     * enabled.
+     * 
+     * @param keys
+     *            the written keys
+     * @throws NullPointerException
+     *             if the keys parameter is null
+     */
+    public static void invalidate(Iterable<Key> keys)
+            throws NullPointerException {
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        Set<String> kinds = new LinkedHashSet<String>();
+        for (Key key : keys) {
+            if (key != null) {
+                kinds.add(key.getKind());
+            }
+        }
+        if (kinds.isEmpty()) {
+            return;
+        }
+        Map<Object, Long> offsets = new HashMap<Object, Long>();
+        for (String kind : kinds) {
+            offsets.put(toGenerationKey(kind), 1L);
+        }
+        try {
+            Memcache.incrementAll(offsets, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Converts the kind to the memcache key of the generation.
+     * 
+     * @param kind
+     *            the kind
+     * @return the memcache key of the generation
+     */
+    public static String toGenerationKey(String kind) {
+        return GENERATION_KEY_PREFIX + kind;
+    }
+
+    /**
+     * Converts the query to the memcache key of the result.
+     * 
+     * @param kind
+     *            the kind
+     * @param generation
+     *            the generation of the kind
+     * @param queryKey
+     *            the canonical form of the query
+     * @return the memcache key of the result
+     * @throws NullPointerException
+     *             if the kind parameter is null or if the queryKey parameter
+     *             is null
+     */
+    public static String toMemcacheKey(String kind, long generation,
+            String queryKey) throws NullPointerException {
+        if (kind == null) {
+            throw new NullPointerException(
+                "The kind parameter must not be null.");
+        }
+        if (queryKey == null) {
+            throw new NullPointerException(
+                "The queryKey parameter must not be null.");
+        }
+        return KEY_PREFIX + kind + ":" + generation + ":" + queryKey;
+    }
+
+    private QueryCache() {
+    }
+
+    /**
+     * A cached result of a query.
+     */
+    public static class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The keys of the results.
+         */
+        protected List<Key> keys;
+
+        /**
+         * The encoded cursor after the results.
+         */
+        protected String encodedCursor;
+
+        /**
+         * Whether there are more results after the results.
+         */
+        protected boolean hasNext;
+
+        /**
+         * Constructor.
+         * 
+         * @param keys
+         *            the keys of the results
+         * @param encodedCursor
+         *            the encoded cursor after the results
+         * @param hasNext
+         *            whether there are more results after the results
+         * @throws NullPointerException
+         *             if the keys parameter is null
+         */
+        public Result(List<Key> keys, String encodedCursor, boolean hasNext)
+                throws NullPointerException {
+            if (keys == null) {
+                throw new NullPointerException(
+                    "The keys parameter must not be null.");
+            }
+            this.keys = new ArrayList<Key>(keys);
+            this.encodedCursor = encodedCursor;
+            this.hasNext = hasNext;
+        }
+
+        /**
+         * Returns the keys of the results.
+         * 
+         * @return the keys of the results
+         */
+        public List<Key> getKeys() {
+            return keys;
+        }
+
+        /**
+         * Returns the encoded cursor after the results.
+         * 
+         * @return the encoded cursor after the results
+         */
+        public String getEncodedCursor() {
+            return encodedCursor;
+        }
+
+        /**
+         * Determines if there are more results after the results.
+         * 
+         * @return whether there are more results after the results
+         */
+        public boolean hasNext() {
+            return hasNext;
+        }
+    }
+}
\ No newline at end of file
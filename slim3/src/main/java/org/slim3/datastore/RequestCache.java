@@ -0,0 +1,225 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * A first-level cache of entities bound to the current request.
+ * 
+ * <p>
+ * Only reads without transaction are served from this cache. Keys written
+ * within a transaction or a global transaction are not cached until the
+ * transaction is committed or rolled back, because the write becomes visible
+ * only after commit. A read dispatched before the transaction completed is
+ * not cached either.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class RequestCache {
+
+    /**
+     * The key of useRequestCache.
+     */
+    public static final String USE_REQUEST_CACHE = "slim3.useRequestCache";
+
+    private static final ThreadLocal<RequestCache> currentCache =
+        new ThreadLocal<RequestCache>();
+
+    /**
+     * The map of cached entities. A null value means that no entity exists.
+     */
+    private final Map<Key, Entity> entityMap = new HashMap<Key, Entity>();
+
+    /**
+     * The map of the keys written within a transaction to the transaction.
+     */
+    private final Map<Key, Transaction> pendingKeys =
+        new HashMap<Key, Transaction>();
+
+    /**
+     * The generation incremented on every invalidation.
+     */
+    private long generation = 0;
+
+    /**
+     * Determines if the request cache is enabled by the system property.
+     * 
+     * @return whether the request cache is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_REQUEST_CACHE));
+    }
+
+    /**
+     * Binds a new cache to the current thread.
+     */
+    public static void begin() {
+        currentCache.set(new RequestCache());
+    }
+
+    /**
+     * Unbinds the cache from the current thread.
+     */
+    public static void end() {
+        currentCache.remove();
+    }
+
+    /**
+     * Returns the cache bound to the current thread. Returns null if no cache
+     * is bound.
+     * 
+     * @return the cache bound to the current thread
+     */
+    public static RequestCache getCurrent() {
+        return currentCache.get();
+    }
+
+    /**
+     * Invalidates the keys in the cache bound to the current thread if any.
+     * 
+     * @param keys
+     *            the keys
+     * @param tx
+     *            the transaction within which the keys are written, or null
+     */
+    public static void invalidateCurrent(Iterable<Key> keys, Transaction tx) {
+        RequestCache cache = getCurrent();
+        if (cache != null) {
+            cache.invalidate(keys, tx);
+        }
+    }
+
+    private RequestCache() {
+    }
+
+    /**
+     * Returns the current generation.
+     * 
+     * @return the current generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Determines if the result for the key is cached.
+     * 
+     * @param key
+     *            the key
+     * @return whether the result for the key is cached
+     */
+    public synchronized boolean contains(Key key) {
+        return entityMap.containsKey(key);
+    }
+
+    /**
+     * Returns a copy of the cached entity. Returns null if the entity is not
+     * cached or if it is cached that no entity exists.
+     * 
+     * @param key
+     *            the key
+     * @return a copy of the cached entity
+     */
+    public synchronized Entity get(Key key) {
+        Entity entity = entityMap.get(key);
+        return entity != null ? entity.clone() : null;
+    }
+
+    /**
+     * Caches the results read at the specified generation. Nothing is cached
+     * if an invalidation occurred after the generation. A key written within
+     * a transaction is not cached while the transaction is active. When the
+     * transaction is found to be completed, the key is released and the
+     * generation is incremented, because the read may have been dispatched
+     * before the commit.
+     * 
+     * @param keys
+     *            the keys that were read
+     * @param map
+     *            the map of entities that were found
+     * @param readGeneration
+     *            the generation when the read was dispatched
+     */
+    public synchronized void put(Iterable<Key> keys, Map<Key, Entity> map,
+            long readGeneration) {
+        if (readGeneration != generation) {
+            return;
+        }
+        for (Key key : keys) {
+            if (key == null) {
+                continue;
+            }
+            Transaction tx = pendingKeys.get(key);
+            if (tx != null) {
+                if (!tx.isActive()) {
+                    pendingKeys.remove(key);
+                    generation++;
+                }
+                continue;
+            }
+            Entity entity = map.get(key);
+            entityMap.put(key, entity != null ? entity.clone() : null);
+        }
+    }
+
+    /**
+     * Invalidates the keys.
+     * 
+     * @param keys
+     *            the keys
+     * @param tx
+     *            the transaction within which the keys are written, or null
+     */
+    public synchronized void invalidate(Iterable<Key> keys, Transaction tx) {
+        generation++;
+        for (Key key : keys) {
+            entityMap.remove(key);
+            if (tx != null) {
+                pendingKeys.put(key, tx);
+            }
+        }
+    }
+
+    /**
+     * Determines if the key is written within a transaction that is still
+     * active.
+     * 
+     * @param key
+     *            the key
+     * @return whether the key is pending
+     */
+    public synchronized boolean isPending(Key key) {
+        Transaction tx = pendingKeys.get(key);
+        return tx != null && tx.isActive();
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public synchronized void clear() {
+        generation++;
+        entityMap.clear();
+    }
+}
\ No newline at end of file
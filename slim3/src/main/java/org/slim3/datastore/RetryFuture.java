@@ -0,0 +1,217 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
+/**
+ * A {@link Future} that dispatches an operation again according to the
+ * {@link RetryPolicy} when the operation failed transiently.
+ * 
+ * @author higa
+ * @param <T>
+ *            the result type
+ * @since 1.0.17
+ * 
+ */
+public abstract class RetryFuture<T> implements Future<T> {
+
+    /**
+     * The retry policy.
+     */
+    protected RetryPolicy policy;
+
+    /**
+     * Whether the operation is idempotent.
+     */
+    protected boolean idempotent;
+
+    /**
+     * The future of the current attempt.
+     */
+    protected Future<T> future;
+
+    /**
+     * The exception thrown when the current attempt was dispatched.
+     */
+    protected RuntimeException dispatchException;
+
+    /**
+     * The number of failed attempts.
+     */
+    protected int attempt = 0;
+
+    /**
+     * Whether this future was cancelled.
+     */
+    protected boolean cancelled = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param policy
+     *            the retry policy
+     * @param idempotent
+     *            whether the operation is idempotent
+     * @throws NullPointerException
+     *             if the policy parameter is null
+     */
+    public RetryFuture(RetryPolicy policy, boolean idempotent)
+            throws NullPointerException {
+        if (policy == null) {
+            throw new NullPointerException(
+                "The policy parameter must not be null.");
+        }
+        this.policy = policy;
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * Dispatches the first attempt. An exception thrown when the first attempt
+     * is dispatched is not retried.
+     * 
+     * @return this instance
+     */
+    public RetryFuture<T> start() {
+        future = dispatch();
+        return this;
+    }
+
+    /**
+     * Dispatches the operation asynchronously.
+     * 
+     * @return the result of the operation represented as {@link Future}
+     */
+    protected abstract Future<T> dispatch();
+
+    /**
+     * Dispatches the operation and keeps the exception if any.
+     */
+    protected void dispatchQuietly() {
+        try {
+            future = dispatch();
+            dispatchException = null;
+        } catch (RuntimeException e) {
+            future = null;
+            dispatchException = e;
+        }
+    }
+
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (cancelled || isDone()) {
+            return false;
+        }
+        cancelled = true;
+        if (future != null) {
+            future.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return cancelled || future == null || future.isDone();
+    }
+
+    public synchronized T get() throws InterruptedException,
+            ExecutionException {
+        try {
+            return get(false, 0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return get(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Returns the result. The operation is dispatched again while the failure
+     * is retryable and the retry budget remains.
+     * 
+     * @param timed
+     *            whether the wait is timed
+     * @param deadline
+     *            the deadline in nanoseconds
+     * @return the result
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting
+     * @throws ExecutionException
+     *             if the operation threw an exception
+     * @throws TimeoutException
+     *             if the wait timed out
+     */
+    protected T get(boolean timed, long deadline) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        while (true) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            Throwable cause;
+            if (future == null) {
+                cause = dispatchException;
+            } else {
+                long attemptNanos =
+                    TimeUnit.MILLISECONDS.toNanos(policy.getDeadlineMillis());
+                long remaining = deadline - System.nanoTime();
+                boolean attemptTimed =
+                    attemptNanos > 0 && (!timed || attemptNanos < remaining);
+                try {
+                    if (attemptTimed) {
+                        return future.get(attemptNanos, TimeUnit.NANOSECONDS);
+                    } else if (timed) {
+                        return future.get(
+                            Math.max(remaining, 0),
+                            TimeUnit.NANOSECONDS);
+                    }
+                    return future.get();
+                } catch (ExecutionException e) {
+                    cause = e.getCause();
+                } catch (TimeoutException e) {
+                    if (!attemptTimed) {
+                        throw e;
+                    }
+                    future.cancel(true);
+                    cause =
+                        new DatastoreTimeoutException("The attempt exceeded the deadline("
+                            + policy.getDeadlineMillis()
+                            + "ms).");
+                }
+            }
+            if (!policy.isRetryable(cause, idempotent)
+                || !policy.acquireRetry(attempt)) {
+                throw new ExecutionException(cause);
+            }
+            long backoff = policy.getBackoffMillis(attempt);
+            if (backoff > 0) {
+                Thread.sleep(backoff);
+            }
+            attempt++;
+            dispatchQuietly();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ConcurrentModificationException;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
+/**
+ * A policy to retry datastore operations that failed transiently.
+ * 
+ * <p>
+ * Gets, deletes and queries without transaction are idempotent and are
+ * retried automatically. Puts without transaction are retried only if
+ * {@link #retryPuts(boolean)} is specified, and the keys of the entities are
+ * assigned before the first attempt so that a retried put never creates a
+ * duplicate entity. Operations within a transaction are not retried
+ * individually, use {@link Uow} to retry the whole unit of work.
+ * </p>
+ * 
+ * <pre>
+ * RetryPolicy policy = new RetryPolicy().maxRetries(3).deadlineMillis(1000);
+ * Hoge hoge = Datastore.retry(policy).get(Hoge.class, key);
+ * </pre>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class RetryPolicy {
+
+    /**
+     * The default maximum number of retries.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * The default initial backoff(milliseconds).
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+
+    /**
+     * The default maximum backoff(milliseconds).
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+
+    /**
+     * The number of retries in the current request.
+     */
+    private static final ThreadLocal<int[]> retriesInRequest =
+        new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+    /**
+     * The maximum number of retries per operation.
+     */
+    protected int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /**
+     * The initial backoff(milliseconds).
+     */
+    protected long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+    /**
+     * The maximum backoff(milliseconds).
+     */
+    protected long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    /**
+     * The deadline(milliseconds) of each attempt.
+     */
+    protected long deadlineMillis = 0;
+
+    /**
+     * Whether puts are retried.
+     */
+    protected boolean retryPuts = false;
+
+    /**
+     * The maximum number of retries per request.
+     */
+    protected int maxRetriesPerRequest = 0;
+
+    /**
+     * Resets the number of retries in the current request.
+     */
+    public static void resetRetriesInRequest() {
+        retriesInRequest.get()[0] = 0;
+    }
+
+    /**
+     * Returns the number of retries in the current request.
+     * 
+     * @return the number of retries in the current request
+     */
+    public static int getRetriesInRequest() {
+        return retriesInRequest.get()[0];
+    }
+
+    /**
+     * Specifies the maximum number of retries per operation.
+     * 
+     * @param maxRetries
+     *            the maximum number of retries
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the maxRetries parameter is negative
+     */
+    public RetryPolicy maxRetries(int maxRetries)
+            throws IllegalArgumentException {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException(
+                "The maxRetries parameter must not be negative.");
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Specifies the initial backoff(milliseconds).
+     * 
+     * @param initialBackoffMillis
+     *            the initial backoff(milliseconds)
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the initialBackoffMillis parameter is negative
+     */
+    public RetryPolicy initialBackoffMillis(long initialBackoffMillis)
+            throws IllegalArgumentException {
+        if (initialBackoffMillis < 0) {
+            throw new IllegalArgumentException(
+                "The initialBackoffMillis parameter must not be negative.");
+        }
+        this.initialBackoffMillis = initialBackoffMillis;
+        return this;
+    }
+
+    /**
+     * Specifies the maximum backoff(milliseconds).
+     * 
+     * @param maxBackoffMillis
+     *            the maximum backoff(milliseconds)
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the maxBackoffMillis parameter is negative
+     */
+    public RetryPolicy maxBackoffMillis(long maxBackoffMillis)
+            throws IllegalArgumentException {
+        if (maxBackoffMillis < 0) {
+            throw new IllegalArgumentException(
+                "The maxBackoffMillis parameter must not be negative.");
+        }
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * Specifies the deadline(milliseconds) of each asynchronous attempt. An
+     * attempt that exceeds the deadline is abandoned and treated as
+     * {@link DatastoreTimeoutException}. 0 means no deadline. Synchronous
+     * queries are bounded by the deadline of the datastore service.
+     * 
+     * @param deadlineMillis
+     *            the deadline(milliseconds)
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the deadlineMillis parameter is negative
+     */
+    public RetryPolicy deadlineMillis(long deadlineMillis)
+            throws IllegalArgumentException {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException(
+                "The deadlineMillis parameter must not be negative.");
+        }
+        this.deadlineMillis = deadlineMillis;
+        return this;
+    }
+
+    /**
+     * Specifies whether puts without transaction are retried.
+     * 
+     * @param retryPuts
+     *            whether puts are retried
+     * @return this instance
+     */
+    public RetryPolicy retryPuts(boolean retryPuts) {
+        this.retryPuts = retryPuts;
+        return this;
+    }
+
+    /**
+     * Specifies the maximum number of retries per request. The number of
+     * retries is reset by {@link DatastoreFilter} for each request. 0 means
+     * no limit.
+     * 
+     * @param maxRetriesPerRequest
+     *            the maximum number of retries per request
+     * @return this instance
+     * @throws IllegalArgumentException
+     *             if the maxRetriesPerRequest parameter is negative
+     */
+    public RetryPolicy maxRetriesPerRequest(int maxRetriesPerRequest)
+            throws IllegalArgumentException {
+        if (maxRetriesPerRequest < 0) {
+            throw new IllegalArgumentException(
+                "The maxRetriesPerRequest parameter must not be negative.");
+        }
+        this.maxRetriesPerRequest = maxRetriesPerRequest;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of retries per operation.
+     * 
+     * @return the maximum number of retries per operation
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Returns the initial backoff(milliseconds).
+     * 
+     * @return the initial backoff(milliseconds)
+     */
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    /**
+     * Returns the maximum backoff(milliseconds).
+     * 
+     * @return the maximum backoff(milliseconds)
+     */
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Returns the deadline(milliseconds) of each attempt.
+     * 
+     * @return the deadline(milliseconds) of each attempt
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Determines if puts without transaction are retried.
+     * 
+     * @return whether puts are retried
+     */
+    public boolean isRetryPuts() {
+        return retryPuts;
+    }
+
+    /**
+     * Returns the maximum number of retries per request.
+     * 
+     * @return the maximum number of retries per request
+     */
+    public int getMaxRetriesPerRequest() {
+        return maxRetriesPerRequest;
+    }
+
+    /**
+     * Determines if the failure is transient and the operation can be
+     * retried.
+     * 
+     * @param cause
+     *            the cause of the failure
+     * @param idempotent
+     *            whether the operation is idempotent
+     * @return whether the operation can be retried
+     */
+    public boolean isRetryable(Throwable cause, boolean idempotent) {
+        if (!idempotent && !retryPuts) {
+            return false;
+        }
+        return cause instanceof DatastoreTimeoutException
+            || cause instanceof DatastoreFailureException
+            || cause instanceof ConcurrentModificationException;
+    }
+
+    /**
+     * Acquires a retry from the retry budget. Returns false if the maximum
+     * number of retries per operation or per request has been reached.
+     * 
+     * @param attempt
+     *            the number of failed attempts minus one
+     * @return whether a retry was acquired
+     */
+    public boolean acquireRetry(int attempt) {
+        if (attempt >= maxRetries) {
+            return false;
+        }
+        int[] retries = retriesInRequest.get();
+        if (maxRetriesPerRequest > 0 && retries[0] >= maxRetriesPerRequest) {
+            return false;
+        }
+        retries[0]++;
+        return true;
+    }
+
+    /**
+     * Waits for the backoff before the next attempt of a synchronous
+     * operation. The cause is rethrown if the operation cannot be retried.
+     * 
+     * @param cause
+     *            the cause of the failure
+     * @param idempotent
+     *            whether the operation is idempotent
+     * @param attempt
+     *            the number of failed attempts minus one
+     * @throws RuntimeException
+     *             if the operation cannot be retried
+     */
+    public void backoff(RuntimeException cause, boolean idempotent, int attempt)
+            throws RuntimeException {
+        if (!isRetryable(cause, idempotent) || !acquireRetry(attempt)) {
+            throw cause;
+        }
+        long backoff = getBackoffMillis(attempt);
+        if (backoff > 0) {
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw cause;
+            }
+        }
+    }
+
+    /**
+     * Returns the backoff(milliseconds) before the next attempt.
+     * 
+     * @param attempt
+     *            the number of failed attempts minus one
+     * @return the backoff(milliseconds)
+     * @see BackoffUtil#getBackoffMillis(long, long, int)
+     */
+    public long getBackoffMillis(int attempt) {
+        return BackoffUtil.getBackoffMillis(
+            initialBackoffMillis,
+            maxBackoffMillis,
+            attempt);
+    }
+}
\ No newline at end of file
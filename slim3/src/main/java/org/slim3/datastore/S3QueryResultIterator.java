@@ -77,6 +77,9 @@ public class S3QueryResultIterator<M> extends ModelIterator<M> implements
      * @return the encoded cursor
      */
     public String getEncodedCursor() {
+        if (delegate instanceof MergedEntityIterator) {
+            return ((MergedEntityIterator) delegate).getEncodedCursor();
+        }
         return delegate.getCursor().toWebSafeString();
     }
 
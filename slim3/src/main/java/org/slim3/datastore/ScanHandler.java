@@ -0,0 +1,37 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+/**
+ * A handler for the results of a parallel scan.
+ * 
+ * @author higa
+ * @param <T>
+ *            the result type
+ * @since 1.0.17
+ * 
+ */
+public interface ScanHandler<T> {
+
+    /**
+     * Handles a result. The results of the partitions are handled in turn on
+     * the calling thread.
+     * 
+     * @param value
+     *            the result
+     */
+    void handle(T value);
+}
\ No newline at end of file
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slim3.util.FakeFuture;
+import org.slim3.util.LongUtil;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * A class to coalesce concurrent lookups of the same keys without
+ * transaction into a single RPC.
+ * 
+ * <p>
+ * A lookup for a key that is already in flight shares the {@link Future} of
+ * the lookup instead of issuing a new RPC. Each caller receives its own copy
+ * of the entities. A write of a key makes the following lookups of the key
+ * issue a new RPC.
+ * </p>
+ * 
+ * <p>
+ * A lookup is removed when its owner receives the result. A lookup that has
+ * completed or has been in flight longer than {@link #getTimeoutMillis()} is
+ * never shared and is removed by a later lookup, so a lookup whose result is
+ * never received does not stay in flight.
+ * </p>
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public final class SingleFlight {
+
+    /**
+     * The key of useSingleFlight.
+     */
+    public static final String USE_SINGLE_FLIGHT = "slim3.useSingleFlight";
+
+    /**
+     * The key of the time after which a lookup in flight is no longer shared.
+     */
+    public static final String TIMEOUT_MILLIS =
+        "slim3.singleFlightTimeoutMillis";
+
+    /**
+     * The default time after which a lookup in flight is no longer shared.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The map of lookups in flight.
+     */
+    private static final ConcurrentMap<Key, Flight> inFlightMap =
+        new ConcurrentHashMap<Key, Flight>();
+
+    /**
+     * The time when the stale lookups were removed last.
+     */
+    private static volatile long lastPurgedAt = System.currentTimeMillis();
+
+    /**
+     * Determines if single-flight lookups are enabled by the system property.
+     * 
+     * @return whether single-flight lookups are enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(System.getProperty(USE_SINGLE_FLIGHT));
+    }
+
+    /**
+     * Returns the time after which a lookup in flight is no longer shared.
+     * 
+     * @return the time after which a lookup in flight is no longer shared
+     */
+    public static long getTimeoutMillis() {
+        Long millis = LongUtil.toLong(System.getProperty(TIMEOUT_MILLIS));
+        return millis != null ? millis : DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Returns entities specified by the keys without transaction
+     * asynchronously. The keys in flight share the lookup in flight.
+     * 
+     * @param ds
+     *            the asynchronous datastore service
+     * @param keys
+     *            the keys
+     * @param maxConcurrentBatches
+     *            the maximum number of concurrent batches
+     * @return entities represented as {@link Future}
+     * @throws NullPointerException
+     *             if the ds parameter is null or if the keys parameter is null
+     */
+    public static Future<Map<Key, Entity>> getAsMapAsync(
+            AsyncDatastoreService ds, Iterable<Key> keys,
+            int maxConcurrentBatches) throws NullPointerException {
+        if (ds == null) {
+            throw new NullPointerException("The ds parameter must not be null.");
+        }
+        if (keys == null) {
+            throw new NullPointerException(
+                "The keys parameter must not be null.");
+        }
+        long timeout = getTimeoutMillis();
+        purgeIfNecessary(timeout);
+        final Flight flight = new Flight();
+        final Map<Key, Flight> sharedMap = new HashMap<Key, Flight>();
+        final List<Key> ownKeys = new ArrayList<Key>();
+        for (Key key : keys) {
+            Flight other = key != null ? claim(key, flight, timeout) : null;
+            if (other != null) {
+                sharedMap.put(key, other);
+            } else {
+                ownKeys.add(key);
+            }
+        }
+        final Future<Map<Key, Entity>> ownFuture;
+        if (ownKeys.isEmpty()) {
+            ownFuture =
+                new FakeFuture<Map<Key, Entity>>(new HashMap<Key, Entity>());
+        } else {
+            try {
+                ownFuture =
+                    DatastoreUtil.getAsMapAsync(
+                        ds,
+                        null,
+                        ownKeys,
+                        maxConcurrentBatches);
+            } catch (RuntimeException e) {
+                flight.fail(e);
+                release(ownKeys, flight);
+                throw e;
+            }
+            flight.start(ownFuture);
+        }
+        return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(
+            ownFuture) {
+
+            @Override
+            protected Throwable convertException(Throwable throwable) {
+                release(ownKeys, flight);
+                return throwable;
+            }
+
+            @Override
+            protected Map<Key, Entity> wrap(Map<Key, Entity> map)
+                    throws Exception {
+                Map<Key, Entity> result = new HashMap<Key, Entity>();
+                try {
+                    copy(map, ownKeys, result);
+                } finally {
+                    release(ownKeys, flight);
+                }
+                for (Key key : sharedMap.keySet()) {
+                    copy(
+                        sharedMap.get(key).get(),
+                        Collections.singletonList(key),
+                        result);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Forgets the lookups in flight for the keys so that the following lookups
+     * issue a new RPC.
+     * 
+     * @param keys
+     *            the keys
+     */
+    public static void forget(Iterable<Key> keys) {
+        if (keys == null || inFlightMap.isEmpty()) {
+            return;
+        }
+        for (Key key : keys) {
+            if (key != null) {
+                inFlightMap.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys in flight.
+     * 
+     * @return the number of keys in flight
+     */
+    public static int getInFlightCount() {
+        return inFlightMap.size();
+    }
+
+    /**
+     * Claims the key for the flight. If another lookup of the key is in
+     * flight and is not stale, the lookup is returned instead.
+     * 
+     * @param key
+     *            the key
+     * @param flight
+     *            the flight
+     * @param timeout
+     *            the time after which a lookup is stale
+     * @return the lookup in flight or null if the key was claimed
+     */
+    private static Flight claim(Key key, Flight flight, long timeout) {
+        while (true) {
+            Flight other = inFlightMap.putIfAbsent(key, flight);
+            if (other == null) {
+                return null;
+            }
+            if (!other.isStale(timeout)) {
+                return other;
+            }
+            if (inFlightMap.replace(key, other, flight)) {
+                return null;
+            }
+        }
+    }
+
+    private static void release(List<Key> keys, Flight flight) {
+        for (Key key : keys) {
+            if (key != null) {
+                inFlightMap.remove(key, flight);
+            }
+        }
+    }
+
+    /**
+     * Removes the stale lookups at most once per the timeout.
+     * 
+     * @param timeout
+     *            the time after which a lookup is stale
+     */
+    private static void purgeIfNecessary(long timeout) {
+        long now = System.currentTimeMillis();
+        if (now - lastPurgedAt < timeout || inFlightMap.isEmpty()) {
+            return;
+        }
+        lastPurgedAt = now;
+        for (Map.Entry<Key, Flight> e : inFlightMap.entrySet()) {
+            if (e.getValue().isStale(timeout)) {
+                inFlightMap.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private static void copy(Map<Key, Entity> from, List<Key> keys,
+            Map<Key, Entity> to) {
+        for (Key key : keys) {
+            Entity entity = from.get(key);
+            if (entity != null) {
+                to.put(key, entity.clone());
+            }
+        }
+    }
+
+    private SingleFlight() {
+    }
+
+    /**
+     * A lookup in flight. The lookup is claimed before its RPC is issued, so
+     * the callers sharing it wait until the RPC is issued.
+     */
+    private static final class Flight implements Future<Map<Key, Entity>> {
+
+        private final long startedAt = System.currentTimeMillis();
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private volatile Future<Map<Key, Entity>> future;
+
+        private volatile ExecutionException failure;
+
+        void start(Future<Map<Key, Entity>> future) {
+            this.future = future;
+            started.countDown();
+        }
+
+        void fail(RuntimeException cause) {
+            failure = new ExecutionException(cause);
+            started.countDown();
+        }
+
+        boolean isStale(long timeout) {
+            return isDone()
+                || System.currentTimeMillis() - startedAt >= timeout;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return failure != null || future != null && future.isDone();
+        }
+
+        public Map<Key, Entity> get() throws InterruptedException,
+                ExecutionException {
+            started.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return future.get();
+        }
+
+        public Map<Key, Entity> get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!started.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return future.get(
+                Math.max(deadline - System.nanoTime(), 0),
+                TimeUnit.NANOSECONDS);
+        }
+    }
+}
\ No newline at end of file
@@ -52,9 +52,65 @@ public final class Uow {
      */
     @SuppressWarnings("unchecked")
     public static final <T> T run(AbstractUow uow) throws NullPointerException {
+        if (uow == null) {
+            throw new NullPointerException(
+                "The uow parameter must not be null.");
+        }
+        RetryPolicy policy = uow.getRetryPolicy();
+        if (policy != null) {
+            return (T) run(uow, policy);
+        }
         return (T) run(uow, DEFAULT_MAX_RETRIES, DEFAULT_SLEEP_TIME);
     }
 
+    /**
+     * Runs the unit of work template according to the retry policy. The unit
+     * of work is retried when {@link ConcurrentModificationException} is
+     * thrown. The other transient failures are retried only if
+     * {@link RetryPolicy#retryPuts(boolean)} is specified, because the
+     * transaction may have been committed.
+     * 
+     * @param uow
+     *            the unit of work
+     * @param policy
+     *            the retry policy
+     * @param <T>
+     *            return type
+     * @return a result
+     * @throws NullPointerException
+     *             if the uow parameter is null or if the policy parameter is
+     *             null
+     */
+    @SuppressWarnings("unchecked")
+    public static final <T> T run(AbstractUow uow, RetryPolicy policy)
+            throws NullPointerException {
+        if (uow == null) {
+            throw new NullPointerException(
+                "The uow parameter must not be null.");
+        }
+        if (policy == null) {
+            throw new NullPointerException(
+                "The policy parameter must not be null.");
+        }
+        T ret;
+        for (int attempt = 0;; attempt++) {
+            uow.beginTransaction();
+            try {
+                ret = (T) uow.run();
+                uow.commit();
+                return ret;
+            } catch (RuntimeException e) {
+                policy.backoff(
+                    e,
+                    e instanceof ConcurrentModificationException,
+                    attempt);
+                logger.warning("Retrying the unit of work: " + e);
+            } finally {
+                uow.rollback();
+            }
+        }
+    }
+
     /**
      * Runs the unit of work template.
      * 
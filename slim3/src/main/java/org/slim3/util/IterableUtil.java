@@ -16,6 +16,7 @@
 package org.slim3.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -70,6 +71,30 @@ public final class IterableUtil {
         return ret;
     }
 
+    /**
+     * Returns the number of the elements of the {@link Iterable}.
+     * 
+     * @param list
+     *            the {@link Iterable}
+     * @return the number of the elements
+     * @throws NullPointerException
+     *             if the list parameter is null
+     * @since 1.0.17
+     */
+    public static int size(Iterable<?> list) throws NullPointerException {
+        if (list == null) {
+            throw new NullPointerException("The list parameter is null.");
+        }
+        if (list instanceof Collection<?>) {
+            return ((Collection<?>) list).size();
+        }
+        int size = 0;
+        for (Object e : list) {
+            size++;
+        }
+        return size;
+    }
+
     private IterableUtil() {
     }
 }
\ No newline at end of file
@@ -139,6 +139,33 @@ public class AbstAttributeMetaTest extends AppEngineTestCase {
         assertThat((String) attrMeta.getValue(hoge), is("aaa"));
     }
 
+    /**
+     * @throws Exception
+     * 
+     */
+    @Test
+    public void getValueWhenOverridden() throws Exception {
+        AbstractAttributeMeta<Hoge, String> attrMeta =
+            new AbstractAttributeMeta<Hoge, String>(
+                meta,
+                "myString",
+                "myString",
+                String.class) {
+
+                @Override
+                protected Object getValue(Object model) {
+                    return ((Hoge) model).getMyString();
+                }
+            };
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        assertThat((String) attrMeta.getValue(hoge), is("aaa"));
+        assertThat(attrMeta.propertyDesc, is(nullValue()));
+        assertThat(
+            new InMemoryEqualCriterion(attrMeta, "aaa").accept(hoge),
+            is(true));
+    }
+
     /**
      * @throws Exception
      * 
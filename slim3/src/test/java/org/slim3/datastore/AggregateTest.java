@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author higa
+ * 
+ */
+public class AggregateTest {
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void add() throws Exception {
+        Aggregate<Integer> aggregate =
+            new Aggregate<Integer>(Integer.class, true);
+        aggregate.add(3L);
+        aggregate.add(null);
+        aggregate.add(1L);
+        aggregate.add(3L);
+        assertThat(aggregate.getCount(), is(3L));
+        assertThat(aggregate.getSum(), is((Number) 7L));
+        assertThat(aggregate.getMin(), is(1));
+        assertThat(aggregate.getMax(), is(3));
+        assertThat(aggregate.getDistinctCount(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void addForDouble() throws Exception {
+        Aggregate<Double> aggregate = new Aggregate<Double>(Double.class);
+        aggregate.add(1.5);
+        aggregate.add(2.5);
+        assertThat(aggregate.getSum(), is((Number) 4.0));
+        assertThat(aggregate.getAverage(), is(2.0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void empty() throws Exception {
+        Aggregate<Integer> aggregate =
+            new Aggregate<Integer>(Integer.class, true);
+        assertThat(aggregate.getCount(), is(0L));
+        assertThat(aggregate.getSum(), is(nullValue()));
+        assertThat(aggregate.getAverage(), is(nullValue()));
+        assertThat(aggregate.getMin(), is(nullValue()));
+        assertThat(aggregate.getDistinctCount(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void getDistinctCountWhenNotCounted() throws Exception {
+        Aggregate<Integer> aggregate = new Aggregate<Integer>(Integer.class);
+        aggregate.add(1L);
+        assertThat(aggregate.isDistinctCounted(), is(false));
+        aggregate.getDistinctCount();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void addForDifferentTypes() throws Exception {
+        Aggregate<Object> aggregate = new Aggregate<Object>(Object.class);
+        aggregate.add(2.5);
+        aggregate.add(3L);
+        aggregate.add("a");
+        assertThat(aggregate.getMin(), is((Object) 3L));
+        assertThat(aggregate.getMax(), is((Object) 2.5));
+    }
+}
\ No newline at end of file
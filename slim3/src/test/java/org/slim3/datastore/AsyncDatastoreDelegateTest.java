@@ -18,15 +18,19 @@ package org.slim3.datastore;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 import org.slim3.datastore.meta.AaaMeta;
 import org.slim3.datastore.meta.HogeMeta;
 import org.slim3.datastore.model.Hoge;
+import org.slim3.memcache.Memcache;
 import org.slim3.tester.AppEngineTestCase;
 import org.slim3.util.CipherFactory;
 import org.slim3.util.FutureUtil;
@@ -64,6 +68,12 @@ public class AsyncDatastoreDelegateTest extends AppEngineTestCase {
         super.tearDown();
         CipherFactory.getFactory().clearGlobalKey();
         System.clearProperty(AsyncDatastoreDelegate.DEADLINE);
+        System.clearProperty(AsyncDatastoreDelegate.MAX_CONCURRENT_BATCHES);
+        RequestCache.end();
+        ModelCache.unregister("Hoge");
+        System.clearProperty(ModelCache.INVALIDATION_MILLIS);
+        System.clearProperty(ModelCache.USE_MODEL_CACHE);
+        System.clearProperty(SingleFlight.USE_SINGLE_FLIGHT);
     }
 
     /**
@@ -97,6 +107,109 @@ public class AsyncDatastoreDelegateTest extends AppEngineTestCase {
         assertThat(del.getDeadline(), is(deadline));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void maxConcurrentBatches() throws Exception {
+        AsyncDatastoreDelegate del = new AsyncDatastoreDelegate();
+        assertThat(
+            del.getMaxConcurrentBatches(),
+            is(AsyncDatastoreDelegate.DEFAULT_MAX_CONCURRENT_BATCHES));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void maxConcurrentBatchesForSystemProperty() throws Exception {
+        System.setProperty(AsyncDatastoreDelegate.MAX_CONCURRENT_BATCHES, "3");
+        AsyncDatastoreDelegate del = new AsyncDatastoreDelegate();
+        assertThat(del.getMaxConcurrentBatches(), is(3));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void singleFlight() throws Exception {
+        assertThat(new AsyncDatastoreDelegate().singleFlight, is(false));
+        System.setProperty(SingleFlight.USE_SINGLE_FLIGHT, "true");
+        assertThat(new AsyncDatastoreDelegate().singleFlight, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncWithSingleFlight() throws Exception {
+        System.setProperty(SingleFlight.USE_SINGLE_FLIGHT, "true");
+        AsyncDatastoreDelegate del = new AsyncDatastoreDelegate();
+        Key key = ds.put(new Entity("Hoge")).get();
+        Future<Entity> future = del.getAsync((Transaction) null, key);
+        Future<Map<Key, Entity>> future2 =
+            del.getAsMapAsync((Transaction) null, key);
+        assertThat(future.get().getKey(), is(key));
+        assertThat(future2.get().get(key).getKey(), is(key));
+        assertThat(SingleFlight.getInFlightCount(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsyncWithRetryPolicy() throws Exception {
+        delegate.setRetryPolicy(new RetryPolicy());
+        Key key = ds.put(new Entity("Hoge")).get();
+        Future<Map<Key, Entity>> future =
+            delegate.getAsMapFromDatastoreAsync(Arrays.asList(key));
+        assertThat(future, is(instanceOf(RetryFuture.class)));
+        assertThat(future.get().get(key).getKey(), is(key));
+        assertThat(
+            delegate.getAsync((Transaction) null, key).get().getKey(),
+            is(key));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncWithRetryPolicy() throws Exception {
+        delegate.setRetryPolicy(new RetryPolicy().retryPuts(true));
+        Entity entity = new Entity("Hoge");
+        Future<Key> future = delegate.putAsync((Transaction) null, entity);
+        assertThat(entity.getKey().isComplete(), is(true));
+        assertThat(future.get(), is(entity.getKey()));
+        assertThat(tester.count("Hoge"), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAsyncWithRetryPolicy() throws Exception {
+        delegate.setRetryPolicy(new RetryPolicy());
+        Key key = ds.put(new Entity("Hoge")).get();
+        Future<Void> future = delegate.deleteAsync((Transaction) null, key);
+        assertThat(future, is(instanceOf(RetryFuture.class)));
+        future.get();
+        assertThat(tester.count("Hoge"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void queryWithRetryPolicy() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        delegate.setRetryPolicy(policy);
+        ds.put(new Entity("Hoge")).get();
+        EntityQuery query = delegate.query("Hoge");
+        assertThat(query.retryPolicy, is(sameInstance(policy)));
+        assertThat(query.asList().size(), is(1));
+        assertThat(delegate.query("Hoge").count(), is(1));
+    }
+
     /**
      * @throws Exception
      */
@@ -384,6 +497,235 @@ public class AsyncDatastoreDelegateTest extends AppEngineTestCase {
         assertThat(keys.size(), is(2));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncAndDeleteAsyncForManyModels() throws Exception {
+        List<Hoge> models = new ArrayList<Hoge>();
+        for (int i = 0; i < 1001; i++) {
+            models.add(new Hoge());
+        }
+        List<Key> keys = delegate.putAsync((Transaction) null, models).get();
+        assertThat(keys.size(), is(1001));
+        assertThat(keys.get(1000), is(models.get(1000).getKey()));
+        assertThat(
+            delegate.getAsMapAsync((Transaction) null, keys).get().size(),
+            is(1001));
+        delegate.deleteAsync((Transaction) null, keys).get();
+        assertThat(tester.count(Hoge.class), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncWithRequestCache() throws Exception {
+        RequestCache.begin();
+        Key key = ds.put(new Entity("Hoge")).get();
+        Key key2 = KeyFactory.createKey("Hoge", 99);
+        Map<Key, Entity> map =
+            delegate.getAsMapAsync((Transaction) null, key, key2).get();
+        assertThat(map.size(), is(1));
+        ds.delete(key).get();
+        map = delegate.getAsMapAsync((Transaction) null, key, key2).get();
+        assertThat(map.size(), is(1));
+        assertThat(map.get(key), is(notNullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncWithRequestCacheInTx() throws Exception {
+        RequestCache.begin();
+        Key key = ds.put(new Entity("Hoge")).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        ds.delete(key).get();
+        Transaction tx = ds.beginTransaction().get();
+        Map<Key, Entity> map = delegate.getAsMapAsync(tx, key).get();
+        tx.rollback();
+        assertThat(map.size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncWithModelCache() throws Exception {
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        ModelCache.register("Hoge");
+        Key key = ds.put(new Entity("Hoge")).get();
+        Key key2 = KeyFactory.createKey("Hoge", 99);
+        Map<Key, Entity> map =
+            delegate.getAsMapAsync((Transaction) null, key, key2).get();
+        assertThat(map.size(), is(1));
+        ds.delete(key).get();
+        map = delegate.getAsMapAsync((Transaction) null, key, key2).get();
+        assertThat(map.size(), is(1));
+        assertThat(map.get(key), is(notNullValue()));
+        Transaction tx = ds.beginTransaction().get();
+        map = delegate.getAsMapAsync(tx, key).get();
+        tx.rollback();
+        assertThat(map.size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncInvalidatesModelCache() throws Exception {
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        ModelCache.register("Hoge");
+        Entity entity = new Entity("Hoge");
+        Key key = ds.put(entity).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        entity.setProperty("aaa", "111");
+        delegate.putAsync((Transaction) null, entity).get();
+        Entity cached = delegate.getAsync((Transaction) null, key).get();
+        assertThat((String) cached.getProperty("aaa"), is("111"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncInvalidatesModelCacheOnCompletion() throws Exception {
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        System.setProperty(ModelCache.INVALIDATION_MILLIS, "0");
+        ModelCache.register("Hoge");
+        Entity entity = new Entity("Hoge");
+        Key key = ds.put(entity).get();
+        entity.setProperty("aaa", "111");
+        Future<Key> future = delegate.putAsync((Transaction) null, entity);
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        ModelCache.putAll(map);
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key)),
+            is(true));
+        future.get();
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key)),
+            is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAsyncInvalidatesModelCacheOnCompletion()
+            throws Exception {
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        System.setProperty(ModelCache.INVALIDATION_MILLIS, "0");
+        ModelCache.register("Hoge");
+        Key key = ds.put(new Entity("Hoge")).get();
+        Future<Void> future = delegate.deleteAsync((Transaction) null, key);
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        ModelCache.putAll(map);
+        future.get();
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key)),
+            is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAsyncInvalidatesModelCache() throws Exception {
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        ModelCache.register("Hoge");
+        Key key = ds.put(new Entity("Hoge")).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        delegate.deleteAsync((Transaction) null, key).get();
+        Map<Key, Entity> map =
+            delegate.getAsMapAsync((Transaction) null, key).get();
+        assertThat(map.size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsyncWithVersionAndStaleModelCache() throws Exception {
+        System.setProperty(ModelCache.INVALIDATION_MILLIS, "0");
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        ModelCache.register("Hoge");
+        HogeMeta meta = HogeMeta.get();
+        Hoge hoge = new Hoge();
+        Key key = delegate.putAsync(hoge).get();
+        delegate.getAsync((Transaction) null, meta, key).get();
+        Entity entity = ds.get(key).get();
+        entity.setProperty("version", 2L);
+        ds.put(entity).get();
+        Hoge hoge2 = delegate.getAsync((Transaction) null, meta, key, 2L).get();
+        assertThat(hoge2.getVersion(), is(2L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncInvalidatesRequestCache() throws Exception {
+        RequestCache.begin();
+        Entity entity = new Entity("Hoge");
+        Key key = ds.put(entity).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        entity.setProperty("aaa", "111");
+        delegate.putAsync((Transaction) null, entity).get();
+        Entity cached = delegate.getAsync((Transaction) null, key).get();
+        assertThat((String) cached.getProperty("aaa"), is("111"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncInTxInvalidatesRequestCache() throws Exception {
+        RequestCache.begin();
+        Entity entity = new Entity("Hoge");
+        Key key = ds.put(entity).get();
+        Transaction tx = ds.beginTransaction().get();
+        entity.setProperty("aaa", "111");
+        delegate.putAsync(tx, entity).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        tx.commit();
+        Entity cached = delegate.getAsync((Transaction) null, key).get();
+        assertThat((String) cached.getProperty("aaa"), is("111"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void requestCacheIsUsedAfterCommit() throws Exception {
+        RequestCache.begin();
+        Entity entity = new Entity("Hoge");
+        Key key = ds.put(entity).get();
+        Transaction tx = ds.beginTransaction().get();
+        delegate.putAsync(tx, entity).get();
+        tx.commit();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        assertThat(RequestCache.getCurrent().contains(key), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAsyncInvalidatesRequestCache() throws Exception {
+        RequestCache.begin();
+        Key key = ds.put(new Entity("Hoge")).get();
+        delegate.getAsMapAsync((Transaction) null, key).get();
+        delegate.deleteAsync((Transaction) null, key).get();
+        assertThat(
+            delegate.getAsMapAsync((Transaction) null, key).get().size(),
+            is(0));
+    }
+
     /**
      * @throws Exception
      */
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * @author higa
+ * 
+ */
+public class AutoBatcherTest extends AppEngineTestCase {
+
+    private AsyncDatastoreService ds =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+
+    private AsyncDatastoreDelegate delegate;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty(AutoBatcher.WINDOW_MILLIS, "60000");
+        delegate = new AsyncDatastoreDelegate();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        AutoBatcher.end();
+        System.clearProperty(AutoBatcher.USE_AUTO_BATCH);
+        System.clearProperty(AutoBatcher.WINDOW_MILLIS);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isEnabled() throws Exception {
+        assertThat(AutoBatcher.isEnabled(), is(false));
+        System.setProperty(AutoBatcher.USE_AUTO_BATCH, "true");
+        assertThat(AutoBatcher.isEnabled(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void beginAndEnd() throws Exception {
+        assertThat(AutoBatcher.getCurrent(), is(nullValue()));
+        AutoBatcher.begin();
+        assertThat(AutoBatcher.getCurrent(), is(notNullValue()));
+        AutoBatcher.end();
+        assertThat(AutoBatcher.getCurrent(), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsync() throws Exception {
+        AutoBatcher.begin();
+        Future<Key> future = delegate.putAsync(new Entity("Hoge"));
+        Future<Key> future2 = delegate.putAsync(new Entity("Hoge"));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(true));
+        assertThat(tester.count("Hoge"), is(0));
+        Key key = future.get();
+        assertThat(key.isComplete(), is(true));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+        assertThat(future2.isDone(), is(true));
+        assertThat(future2.get().isComplete(), is(true));
+        assertThat(tester.count("Hoge"), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncCopiesEntity() throws Exception {
+        AutoBatcher.begin();
+        Entity entity = new Entity("Hoge");
+        entity.setProperty("aaa", "111");
+        Future<Key> future = delegate.putAsync(entity);
+        entity.setProperty("aaa", "222");
+        Key key = future.get();
+        assertThat(ds.get(key).get().getProperty("aaa"), is((Object) "111"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void queryFlushesPendingWrites() throws Exception {
+        Key parentKey = ds.put(new Entity("Parent")).get();
+        AutoBatcher.begin();
+        delegate.putAsync(new Entity("Hoge", parentKey));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(true));
+        assertThat(
+            delegate.query("Hoge", parentKey).asList().size(),
+            is(1));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncInTx() throws Exception {
+        AutoBatcher.begin();
+        Transaction tx = ds.beginTransaction().get();
+        delegate.putAsync(tx, new Entity("Hoge"));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+        tx.rollback();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAsync() throws Exception {
+        Key key = ds.put(new Entity("Hoge")).get();
+        AutoBatcher.begin();
+        delegate.deleteAsync(key);
+        assertThat(tester.count("Hoge"), is(1));
+        AutoBatcher.flushCurrent();
+        assertThat(tester.count("Hoge"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAfterPut() throws Exception {
+        AutoBatcher.begin();
+        Entity entity = new Entity("Hoge");
+        delegate.putAsync(entity);
+        delegate.deleteAsync(entity.getKey());
+        AutoBatcher.flushCurrent();
+        assertThat(tester.count("Hoge"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getFlushesPendingKeys() throws Exception {
+        AutoBatcher.begin();
+        Entity entity = new Entity("Hoge");
+        entity.setProperty("aaa", "111");
+        delegate.putAsync(entity);
+        Entity entity2 = delegate.getAsync(entity.getKey()).get();
+        assertThat((String) entity2.getProperty("aaa"), is("111"));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void flushWhenMaxNumberOfEntitiesIsReached() throws Exception {
+        AutoBatcher.begin();
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < DatastoreUtil.MAX_NUMBER_OF_ENTITIES + 1; i++) {
+            entities.add(new Entity("Hoge"));
+        }
+        delegate.putAsync(entities.subList(0, 1));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(true));
+        delegate.putAsync(entities.subList(
+            1,
+            DatastoreUtil.MAX_NUMBER_OF_ENTITIES + 1));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+        AutoBatcher.flushCurrent();
+        assertThat(
+            tester.count("Hoge"),
+            is(DatastoreUtil.MAX_NUMBER_OF_ENTITIES + 1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putSameKeyDoesNotAccumulateSize() throws Exception {
+        AutoBatcher.begin();
+        Entity entity = new Entity("Hoge");
+        entity.setUnindexedProperty("aaa", new Text(new String(
+            new char[DatastoreUtil.MAX_ENTITY_SIZE / 2])));
+        delegate.putAsync(entity);
+        delegate.putAsync(entity);
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(true));
+        AutoBatcher.flushCurrent();
+        assertThat(tester.count("Hoge"), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void flushWhenWindowHasElapsed() throws Exception {
+        System.setProperty(AutoBatcher.WINDOW_MILLIS, "0");
+        AutoBatcher.begin();
+        delegate.putAsync(Arrays.asList(new Entity("Hoge")));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isDoneFlushesWhenWindowHasElapsed() throws Exception {
+        System.setProperty(AutoBatcher.WINDOW_MILLIS, "10");
+        AutoBatcher.begin();
+        Future<Key> future = delegate.putAsync(new Entity("Hoge"));
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(true));
+        Thread.sleep(50);
+        future.isDone();
+        assertThat(AutoBatcher.getCurrent().hasPending(), is(false));
+        future.get();
+        assertThat(tester.count("Hoge"), is(1));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author higa
+ * 
+ */
+public class BackoffUtilTest {
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getBackoffMillis() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            long backoff = BackoffUtil.getBackoffMillis(10, 50, 0);
+            assertTrue(backoff >= 5 && backoff <= 10);
+            backoff = BackoffUtil.getBackoffMillis(10, 50, 1);
+            assertTrue(backoff >= 10 && backoff <= 20);
+            backoff = BackoffUtil.getBackoffMillis(10, 50, 40);
+            assertTrue(backoff >= 25 && backoff <= 50);
+        }
+        assertThat(BackoffUtil.getBackoffMillis(0, 50, 3), is(0L));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.slim3.util.FakeFuture;
+
+/**
+ * @author higa
+ * 
+ */
+public class BatchFutureTest {
+
+    private List<List<Integer>> dispatched = new ArrayList<List<Integer>>();
+
+    @SuppressWarnings("unchecked")
+    private BatchFuture<Integer, Integer, List<Integer>> createFuture() {
+        List<List<Integer>> chunks =
+            Arrays.asList(
+                Arrays.asList(1, 2),
+                Arrays.asList(3, 4),
+                Arrays.asList(5));
+        return new BatchFuture<Integer, Integer, List<Integer>>(chunks, 2) {
+
+            @Override
+            protected Future<Integer> dispatch(List<Integer> chunk) {
+                dispatched.add(chunk);
+                int sum = 0;
+                for (Integer i : chunk) {
+                    sum += i;
+                }
+                return new FakeFuture<Integer>(sum);
+            }
+
+            @Override
+            protected List<Integer> merge(List<Integer> results) {
+                return results;
+            }
+        };
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void start() throws Exception {
+        BatchFuture<Integer, Integer, List<Integer>> future = createFuture();
+        future.start();
+        assertThat(dispatched.size(), is(2));
+        assertThat(future.isDone(), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void get() throws Exception {
+        BatchFuture<Integer, Integer, List<Integer>> future =
+            createFuture().start();
+        assertThat(future.get(), is(Arrays.asList(3, 7, 5)));
+        assertThat(dispatched.size(), is(3));
+        assertThat(future.isDone(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorForIllegalMaxConcurrentBatches() throws Exception {
+        new BatchFuture<Integer, Integer, Integer>(
+            new ArrayList<List<Integer>>(),
+            0) {
+
+            @Override
+            protected Future<Integer> dispatch(List<Integer> chunk) {
+                return null;
+            }
+
+            @Override
+            protected Integer merge(List<Integer> results) {
+                return null;
+            }
+        };
+    }
+}
\ No newline at end of file
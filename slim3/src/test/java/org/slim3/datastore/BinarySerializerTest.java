@@ -0,0 +1,226 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.slim3.datastore.model.MySerializable;
+import org.slim3.tester.AppEngineTestCase;
+import org.slim3.util.ByteUtil;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.SortDirection;
+
+/**
+ * @author higa
+ * 
+ */
+public class BinarySerializerTest extends AppEngineTestCase {
+
+    private BinarySerializer serializer = new BinarySerializer();
+
+    @Override
+    public void tearDown() throws Exception {
+        System.clearProperty(BinarySerializer.COMPRESSION_THRESHOLD);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void primitives() throws Exception {
+        Object[] values =
+            new Object[] {
+                null,
+                true,
+                false,
+                (byte) -1,
+                (short) 300,
+                Integer.MIN_VALUE,
+                Long.MAX_VALUE,
+                1.5f,
+                -2.5d,
+                'a',
+                "\u3042aaa",
+                "" };
+        for (Object value : values) {
+            assertThat(roundTrip(value), is(value));
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void dateAndKeyAndEnum() throws Exception {
+        Date date = new Date(1234567890123L);
+        Key key =
+            KeyFactory.createKey(KeyFactory.createKey("Parent", 1), "Hoge", "a");
+        assertThat(roundTrip(date), is((Object) date));
+        assertThat(roundTrip(key), is((Object) key));
+        assertThat(
+            roundTrip(SortDirection.DESCENDING),
+            is((Object) SortDirection.DESCENDING));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void arrays() throws Exception {
+        byte[] bytes = new byte[] { 1, 2, 3 };
+        assertThat(Arrays.equals((byte[]) roundTrip(bytes), bytes), is(true));
+        int[] ints = new int[] { 1, -2, 3 };
+        assertThat(Arrays.equals((int[]) roundTrip(ints), ints), is(true));
+        String[] strings = new String[] { "aaa", null };
+        assertThat(
+            Arrays.equals((String[]) roundTrip(strings), strings),
+            is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void collectionsAndMaps() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(1);
+        list.add("aaa");
+        list.add(Arrays.asList(2L, 3L));
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("aaa", list);
+        map.put("bbb", new HashSet<String>(Arrays.asList("x", "y")));
+        map.put("ccc", new TreeSet<Integer>(Arrays.asList(3, 1, 2)));
+        Map<String, Integer> linked = new LinkedHashMap<String, Integer>();
+        linked.put("z", 1);
+        linked.put("a", 2);
+        map.put("ddd", linked);
+        map.put("eee", Collections.unmodifiableList(Arrays.asList(1, 2)));
+        Object value = roundTrip(map);
+        assertThat(value, is((Object) map));
+        assertThat(
+            ((Map<?, ?>) value).get("ccc").getClass().getName(),
+            is(TreeSet.class.getName()));
+        assertThat(
+            ((Map<?, ?>) ((Map<?, ?>) value).get("ddd")).keySet().toString(),
+            is("[z, a]"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void bean() throws Exception {
+        MySerializable bean = new MySerializable("aaa");
+        byte[] bytes = serializer.serialize(Arrays.asList(bean, bean));
+        assertThat(
+            serializer.deserialize(bytes),
+            is((Object) Arrays.asList(bean, bean)));
+        assertThat(bytes.length < ByteUtil.toByteArray(bean).length, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void serializableFallback() throws Exception {
+        BigDecimal value = new BigDecimal("1.23");
+        assertThat(roundTrip(value), is((Object) value));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void notSupported() throws Exception {
+        serializer.serialize(new Object());
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void cyclicReference() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(list);
+        serializer.serialize(list);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deserializeJavaSerialization() throws Exception {
+        byte[] bytes = ByteUtil.toByteArray(new MySerializable("aaa"));
+        assertThat(BinarySerializer.isBinary(bytes), is(false));
+        assertThat(
+            serializer.deserialize(bytes),
+            is((Object) new MySerializable("aaa")));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compress() throws Exception {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            list.add("aaaaaaaaaa");
+        }
+        byte[] plain = serializer.serialize(list);
+        System.setProperty(BinarySerializer.COMPRESSION_THRESHOLD, "100");
+        byte[] compressed = serializer.serialize(list);
+        assertThat(BinarySerializer.isBinary(compressed), is(true));
+        assertThat(compressed[1], is(not(plain[1])));
+        assertThat(compressed.length < plain.length, is(true));
+        assertThat(serializer.deserialize(compressed), is((Object) list));
+        assertThat(
+            serializer.serialize("aaa")[1],
+            is(BinarySerializer.PLAIN));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deserializeNull() throws Exception {
+        assertThat(serializer.deserialize(null), is(nullValue()));
+    }
+
+    private Object roundTrip(Object value) {
+        byte[] bytes = serializer.serialize(value);
+        assertThat(BinarySerializer.isBinary(bytes), is(true));
+        return serializer.deserialize(bytes);
+    }
+}
\ No newline at end of file
@@ -23,7 +23,9 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
+import org.slim3.datastore.meta.BbbMeta;
 import org.slim3.datastore.meta.HogeMeta;
+import org.slim3.datastore.model.Bbb;
 import org.slim3.datastore.model.Hoge;
 import org.slim3.tester.AppEngineTestCase;
 import org.slim3.util.CipherFactory;
@@ -320,4 +322,65 @@ public class DatastoreDelegateTest extends AppEngineTestCase {
         assertThat(((Text) delegate.get(key).getProperty("myCipherText"))
             .getValue(), not("hogehogehoge."));
     }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void preloadModelRefs() throws Exception {
+        Hoge hoge = new Hoge();
+        Hoge hoge2 = new Hoge();
+        delegate.put(hoge, hoge2);
+        List<Bbb> bbbList = new ArrayList<Bbb>();
+        for (Hoge h : Arrays.asList(hoge, hoge2, hoge)) {
+            Bbb bbb = new Bbb();
+            bbb.getHogeRef().setKey(h.getKey());
+            bbbList.add(bbb);
+        }
+        bbbList.add(new Bbb());
+        delegate.preload(bbbList, BbbMeta.get().hogeRef);
+        assertThat(bbbList.get(0).getHogeRef().model.getKey(), is(hoge.getKey()));
+        assertThat(
+            bbbList.get(1).getHogeRef().model.getKey(),
+            is(hoge2.getKey()));
+        assertThat(bbbList.get(2).getHogeRef().model.getKey(), is(hoge.getKey()));
+        assertThat(bbbList.get(3).getHogeRef().model, is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void preloadInverseModelListRefs() throws Exception {
+        List<Hoge> hogeList = new ArrayList<Hoge>();
+        for (int i = 0; i < 40; i++) {
+            hogeList.add(new Hoge());
+        }
+        delegate.put(hogeList);
+        for (int i = 0; i < 3; i++) {
+            Bbb bbb = new Bbb();
+            bbb.getHoge2Ref().setModel(hogeList.get(i == 2 ? 35 : 0));
+            delegate.put(bbb);
+        }
+        hogeList.add(new Hoge());
+        delegate.preload(hogeList, "bbbListRef");
+        assertThat(hogeList.get(0).getBbbListRef().modelList.size(), is(2));
+        assertThat(hogeList.get(1).getBbbListRef().modelList.size(), is(0));
+        assertThat(hogeList.get(35).getBbbListRef().modelList.size(), is(1));
+        assertThat(
+            hogeList.get(35).getBbbListRef().modelList.get(0).getHoge2Ref()
+                .getKey(),
+            is(hogeList.get(35).getKey()));
+        assertThat(hogeList.get(40).getBbbListRef().modelList.size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void preloadForIllegalProperty() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        delegate.preload(Arrays.asList(hoge), "myString");
+    }
 }
\ No newline at end of file
@@ -92,6 +92,20 @@ public class DatastoreTest extends AppEngineTestCase {
         assertThat(Datastore.deadline(deadline).async.deadline, is(deadline));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void retry() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        DatastoreDelegate delegate = Datastore.retry(policy);
+        assertThat(delegate.async.retryPolicy, is(sameInstance(policy)));
+        assertThat(
+            delegate.query("Hoge").retryPolicy,
+            is(sameInstance(policy)));
+        assertThat(Datastore.query("Hoge").retryPolicy, is(nullValue()));
+    }
+
     /**
      * @throws Exception
      */
@@ -100,6 +114,20 @@ public class DatastoreTest extends AppEngineTestCase {
         assertThat(Datastore.beginTransaction(), is(notNullValue()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void beginGlobalTransactionWithContentionPolicy() throws Exception {
+        LockContentionPolicy policy =
+            new LockContentionPolicy().initialBackoffMillis(10).maxWaitMillis(
+                100);
+        GlobalTransaction gtx = Datastore.beginGlobalTransaction(policy);
+        assertThat(gtx.getContentionPolicy(), is(sameInstance(policy)));
+        assertThat(gtx.isActive(), is(true));
+        gtx.rollback();
+    }
+
     /**
      * @throws Exception
      */
@@ -25,6 +25,7 @@ import static org.junit.Assert.assertThat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
@@ -43,6 +44,7 @@ import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.KeyRange;
@@ -60,6 +62,9 @@ import com.google.storage.onestore.v3.OnestoreEntity.Reference;
  */
 public class DatastoreUtilTest extends AppEngineTestCase {
 
+    private static class LazyHoge extends Hoge implements LazyModel {
+    }
+
     private AsyncDatastoreService ds = DatastoreServiceFactory
         .getAsyncDatastoreService();
 
@@ -340,6 +345,94 @@ public class DatastoreUtilTest extends AppEngineTestCase {
         assertThat(tester.count("Hoge"), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncForManyEntities() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 1; i <= 1201; i++) {
+            entities.add(new Entity(KeyFactory.createKey("Hoge", i)));
+        }
+        List<Key> keys = DatastoreUtil.putAsync(ds, null, entities).get();
+        assertThat(keys.size(), is(1201));
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(keys.get(i), is(entities.get(i).getKey()));
+        }
+        assertThat(tester.count("Hoge"), is(1201));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncWithMaxConcurrentBatches() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 1; i <= 1201; i++) {
+            entities.add(new Entity(KeyFactory.createKey("Hoge", i)));
+        }
+        List<Key> keys = DatastoreUtil.putAsync(ds, null, entities).get();
+        Map<Key, Entity> map =
+            DatastoreUtil.getAsMapAsync(ds, null, keys, 2).get();
+        assertThat(map.size(), is(1201));
+        for (Key key : keys) {
+            assertThat(map.get(key), is(notNullValue()));
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAsyncForManyEntitiesWithoutGet() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 1; i <= 1201; i++) {
+            entities.add(new Entity(KeyFactory.createKey("Hoge", i)));
+        }
+        Future<List<Key>> future = DatastoreUtil.putAsync(ds, null, entities);
+        while (!future.isDone()) {
+            Thread.sleep(10);
+        }
+        assertThat(tester.count("Hoge"), is(1201));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteAsyncForManyKeys() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 1; i <= 1201; i++) {
+            entities.add(new Entity(KeyFactory.createKey("Hoge", i)));
+        }
+        List<Key> keys = DatastoreUtil.putAsync(ds, null, entities).get();
+        DatastoreUtil.deleteAsync(ds, null, keys).get();
+        assertThat(tester.count("Hoge"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void split() throws Exception {
+        List<List<Integer>> chunks =
+            DatastoreUtil.split(Arrays.asList(1, 2, 3, 4, 5), 2);
+        assertThat(chunks.size(), is(3));
+        assertThat(chunks.get(0), is(Arrays.asList(1, 2)));
+        assertThat(chunks.get(1), is(Arrays.asList(3, 4)));
+        assertThat(chunks.get(2), is(Arrays.asList(5)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void splitForEmpty() throws Exception {
+        List<List<Integer>> chunks =
+            DatastoreUtil.split(new ArrayList<Integer>(), 2);
+        assertThat(chunks.size(), is(0));
+    }
+
     /**
      * @throws Exception
      */
@@ -411,6 +504,62 @@ public class DatastoreUtilTest extends AppEngineTestCase {
         assertThat(sorted.get(2).getMyInteger(), is(1));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void filterAndSortInMemory() throws Exception {
+        List<Hoge> list = new ArrayList<Hoge>();
+        for (int i : new int[] { 5, 1, 8, 3, 9, 2, 7, 3 }) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            list.add(hoge);
+        }
+        List<Hoge> sorted =
+            DatastoreUtil.filterAndSortInMemory(
+                list.iterator(),
+                Arrays.asList(meta.myInteger.lessThan(9)),
+                Arrays.asList((InMemorySortCriterion) meta.myInteger.asc),
+                3);
+        assertThat(sorted.size(), is(3));
+        assertThat(sorted.get(0).getMyInteger(), is(1));
+        assertThat(sorted.get(1).getMyInteger(), is(2));
+        assertThat(sorted.get(2), is(sameInstance(list.get(3))));
+        sorted =
+            DatastoreUtil.filterAndSortInMemory(
+                list.iterator(),
+                Arrays.asList(meta.myInteger.lessThan(9)),
+                Arrays.asList((InMemorySortCriterion) meta.myInteger.desc),
+                null);
+        assertThat(sorted.size(), is(7));
+        assertThat(sorted.get(0).getMyInteger(), is(8));
+        assertThat(sorted.get(6).getMyInteger(), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void filterAndSortInMemoryStopsAtLimit() throws Exception {
+        List<Hoge> list = new ArrayList<Hoge>();
+        for (int i : new int[] { 5, 1, 8, 3 }) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            list.add(hoge);
+        }
+        Iterator<Hoge> iterator = list.iterator();
+        List<Hoge> filtered =
+            DatastoreUtil.filterAndSortInMemory(
+                iterator,
+                Arrays.asList(meta.myInteger.greaterThan(2)),
+                new ArrayList<InMemorySortCriterion>(),
+                2);
+        assertThat(filtered.size(), is(2));
+        assertThat(filtered.get(0).getMyInteger(), is(5));
+        assertThat(filtered.get(1).getMyInteger(), is(8));
+        assertThat(iterator.next().getMyInteger(), is(3));
+    }
+
     /**
      * @throws Exception
      */
@@ -468,6 +617,18 @@ public class DatastoreUtilTest extends AppEngineTestCase {
             is(sameInstance((ModelMeta) Datastore.getModelMeta(Hoge.class))));
     }
 
+    /**
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getModelMetaForLazyModel() throws Exception {
+        ModelMeta<?> modelMeta = DatastoreUtil.getModelMeta(LazyHoge.class);
+        assertThat(
+            modelMeta,
+            is(sameInstance((ModelMeta) Datastore.getModelMeta(Hoge.class))));
+    }
+
     /**
      * @throws Exception
      */
@@ -564,6 +725,19 @@ public class DatastoreUtilTest extends AppEngineTestCase {
         assertThat(hoge.getKey(), is(entity.getKey()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void modelToProto() throws Exception {
+        Hoge hoge = new Hoge();
+        Entity entity =
+            EntityTranslator.createFromPb(DatastoreUtil.modelToProto(ds, hoge));
+        assertThat((Long) entity.getProperty("version"), is(1L));
+        assertThat(hoge.getKey(), is(notNullValue()));
+        assertThat(hoge.getKey(), is(entity.getKey()));
+    }
+
     /**
      * @throws Exception
      */
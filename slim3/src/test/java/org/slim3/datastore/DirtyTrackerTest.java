@@ -0,0 +1,255 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.slim3.datastore.meta.HogeMeta;
+import org.slim3.datastore.model.Hoge;
+import org.slim3.datastore.model.MySerializable;
+import org.slim3.tester.AppEngineTestCase;
+import org.slim3.util.CipherFactory;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * @author higa
+ * 
+ */
+public class DirtyTrackerTest extends AppEngineTestCase {
+
+    private DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+
+    private HogeMeta meta = new HogeMeta();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        CipherFactory.getFactory().setGlobalKey("xxxxxxxxxxxxxxxx");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        CipherFactory.getFactory().clearGlobalKey();
+        DirtyTracker.end();
+        System.clearProperty(DirtyTracker.USE_DIRTY_TRACKING);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isEnabled() throws Exception {
+        assertThat(DirtyTracker.isEnabled(), is(false));
+        System.setProperty(DirtyTracker.USE_DIRTY_TRACKING, "true");
+        assertThat(DirtyTracker.isEnabled(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putUnchangedModel() throws Exception {
+        Key key = Datastore.put(newHoge());
+        DirtyTracker.begin();
+        Hoge hoge = Datastore.get(meta, key);
+        assertThat(DirtyTracker.getCurrent().size(), is(1));
+        overwrite(key, "bbb");
+        assertThat(Datastore.put(hoge), is(key));
+        assertThat((String) ds.get(key).getProperty("myString"), is("bbb"));
+        hoge.setMyString("ccc");
+        Datastore.put(hoge);
+        assertThat((String) ds.get(key).getProperty("myString"), is("ccc"));
+        assertThat(DirtyTracker.getCurrent().size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putModels() throws Exception {
+        List<Key> keys = Datastore.put(Arrays.asList(newHoge(), newHoge()));
+        DirtyTracker.begin();
+        List<Hoge> list = Datastore.get(meta, keys);
+        overwrite(keys.get(0), "bbb");
+        overwrite(keys.get(1), "bbb");
+        list.get(1).setMyString("ccc");
+        assertThat(Datastore.put(list), is(keys));
+        assertThat(
+            (String) ds.get(keys.get(0)).getProperty("myString"),
+            is("bbb"));
+        assertThat(
+            (String) ds.get(keys.get(1)).getProperty("myString"),
+            is("ccc"));
+        assertThat(Datastore.put(list.get(0), list.get(0)), is(Arrays.asList(
+            keys.get(0),
+            keys.get(0))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAfterDelete() throws Exception {
+        Key key = Datastore.put(newHoge());
+        DirtyTracker.begin();
+        Hoge hoge = Datastore.query(meta).asSingle();
+        Datastore.delete(key);
+        Datastore.put(hoge);
+        assertThat(tester.count(Hoge.class), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getChangedPropertyNames() throws Exception {
+        Key key = Datastore.put(newHoge());
+        DirtyTracker.begin();
+        DirtyTracker tracker = DirtyTracker.getCurrent();
+        Hoge hoge = Datastore.get(meta, key);
+        assertThat(tracker.getChangedPropertyNames(hoge).isEmpty(), is(true));
+        hoge.setMyInteger(2);
+        hoge.setMyIntegerList(null);
+        Set<String> names = tracker.getChangedPropertyNames(hoge);
+        assertThat(names.size(), is(2));
+        assertThat(names.contains("myInteger"), is(true));
+        assertThat(names.contains("myIntegerList"), is(true));
+        assertThat(tracker.getChangedPropertyNames(newHoge()), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void notTracked() throws Exception {
+        DirtyTracker.begin();
+        Hoge hoge = newHoge();
+        Key key = Datastore.put(hoge);
+        assertThat(DirtyTracker.getCurrent().getUnchangedKey(hoge), is(nullValue()));
+        overwrite(key, "bbb");
+        Datastore.put(hoge);
+        assertThat((String) ds.get(key).getProperty("myString"), is("aaa"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putInTransactionAfterReadWithoutTransaction() throws Exception {
+        Key key = Datastore.put(newHoge());
+        DirtyTracker.begin();
+        Hoge hoge = Datastore.get(meta, key);
+        overwrite(key, "bbb");
+        Transaction tx = Datastore.beginTransaction();
+        Datastore.put(tx, hoge);
+        tx.commit();
+        assertThat((String) ds.get(key).getProperty("myString"), is("aaa"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putInSameTransaction() throws Exception {
+        Key key = Datastore.put(newHoge());
+        DirtyTracker.begin();
+        Transaction tx = Datastore.beginTransaction();
+        Hoge hoge = Datastore.get(tx, meta, key);
+        DirtyTracker tracker = DirtyTracker.getCurrent();
+        assertThat(tracker.getUnchangedKey(hoge, tx), is(key));
+        assertThat(tracker.getUnchangedKey(hoge), is(nullValue()));
+        assertThat(Datastore.put(tx, hoge), is(key));
+        tx.rollback();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putModelChangedInPlace() throws Exception {
+        Hoge hoge = newHoge();
+        hoge.setMyStringList(new ArrayList<String>(Arrays.asList("a")));
+        hoge.setMyDate(new Date(1000));
+        hoge.setMyBytes(new byte[] { 1 });
+        Key key = Datastore.put(hoge);
+        DirtyTracker.begin();
+        hoge = Datastore.get(meta, key);
+        DirtyTracker tracker = DirtyTracker.getCurrent();
+        hoge.getMyStringList().add("b");
+        hoge.getMyDate().setTime(5000);
+        hoge.getMyBytes()[0] = 2;
+        Set<String> names = tracker.getChangedPropertyNames(hoge);
+        assertThat(names.size(), is(3));
+        assertThat(names.contains("myStringList"), is(true));
+        assertThat(names.contains("myDate"), is(true));
+        assertThat(names.contains("myBytes"), is(true));
+        assertThat(tracker.getUnchangedKey(hoge), is(nullValue()));
+        Datastore.put(hoge);
+        Hoge stored = Datastore.get(meta, key);
+        assertThat(stored.getMyStringList(), is(Arrays.asList("a", "b")));
+        assertThat(stored.getMyDate(), is(new Date(5000)));
+        assertThat(stored.getMyBytes()[0], is((byte) 2));
+        assertThat(stored.getVersion(), is(2L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void snapshotIsDiscardedWhenModelIsCollected() throws Exception {
+        Key key = Datastore.put(newHoge());
+        DirtyTracker.begin();
+        Datastore.get(meta, key);
+        DirtyTracker tracker = DirtyTracker.getCurrent();
+        for (int i = 0; i < 10 && tracker.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(tracker.size(), is(0));
+    }
+
+    private Hoge newHoge() {
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        hoge.setMyInteger(1);
+        hoge.setMyFloat(1.5f);
+        hoge.setMyDate(new Date(1234567890123L));
+        hoge.setMyIntegerList(Arrays.asList(1, 2));
+        hoge.setMySerializable(new MySerializable("aaa"));
+        return hoge;
+    }
+
+    private void overwrite(Key key, String myString) throws Exception {
+        Entity entity = ds.get(key);
+        entity.setProperty("myString", myString);
+        ds.put(entity);
+    }
+}
\ No newline at end of file
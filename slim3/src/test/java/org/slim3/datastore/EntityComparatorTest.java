@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.ShortBlob;
+
+/**
+ * @author higa
+ * 
+ */
+public class EntityComparatorTest extends AppEngineTestCase {
+
+    private Entity entity1;
+
+    private Entity entity2;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        entity1 = new Entity(KeyFactory.createKey("Hoge", 1));
+        entity2 = new Entity(KeyFactory.createKey("Hoge", 2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compareByKey() throws Exception {
+        EntityComparator c =
+            new EntityComparator(new ArrayList<SortPredicate>());
+        assertThat(c.compare(entity1, entity2) < 0, is(true));
+        assertThat(c.compare(entity2, entity1) > 0, is(true));
+        assertThat(c.compare(entity1, entity1), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compareByProperty() throws Exception {
+        entity1.setProperty("aaa", 2L);
+        entity2.setProperty("aaa", 1L);
+        EntityComparator c =
+            new EntityComparator(Arrays.asList(new SortPredicate(
+                "aaa",
+                SortDirection.ASCENDING)));
+        assertThat(c.compare(entity1, entity2) > 0, is(true));
+        c =
+            new EntityComparator(Arrays.asList(new SortPredicate(
+                "aaa",
+                SortDirection.DESCENDING)));
+        assertThat(c.compare(entity1, entity2) < 0, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compareByNullProperty() throws Exception {
+        entity1.setProperty("aaa", 1L);
+        EntityComparator c =
+            new EntityComparator(Arrays.asList(new SortPredicate(
+                "aaa",
+                SortDirection.ASCENDING)));
+        assertThat(c.compare(entity1, entity2) > 0, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compareByMultiValuedProperty() throws Exception {
+        entity1.setProperty("aaa", Arrays.asList(1L, 5L));
+        entity2.setProperty("aaa", Arrays.asList(2L, 3L));
+        EntityComparator c =
+            new EntityComparator(Arrays.asList(new SortPredicate(
+                "aaa",
+                SortDirection.ASCENDING)));
+        assertThat(c.compare(entity1, entity2) < 0, is(true));
+        c =
+            new EntityComparator(Arrays.asList(new SortPredicate(
+                "aaa",
+                SortDirection.DESCENDING)));
+        assertThat(c.compare(entity1, entity2) < 0, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compareValueOfDifferentTypes() throws Exception {
+        EntityComparator c =
+            new EntityComparator(new ArrayList<SortPredicate>());
+        assertThat(c.compareValue(null, 1L) < 0, is(true));
+        assertThat(c.compareValue(2L, 1.5d) < 0, is(true));
+        assertThat(c.compareValue(1.5d, 2L) > 0, is(true));
+        assertThat(c.compareValue(100L, true) < 0, is(true));
+        assertThat(c.compareValue(true, "a") < 0, is(true));
+        assertThat(c.compareValue("a", 1L) > 0, is(true));
+        assertThat(c.compareValue(1.0d, KeyFactory.createKey("Hoge", 1))
+            < 0, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compareValueOfSameRank() throws Exception {
+        EntityComparator c =
+            new EntityComparator(new ArrayList<SortPredicate>());
+        assertThat(c.compareValue(1, 2L) < 0, is(true));
+        assertThat(c.compareValue(new Date(1), 999L) > 0, is(true));
+        assertThat(c.compareValue(new Date(1), 1001L) < 0, is(true));
+        assertThat(c.compareValue(1.5f, 1.5d), is(0));
+        assertThat(c.compareValue("b", new Category("a")) > 0, is(true));
+        assertThat(c.compareValue(
+            new ShortBlob(new byte[] { 1 }),
+            new ShortBlob(new byte[] { (byte) 0xff })) < 0, is(true));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * @author higa
+ * 
+ */
+public class EntityProtoWriterTest extends AppEngineTestCase {
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void constructorForKey() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        EntityProtoWriter writer = new EntityProtoWriter(key);
+        assertThat(
+            EntityTranslator.createFromPb(writer.getProto()).getKey(),
+            is(key));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void constructorForKind() throws Exception {
+        EntityProtoWriter writer = new EntityProtoWriter("Hoge");
+        Entity entity = EntityTranslator.createFromPb(writer.getProto());
+        assertThat(entity.getKind(), is("Hoge"));
+        assertThat(entity.getKey().isComplete(), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void constructorForNullKey() throws Exception {
+        new EntityProtoWriter((Key) null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void setProperty() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Entity entity = new Entity(key);
+        entity.setProperty("aaa", "111");
+        entity.setProperty("bbb", Arrays.asList(1L, 2L));
+        entity.setProperty("ccc", null);
+        entity.setProperty("ddd", new Text("444"));
+        EntityProtoWriter writer = new EntityProtoWriter(key);
+        writer.setProperty("aaa", "111");
+        writer.setProperty("bbb", Arrays.asList(1L, 2L));
+        writer.setProperty("ccc", null);
+        writer.setProperty("ddd", new Text("444"));
+        Entity entity2 = EntityTranslator.createFromPb(writer.getProto());
+        assertThat(entity2.getProperties(), is(entity.getProperties()));
+        assertThat(entity2.isUnindexedProperty("aaa"), is(false));
+        assertThat(entity2.isUnindexedProperty("bbb"), is(false));
+        assertThat(entity2.isUnindexedProperty("ddd"), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void setUnindexedProperty() throws Exception {
+        EntityProtoWriter writer =
+            new EntityProtoWriter(KeyFactory.createKey("Hoge", 1));
+        writer.setUnindexedProperty("aaa", "111");
+        writer.setUnindexedProperty("bbb", Arrays.asList(1L, 2L));
+        Entity entity = EntityTranslator.createFromPb(writer.getProto());
+        assertThat((String) entity.getProperty("aaa"), is("111"));
+        assertThat(entity.getProperty("bbb"), is((Object) Arrays.asList(
+            1L,
+            2L)));
+        assertThat(entity.isUnindexedProperty("aaa"), is(true));
+        assertThat(entity.isUnindexedProperty("bbb"), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void setUnsupportedProperty() throws Exception {
+        new EntityProtoWriter("Hoge").setProperty("aaa", new Object());
+    }
+}
\ No newline at end of file
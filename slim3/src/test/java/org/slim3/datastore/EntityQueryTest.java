@@ -18,7 +18,11 @@ package org.slim3.datastore;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Test;
 import org.slim3.tester.AppEngineTestCase;
@@ -28,6 +32,9 @@ import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.SortDirection;
 
 /**
@@ -142,4 +149,154 @@ public class EntityQueryTest extends AppEngineTestCase {
         }
         assertThat(found, is(true));
     }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithCacheResults() throws Exception {
+        System.setProperty(QueryCache.USE_QUERY_CACHE, "true");
+        try {
+            ds.put(new Entity("Hoge")).get();
+            assertThat(new EntityQuery(ds, "Hoge")
+                .cacheResults(60)
+                .asList()
+                .size(), is(1));
+            ds.put(new Entity("Hoge")).get();
+            assertThat(new EntityQuery(ds, "Hoge")
+                .cacheResults(60)
+                .asList()
+                .size(), is(1));
+            assertThat(new EntityQuery(ds, "Hoge").asList().size(), is(2));
+        } finally {
+            System.clearProperty(QueryCache.USE_QUERY_CACHE);
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithCacheResultsWhileQueryCacheIsDisabled()
+            throws Exception {
+        ds.put(new Entity("Hoge")).get();
+        assertThat(new EntityQuery(ds, "Hoge")
+            .cacheResults(60)
+            .asList()
+            .size(), is(1));
+        ds.put(new Entity("Hoge")).get();
+        assertThat(new EntityQuery(ds, "Hoge")
+            .cacheResults(60)
+            .asList()
+            .size(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithCacheResultsDoesNotChangeQuery() throws Exception {
+        System.setProperty(QueryCache.USE_QUERY_CACHE, "true");
+        try {
+            Entity entity = new Entity("Hoge");
+            entity.setProperty("aaa", "111");
+            ds.put(entity).get();
+            EntityQuery query = new EntityQuery(ds, "Hoge").cacheResults(60);
+            assertThat(query.asList().size(), is(1));
+            assertThat(
+                query.asQueryResultList().get(0).getProperty("aaa"),
+                is((Object) "111"));
+        } finally {
+            System.clearProperty(QueryCache.USE_QUERY_CACHE);
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void scan() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            ds.put(new Entity(KeyFactory.createKey("Hoge", i)));
+        }
+        final List<Key> keys = new ArrayList<Key>();
+        new EntityQuery(ds, "Hoge").chunkSize(2).scan(
+            Arrays.asList(
+                KeyFactory.createKey("Hoge", 7),
+                KeyFactory.createKey("Hoge", 4)),
+            new ScanHandler<Entity>() {
+                public void handle(Entity value) {
+                    keys.add(value.getKey());
+                }
+            });
+        assertThat(keys.size(), is(10));
+        assertThat(keys.get(0).getId(), is(1L));
+        assertThat(keys.get(1).getId(), is(2L));
+        assertThat(keys.get(2).getId(), is(4L));
+        assertThat(keys.get(3).getId(), is(5L));
+        assertThat(keys.get(4).getId(), is(7L));
+        assertThat(keys.get(5).getId(), is(8L));
+        assertThat(keys.get(6).getId(), is(3L));
+        Collections.sort(keys);
+        assertThat(keys.get(9).getId(), is(10L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void scanForPartitions() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            ds.put(new Entity("Hoge"));
+        }
+        final List<Entity> entities = new ArrayList<Entity>();
+        new EntityQuery(ds, "Hoge").scan(4, new ScanHandler<Entity>() {
+            public void handle(Entity value) {
+                entities.add(value);
+            }
+        });
+        assertThat(entities.size(), is(10));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void scanForSort() throws Exception {
+        new EntityQuery(ds, "Hoge").sort("aaa").scan(
+            new ArrayList<Key>(),
+            new ScanHandler<Entity>() {
+                public void handle(Entity value) {
+                }
+            });
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void splitQuery() throws Exception {
+        EntityQuery query =
+            new EntityQuery(ds, "Hoge").filter("aaa", FilterOperator.EQUAL, 1);
+        List<Query> queries =
+            query.splitQuery(Arrays.asList(
+                KeyFactory.createKey("Hoge", 5),
+                KeyFactory.createKey("Hoge", 5)));
+        assertThat(queries.size(), is(2));
+        assertThat(
+            ((CompositeFilter) queries.get(0).getFilter())
+                .getSubFilters()
+                .size(),
+            is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void splitQueryForInequalityFilter() throws Exception {
+        new EntityQuery(ds, "Hoge")
+            .filter("aaa", FilterOperator.GREATER_THAN, 1)
+            .splitQuery(new ArrayList<Key>());
+    }
 }
\ No newline at end of file
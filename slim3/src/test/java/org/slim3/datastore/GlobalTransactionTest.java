@@ -62,6 +62,7 @@ public class GlobalTransactionTest extends AppEngineTestCase {
     @Override
     public void tearDown() throws Exception {
         CipherFactory.getFactory().clearGlobalKey();
+        RequestCache.end();
         super.tearDown();
     }
 
@@ -736,6 +737,122 @@ public class GlobalTransactionTest extends AppEngineTestCase {
         assertThat(gtx.lockMap.get(key2), is(notNullValue()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void lockWithBackoff() throws Exception {
+        Key rootKey = KeyFactory.createKey("Hoge", 1);
+        Key otherGtxKey = DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        new Lock(ds, otherGtxKey, rootKey, System.currentTimeMillis()).lock();
+        gtx.setLocalTransactionRootKey(KeyFactory.createKey("Hoge", 2));
+        gtx.setContentionPolicy(new LockContentionPolicy()
+            .initialBackoffMillis(5)
+            .maxBackoffMillis(10)
+            .maxWaitMillis(30));
+        Lock.resetCounts();
+        long start = System.currentTimeMillis();
+        try {
+            gtx.lock(rootKey);
+            fail();
+        } catch (ConcurrentModificationException e) {
+            System.out.println(e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 30);
+        assertTrue(Lock.getWaitCount() > 0);
+        assertThat(Lock.getAbortCount(), is(1L));
+        assertThat(gtx.lockMap.size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void lockWithoutBackoff() throws Exception {
+        Key rootKey = KeyFactory.createKey("Hoge", 1);
+        Key otherGtxKey = DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        new Lock(ds, otherGtxKey, rootKey, System.currentTimeMillis()).lock();
+        gtx.setLocalTransactionRootKey(KeyFactory.createKey("Hoge", 2));
+        Lock.resetCounts();
+        try {
+            gtx.lock(rootKey);
+            fail();
+        } catch (ConcurrentModificationException e) {
+            System.out.println(e.getMessage());
+        }
+        assertThat(Lock.getWaitCount(), is(0L));
+        assertThat(Lock.getAbortCount(), is(1L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void createLock() throws Exception {
+        gtx.setLocalTransactionRootKey(KeyFactory.createKey("Hoge", 2));
+        gtx.setContentionPolicy(new LockContentionPolicy()
+            .stealAfterTimeout(false));
+        Lock lock = gtx.createLock(KeyFactory.createKey("Hoge", 1));
+        assertThat(lock.isStealAfterTimeout(), is(false));
+        assertThat(lock.getGlobalTransactionKey(), is(gtx.globalTransactionKey));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapForLocalKeyAndGlobalKeys() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Key key2 = KeyFactory.createKey("Hoge", 2);
+        Key key3 = KeyFactory.createKey("Hoge", 3);
+        DatastoreUtil.put(ds, null, new Entity(key2));
+        Map<Key, Entity> map = gtx.getAsMap(Arrays.asList(key, key2, key3));
+        assertThat(map.size(), is(1));
+        assertThat(map.get(key2), is(notNullValue()));
+        assertThat(gtx.localTransactionRootKey, is(key));
+        assertThat(gtx.lockMap.size(), is(2));
+        assertThat(gtx.lockMap.get(key2), is(notNullValue()));
+        assertThat(gtx.lockMap.get(key3), is(notNullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putEntitiesLocksEntityGroupsConcurrently() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Key key2 = KeyFactory.createKey("Hoge", 2);
+        Key key3 = KeyFactory.createKey("Hoge", 3);
+        gtx.put(Arrays.asList(new Entity(key), new Entity(key2), new Entity(
+            key3)));
+        assertThat(gtx.localTransactionRootKey, is(key));
+        assertThat(gtx.lockMap.size(), is(2));
+        assertThat(gtx.globalJournalMap.size(), is(2));
+        gtx.commit();
+        assertThat(tester.count("Hoge"), is(3));
+        assertThat(tester.count(Lock.KIND), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteKeysWhenLockingFailed() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Key key2 = KeyFactory.createKey("Hoge", 2);
+        Key key3 = KeyFactory.createKey("Hoge", 3);
+        Key otherGtxKey = DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        new Lock(ds, otherGtxKey, key3, System.currentTimeMillis()).lock();
+        try {
+            gtx.delete(Arrays.asList(key, key2, key3));
+            fail();
+        } catch (ConcurrentModificationException e) {
+            System.out.println(e.getMessage());
+        }
+        assertThat(gtx.lockMap.size(), is(0));
+        assertThat(tester.count(Lock.KIND), is(1));
+    }
+
     /**
      * @throws Exception
      */
@@ -1121,6 +1238,27 @@ public class GlobalTransactionTest extends AppEngineTestCase {
         assertThat(gtx.globalJournalMap.get(key), is(entity));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putEntityInvalidatesRequestCache() throws Exception {
+        RequestCache.begin();
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Entity entity = new Entity(key);
+        DatastoreUtil.put(ds, null, entity);
+        Datastore.getWithoutTx(key);
+        entity.setProperty("aaa", "111");
+        gtx.put(entity);
+        assertThat(RequestCache.getCurrent().contains(key), is(false));
+        Datastore.getWithoutTx(key);
+        assertThat(RequestCache.getCurrent().contains(key), is(false));
+        gtx.commit();
+        assertThat(
+            (String) Datastore.getWithoutTx(key).getProperty("aaa"),
+            is("111"));
+    }
+
     /**
      * @throws Exception
      */
@@ -1134,6 +1272,44 @@ public class GlobalTransactionTest extends AppEngineTestCase {
         assertThat(gtx.globalJournalMap.size(), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putModelToOtherEntityGroup() throws Exception {
+        gtx.put(new Entity("Hoge"));
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        assertThat(gtx.put(hoge), is(hoge.getKey()));
+        assertThat(hoge.getVersion(), is(1L));
+        assertThat(gtx.lockMap.get(hoge.getKey()), is(notNullValue()));
+        assertThat(gtx.globalJournalMap.size(), is(0));
+        assertThat(gtx.globalProtoMap.get(hoge.getKey()), is(notNullValue()));
+        gtx.commit();
+        Hoge hoge2 = Datastore.getWithoutTx(Hoge.class, hoge.getKey());
+        assertThat(hoge2.getMyString(), is("aaa"));
+        assertThat(hoge2.getVersion(), is(1L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putEntityAfterModelToOtherEntityGroup() throws Exception {
+        gtx.put(new Entity("Hoge"));
+        Hoge hoge = new Hoge();
+        gtx.put(hoge);
+        Entity entity = new Entity(hoge.getKey());
+        entity.setProperty("myString", "bbb");
+        gtx.put(entity);
+        assertThat(gtx.globalProtoMap.size(), is(0));
+        gtx.commit();
+        assertThat(
+            (String) Datastore.getWithoutTx(hoge.getKey()).getProperty(
+                "myString"),
+            is("bbb"));
+    }
+
     /**
      * @throws Exception
      */
@@ -1442,6 +1618,31 @@ public class GlobalTransactionTest extends AppEngineTestCase {
         assertThat(GlobalTransaction.getActiveTransactions().size(), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getPhaseMillis() throws Exception {
+        assertThat(gtx.getPhaseMillis().size(), is(0));
+        gtx.put(new Entity("Hoge"));
+        gtx.put(new Entity("Hoge2"));
+        gtx.commit();
+        Map<String, Long> phaseMillis = gtx.getPhaseMillis();
+        assertThat(phaseMillis.size(), is(4));
+        assertThat(
+            phaseMillis.get(GlobalTransaction.PUT_JOURNALS_PHASE),
+            is(notNullValue()));
+        assertThat(
+            phaseMillis.get(GlobalTransaction.COMMIT_PHASE),
+            is(notNullValue()));
+        assertThat(
+            phaseMillis.get(GlobalTransaction.APPLY_PHASE),
+            is(notNullValue()));
+        assertThat(
+            phaseMillis.get(GlobalTransaction.UNLOCK_PHASE),
+            is(notNullValue()));
+    }
+
     /**
      * @throws Exception
      */
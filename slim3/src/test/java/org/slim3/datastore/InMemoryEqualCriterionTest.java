@@ -16,6 +16,7 @@
 package org.slim3.datastore;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 import java.util.Arrays;
@@ -25,6 +26,7 @@ import org.slim3.datastore.meta.HogeMeta;
 import org.slim3.datastore.model.Hoge;
 import org.slim3.tester.AppEngineTestCase;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query.SortDirection;
 
 /**
@@ -86,6 +88,30 @@ public class InMemoryEqualCriterionTest extends AppEngineTestCase {
         assertThat(c.accept(hoge), is(true));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void acceptEntity() throws Exception {
+        Entity entity = new Entity("Hoge", 1);
+        entity.setProperty("myInteger", 1L);
+        entity.setProperty("myEnum", "ASCENDING");
+        entity.setProperty("myIntegerList", Arrays.asList(1L));
+        assertThat(new InMemoryEqualCriterion(meta.myInteger, 1)
+            .acceptEntity(entity), is(Boolean.TRUE));
+        assertThat(new InMemoryEqualCriterion(meta.myInteger, 2)
+            .acceptEntity(entity), is(Boolean.FALSE));
+        assertThat(new InMemoryEqualCriterion(
+            meta.myEnum,
+            SortDirection.ASCENDING).acceptEntity(entity), is(Boolean.TRUE));
+        assertThat(new InMemoryEqualCriterion(meta.key, entity.getKey())
+            .acceptEntity(entity), is(Boolean.TRUE));
+        assertThat(new InMemoryEqualCriterion(meta.myIntegerList, 1)
+            .acceptEntity(entity), is(nullValue()));
+        assertThat(new InMemoryEqualCriterion(meta.myString, "aaa")
+            .acceptEntity(entity), is(nullValue()));
+    }
+
     /**
      * @throws Exception
      */
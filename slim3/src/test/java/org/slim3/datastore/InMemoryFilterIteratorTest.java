@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.slim3.datastore.meta.HogeMeta;
+import org.slim3.datastore.model.Hoge;
+import org.slim3.tester.AppEngineTestCase;
+import org.slim3.util.CipherFactory;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * @author higa
+ * 
+ */
+public class InMemoryFilterIteratorTest extends AppEngineTestCase {
+
+    private HogeMeta meta = new HogeMeta();
+
+    private DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        CipherFactory.getFactory().setGlobalKey("xxxxxxxxxxxxxxxx");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        CipherFactory.getFactory().clearGlobalKey();
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterate() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 1; i <= 5; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            entities.add(ds.get(ds.put(meta.modelToEntity(hoge))));
+        }
+        InMemoryFilterIterator<Hoge> ite =
+            new InMemoryFilterIterator<Hoge>(entities.iterator(), meta, Arrays
+                .asList(meta.myInteger.greaterThan(3)));
+        assertThat(ite.hasNext(), is(true));
+        assertThat(ite.next().getMyInteger(), is(4));
+        assertThat(ite.next().getMyInteger(), is(5));
+        assertThat(ite.hasNext(), is(false));
+        assertThat(ite.getDecodedCount(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterateForCipherProperty() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (String s : new String[] { "aaa", "bbb" }) {
+            Hoge hoge = new Hoge();
+            hoge.setMyCipherString(s);
+            entities.add(ds.get(ds.put(meta.modelToEntity(hoge))));
+        }
+        InMemoryFilterIterator<Hoge> ite =
+            new InMemoryFilterIterator<Hoge>(entities.iterator(), meta, Arrays
+                .asList(meta.myCipherString.equal("bbb")));
+        assertThat(ite.next().getMyCipherString(), is("bbb"));
+        assertThat(ite.hasNext(), is(false));
+        assertThat(ite.getDecodedCount(), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterateForUndecidableProperty() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 1; i <= 3; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyIntegerList(Arrays.asList(i));
+            entities.add(ds.get(ds.put(meta.modelToEntity(hoge))));
+        }
+        InMemoryFilterIterator<Hoge> ite =
+            new InMemoryFilterIterator<Hoge>(entities.iterator(), meta, Arrays
+                .asList(meta.myIntegerList.equal(2)));
+        assertThat(ite.next().getMyIntegerList().get(0), is(2));
+        assertThat(ite.hasNext(), is(false));
+        assertThat(ite.getDecodedCount(), is(3));
+    }
+}
\ No newline at end of file
@@ -18,10 +18,12 @@ package org.slim3.datastore;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 import org.slim3.tester.AppEngineTestCase;
@@ -30,10 +32,13 @@ import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 
 /**
  * @author higa
@@ -44,6 +49,12 @@ public class JournalTest extends AppEngineTestCase {
     private AsyncDatastoreService ds =
         DatastoreServiceFactory.getAsyncDatastoreService();
 
+    @Override
+    public void tearDown() throws Exception {
+        System.clearProperty(Journal.USE_COMPRESSED_JOURNAL);
+        super.tearDown();
+    }
+
     /**
      * @throws Exception
      */
@@ -80,6 +91,56 @@ public class JournalTest extends AppEngineTestCase {
         assertThat(tester.count(Journal.KIND), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void applyKeepsPropertiesAndIndexes() throws Exception {
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Entity entity = new Entity(KeyFactory.createKey("Hoge", 1));
+        entity.setProperty("aaa", "111");
+        entity.setProperty("bbb", Arrays.asList(1L, 2L));
+        entity.setUnindexedProperty("ccc", new Text("333"));
+        Map<Key, Entity> journalMap = new LinkedHashMap<Key, Entity>();
+        journalMap.put(entity.getKey(), entity);
+        Journal.put(ds, globalTransactionKey, journalMap);
+        Journal.apply(ds, globalTransactionKey);
+        Entity entity2 = DatastoreUtil.get(ds, null, entity.getKey());
+        assertThat(entity2.getProperties(), is(entity.getProperties()));
+        assertThat(Datastore
+            .query("Hoge")
+            .filter("aaa", FilterOperator.EQUAL, "111")
+            .count(), is(1));
+        assertThat(Datastore
+            .query("Hoge")
+            .filter("ccc", FilterOperator.EQUAL, "333")
+            .count(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putEncodedEntities() throws Exception {
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Entity entity = new Entity(KeyFactory.createKey("Hoge", 1));
+        entity.setProperty("aaa", "111");
+        Map<Key, EntityProto> protoMap = new HashMap<Key, EntityProto>();
+        protoMap.put(entity.getKey(), EntityTranslator.convertToPb(entity));
+        List<Entity> journals =
+            Journal.put(
+                ds,
+                globalTransactionKey,
+                new HashMap<Key, Entity>(),
+                protoMap);
+        assertThat(journals.size(), is(1));
+        Journal.apply(ds, globalTransactionKey);
+        Entity entity2 = DatastoreUtil.get(ds, null, entity.getKey());
+        assertThat(entity2.getProperties(), is(entity.getProperties()));
+    }
+
     /**
      * @throws Exception
      */
@@ -106,6 +167,61 @@ public class JournalTest extends AppEngineTestCase {
         assertThat(tester.count(Journal.KIND), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void applyEntitiesForManyEntityGroups() throws Exception {
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Key parentKey = KeyFactory.createKey("Parent", 1);
+        Key childKey = KeyFactory.createKey(parentKey, "Hoge", 1);
+        DatastoreUtil.put(ds, null, new Entity(childKey));
+        Map<Key, Entity> journalMap = new LinkedHashMap<Key, Entity>();
+        for (int i = 1; i <= 20; i++) {
+            Key key = KeyFactory.createKey("Hoge", i);
+            journalMap.put(key, new Entity(key));
+        }
+        journalMap.put(parentKey, new Entity(parentKey));
+        journalMap.put(childKey, null);
+        Journal.put(ds, globalTransactionKey, journalMap);
+        List<Entity> entities =
+            new EntityQuery(ds, Journal.KIND).filter(
+                Journal.GLOBAL_TRANSACTION_KEY_PROPERTY,
+                FilterOperator.EQUAL,
+                globalTransactionKey).asList();
+        Journal.apply(ds, entities, 2);
+        assertThat(tester.count("Hoge"), is(20));
+        assertThat(tester.count("Parent"), is(1));
+        assertThat(DatastoreUtil.getOrNull(ds, null, childKey), is(nullValue()));
+        assertThat(tester.count(Journal.KIND), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void applyEntitiesForMoreThanOneBatch() throws Exception {
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Map<Key, Entity> journalMap = new LinkedHashMap<Key, Entity>();
+        for (int i = 1; i <= DatastoreUtil.MAX_NUMBER_OF_ENTITIES + 1; i++) {
+            Key key = KeyFactory.createKey("Hoge", i);
+            journalMap.put(key, new Entity(key));
+        }
+        Journal.put(ds, globalTransactionKey, journalMap);
+        List<Entity> entities =
+            new EntityQuery(ds, Journal.KIND).filter(
+                Journal.GLOBAL_TRANSACTION_KEY_PROPERTY,
+                FilterOperator.EQUAL,
+                globalTransactionKey).asList();
+        Journal.apply(ds, entities, 1);
+        assertThat(
+            tester.count("Hoge"),
+            is(DatastoreUtil.MAX_NUMBER_OF_ENTITIES + 1));
+        assertThat(tester.count(Journal.KIND), is(0));
+    }
+
     /**
      * @throws Exception
      */
@@ -218,6 +334,102 @@ public class JournalTest extends AppEngineTestCase {
             is(e2));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isCompressionEnabled() throws Exception {
+        assertThat(Journal.isCompressionEnabled(), is(false));
+        System.setProperty(Journal.USE_COMPRESSED_JOURNAL, "true");
+        assertThat(Journal.isCompressionEnabled(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void compressAndDecompress() throws Exception {
+        byte[] content = new byte[] { 1, 2, 3 };
+        byte[] content2 = new byte[1000];
+        List<byte[]> contents =
+            Journal.decompress(Journal.compress(Arrays.asList(
+                content,
+                content2)));
+        assertThat(contents.size(), is(2));
+        assertThat(Arrays.equals(contents.get(0), content), is(true));
+        assertThat(Arrays.equals(contents.get(1), content2), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void putCompressedBigEntities() throws Exception {
+        System.setProperty(Journal.USE_COMPRESSED_JOURNAL, "true");
+        Blob blob = new Blob(new byte[DatastoreUtil.MAX_ENTITY_SIZE]);
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Key key2 = KeyFactory.createKey("Hoge", 2);
+        Key key3 = KeyFactory.createKey("Hoge", 3);
+        DatastoreUtil.put(ds, null, new Entity(key3));
+        Map<Key, Entity> journalMap = new LinkedHashMap<Key, Entity>();
+        Entity e = new Entity(key);
+        e.setUnindexedProperty("aaa", blob);
+        Entity e2 = new Entity(key2);
+        e2.setUnindexedProperty("aaa", blob);
+        journalMap.put(key, e);
+        journalMap.put(key2, e2);
+        journalMap.put(key3, null);
+        List<Entity> entities =
+            Journal.put(ds, globalTransactionKey, journalMap);
+        assertThat(entities.size(), is(1));
+        Entity entity = entities.get(0);
+        assertThat(
+            entity.getProperty(Journal.PUT_LIST_PROPERTY),
+            is(nullValue()));
+        List<byte[]> contents =
+            Journal.decompress(((Blob) entity
+                .getProperty(Journal.COMPRESSED_PUT_LIST_PROPERTY)).getBytes());
+        assertThat(contents.size(), is(2));
+        assertThat(DatastoreUtil.bytesToEntity(contents.get(0)), is(e));
+        assertThat(DatastoreUtil.bytesToEntity(contents.get(1)), is(e2));
+        List<Key> deleteList =
+            (List<Key>) entity.getProperty(Journal.DELETE_LIST_PROPERTY);
+        assertThat(deleteList, is(Arrays.asList(key3)));
+        Journal.apply(ds, globalTransactionKey);
+        assertThat(tester.count("Hoge"), is(2));
+        assertThat(DatastoreUtil.getOrNull(ds, null, key3), is(nullValue()));
+        assertThat(tester.count(Journal.KIND), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putCompressedIncompressibleEntities() throws Exception {
+        System.setProperty(Journal.USE_COMPRESSED_JOURNAL, "true");
+        byte[] bytes = new byte[DatastoreUtil.MAX_ENTITY_SIZE / 2];
+        new Random(1).nextBytes(bytes);
+        Blob blob = new Blob(bytes);
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Map<Key, Entity> journalMap = new LinkedHashMap<Key, Entity>();
+        for (int i = 1; i <= 3; i++) {
+            Key key = KeyFactory.createKey("Hoge", i);
+            Entity e = new Entity(key);
+            e.setUnindexedProperty("aaa", blob);
+            journalMap.put(key, e);
+        }
+        List<Entity> entities =
+            Journal.put(ds, globalTransactionKey, journalMap);
+        assertThat(entities.size(), is(3));
+        Journal.apply(ds, globalTransactionKey);
+        assertThat(tester.count("Hoge"), is(3));
+        assertThat(tester.count(Journal.KIND), is(0));
+    }
+
     /**
      * @throws Exception
      */
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author higa
+ * 
+ */
+public class LockContentionPolicyTest {
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void defaults() throws Exception {
+        LockContentionPolicy policy = new LockContentionPolicy();
+        assertThat(policy.getInitialBackoffMillis(), is(0L));
+        assertThat(
+            policy.getMaxBackoffMillis(),
+            is(LockContentionPolicy.DEFAULT_MAX_BACKOFF_MILLIS));
+        assertThat(policy.getMaxWaitMillis(), is(0L));
+        assertThat(policy.isStealAfterTimeout(), is(true));
+        assertThat(policy.getBackoffMillis(0), is(0L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getBackoffMillis() throws Exception {
+        LockContentionPolicy policy =
+            new LockContentionPolicy()
+                .initialBackoffMillis(10)
+                .maxBackoffMillis(50)
+                .maxWaitMillis(1000);
+        for (int i = 0; i < 100; i++) {
+            long backoff = policy.getBackoffMillis(0);
+            assertTrue(backoff >= 5 && backoff <= 10);
+            backoff = policy.getBackoffMillis(1);
+            assertTrue(backoff >= 10 && backoff <= 20);
+            backoff = policy.getBackoffMillis(40);
+            assertTrue(backoff >= 25 && backoff <= 50);
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getBackoffMillisWhenMaxWaitIsNotSpecified() throws Exception {
+        LockContentionPolicy policy =
+            new LockContentionPolicy().initialBackoffMillis(10);
+        assertThat(policy.getBackoffMillis(0), is(0L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void maxWaitMillisForNegative() throws Exception {
+        new LockContentionPolicy().maxWaitMillis(-1);
+    }
+}
\ No newline at end of file
@@ -333,6 +333,81 @@ public class LockTest extends AppEngineTestCase {
         assertThat(ds.getActiveTransactions().size(), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void lockAll() throws Exception {
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        long timestamp = System.currentTimeMillis();
+        Lock lock =
+            new Lock(
+                ds,
+                globalTransactionKey,
+                KeyFactory.createKey("Hoge", 1),
+                timestamp);
+        Lock lock2 =
+            new Lock(
+                ds,
+                globalTransactionKey,
+                KeyFactory.createKey("Hoge", 2),
+                timestamp);
+        Lock.lockAll(ds, Arrays.asList(lock, lock2));
+        assertThat(
+            DatastoreUtil.getOrNull(ds, null, lock.getKey()),
+            is(notNullValue()));
+        assertThat(
+            DatastoreUtil.getOrNull(ds, null, lock2.getKey()),
+            is(notNullValue()));
+        assertThat(ds.getActiveTransactions().size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void lockAllWhenOtherIsNotTimeout() throws Exception {
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Key globalTransactionKey2 =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        long timestamp = System.currentTimeMillis();
+        Lock lock =
+            new Lock(
+                ds,
+                globalTransactionKey,
+                KeyFactory.createKey("Hoge", 1),
+                timestamp);
+        Lock lock2 =
+            new Lock(
+                ds,
+                globalTransactionKey,
+                KeyFactory.createKey("Hoge", 2),
+                timestamp);
+        Lock other =
+            new Lock(
+                ds,
+                globalTransactionKey2,
+                KeyFactory.createKey("Hoge", 2),
+                timestamp);
+        other.lock();
+        try {
+            Lock.lockAll(ds, Arrays.asList(lock, lock2));
+            fail();
+        } catch (ConcurrentModificationException e) {
+            System.out.println(e.getMessage());
+        }
+        assertThat(
+            DatastoreUtil.getOrNull(ds, null, lock.getKey()),
+            is(nullValue()));
+        assertThat(
+            Lock.toLock(ds, DatastoreUtil.get(ds, null, other.getKey()))
+                .getGlobalTransactionKey(),
+            is(globalTransactionKey2));
+        assertThat(ds.getActiveTransactions().size(), is(0));
+    }
+
     /**
      * @throws Exception
      */
@@ -416,6 +491,7 @@ public class LockTest extends AppEngineTestCase {
             new Lock(ds, globalTransactionKey2, rootKey, timestamp
                 - Lock.TIMEOUT
                 - 1);
+        Lock.resetCounts();
         lock.verify(other);
         GlobalTransaction gtx =
             GlobalTransaction.toGlobalTransaction(ds, DatastoreUtil.get(
@@ -423,6 +499,35 @@ public class LockTest extends AppEngineTestCase {
                 null,
                 globalTransactionKey2));
         assertThat(gtx.valid, is(false));
+        assertThat(Lock.getStealCount(), is(1L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void verifyForTimeoutWhenStealingIsDisabled() throws Exception {
+        Key rootKey = KeyFactory.createKey("Hoge", 1);
+        Key globalTransactionKey =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        Key globalTransactionKey2 =
+            DatastoreUtil.allocateId(ds, GlobalTransaction.KIND);
+        long timestamp = System.currentTimeMillis();
+        Lock lock = new Lock(ds, globalTransactionKey, rootKey, timestamp);
+        lock.setStealAfterTimeout(false);
+        Lock other =
+            new Lock(ds, globalTransactionKey2, rootKey, timestamp
+                - Lock.TIMEOUT
+                - 1);
+        Lock.resetCounts();
+        try {
+            lock.verify(other);
+            fail();
+        } catch (ConcurrentModificationException e) {
+            System.out.println(e.getMessage());
+        }
+        assertThat(Lock.getStealCount(), is(0L));
+        assertThat(tester.count(GlobalTransaction.KIND), is(0));
     }
 
     /**
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.slim3.datastore.meta.AaaMeta;
+import org.slim3.datastore.meta.HogeMeta;
+import org.slim3.datastore.model.Hoge;
+import org.slim3.tester.AppEngineTestCase;
+import org.slim3.util.CipherFactory;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * @author higa
+ * 
+ */
+public class MaterializedViewTest extends AppEngineTestCase {
+
+    private AsyncDatastoreService ds = DatastoreServiceFactory
+        .getAsyncDatastoreService();
+
+    private HogeMeta meta = HogeMeta.get();
+
+    private MaterializedView view = new LengthView();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        CipherFactory.getFactory().setGlobalKey("xxxxxxxxxxxxxxxx");
+        MaterializedView.register(view);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        MaterializedView.unregister(view);
+        CipherFactory.getFactory().clearGlobalKey();
+        System.clearProperty(AsyncDatastoreDelegate.USE_XGTX);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void registerAndUnregister() throws Exception {
+        assertThat(MaterializedView.getViews("Hoge"), is(Arrays.asList(view)));
+        MaterializedView.unregister(view);
+        assertThat(MaterializedView.getViews("Hoge").size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void toViewEntity() throws Exception {
+        Entity source = new Entity(KeyFactory.createKey("Hoge", 1));
+        source.setProperty("myString", "aaa");
+        source.setUnindexedProperty("myText", "bbb");
+        Entity entity = view.toViewEntity(source);
+        assertThat(entity.getKey().getKind(), is("HogeByLength"));
+        assertThat(entity.getParent(), is(nullValue()));
+        assertThat(view.toSourceKey(entity.getKey()), is(source.getKey()));
+        assertThat(entity.getProperty("myString"), is((Object) "aaa"));
+        assertThat(entity.isUnindexedProperty("myText"), is(true));
+        assertThat(
+            entity.getProperty(MaterializedView.SORT_VALUE_PROPERTY),
+            is((Object) 3L));
+        Entity restored = view.toSourceEntity(entity);
+        assertThat(restored.getKey(), is(source.getKey()));
+        assertThat(restored.getProperties(), is(source.getProperties()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void toViewEntityWithProjection() throws Exception {
+        MaterializedView view2 = new LengthView("myString");
+        Entity source = new Entity(KeyFactory.createKey("Hoge", 1));
+        source.setProperty("myString", "aaa");
+        source.setProperty("myInteger", 1);
+        Entity entity = view2.toViewEntity(source);
+        assertThat(entity.getProperty("myString"), is((Object) "aaa"));
+        assertThat(entity.hasProperty("myInteger"), is(false));
+        assertThat(view2.isProjected(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void toSourceEntityWithProjection() throws Exception {
+        MaterializedView view2 = new LengthView("myString");
+        Entity source = new Entity(KeyFactory.createKey("Hoge", 1));
+        source.setProperty("myString", "aaa");
+        view2.toSourceEntity(view2.toViewEntity(source));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void toViewKeys() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        Key key2 = KeyFactory.createKey("Aaa", 1);
+        assertThat(
+            MaterializedView.toViewKeys(Arrays.asList(key, key2)),
+            is(Arrays.asList(view.toViewKey(key))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAndDelete() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        Key key = Datastore.put(hoge);
+        Entity entity = Datastore.get(view.toViewKey(key));
+        assertThat(
+            entity.getProperty(MaterializedView.SORT_VALUE_PROPERTY),
+            is((Object) 3L));
+        Datastore.delete(key);
+        assertThat(tester.count("HogeByLength"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putModelsAndDelete() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        Hoge hoge2 = new Hoge();
+        hoge2.setMyString("bb");
+        List<Key> keys = Datastore.put(hoge, hoge2);
+        assertThat(keys.size(), is(2));
+        assertThat(tester.count("HogeByLength"), is(2));
+        Datastore.delete(keys);
+        assertThat(tester.count("HogeByLength"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putInTransactionWhichIsNotCrossGroup() throws Exception {
+        AsyncDatastoreDelegate delegate = new AsyncDatastoreDelegate();
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        Transaction tx = delegate.beginTransactionAsync().get();
+        try {
+            delegate.putAsync(tx, hoge);
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage().contains("HogeByLength"), is(true));
+        } finally {
+            tx.rollback();
+        }
+        assertThat(tester.count("Hoge"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void deleteInTransactionWhichIsNotCrossGroup() throws Exception {
+        AsyncDatastoreDelegate delegate = new AsyncDatastoreDelegate();
+        Key key = Datastore.put(new Hoge());
+        Transaction tx = delegate.beginTransactionAsync().get();
+        try {
+            delegate.deleteAsync(tx, key);
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage().contains("HogeByLength"), is(true));
+        } finally {
+            tx.rollback();
+        }
+        assertThat(tester.count("HogeByLength"), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void assertViewsWritableForCrossGroupTransaction()
+            throws Exception {
+        System.setProperty(AsyncDatastoreDelegate.USE_XGTX, "true");
+        AsyncDatastoreDelegate delegate = new AsyncDatastoreDelegate();
+        Transaction tx = ds.beginTransaction().get();
+        try {
+            delegate.assertViewsWritable(tx, Arrays.asList(KeyFactory
+                .createKey("Hoge", 1)));
+        } finally {
+            tx.rollback();
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putWithoutViewInTransaction() throws Exception {
+        AsyncDatastoreDelegate delegate = new AsyncDatastoreDelegate();
+        Transaction tx = delegate.beginTransactionAsync().get();
+        delegate.putAsync(tx, new Entity("Aaa")).get();
+        tx.commit();
+        assertThat(tester.count("Aaa"), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAndDeleteInGlobalTransaction() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        GlobalTransaction gtx = Datastore.beginGlobalTransaction();
+        Key key = gtx.put(hoge);
+        gtx.commit();
+        assertThat(tester.count("HogeByLength"), is(1));
+        gtx = Datastore.beginGlobalTransaction();
+        gtx.delete(key);
+        gtx.commit();
+        assertThat(tester.count("HogeByLength"), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void sortByView() throws Exception {
+        String[] values = new String[] { "bb", "a", "ccc" };
+        List<Object> models = new ArrayList<Object>();
+        for (String value : values) {
+            Hoge hoge = new Hoge();
+            hoge.setMyString(value);
+            models.add(hoge);
+        }
+        Datastore.put(models);
+        List<Hoge> list =
+            Datastore
+                .query(meta)
+                .sortByView(view, SortDirection.DESCENDING)
+                .asList();
+        assertThat(list.size(), is(3));
+        assertThat(list.get(0).getMyString(), is("ccc"));
+        assertThat(list.get(1).getMyString(), is("bb"));
+        assertThat(list.get(2).getMyString(), is("a"));
+        assertThat(list.get(0).getKey().getKind(), is("Hoge"));
+        S3QueryResultList<Hoge> page =
+            Datastore.query(meta).sortByView(view).limit(2).asQueryResultList();
+        assertThat(page.size(), is(2));
+        assertThat(page.get(0).getMyString(), is("a"));
+        assertThat(page.hasNext(), is(true));
+        assertThat(Datastore.query(meta).sortByView(view).asKeyList().get(0)
+            .getKind(), is("Hoge"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void sortByViewForOtherKind() throws Exception {
+        Datastore.query(AaaMeta.get()).sortByView(view);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void sortByViewWithProjection() throws Exception {
+        Datastore.query(meta).sortByView(new LengthView("myString"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void sortByViewWithAncestor() throws Exception {
+        Datastore
+            .query(meta, KeyFactory.createKey("Parent", 1))
+            .sortByView(view);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void kindlessQueryDoesNotReturnView() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyString("aaa");
+        Key key = Datastore.put(hoge);
+        assertThat(tester.count("HogeByLength"), is(1));
+        assertThat(Datastore.query(key).asKeyList(), is(Arrays.asList(key)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void rebuild() throws Exception {
+        Entity source = new Entity("Hoge");
+        source.setProperty("myString", "aaa");
+        Key key = DatastoreUtil.put(ds, null, source);
+        Key orphanKey =
+            view.toViewKey(KeyFactory.createKey("Hoge", key.getId() + 1));
+        DatastoreUtil.put(ds, null, new Entity(orphanKey));
+        assertThat(tester.count("HogeByLength"), is(1));
+        view.rebuild(ds);
+        assertThat(tester.count("HogeByLength"), is(1));
+        Entity entity = Datastore.get(view.toViewKey(key));
+        assertThat(
+            entity.getProperty(MaterializedView.SORT_VALUE_PROPERTY),
+            is((Object) 3L));
+    }
+
+    private static class LengthView extends MaterializedView {
+
+        private LengthView(String... propertyNames) {
+            super(HogeMeta.get(), "HogeByLength", propertyNames);
+        }
+
+        @Override
+        protected Object getSortValue(Entity source) {
+            String s = (String) source.getProperty("myString");
+            return s != null ? (long) s.length() : null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+/**
+ * @author higa
+ * 
+ */
+public class MergedEntityIteratorTest extends AppEngineTestCase {
+
+    private AsyncDatastoreService ds =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        for (int i = 1; i <= 6; i++) {
+            Entity entity = new Entity(KeyFactory.createKey("Hoge", i));
+            entity.setProperty("aaa", i % 2 == 0 ? "even" : "odd");
+            entity.setProperty("bbb", i <= 3 ? "low" : "high");
+            ds.put(entity).get();
+        }
+    }
+
+    private List<QueryResultIterator<Entity>> issue(List<Cursor> cursors) {
+        List<QueryResultIterator<Entity>> iterators =
+            new ArrayList<QueryResultIterator<Entity>>();
+        Query q = new Query("Hoge");
+        q.setFilter(new Query.FilterPredicate(
+            "aaa",
+            FilterOperator.EQUAL,
+            "even"));
+        Query q2 = new Query("Hoge");
+        q2.setFilter(new Query.FilterPredicate(
+            "bbb",
+            FilterOperator.EQUAL,
+            "low"));
+        iterators.add(ds.prepare(q).asQueryResultIterator(
+            cursors.get(0) != null ? FetchOptions.Builder
+                .withStartCursor(cursors.get(0)) : FetchOptions.Builder
+                .withDefaults()));
+        iterators.add(ds.prepare(q2).asQueryResultIterator(
+            cursors.get(1) != null ? FetchOptions.Builder
+                .withStartCursor(cursors.get(1)) : FetchOptions.Builder
+                .withDefaults()));
+        return iterators;
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterate() throws Exception {
+        List<Cursor> cursors = Arrays.asList((Cursor) null, null);
+        MergedEntityIterator iterator =
+            new MergedEntityIterator(
+                issue(cursors),
+                cursors,
+                new EntityComparator(new ArrayList<SortPredicate>()),
+                null,
+                null);
+        List<Long> ids = new ArrayList<Long>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getKey().getId());
+        }
+        assertThat(ids, is(Arrays.asList(1L, 2L, 3L, 4L, 6L)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterateWithOffsetAndLimitAndCursor() throws Exception {
+        List<Cursor> cursors = Arrays.asList((Cursor) null, null);
+        MergedEntityIterator iterator =
+            new MergedEntityIterator(
+                issue(cursors),
+                cursors,
+                new EntityComparator(new ArrayList<SortPredicate>()),
+                1,
+                2);
+        List<Long> ids = new ArrayList<Long>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getKey().getId());
+        }
+        assertThat(ids, is(Arrays.asList(2L, 3L)));
+        cursors = MergedEntityIterator.decodeCursor(iterator.getEncodedCursor());
+        iterator =
+            new MergedEntityIterator(
+                issue(cursors),
+                cursors,
+                new EntityComparator(new ArrayList<SortPredicate>()),
+                null,
+                null);
+        ids = new ArrayList<Long>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getKey().getId());
+        }
+        assertThat(ids, is(Arrays.asList(4L, 6L)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void encodeAndDecodeCursor() throws Exception {
+        Cursor cursor =
+            ds
+                .prepare(new Query("Hoge"))
+                .asQueryResultList(FetchOptions.Builder.withLimit(1))
+                .getCursor();
+        String encoded =
+            MergedEntityIterator.encodeCursor(Arrays.asList(cursor, null));
+        assertThat(MergedEntityIterator.isEncodedCursor(encoded), is(true));
+        assertThat(
+            MergedEntityIterator.isEncodedCursor(cursor.toWebSafeString()),
+            is(false));
+        List<Cursor> cursors = MergedEntityIterator.decodeCursor(encoded);
+        assertThat(cursors.size(), is(2));
+        assertThat(
+            cursors.get(0).toWebSafeString(),
+            is(cursor.toWebSafeString()));
+        assertThat(cursors.get(1), is(nullValue()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * @author higa
+ * 
+ */
+public class ModelCacheTest extends AppEngineTestCase {
+
+    private Key key;
+
+    private Key key2;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty(ModelCache.USE_MODEL_CACHE, "true");
+        ModelCache.register("Hoge");
+        key = KeyFactory.createKey("Hoge", 1);
+        key2 = KeyFactory.createKey("Aaa", 1);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        ModelCache.unregister("Hoge");
+        System.clearProperty(ModelCache.INVALIDATION_MILLIS);
+        System.clearProperty(ModelCache.EXPIRATION_SECONDS);
+        System.clearProperty(ModelCache.USE_MODEL_CACHE);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isEnabled() throws Exception {
+        assertThat(ModelCache.isEnabled(), is(true));
+        System.clearProperty(ModelCache.USE_MODEL_CACHE);
+        assertThat(ModelCache.isEnabled(), is(false));
+        assertThat(ModelCache.isCacheable(key), is(false));
+        assertThat(ModelCache.filter(Arrays.asList(key)).size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void invalidateWhenDisabled() throws Exception {
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        ModelCache.putAll(map);
+        System.clearProperty(ModelCache.USE_MODEL_CACHE);
+        ModelCache.invalidate(Arrays.asList(key));
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key)),
+            is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isCacheable() throws Exception {
+        assertThat(ModelCache.isCacheable(key), is(true));
+        assertThat(ModelCache.isCacheable(key2), is(false));
+        assertThat(ModelCache.isCacheable(null), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void filter() throws Exception {
+        assertThat(ModelCache.filter(Arrays.asList(key, key2, null)), is(Arrays
+            .asList(key)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAllAndGetAll() throws Exception {
+        Entity entity = new Entity(key);
+        entity.setProperty("aaa", "111");
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, entity);
+        map.put(key2, new Entity(key2));
+        ModelCache.putAll(map);
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key)),
+            is(true));
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key2)),
+            is(false));
+        Map<Key, Entity> cached =
+            ModelCache.getAll(Arrays.asList(key, key2));
+        assertThat(cached.size(), is(1));
+        assertThat(cached.get(key), is(entity));
+        assertThat(cached.get(key).getProperty("aaa"), is((Object) "111"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void invalidate() throws Exception {
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        ModelCache.putAll(map);
+        ModelCache.invalidate(Arrays.asList(key));
+        assertThat(ModelCache.getAll(Arrays.asList(key)).get(key), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void invalidateUnregisteredKind() throws Exception {
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        ModelCache.putAll(map);
+        ModelCache.unregister("Hoge");
+        ModelCache.invalidate(Arrays.asList(key));
+        assertThat(
+            Memcache.contains(ModelCache.toMemcacheKey(key)),
+            is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAllAfterInvalidateInTransaction() throws Exception {
+        System.setProperty(ModelCache.INVALIDATION_MILLIS, "10");
+        Key key3 = KeyFactory.createKey("Hoge", 3);
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        map.put(key3, new Entity(key3));
+        ModelCache.invalidate(Arrays.asList(key), true);
+        ModelCache.invalidate(Arrays.asList(key3), false);
+        Thread.sleep(50);
+        ModelCache.putAll(map);
+        Map<Key, Entity> cached = ModelCache.getAll(Arrays.asList(key, key3));
+        assertThat(cached.get(key), is(nullValue()));
+        assertThat(cached.get(key3), is(notNullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAllAfterInvalidate() throws Exception {
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, new Entity(key));
+        ModelCache.invalidate(Arrays.asList(key));
+        ModelCache.putAll(map);
+        assertThat(ModelCache.getAll(Arrays.asList(key)).get(key), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getInvalidationMillis() throws Exception {
+        assertThat(
+            ModelCache.getInvalidationMillis(),
+            is(ModelCache.DEFAULT_INVALIDATION_MILLIS));
+        System.setProperty(ModelCache.INVALIDATION_MILLIS, "10");
+        assertThat(ModelCache.getInvalidationMillis(), is(10L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getExpirationSeconds() throws Exception {
+        assertThat(
+            ModelCache.getExpirationSeconds(),
+            is(ModelCache.DEFAULT_EXPIRATION_SECONDS));
+        System.setProperty(ModelCache.EXPIRATION_SECONDS, "10");
+        assertThat(ModelCache.getExpirationSeconds(), is(10));
+    }
+}
\ No newline at end of file
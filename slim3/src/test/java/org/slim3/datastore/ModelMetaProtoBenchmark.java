@@ -0,0 +1,124 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+import org.slim3.datastore.meta.HogeMeta;
+import org.slim3.datastore.model.Hoge;
+import org.slim3.tester.AppEngineTestCase;
+import org.slim3.util.CipherFactory;
+
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Compares the conversion between a model and a protocol buffer through
+ * {@link com.google.appengine.api.datastore.Entity} with the direct
+ * conversion. This class is not run by the default build. Run it with
+ * "mvn -Dtest=ModelMetaProtoBenchmark test".
+ * 
+ * @author higa
+ * @since 1.0.17
+ * 
+ */
+public class ModelMetaProtoBenchmark extends AppEngineTestCase {
+
+    private static final int WARMUP = 20000;
+
+    private static final int COUNT = 100000;
+
+    private HogeMeta meta = new HogeMeta();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        CipherFactory.getFactory().setGlobalKey("xxxxxxxxxxxxxxxx");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        CipherFactory.getFactory().clearGlobalKey();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void encode() throws Exception {
+        Hoge hoge = createModel();
+        encodeThroughEntity(hoge, WARMUP);
+        encodeDirectly(hoge, WARMUP);
+        long start = System.nanoTime();
+        encodeThroughEntity(hoge, COUNT);
+        long throughEntity = System.nanoTime() - start;
+        start = System.nanoTime();
+        encodeDirectly(hoge, COUNT);
+        long directly = System.nanoTime() - start;
+        report("modelToProto", throughEntity, directly);
+    }
+
+    private void encodeThroughEntity(Hoge hoge, int count) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size +=
+                EntityTranslator
+                    .convertToPb(meta.modelToEntity(hoge))
+                    .encodingSize();
+        }
+        assertThat(size > 0, is(true));
+    }
+
+    private void encodeDirectly(Hoge hoge, int count) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size += meta.modelToProto(hoge).encodingSize();
+        }
+        assertThat(size > 0, is(true));
+    }
+
+    private void report(String name, long throughEntity, long directly) {
+        System.out.println(name
+            + ": through Entity "
+            + (throughEntity / COUNT)
+            + " ns/op, directly "
+            + (directly / COUNT)
+            + " ns/op");
+    }
+
+    private Hoge createModel() {
+        Hoge hoge = new Hoge();
+        hoge.setKey(KeyFactory.createKey("Hoge", 1));
+        hoge.setMyString("aaa");
+        hoge.setMyStringText("bbb");
+        hoge.setMyInteger(1);
+        hoge.setMyLong(2L);
+        hoge.setMyDouble(3d);
+        hoge.setMyBoolean(true);
+        hoge.setMyDate(new Date());
+        hoge.setMyBytes(new byte[] { 1, 2, 3 });
+        hoge.setMyLongList(Arrays.asList(1L, 2L, 3L));
+        hoge.setMyStringList(Arrays.asList("ccc", "ddd"));
+        hoge.setVersion(1L);
+        return hoge;
+    }
+}
\ No newline at end of file
@@ -70,6 +70,14 @@ public class ModelMetaTest {
             hasItem(Bbb.class.getName()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isCacheable() throws Exception {
+        assertThat(meta.isCacheable(), is(false));
+    }
+
     /**
      * @throws Exception
      */
@@ -288,6 +296,38 @@ public class ModelMetaTest {
         assertThat(meta.serializableToShortBlob(null), is(nullValue()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void blobToSerializableWithSerializer() throws Exception {
+        BinarySerializer serializer = new BinarySerializer();
+        assertThat((String) meta.blobToSerializable(
+            new Blob(serializer.serialize("aaa")),
+            serializer), is("aaa"));
+        assertThat((String) meta.blobToSerializable(
+            new Blob(ByteUtil.toByteArray("aaa")),
+            serializer), is("aaa"));
+        assertThat((String) meta.blobToSerializable(new Blob(serializer
+            .serialize("aaa"))), is("aaa"));
+        assertThat(meta.blobToSerializable(null, serializer), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void serializableToBlobWithSerializer() throws Exception {
+        BinarySerializer serializer = new BinarySerializer();
+        Blob blob =
+            meta.serializableToBlob(new MySerializable("aaa"), serializer);
+        assertThat(BinarySerializer.isBinary(blob.getBytes()), is(true));
+        MySerializable serializable2 =
+            (MySerializable) serializer.deserialize(blob.getBytes());
+        assertThat(serializable2.getAaa(), is("aaa"));
+        assertThat(meta.serializableToBlob(null, serializer), is(nullValue()));
+    }
+
     /**
      * @throws Exception
      */
@@ -22,7 +22,9 @@ import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -46,6 +48,7 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery.TooManyResultsException;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Text;
 
 /**
@@ -333,6 +336,36 @@ public class ModelQueryTest extends AppEngineTestCase {
         assertThat(list.getEncodedCursor(), is(notNullValue()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListAndLimitInMemory() throws Exception {
+        for (String s : new String[] { "ccc", "aaa", "ddd", "bbb" }) {
+            Hoge hoge = new Hoge();
+            hoge.setMyString(s);
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        List<Hoge> list =
+            new ModelQuery<Hoge>(ds, meta)
+                .filterInMemory(meta.myString.notEqual("aaa"))
+                .sortInMemory(meta.myString.desc)
+                .limitInMemory(2)
+                .asList();
+        assertThat(list.size(), is(2));
+        assertThat(list.get(0).getMyString(), is("ddd"));
+        assertThat(list.get(1).getMyString(), is("ccc"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void asQueryResultListWithLimitInMemory() throws Exception {
+        ModelQuery<Hoge> query = new ModelQuery<Hoge>(ds, meta);
+        query.limitInMemory(1).asQueryResultList();
+    }
+
     /**
      * @throws Exception
      */
@@ -584,6 +617,209 @@ public class ModelQueryTest extends AppEngineTestCase {
         assertThat(iterator.next(), is(notNullValue()));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asQueryResultIteratorWithPrefetchPages() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        S3QueryResultIterator<Hoge> iterator =
+            new ModelQuery<Hoge>(ds, meta)
+                .sort(meta.myInteger.asc)
+                .limit(4)
+                .prefetchPages(2)
+                .asQueryResultIterator();
+        assertThat(
+            iterator.delegate instanceof PrefetchingEntityIterator,
+            is(true));
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertThat(iterator.next().getMyInteger(), is(++count));
+        }
+        assertThat(count, is(4));
+        String cursor = iterator.getEncodedCursor();
+        List<Hoge> list =
+            new ModelQuery<Hoge>(ds, meta)
+                .sort(meta.myInteger.asc)
+                .encodedStartCursor(cursor)
+                .asList();
+        assertThat(list.size(), is(1));
+        assertThat(list.get(0).getMyInteger(), is(5));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithFetchByKeys() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        RequestCache.begin();
+        try {
+            ModelQuery<Hoge> query =
+                new ModelQuery<Hoge>(ds, meta)
+                    .sort(meta.myInteger.desc)
+                    .fetchByKeys();
+            List<Hoge> list = query.asList();
+            assertThat(list.size(), is(3));
+            assertThat(list.get(0).getMyInteger(), is(3));
+            assertThat(list.get(2).getMyInteger(), is(1));
+            assertThat(query.getCacheStats().getMissCount(), is(3L));
+            ModelQuery<Hoge> query2 =
+                new ModelQuery<Hoge>(ds, meta)
+                    .filterInMemory(meta.myInteger.notEqual(2))
+                    .fetchByKeys();
+            List<Hoge> list2 = query2.asList();
+            assertThat(list2.size(), is(2));
+            assertThat(query2.getCacheStats().getHitCount(), is(3L));
+            assertThat(query2.getCacheStats().getHitRatio(), is(1.0));
+        } finally {
+            RequestCache.end();
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithFetchByKeysDoesNotChangeQuery() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyInteger(1);
+        DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        ModelQuery<Hoge> query = new ModelQuery<Hoge>(ds, meta).fetchByKeys();
+        assertThat(query.asList().get(0).getMyInteger(), is(1));
+        assertThat(
+            query.asEntityList().get(0).getProperty("myInteger"),
+            is((Object) 1L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void asIteratorWithFetchByKeys() throws Exception {
+        new ModelQuery<Hoge>(ds, meta).fetchByKeys().asIterator();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void asQueryResultListWithFetchByKeys() throws Exception {
+        new ModelQuery<Hoge>(ds, meta).fetchByKeys().asQueryResultList();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithCacheResults() throws Exception {
+        System.setProperty(QueryCache.USE_QUERY_CACHE, "true");
+        try {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(1);
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+            assertThat(new ModelQuery<Hoge>(ds, meta)
+                .cacheResults(60)
+                .asList()
+                .size(), is(1));
+            Hoge hoge2 = new Hoge();
+            hoge2.setMyInteger(2);
+            Key key2 = DatastoreUtil.put(ds, null, meta.modelToEntity(hoge2));
+            assertThat(new ModelQuery<Hoge>(ds, meta)
+                .cacheResults(60)
+                .asList()
+                .size(), is(1));
+            QueryCache.invalidate(Arrays.asList(key2));
+            assertThat(new ModelQuery<Hoge>(ds, meta)
+                .cacheResults(60)
+                .asList()
+                .size(), is(2));
+        } finally {
+            System.clearProperty(QueryCache.USE_QUERY_CACHE);
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asQueryResultListWithCacheResults() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        S3QueryResultList<Hoge> list =
+            new ModelQuery<Hoge>(ds, meta)
+                .sort(meta.myInteger.asc)
+                .limit(2)
+                .cacheResults(60)
+                .asQueryResultList();
+        S3QueryResultList<Hoge> list2 =
+            new ModelQuery<Hoge>(ds, meta)
+                .sort(meta.myInteger.asc)
+                .limit(2)
+                .cacheResults(60)
+                .asQueryResultList();
+        assertThat(list2.size(), is(2));
+        assertThat(list2.get(1).getMyInteger(), is(2));
+        assertThat(list2.hasNext(), is(true));
+        assertThat(list2.getEncodedCursor(), is(list.getEncodedCursor()));
+        List<Hoge> next =
+            new ModelQuery<Hoge>(ds, meta)
+                .sort(meta.myInteger.asc)
+                .encodedStartCursor(list2.getEncodedCursor())
+                .asList();
+        assertThat(next.size(), is(1));
+        assertThat(next.get(0).getMyInteger(), is(3));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void scan() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setKey(KeyFactory.createKey("Hoge", i));
+            hoge.setMyInteger(i);
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        final List<Integer> values = new ArrayList<Integer>();
+        new ModelQuery<Hoge>(ds, meta)
+            .filterInMemory(meta.myInteger.notEqual(2))
+            .scan(
+                Arrays.asList(KeyFactory.createKey("Hoge", 4)),
+                new ScanHandler<Hoge>() {
+                    public void handle(Hoge value) {
+                        values.add(value.getMyInteger());
+                    }
+                });
+        Collections.sort(values);
+        assertThat(values, is(Arrays.asList(1, 3, 4, 5, 6)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void scanWithSortInMemory() throws Exception {
+        new ModelQuery<Hoge>(ds, meta).sortInMemory(meta.myInteger.asc).scan(
+            1,
+            new ScanHandler<Hoge>() {
+                public void handle(Hoge value) {
+                }
+            });
+    }
+
     /**
      * @throws Exception
      */
@@ -834,6 +1070,85 @@ public class ModelQueryTest extends AppEngineTestCase {
         assertThat(query2.count(), is(1));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void countWithPartitions() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setKey(KeyFactory.createKey("Hoge", i));
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        assertThat(new ModelQuery<Hoge>(ds, meta).count(2), is(6));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void countWithPartitionsForPolyModel() throws Exception {
+        DatastoreUtil.put(ds, null, DatastoreUtil.modelToEntity(ds, new Aaa()));
+        DatastoreUtil.put(ds, null, DatastoreUtil.modelToEntity(ds, new Bbb()));
+        assertThat(new ModelQuery<Aaa>(ds, aaaMeta).count(2), is(2));
+        assertThat(new ModelQuery<Bbb>(ds, bbbMeta).count(2), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void aggregate() throws Exception {
+        int[] values = new int[] { 1, 2, 2, 4 };
+        for (int i = 0; i < values.length; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(values[i]);
+            hoge.setMyString("aaa");
+            DatastoreUtil.put(ds, null, meta.modelToEntity(hoge));
+        }
+        DatastoreUtil.put(ds, null, meta.modelToEntity(new Hoge()));
+        Aggregate<Integer> aggregate =
+            new ModelQuery<Hoge>(ds, meta)
+                .filter(meta.myString.equal("aaa"))
+                .aggregate(meta.myInteger, 2, true);
+        assertThat(aggregate.getCount(), is(4L));
+        assertThat(aggregate.getSum(), is((Number) 9L));
+        assertThat(aggregate.getAverage(), is(2.25));
+        assertThat(aggregate.getMin(), is(1));
+        assertThat(aggregate.getMax(), is(4));
+        assertThat(aggregate.getDistinctCount(), is(3));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void aggregateForEnum() throws Exception {
+        Hoge hoge = new Hoge();
+        hoge.setMyEnum(SortDirection.DESCENDING);
+        Hoge hoge2 = new Hoge();
+        hoge2.setMyEnum(SortDirection.ASCENDING);
+        DatastoreUtil.put(ds, null, Arrays.asList(
+            meta.modelToEntity(hoge),
+            meta.modelToEntity(hoge2)));
+        Aggregate<SortDirection> aggregate =
+            new ModelQuery<Hoge>(ds, meta).aggregate(meta.myEnum);
+        assertThat(aggregate.getCount(), is(2L));
+        assertThat(aggregate.getSum(), is(nullValue()));
+        assertThat(aggregate.getMin(), is(SortDirection.ASCENDING));
+        assertThat(aggregate.getMax(), is(SortDirection.DESCENDING));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void aggregateAndFilterInMemory() throws Exception {
+        new ModelQuery<Hoge>(ds, meta)
+            .filterInMemory(meta.myInteger.equal(1))
+            .aggregate(meta.myInteger);
+    }
+
     /**
      * @throws Exception
      */
@@ -2142,4 +2457,79 @@ public class ModelQueryTest extends AppEngineTestCase {
                 .asList();
         assertThat(list.size(), is(3));
     }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asQueryResultListWithFanOut() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            hoge.setMyString(i % 3 == 0 ? "aaa" : i % 3 == 1 ? "bbb" : "ccc");
+            DatastoreUtil.put(ds, null, DatastoreUtil.modelToEntity(ds, hoge));
+        }
+        S3QueryResultList<Hoge> list =
+            new ModelQuery<Hoge>(ds, meta)
+                .filter(meta.myString.in("aaa", "bbb"))
+                .sort(meta.myInteger.desc)
+                .limit(2)
+                .fanOut()
+                .asQueryResultList();
+        assertThat(list.size(), is(2));
+        assertThat(list.get(0).getMyInteger(), is(6));
+        assertThat(list.get(1).getMyInteger(), is(4));
+        assertThat(list.hasNext(), is(true));
+        List<Hoge> list2 =
+            new ModelQuery<Hoge>(ds, meta)
+                .filter(meta.myString.in("aaa", "bbb"))
+                .sort(meta.myInteger.desc)
+                .encodedStartCursor(list.getEncodedCursor())
+                .asList();
+        assertThat(list2.size(), is(2));
+        assertThat(list2.get(0).getMyInteger(), is(3));
+        assertThat(list2.get(1).getMyInteger(), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void asListWithFanOutForOr() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            Hoge hoge = new Hoge();
+            hoge.setMyInteger(i);
+            hoge.setMyString(i <= 2 ? "aaa" : "bbb");
+            DatastoreUtil.put(ds, null, DatastoreUtil.modelToEntity(ds, hoge));
+        }
+        List<Hoge> list =
+            new ModelQuery<Hoge>(ds, meta)
+                .filter(
+                    meta.or(
+                        meta.myString.equal("aaa"),
+                        meta.myInteger.equal(2),
+                        meta.myInteger.equal(4)))
+                .sort(meta.myInteger.asc)
+                .fanOut()
+                .asList();
+        assertThat(list.size(), is(3));
+        assertThat(list.get(0).getMyInteger(), is(1));
+        assertThat(list.get(1).getMyInteger(), is(2));
+        assertThat(list.get(2).getMyInteger(), is(4));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void asListWithFanOutForTooManySubQueries() throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i <= AbstractQuery.MAX_SUB_QUERIES; i++) {
+            values.add(i);
+        }
+        new ModelQuery<Hoge>(ds, meta)
+            .filter(meta.myInteger.in(values))
+            .fanOut()
+            .asList();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * @author higa
+ * 
+ */
+public class PrefetchingEntityIteratorTest extends AppEngineTestCase {
+
+    private AsyncDatastoreService ds =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+
+    private PreparedQuery pq;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        for (int i = 1; i <= 7; i++) {
+            ds.put(new Entity(KeyFactory.createKey("Hoge", i))).get();
+        }
+        pq = ds.prepare(new Query("Hoge"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterate() throws Exception {
+        PrefetchingEntityIterator iterator =
+            new PrefetchingEntityIterator(
+                pq,
+                FetchOptions.Builder.withDefaults(),
+                3);
+        List<Long> ids = new ArrayList<Long>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getKey().getId());
+            if (ids.size() == 1) {
+                assertThat(iterator.nextPage.size, is(3));
+            }
+        }
+        assertThat(ids.size(), is(7));
+        assertThat(ids.get(0), is(1L));
+        assertThat(ids.get(6), is(7L));
+        assertThat(iterator.nextPage == null, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iterateWithLimitAndOffset() throws Exception {
+        PrefetchingEntityIterator iterator =
+            new PrefetchingEntityIterator(pq, FetchOptions.Builder
+                .withLimit(4)
+                .offset(2), 3);
+        List<Long> ids = new ArrayList<Long>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getKey().getId());
+        }
+        assertThat(ids.size(), is(4));
+        assertThat(ids.get(0), is(3L));
+        assertThat(ids.get(3), is(6L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getCursor() throws Exception {
+        PrefetchingEntityIterator iterator =
+            new PrefetchingEntityIterator(
+                pq,
+                FetchOptions.Builder.withDefaults(),
+                3);
+        iterator.next();
+        iterator.next();
+        Cursor cursor = iterator.getCursor();
+        assertThat(pq
+            .asList(FetchOptions.Builder.withStartCursor(cursor))
+            .get(0)
+            .getKey()
+            .getId(), is(3L));
+        iterator.next();
+        cursor = iterator.getCursor();
+        assertThat(pq
+            .asList(FetchOptions.Builder.withStartCursor(cursor))
+            .get(0)
+            .getKey()
+            .getId(), is(4L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorForIllegalPageSize() throws Exception {
+        new PrefetchingEntityIterator(
+            pq,
+            FetchOptions.Builder.withDefaults(),
+            0);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * @author higa
+ * 
+ */
+public class QueryCacheTest extends AppEngineTestCase {
+
+    @Override
+    public void tearDown() throws Exception {
+        System.clearProperty(QueryCache.USE_QUERY_CACHE);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isEnabled() throws Exception {
+        assertThat(QueryCache.isEnabled(), is(false));
+        System.setProperty(QueryCache.USE_QUERY_CACHE, "true");
+        assertThat(QueryCache.isEnabled(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void invalidate() throws Exception {
+        long generation = QueryCache.getGeneration("Hoge");
+        assertThat(QueryCache.getGeneration("Hoge"), is(generation));
+        Key key = KeyFactory.createKey("Hoge", 1);
+        QueryCache.invalidate(Arrays.asList(key));
+        assertThat(QueryCache.getGeneration("Hoge"), is(generation));
+        System.setProperty(QueryCache.USE_QUERY_CACHE, "true");
+        QueryCache.invalidate(Arrays.asList(key, key));
+        assertThat(QueryCache.getGeneration("Hoge"), is(generation + 1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAndGet() throws Exception {
+        Key key = KeyFactory.createKey("Hoge", 1);
+        QueryCache.put("Hoge", 1, "aaa", new QueryCache.Result(Arrays
+            .asList(key), "bbb", true), 60);
+        QueryCache.Result result = QueryCache.get("Hoge", 1, "aaa");
+        assertThat(result.getKeys(), is(Arrays.asList(key)));
+        assertThat(result.getEncodedCursor(), is("bbb"));
+        assertThat(result.hasNext(), is(true));
+        assertThat(QueryCache.get("Hoge", 2, "aaa"), is(nullValue()));
+        assertThat(QueryCache.get("Hoge", 1, "ccc"), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void toMemcacheKey() throws Exception {
+        assertThat(
+            QueryCache.toMemcacheKey("Hoge", 1, "aaa"),
+            is(not(QueryCache.toMemcacheKey("Hoge", 2, "aaa"))));
+    }
+}
\ No newline at end of file
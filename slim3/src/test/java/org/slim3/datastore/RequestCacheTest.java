@@ -0,0 +1,180 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * @author higa
+ * 
+ */
+public class RequestCacheTest extends AppEngineTestCase {
+
+    private Key key;
+
+    private Key key2;
+
+    private DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        key = KeyFactory.createKey("Hoge", 1);
+        key2 = KeyFactory.createKey("Hoge", 2);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        RequestCache.end();
+        System.clearProperty(RequestCache.USE_REQUEST_CACHE);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isEnabled() throws Exception {
+        assertThat(RequestCache.isEnabled(), is(false));
+        System.setProperty(RequestCache.USE_REQUEST_CACHE, "true");
+        assertThat(RequestCache.isEnabled(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void beginAndEnd() throws Exception {
+        assertThat(RequestCache.getCurrent(), is(nullValue()));
+        RequestCache.begin();
+        assertThat(RequestCache.getCurrent(), is(notNullValue()));
+        RequestCache.end();
+        assertThat(RequestCache.getCurrent(), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAndGet() throws Exception {
+        RequestCache.begin();
+        RequestCache cache = RequestCache.getCurrent();
+        Entity entity = new Entity(key);
+        Map<Key, Entity> map = new HashMap<Key, Entity>();
+        map.put(key, entity);
+        cache.put(Arrays.asList(key, key2), map, cache.getGeneration());
+        assertThat(cache.contains(key), is(true));
+        assertThat(cache.contains(key2), is(true));
+        Entity cached = cache.get(key);
+        assertThat(cached, is(entity));
+        assertThat(cached, is(not(sameInstance(entity))));
+        assertThat(cache.get(key2), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void putAfterInvalidation() throws Exception {
+        RequestCache.begin();
+        RequestCache cache = RequestCache.getCurrent();
+        long generation = cache.getGeneration();
+        cache.invalidate(Arrays.asList(key2), null);
+        cache.put(
+            Arrays.asList(key),
+            new HashMap<Key, Entity>(),
+            generation);
+        assertThat(cache.contains(key), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void invalidate() throws Exception {
+        RequestCache.begin();
+        RequestCache cache = RequestCache.getCurrent();
+        cache.put(
+            Arrays.asList(key),
+            new HashMap<Key, Entity>(),
+            cache.getGeneration());
+        cache.invalidate(Arrays.asList(key), null);
+        assertThat(cache.contains(key), is(false));
+        cache.put(
+            Arrays.asList(key),
+            new HashMap<Key, Entity>(),
+            cache.getGeneration());
+        assertThat(cache.contains(key), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void invalidateInTx() throws Exception {
+        RequestCache.begin();
+        RequestCache cache = RequestCache.getCurrent();
+        Transaction tx = ds.beginTransaction();
+        cache.invalidate(Arrays.asList(key), tx);
+        assertThat(cache.isPending(key), is(true));
+        cache.put(
+            Arrays.asList(key),
+            new HashMap<Key, Entity>(),
+            cache.getGeneration());
+        assertThat(cache.contains(key), is(false));
+        tx.rollback();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void releaseAfterCommit() throws Exception {
+        RequestCache.begin();
+        RequestCache cache = RequestCache.getCurrent();
+        Transaction tx = ds.beginTransaction();
+        cache.invalidate(Arrays.asList(key), tx);
+        long generation = cache.getGeneration();
+        tx.commit();
+        assertThat(cache.isPending(key), is(false));
+        cache.put(Arrays.asList(key), new HashMap<Key, Entity>(), generation);
+        assertThat(cache.contains(key), is(false));
+        cache.put(
+            Arrays.asList(key),
+            new HashMap<Key, Entity>(),
+            cache.getGeneration());
+        assertThat(cache.contains(key), is(true));
+    }
+}
\ No newline at end of file
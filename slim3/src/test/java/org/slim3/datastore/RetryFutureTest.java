@@ -0,0 +1,201 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slim3.util.FakeFuture;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
+/**
+ * @author higa
+ * 
+ */
+public class RetryFutureTest {
+
+    private RetryPolicy policy = new RetryPolicy().initialBackoffMillis(0);
+
+    private int count = 0;
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+        RetryPolicy.resetRetriesInRequest();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void get() throws Exception {
+        Future<String> future = new RetryFuture<String>(policy, true) {
+            @Override
+            protected Future<String> dispatch() {
+                count++;
+                if (count < 3) {
+                    return failedFuture(new DatastoreTimeoutException("timeout"));
+                }
+                return new FakeFuture<String>("hoge");
+            }
+        }.start();
+        assertThat(future.get(), is("hoge"));
+        assertThat(count, is(3));
+        assertThat(RetryPolicy.getRetriesInRequest(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getWhenRetriesAreExhausted() throws Exception {
+        policy.maxRetries(1);
+        Future<String> future = new RetryFuture<String>(policy, true) {
+            @Override
+            protected Future<String> dispatch() {
+                count++;
+                return failedFuture(new DatastoreTimeoutException("timeout"));
+            }
+        }.start();
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(
+                e.getCause(),
+                is(instanceOf(DatastoreTimeoutException.class)));
+        }
+        assertThat(count, is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getForNotIdempotentOperation() throws Exception {
+        Future<String> future = new RetryFuture<String>(policy, false) {
+            @Override
+            protected Future<String> dispatch() {
+                count++;
+                return failedFuture(new DatastoreTimeoutException("timeout"));
+            }
+        }.start();
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(
+                e.getCause(),
+                is(instanceOf(DatastoreTimeoutException.class)));
+        }
+        assertThat(count, is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getWhenDispatchFailed() throws Exception {
+        Future<String> future = new RetryFuture<String>(policy, true) {
+            @Override
+            protected Future<String> dispatch() {
+                count++;
+                if (count == 2) {
+                    throw new DatastoreTimeoutException("timeout");
+                }
+                if (count < 3) {
+                    return failedFuture(new DatastoreTimeoutException("timeout"));
+                }
+                return new FakeFuture<String>("hoge");
+            }
+        }.start();
+        assertThat(future.get(), is("hoge"));
+        assertThat(count, is(3));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getForDeadline() throws Exception {
+        policy.maxRetries(1).deadlineMillis(10);
+        Future<String> future = new RetryFuture<String>(policy, true) {
+            @Override
+            protected Future<String> dispatch() {
+                count++;
+                if (count == 1) {
+                    return neverFuture();
+                }
+                return new FakeFuture<String>("hoge");
+            }
+        }.start();
+        assertThat(future.get(), is("hoge"));
+        assertThat(count, is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getWithTimeout() throws Exception {
+        policy.deadlineMillis(1000);
+        Future<String> future = new RetryFuture<String>(policy, true) {
+            @Override
+            protected Future<String> dispatch() {
+                count++;
+                return neverFuture();
+            }
+        }.start();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+        }
+        assertThat(count, is(1));
+    }
+
+    private static Future<String> failedFuture(final RuntimeException cause) {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                throw cause;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private static Future<String> neverFuture() {
+        return new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return null;
+            }
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ConcurrentModificationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
+/**
+ * @author higa
+ * 
+ */
+public class RetryPolicyTest {
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        RetryPolicy.resetRetriesInRequest();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+        RetryPolicy.resetRetriesInRequest();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void defaults() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        assertThat(policy.getMaxRetries(), is(RetryPolicy.DEFAULT_MAX_RETRIES));
+        assertThat(
+            policy.getInitialBackoffMillis(),
+            is(RetryPolicy.DEFAULT_INITIAL_BACKOFF_MILLIS));
+        assertThat(
+            policy.getMaxBackoffMillis(),
+            is(RetryPolicy.DEFAULT_MAX_BACKOFF_MILLIS));
+        assertThat(policy.getDeadlineMillis(), is(0L));
+        assertThat(policy.isRetryPuts(), is(false));
+        assertThat(policy.getMaxRetriesPerRequest(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void maxRetriesForNegativeValue() throws Exception {
+        new RetryPolicy().maxRetries(-1);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isRetryable() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        assertThat(policy.isRetryable(
+            new DatastoreTimeoutException("timeout"),
+            true), is(true));
+        assertThat(policy.isRetryable(
+            new DatastoreFailureException("failure"),
+            true), is(true));
+        assertThat(policy.isRetryable(
+            new ConcurrentModificationException(),
+            true), is(true));
+        assertThat(
+            policy.isRetryable(new IllegalArgumentException(), true),
+            is(false));
+        assertThat(policy.isRetryable(
+            new DatastoreTimeoutException("timeout"),
+            false), is(false));
+        policy.retryPuts(true);
+        assertThat(policy.isRetryable(
+            new DatastoreTimeoutException("timeout"),
+            false), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void acquireRetry() throws Exception {
+        RetryPolicy policy = new RetryPolicy().maxRetries(2);
+        assertThat(policy.acquireRetry(0), is(true));
+        assertThat(policy.acquireRetry(1), is(true));
+        assertThat(policy.acquireRetry(2), is(false));
+        assertThat(RetryPolicy.getRetriesInRequest(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void acquireRetryForMaxRetriesPerRequest() throws Exception {
+        RetryPolicy policy = new RetryPolicy().maxRetriesPerRequest(3);
+        assertThat(policy.acquireRetry(0), is(true));
+        assertThat(policy.acquireRetry(0), is(true));
+        assertThat(policy.acquireRetry(0), is(true));
+        assertThat(policy.acquireRetry(0), is(false));
+        RetryPolicy.resetRetriesInRequest();
+        assertThat(policy.acquireRetry(0), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getBackoffMillis() throws Exception {
+        RetryPolicy policy =
+            new RetryPolicy().initialBackoffMillis(10).maxBackoffMillis(50);
+        for (int i = 0; i < 100; i++) {
+            long backoff = policy.getBackoffMillis(0);
+            assertTrue(backoff >= 5 && backoff <= 10);
+            backoff = policy.getBackoffMillis(1);
+            assertTrue(backoff >= 10 && backoff <= 20);
+            backoff = policy.getBackoffMillis(40);
+            assertTrue(backoff >= 25 && backoff <= 50);
+        }
+        assertThat(new RetryPolicy()
+            .initialBackoffMillis(0)
+            .getBackoffMillis(3), is(0L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void backoff() throws Exception {
+        RetryPolicy policy =
+            new RetryPolicy().maxRetries(1).initialBackoffMillis(0);
+        DatastoreTimeoutException cause =
+            new DatastoreTimeoutException("timeout");
+        policy.backoff(cause, true, 0);
+        try {
+            policy.backoff(cause, true, 1);
+            fail();
+        } catch (DatastoreTimeoutException e) {
+            assertThat(e, is(sameInstance(cause)));
+        }
+        try {
+            policy.backoff(cause, false, 0);
+            fail();
+        } catch (DatastoreTimeoutException e) {
+            assertThat(e, is(sameInstance(cause)));
+        }
+    }
+}
\ No newline at end of file
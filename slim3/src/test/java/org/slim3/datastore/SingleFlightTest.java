@@ -0,0 +1,133 @@
+/*
+ * Copyright 2004-2010 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.slim3.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * @author higa
+ * 
+ */
+public class SingleFlightTest extends AppEngineTestCase {
+
+    private AsyncDatastoreService ds =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+
+    private List<Key> keys = new ArrayList<Key>();
+
+    @Override
+    public void tearDown() throws Exception {
+        System.clearProperty(SingleFlight.USE_SINGLE_FLIGHT);
+        System.clearProperty(SingleFlight.TIMEOUT_MILLIS);
+        SingleFlight.forget(keys);
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void isEnabled() throws Exception {
+        assertThat(SingleFlight.isEnabled(), is(false));
+        System.setProperty(SingleFlight.USE_SINGLE_FLIGHT, "true");
+        assertThat(SingleFlight.isEnabled(), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsync() throws Exception {
+        Key key = ds.put(new Entity("Hoge")).get();
+        Key key2 = KeyFactory.createKey("Hoge", 99);
+        Future<Map<Key, Entity>> future =
+            SingleFlight.getAsMapAsync(ds, Arrays.asList(key, key2), 10);
+        Future<Map<Key, Entity>> future2 =
+            SingleFlight.getAsMapAsync(ds, Arrays.asList(key), 10);
+        Map<Key, Entity> map = future.get();
+        Map<Key, Entity> map2 = future2.get();
+        assertThat(map.size(), is(1));
+        assertThat(map2.size(), is(1));
+        assertThat(map.get(key), is(map2.get(key)));
+        assertThat(map.get(key), is(not(sameInstance(map2.get(key)))));
+        assertThat(SingleFlight.getInFlightCount(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void forget() throws Exception {
+        Key key = ds.put(new Entity("Hoge")).get();
+        Future<Map<Key, Entity>> future =
+            SingleFlight.getAsMapAsync(ds, Arrays.asList(key), 10);
+        assertThat(SingleFlight.getInFlightCount(), is(1));
+        SingleFlight.forget(Arrays.asList(key));
+        assertThat(SingleFlight.getInFlightCount(), is(0));
+        assertThat(future.get().size(), is(1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncDoesNotShareStaleLookup() throws Exception {
+        System.setProperty(SingleFlight.TIMEOUT_MILLIS, "10");
+        Key key = ds.put(new Entity("Hoge")).get();
+        keys.add(key);
+        SingleFlight.getAsMapAsync(ds, Arrays.asList(key), 10);
+        Thread.sleep(50);
+        Future<Map<Key, Entity>> future =
+            SingleFlight.getAsMapAsync(ds, Arrays.asList(key), 10);
+        assertThat(future.get().size(), is(1));
+        assertThat(SingleFlight.getInFlightCount(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void getAsMapAsyncRemovesAbandonedLookup() throws Exception {
+        System.setProperty(SingleFlight.TIMEOUT_MILLIS, "10");
+        Key key = ds.put(new Entity("Hoge")).get();
+        Key key2 = ds.put(new Entity("Hoge")).get();
+        keys.add(key);
+        keys.add(key2);
+        SingleFlight.getAsMapAsync(ds, Arrays.asList(key), 10);
+        assertThat(SingleFlight.getInFlightCount(), is(1));
+        Thread.sleep(50);
+        SingleFlight.getAsMapAsync(ds, Arrays.asList(key2), 10).get();
+        assertThat(SingleFlight.getInFlightCount(), is(0));
+    }
+}
\ No newline at end of file
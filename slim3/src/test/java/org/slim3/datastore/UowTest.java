@@ -22,6 +22,8 @@ import java.util.ConcurrentModificationException;
 
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
 /**
  * @author higa
  * 
@@ -96,6 +98,72 @@ public class UowTest {
         assertThat(retries, is(Uow.DEFAULT_MAX_RETRIES));
     }
 
+    /**
+     * @throws Exception
+     * 
+     */
+    @Test
+    public void runWithRetryPolicy() throws Exception {
+        Uow.run(new AbstractUow() {
+
+            @Override
+            protected void rollback() {
+            }
+
+            @Override
+            protected Object run() {
+                if (retries < 2) {
+                    retries++;
+                    throw new ConcurrentModificationException();
+                }
+                return null;
+            }
+
+            @Override
+            protected void commit() {
+            }
+
+            @Override
+            protected void beginTransaction() {
+            }
+
+            @Override
+            protected RetryPolicy getRetryPolicy() {
+                return new RetryPolicy().maxRetries(2).initialBackoffMillis(0);
+            }
+        });
+        assertThat(retries, is(2));
+        RetryPolicy.resetRetriesInRequest();
+    }
+
+    /**
+     * @throws Exception
+     * 
+     */
+    @Test(expected = DatastoreTimeoutException.class)
+    public void runWithRetryPolicyForTimeout() throws Exception {
+        Uow.run(new AbstractUow() {
+
+            @Override
+            protected void rollback() {
+            }
+
+            @Override
+            protected Object run() {
+                retries++;
+                throw new DatastoreTimeoutException("timeout");
+            }
+
+            @Override
+            protected void commit() {
+            }
+
+            @Override
+            protected void beginTransaction() {
+            }
+        }, new RetryPolicy().initialBackoffMillis(0));
+    }
+
     /**
      * @throws Exception
      * 
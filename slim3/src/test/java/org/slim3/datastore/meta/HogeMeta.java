@@ -24,6 +24,7 @@ import java.util.TreeSet;
 
 import org.slim3.datastore.CollectionAttributeMeta;
 import org.slim3.datastore.CoreAttributeMeta;
+import org.slim3.datastore.EntityProtoWriter;
 import org.slim3.datastore.ModelMeta;
 import org.slim3.datastore.StringAttributeMeta;
 import org.slim3.datastore.StringCollectionAttributeMeta;
@@ -41,6 +42,7 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.ShortBlob;
 import com.google.appengine.api.datastore.Text;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 
 /**
  * @author higa
@@ -101,7 +103,13 @@ public class HogeMeta extends ModelMeta<Hoge> {
             this,
             "myInteger",
             "myInteger",
-            Integer.class);
+            Integer.class) {
+
+            @Override
+            protected Object getValue(Object model) {
+                return ((Hoge) model).getMyInteger();
+            }
+        };
 
     /**
      * 
@@ -163,7 +171,13 @@ public class HogeMeta extends ModelMeta<Hoge> {
      * 
      */
     public StringAttributeMeta<Hoge> myString =
-        new StringAttributeMeta<Hoge>(this, "myString", "myString");
+        new StringAttributeMeta<Hoge>(this, "myString", "myString") {
+
+            @Override
+            protected Object getValue(Object model) {
+                return ((Hoge) model).getMyString();
+            }
+        };
 
     /**
      * 
@@ -551,6 +565,69 @@ public class HogeMeta extends ModelMeta<Hoge> {
         return e;
     }
 
+    @Override
+    public EntityProto modelToProto(Object model) {
+        Hoge m = (Hoge) model;
+        EntityProtoWriter e = null;
+        if (m.getKey() != null) {
+            e = new EntityProtoWriter(m.getKey());
+        } else {
+            e = new EntityProtoWriter("Hoge");
+        }
+        e.setProperty("myPrimitiveShort", m.getMyPrimitiveShort());
+        e.setProperty("myShort", m.getMyShort());
+        e.setProperty("myPrimitiveInt", m.getMyPrimitiveInt());
+        e.setProperty("myInteger", m.getMyInteger());
+        e.setProperty("myPrimitiveLong", m.getMyPrimitiveLong());
+        e.setProperty("myLong", m.getMyLong());
+        e.setProperty("myPrimitiveFloat", m.getMyPrimitiveFloat());
+        e.setProperty("myFloat", m.getMyFloat());
+        e.setProperty("myPrimitiveDouble", m.getMyPrimitiveDouble());
+        e.setProperty("myDouble", m.getMyDouble());
+        e.setProperty("myString", m.getMyString());
+        e.setProperty("myPrimitiveBoolean", m.isMyPrimitiveBoolean());
+        e.setProperty("myBoolean", m.getMyBoolean());
+        e.setProperty("myDate", m.getMyDate());
+        e.setProperty("myEnum", enumToString(m.getMyEnum()));
+
+        e.setUnindexedProperty(
+            "myStringText",
+            stringToText(m.getMyStringText()));
+        e.setUnindexedProperty("myText", m.getMyText());
+        e.setUnindexedProperty("myBytes", bytesToShortBlob(m.getMyBytes()));
+        e.setUnindexedProperty("myBytesBlob", bytesToBlob(m.getMyBytesBlob()));
+        e.setUnindexedProperty("mySerializable", serializableToShortBlob(m
+            .getMySerializable()));
+        e.setUnindexedProperty("mySerializableBlob", serializableToBlob(m
+            .getMySerializableBlob()));
+        e.setProperty("myBlob", m.getMyBlob());
+        e.setProperty("myShortList", m.getMyShortList());
+        e.setProperty("myShortSet", m.getMyShortSet());
+        e.setProperty("myShortSortedSet", m.getMyShortSortedSet());
+
+        e.setProperty("myIntegerList", m.getMyIntegerList());
+        e.setProperty("myIntegerSet", m.getMyIntegerSet());
+        e.setProperty("myIntegerSortedSet", m.getMyIntegerSortedSet());
+
+        e.setProperty("myLongList", m.getMyLongList());
+        e.setProperty("myLongSet", m.getMyLongSet());
+        e.setProperty("myLongSortedSet", m.getMyLongSortedSet());
+
+        e.setProperty("myFloatList", m.getMyFloatList());
+        e.setProperty("myFloatSet", m.getMyFloatSet());
+        e.setProperty("myFloatSortedSet", m.getMyFloatSortedSet());
+
+        e.setProperty("myEnumList", enumListToStringList(m.getMyEnumList()));
+        e.setProperty("myStringList", m.getMyStringList());
+
+        e.setProperty("version", m.getVersion());
+        e.setUnindexedProperty("myCipherLobString", stringToText(encrypt(m
+            .getMyCipherLobString())));
+        e.setProperty("myCipherString", encrypt(m.getMyCipherString()));
+        e.setUnindexedProperty("myCipherText", encrypt(m.getMyCipherText()));
+        return e.getProto();
+    }
+
     @Override
     protected Key getKey(Object model) {
         org.slim3.datastore.model.Hoge m =
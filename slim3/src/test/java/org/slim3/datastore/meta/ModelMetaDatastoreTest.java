@@ -15,6 +15,7 @@
  */
 package org.slim3.datastore.meta;
 
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
@@ -36,8 +37,12 @@ import org.slim3.util.CipherFactory;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Query.SortDirection;
 
@@ -543,4 +548,72 @@ public class ModelMetaDatastoreTest extends AppEngineTestCase {
         Bbb bbb2 = bbbMeta.entityToModel(bbbEntity2);
         assertThat(bbb2.getHogeRef().getKey(), is(key));
     }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void modelToProto() throws Exception {
+        populate(model);
+        Entity entity =
+            EntityTranslator.createFromPb(EntityTranslator.convertToPb(meta
+                .modelToEntity(model)));
+        Entity entity2 =
+            EntityTranslator.createFromPb(meta.modelToProto(model));
+        assertThat(entity2.getKey(), is(entity.getKey()));
+        assertThat(entity2.getProperties(), is(entity.getProperties()));
+        for (String name : entity.getProperties().keySet()) {
+            assertThat(
+                name,
+                entity2.isUnindexedProperty(name),
+                is(entity.isUnindexedProperty(name)));
+        }
+        Key key = ds.put(entity2);
+        assertThat(ds.prepare(
+            new Query("Hoge").setFilter(new FilterPredicate(
+                "myString",
+                FilterOperator.EQUAL,
+                "aaa"))).countEntities(withDefaults()), is(1));
+        Hoge model2 = meta.entityToModel(ds.get(key));
+        assertThat(model2.getMyStringText(), is("bbb"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void modelToProtoWithoutKey() throws Exception {
+        Entity entity =
+            EntityTranslator.createFromPb(meta.modelToProto(model));
+        assertThat(entity.getKind(), is("Hoge"));
+        assertThat(entity.getKey().isComplete(), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void modelToProtoForDefaultImplementation() throws Exception {
+        bbb.setKey(KeyFactory.createKey("Bbb", 1));
+        bbb.getHogeRef().setKey(KeyFactory.createKey("Hoge", 1));
+        Bbb bbb2 =
+            bbbMeta.entityToModel(EntityTranslator.createFromPb(bbbMeta
+                .modelToProto(bbb)));
+        assertThat(bbb2.getKey(), is(bbb.getKey()));
+        assertThat(bbb2.getHogeRef().getKey(), is(bbb.getHogeRef().getKey()));
+    }
+
+    private void populate(Hoge hoge) {
+        hoge.setKey(KeyFactory.createKey("Hoge", 1));
+        hoge.setMyString("aaa");
+        hoge.setMyStringText("bbb");
+        hoge.setMyInteger(1);
+        hoge.setMyDate(new Date());
+        hoge.setMyEnum(SortDirection.DESCENDING);
+        hoge.setMyBytes(new byte[] { 1, 2 });
+        hoge.setMyLongList(Arrays.asList(1L, 2L));
+        hoge.setMyStringList(Arrays.asList("ccc"));
+        hoge.setMyCipherString("ddd");
+        hoge.setVersion(1L);
+    }
 }
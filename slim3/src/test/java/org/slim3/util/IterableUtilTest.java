@@ -19,6 +19,7 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 
@@ -85,4 +86,18 @@ public class IterableUtilTest {
         assertThat((List<String>) ret.get(1), is(Arrays.asList("3", "4")));
         assertThat((List<String>) ret.get(2), is(Arrays.asList("5", "6")));
     }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void size() throws Exception {
+        final List<String> list = Arrays.asList("1", "2", "3");
+        assertThat(IterableUtil.size(list), is(3));
+        assertThat(IterableUtil.size(new Iterable<String>() {
+            public Iterator<String> iterator() {
+                return list.iterator();
+            }
+        }), is(3));
+    }
 }